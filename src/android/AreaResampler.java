@@ -0,0 +1,218 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Downscales an image by area averaging: every output pixel is the mean of the source pixels
+ * it covers, weighted by how much of each pixel falls inside it. Unlike bilinear filtering
+ * this does not alias at large reduction ratios.
+ * <p>
+ * The output is split into strips of rows that are resampled in parallel on the shared
+ * pixel strip pool. Weights are computed once per image in 14 bit fixed point; the inner
+ * loops only touch int arrays allocated per strip. All four channels, including alpha, are
+ * averaged as they are, which is exact for the opaque images the camera produces. Plain Java
+ * only, so it runs on any JVM.
+ */
+public class AreaResampler {
+    private static final int WEIGHT_BITS = 14;
+    private static final int WEIGHT_ONE = 1 << WEIGHT_BITS;
+    // Horizontal sums keep 8 fractional bits for the vertical pass
+    private static final int HORIZONTAL_SHIFT = WEIGHT_BITS - 8;
+    private static final int VERTICAL_SHIFT = WEIGHT_BITS + 8;
+
+    // Source rows each strip reads, enough to amortize the task overhead
+    private static final int SOURCE_ROWS_PER_STRIP = 64;
+
+    /**
+     * Coverage of the source by each output pixel along one axis. Output pixel i covers the
+     * source pixels start[i] to start[i] + count[i] - 1 with the weights at i * stride.
+     */
+    static class Weights {
+        final int[] start;
+        final int[] count;
+        final int[] weights;
+        final int stride;
+
+        Weights(int srcSize, int dstSize) {
+            double scale = srcSize / (double) dstSize;
+            start = new int[dstSize];
+            count = new int[dstSize];
+            stride = (int) Math.ceil(scale) + 1;
+            weights = new int[dstSize * stride];
+            for (int i = 0; i < dstSize; i++) {
+                double from = i * scale;
+                double to = Math.min(srcSize, (i + 1) * scale);
+                int first = (int) from;
+                int last = Math.min(srcSize - 1, (int) Math.ceil(to) - 1);
+                start[i] = first;
+                count[i] = last - first + 1;
+
+                int total = 0;
+                int largest = 0;
+                for (int k = 0; k < count[i]; k++) {
+                    double coverage = Math.min(to, first + k + 1) - Math.max(from, first + k);
+                    int weight = (int) Math.round(coverage / scale * WEIGHT_ONE);
+                    weights[i * stride + k] = weight;
+                    total += weight;
+                    if (weight > weights[i * stride + largest]) {
+                        largest = k;
+                    }
+                }
+                // Rounding must not brighten or darken the pixel
+                weights[i * stride + largest] += WEIGHT_ONE - total;
+            }
+        }
+    }
+
+    /**
+     * Whether area averaging applies. It only reduces; enlarging is left to bilinear filtering.
+     */
+    public static boolean canResample(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+        return dstWidth > 0 && dstHeight > 0 && dstWidth <= srcWidth && dstHeight <= srcHeight
+                && (dstWidth < srcWidth || dstHeight < srcHeight);
+    }
+
+    /**
+     * Resamples on the shared pool and returns once every row has been written to the sink.
+     */
+    public static void resample(PixelStrips.Source source, int srcWidth, int srcHeight,
+                                PixelStrips.Sink sink, int dstWidth, int dstHeight) {
+        resample(source, srcWidth, srcHeight, sink, dstWidth, dstHeight, PixelStrips.getPool());
+    }
+
+    static void resample(PixelStrips.Source source, int srcWidth, int srcHeight,
+                         PixelStrips.Sink sink, int dstWidth, int dstHeight, ForkJoinPool pool) {
+        if (!canResample(srcWidth, srcHeight, dstWidth, dstHeight)) {
+            throw new IllegalArgumentException("Cannot resample " + srcWidth + "x" + srcHeight
+                    + " to " + dstWidth + "x" + dstHeight);
+        }
+        Weights horizontal = new Weights(srcWidth, dstWidth);
+        Weights vertical = new Weights(srcHeight, dstHeight);
+        int rowsPerStrip = Math.max(1, (int) ((long) SOURCE_ROWS_PER_STRIP * dstHeight / srcHeight));
+        pool.invoke(new StripTask(source, srcWidth, sink, dstWidth, horizontal, vertical, rowsPerStrip, 0, dstHeight));
+    }
+
+    /**
+     * Resamples a range of output rows, splitting it in halves until a range fits one strip.
+     */
+    private static class StripTask extends RecursiveAction {
+        private final PixelStrips.Source source;
+        private final int srcWidth;
+        private final PixelStrips.Sink sink;
+        private final int dstWidth;
+        private final Weights horizontal;
+        private final Weights vertical;
+        private final int rowsPerStrip;
+        private final int firstRow;
+        private final int endRow;
+
+        StripTask(PixelStrips.Source source, int srcWidth, PixelStrips.Sink sink, int dstWidth,
+                  Weights horizontal, Weights vertical, int rowsPerStrip, int firstRow, int endRow) {
+            this.source = source;
+            this.srcWidth = srcWidth;
+            this.sink = sink;
+            this.dstWidth = dstWidth;
+            this.horizontal = horizontal;
+            this.vertical = vertical;
+            this.rowsPerStrip = rowsPerStrip;
+            this.firstRow = firstRow;
+            this.endRow = endRow;
+        }
+
+        @Override
+        protected void compute() {
+            if (endRow - firstRow > rowsPerStrip) {
+                int middle = (firstRow + endRow) >>> 1;
+                invokeAll(new StripTask(source, srcWidth, sink, dstWidth, horizontal, vertical, rowsPerStrip, firstRow, middle),
+                        new StripTask(source, srcWidth, sink, dstWidth, horizontal, vertical, rowsPerStrip, middle, endRow));
+                return;
+            }
+
+            int srcFirst = vertical.start[firstRow];
+            int srcEnd = vertical.start[endRow - 1] + vertical.count[endRow - 1];
+            int[] src = new int[srcWidth * (srcEnd - srcFirst)];
+            source.getRows(src, srcFirst, srcEnd - srcFirst);
+
+            // One horizontally reduced row per source row, channels interleaved as A, R, G, B
+            int[] reduced = new int[dstWidth * 4 * (srcEnd - srcFirst)];
+            for (int row = 0; row < srcEnd - srcFirst; row++) {
+                reduceRow(src, row * srcWidth, reduced, row * dstWidth * 4);
+            }
+
+            int[] dst = new int[dstWidth * (endRow - firstRow)];
+            int[] weights = vertical.weights;
+            for (int y = firstRow; y < endRow; y++) {
+                int first = vertical.start[y] - srcFirst;
+                int count = vertical.count[y];
+                int weightOffset = y * vertical.stride;
+                int out = (y - firstRow) * dstWidth;
+                for (int x = 0; x < dstWidth; x++) {
+                    int a = 0;
+                    int r = 0;
+                    int g = 0;
+                    int b = 0;
+                    int index = first * dstWidth * 4 + x * 4;
+                    for (int k = 0; k < count; k++) {
+                        int weight = weights[weightOffset + k];
+                        a += weight * reduced[index];
+                        r += weight * reduced[index + 1];
+                        g += weight * reduced[index + 2];
+                        b += weight * reduced[index + 3];
+                        index += dstWidth * 4;
+                    }
+                    dst[out + x] = (round(a) << 24) | (round(r) << 16) | (round(g) << 8) | round(b);
+                }
+            }
+            sink.setRows(dst, firstRow, endRow - firstRow);
+        }
+
+        private void reduceRow(int[] src, int srcOffset, int[] reduced, int reducedOffset) {
+            int[] weights = horizontal.weights;
+            int stride = horizontal.stride;
+            for (int x = 0; x < dstWidth; x++) {
+                int a = 0;
+                int r = 0;
+                int g = 0;
+                int b = 0;
+                int index = srcOffset + horizontal.start[x];
+                int weightOffset = x * stride;
+                for (int k = 0; k < horizontal.count[x]; k++) {
+                    int pixel = src[index + k];
+                    int weight = weights[weightOffset + k];
+                    a += weight * (pixel >>> 24);
+                    r += weight * ((pixel >> 16) & 0xFF);
+                    g += weight * ((pixel >> 8) & 0xFF);
+                    b += weight * (pixel & 0xFF);
+                }
+                int out = reducedOffset + x * 4;
+                reduced[out] = (a + (1 << (HORIZONTAL_SHIFT - 1))) >> HORIZONTAL_SHIFT;
+                reduced[out + 1] = (r + (1 << (HORIZONTAL_SHIFT - 1))) >> HORIZONTAL_SHIFT;
+                reduced[out + 2] = (g + (1 << (HORIZONTAL_SHIFT - 1))) >> HORIZONTAL_SHIFT;
+                reduced[out + 3] = (b + (1 << (HORIZONTAL_SHIFT - 1))) >> HORIZONTAL_SHIFT;
+            }
+        }
+
+        private static int round(int sum) {
+            return Math.min(255, (sum + (1 << (VERTICAL_SHIFT - 1))) >> VERTICAL_SHIFT);
+        }
+    }
+}
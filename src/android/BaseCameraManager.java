@@ -1,25 +1,42 @@
 package org.apache.cordova.camera;
 
 import android.Manifest;
+import android.app.Activity;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
 import android.graphics.Bitmap;
+import android.graphics.RectF;
 import android.media.MediaScannerConnection;
 import android.net.Uri;
-import android.os.Build;
 import android.os.Bundle;
+import android.provider.MediaStore;
+import android.util.Base64;
 
 import org.apache.cordova.BuildHelper;
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaInterface;
 import org.apache.cordova.CordovaPlugin;
 import org.apache.cordova.CordovaPreferences;
+import org.apache.cordova.LOG;
 import org.apache.cordova.PermissionHelper;
 import org.apache.cordova.PluginResult;
 import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 
 public abstract class BaseCameraManager implements ICameraManager {
     protected static final int DATA_URL = 0;              // Return base64 encoded string
@@ -33,55 +50,83 @@ public abstract class BaseCameraManager implements ICameraManager {
     protected static final int VIDEO = 1;                 // allow selection of video only, ONLY RETURNS URL
     protected static final int ALLMEDIA = 2;              // allow selection from all media types
 
+    protected static final int BILINEAR = 0;              // Scale with bilinear filtering. DEFAULT
+    protected static final int AREA_AVERAGE = 1;          // Reduce by averaging the covered source pixels, scale up bilinearly
+
     public static final int JPEG = 0;                  // Take a picture of type JPEG
     public static final int PNG = 1;                   // Take a picture of type PNG
+    public static final int WEBP = 2;                  // Take a picture of type lossy WebP
+    public static final int WEBP_LOSSLESS = 3;         // Take a picture of type lossless WebP
+    public static final int HEIF = 4;                  // Take a picture of type HEIF (falls back to JPEG where unavailable)
     public static final String JPEG_TYPE = "jpg";
     public static final String PNG_TYPE = "png";
+    public static final String WEBP_TYPE = "webp";
+    public static final String HEIF_TYPE = "heic";
     public static final String JPEG_EXTENSION = "." + JPEG_TYPE;
     public static final String PNG_EXTENSION = "." + PNG_TYPE;
+    public static final String WEBP_EXTENSION = "." + WEBP_TYPE;
+    public static final String HEIF_EXTENSION = "." + HEIF_TYPE;
     public static final String PNG_MIME_TYPE = "image/png";
     public static final String JPEG_MIME_TYPE = "image/jpeg";
+    public static final String WEBP_MIME_TYPE = "image/webp";
+    public static final String HEIF_MIME_TYPE = "image/heic";
+    public static final String HEIF_ALT_MIME_TYPE = "image/heif";
     protected static final String GET_PICTURE = "Get Picture";
     protected static final String GET_VIDEO = "Get Video";
     protected static final String GET_All = "Get All";
     protected static final String CROPPED_URI_KEY = "croppedUri";
     protected static final String IMAGE_URI_KEY = "imageUri";
+    protected static final String PICKED_URI_KEY = "pickedUri";
+    protected static final String PREVIEW_KEY = "preview";
+    protected static final String JOB_ID_KEY = "jobId";
+    protected static final String CANCELLED_ERROR = "Cancelled";
+    protected static final String RESULT_KEY = "result";
+    protected static final String METRICS_KEY = "metrics";
 
     private static final String TAKE_PICTURE_ACTION = "takePicture";
 
     public static final int PERMISSION_DENIED_ERROR = 20;
+    // Kinds of activity and permission requests, combined with the request id by CameraRequest
     public static final int TAKE_PIC_SEC = 0;
     public static final int SAVE_TO_ALBUM_SEC = 1;
+    protected static final int CAPTURE = 2;              // the camera app
+    protected static final int PICK = 3;                 // the gallery chooser
+    protected static final int CROP_CAMERA = 4;          // the crop activity of another app
+    protected static final int REGION_CROP = 5;          // the plugin's own crop screen
 
     protected static final String LOG_TAG = "CameraLauncher";
 
-    //Where did this come from?
-    protected static final int CROP_CAMERA = 100;
+    protected static final String REGION_CROP_PREFERENCE = "CameraUsesRegionCrop";
 
     protected static final String TIME_FORMAT = "yyyyMMdd_HHmmss";
 
-    protected int quality;                   // Compression quality hint (0-100: 0=low quality & high compression, 100=compress of max quality)
-    protected int targetWidth;                // desired width of the image
-    protected int targetHeight;               // desired height of the image
-    protected Uri imageUri;                   // Uri of captured image
-    protected int encodingType;               // Type of encoding to use
-    protected int mediaType;                  // What type of media to retrieve
-    protected int destType;                   // Source type (needs to be saved for the permission handling)
-    protected int srcType;                    // Destination type (needs to be saved for permission handling)
-    protected boolean saveToPhotoAlbum;       // Should the picture be saved to the device's photo album
-    protected boolean correctOrientation;     // Should the pictures orientation be corrected
+    protected CameraRequest request;          // Options of this request, set once by execute or the restored state
+    protected volatile Uri imageUri;          // Uri of captured image, set on the thread pool by launchInBackground
     protected boolean orientationCorrected;   // Has the picture's orientation been corrected
-    protected boolean allowEdit;              // Should we allow the user to crop the image.
+    protected RectF cropRect;                 // Crop rectangle in fractions of the displayed image, from the option or the crop screen, null when not cropping
+    protected ProcessingJob job;              // Handle JavaScript uses to cancel this request
+    protected String resultCacheKey;          // Key the result is stored under in the ResultCache, null when it is not cached
+    protected RequestMetrics metrics = RequestMetrics.create(false);
+    protected boolean resumed;                // Resumed from the JobJournal after the process was killed, the result goes to the resume event
+    protected Uri pickedUri;                  // Picked image being processed, recorded in the JobJournal so a resumed job can start over from it
+    private boolean journaled;                // The job has an entry in the JobJournal
+    private boolean previewSent;              // Sent once, also when a request that waited for an identical one runs the work itself
+
+    // Results being produced, so identical requests running at the same time share the work
+    private static final SingleFlight<String, JSONArray> RESULT_FLIGHTS = new SingleFlight<String, JSONArray>();
+    // Requests waiting for an activity or permission result, by request id
+    private static final Map<Integer, BaseCameraManager> AWAITING_RESULT = new ConcurrentHashMap<Integer, BaseCameraManager>();
 
     protected static String[] permissions = {Manifest.permission.CAMERA, Manifest.permission.READ_EXTERNAL_STORAGE, Manifest.permission.WRITE_EXTERNAL_STORAGE};
 
     public CallbackContext callbackContext;
-    protected int numPics;
+    protected volatile int numPics;           // Images in the MediaStore before the capture, counted on the thread pool
 
     protected MediaScannerConnection conn;    // Used to update gallery app with newly-written files
     protected Uri scanMe;                     // Uri of image to be added to content store
     protected Uri croppedUri;
     protected ExifHelper exifData;            // Exif data from source
+    private Intent pendingGalleryIntent;      // Gallery result waiting for the crop screen
     protected String applicationId;
     protected CordovaPlugin cordovaPlugin;
     protected CordovaPreferences cordovaPreferences;
@@ -101,59 +146,27 @@ public abstract class BaseCameraManager implements ICameraManager {
      */
     public boolean execute(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
         this.callbackContext = callbackContext;
-        //Adding an API to CoreAndroid to get the BuildConfigValue
-        //This allows us to not make this a breaking change to embedding
-        this.applicationId = (String) BuildHelper.getBuildConfigValue(getCordova().getActivity(), "APPLICATION_ID");
-        this.applicationId = cordovaPreferences.getString("applicationId", this.applicationId);
-
+        initApplicationId();
 
         if (action.equals(TAKE_PICTURE_ACTION)) {
-            this.srcType = CAMERA;
-            this.destType = FILE_URI;
-            this.saveToPhotoAlbum = false;
-            this.targetHeight = 0;
-            this.targetWidth = 0;
-            encodingType = JPEG;
-            this.mediaType = PICTURE;
-            this.quality = 50;
-
-            //Take the values from the arguments if they're not already defined (this is tricky)
-            this.destType = args.getInt(1);
-            this.srcType = args.getInt(2);
-            this.quality = args.getInt(0);
-            this.targetWidth = args.getInt(3);
-            this.targetHeight = args.getInt(4);
-            encodingType = args.getInt(5);
-            this.mediaType = args.getInt(6);
-            this.allowEdit = args.getBoolean(7);
-            this.correctOrientation = args.getBoolean(8);
-            this.saveToPhotoAlbum = args.getBoolean(9);
-
-            // If the user specifies a 0 or smaller width/height
-            // make it -1 so later comparisons succeed
-            if (this.targetWidth < 1) {
-                this.targetWidth = -1;
-            }
-            if (this.targetHeight < 1) {
-                this.targetHeight = -1;
-            }
-
-            // We don't return full-quality PNG files. The camera outputs a JPEG
-            // so requesting it as a PNG provides no actual benefit
-            if (this.targetHeight == -1 && this.targetWidth == -1 && this.quality == 100 &&
-                    !this.correctOrientation && encodingType == PNG && this.srcType == CAMERA) {
-                encodingType = JPEG;
-            }
+            this.request = CameraRequest.fromArgs(args);
+            this.cropRect = request.getCropRect();
+            this.job = ProcessingJob.start(request.jobId);
+            this.metrics = RequestMetrics.create(request.debugMetrics || StatsRegistry.isEnabled());
+            this.resultCacheKey = null;
 
             try {
-                if (this.srcType == CAMERA) {
-                    this.requestPermissionsAndTakePicture(destType, encodingType);
-                } else if ((this.srcType == PHOTOLIBRARY) || (this.srcType == SAVEDPHOTOALBUM)) {
+                if (request.srcType == CAMERA) {
+                    this.requestPermissionsAndTakePicture(request.destType, request.encodingType);
+                } else if ((request.srcType == PHOTOLIBRARY) || (request.srcType == SAVEDPHOTOALBUM)) {
                     // FIXME: Stop always requesting the permission
-                    if (!PermissionHelper.hasPermission(cordovaPlugin, Manifest.permission.READ_EXTERNAL_STORAGE)) {
-                        PermissionHelper.requestPermission(cordovaPlugin, SAVE_TO_ALBUM_SEC, Manifest.permission.READ_EXTERNAL_STORAGE);
+                    CameraTrace.beginSection("checkPermissions");
+                    boolean hasReadPermission = PermissionHelper.hasPermission(cordovaPlugin, Manifest.permission.READ_EXTERNAL_STORAGE);
+                    CameraTrace.endSection();
+                    if (!hasReadPermission) {
+                        requestPermissions(SAVE_TO_ALBUM_SEC, Manifest.permission.READ_EXTERNAL_STORAGE);
                     } else {
-                        this.getImage(this.srcType, destType, encodingType);
+                        this.getImage(request.srcType, request.destType, request.encodingType);
                     }
                 }
             } catch (IllegalArgumentException e) {
@@ -172,6 +185,13 @@ public abstract class BaseCameraManager implements ICameraManager {
         return false;
     }
 
+    private void initApplicationId() {
+        //Adding an API to CoreAndroid to get the BuildConfigValue
+        //This allows us to not make this a breaking change to embedding
+        this.applicationId = (String) BuildHelper.getBuildConfigValue(getCordova().getActivity(), "APPLICATION_ID");
+        this.applicationId = cordovaPreferences.getString("applicationId", this.applicationId);
+    }
+
     protected Context getContext() {
         return cordovaPlugin.cordova.getContext();
     }
@@ -180,10 +200,6 @@ public abstract class BaseCameraManager implements ICameraManager {
         return getContext().getContentResolver();
     }
 
-    protected Bitmap.CompressFormat getCompressFormatForEncodingType() {
-        return encodingType == JPEG ? Bitmap.CompressFormat.JPEG : Bitmap.CompressFormat.PNG;
-    }
-
     /**
      * Send error message to JavaScript.
      *
@@ -193,9 +209,1236 @@ public abstract class BaseCameraManager implements ICameraManager {
         this.callbackContext.error(err);
     }
 
-    protected abstract void requestPermissionsAndTakePicture(int returnType, int encodingType);
+    /**
+     * Maintain the aspect ratio so the resulting image does not look smooshed
+     *
+     * @param origWidth
+     * @param origHeight
+     * @return
+     */
+    public int[] calculateAspectRatio(int origWidth, int origHeight) {
+        return calculateAspectRatio(origWidth, origHeight, request.targetWidth, request.targetHeight);
+    }
+
+    /**
+     * Maintain the aspect ratio so the resulting image does not look smooshed
+     *
+     * @param origWidth
+     * @param origHeight
+     * @param targetWidth
+     * @param targetHeight
+     * @return
+     */
+    public static int[] calculateAspectRatio(int origWidth, int origHeight, int targetWidth, int targetHeight) {
+        int newWidth = targetWidth;
+        int newHeight = targetHeight;
+
+        // If no new width or height were specified return the original bitmap
+        if (newWidth <= 0 && newHeight <= 0) {
+            newWidth = origWidth;
+            newHeight = origHeight;
+        }
+        // Only the width was specified
+        else if (newWidth > 0 && newHeight <= 0) {
+            newHeight = (int) ((double) (newWidth / (double) origWidth) * origHeight);
+        }
+        // only the height was specified
+        else if (newWidth <= 0 && newHeight > 0) {
+            newWidth = (int) ((double) (newHeight / (double) origHeight) * origWidth);
+        }
+        // If the user specified both a positive width and height
+        // (potentially different aspect ratio) then the width or height is
+        // scaled so that the image fits while maintaining aspect ratio.
+        // Alternatively, the specified width and height could have been
+        // kept and Bitmap.SCALE_TO_FIT specified when scaling, but this
+        // would result in whitespace in the new image.
+        else {
+            double newRatio = newWidth / (double) newHeight;
+            double origRatio = origWidth / (double) origHeight;
+
+            if (origRatio > newRatio) {
+                newHeight = (newWidth * origHeight) / origWidth;
+            } else if (origRatio < newRatio) {
+                newWidth = (newHeight * origWidth) / origHeight;
+            }
+        }
+
+        int[] retval = new int[2];
+        retval[0] = newWidth;
+        retval[1] = newHeight;
+        return retval;
+    }
+
+    /**
+     * Figure out what ratio we can load our image into memory at while still being bigger than
+     * our desired width and height
+     *
+     * @param srcWidth
+     * @param srcHeight
+     * @param dstWidth
+     * @param dstHeight
+     * @return
+     */
+    public static int calculateSampleSize(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+        if (dstWidth <= 0 || dstHeight <= 0) {
+            return 1;
+        }
+        final float srcAspect = (float) srcWidth / (float) srcHeight;
+        final float dstAspect = (float) dstWidth / (float) dstHeight;
+
+        if (srcAspect > dstAspect) {
+            return Math.max(1, srcWidth / dstWidth);
+        } else {
+            return Math.max(1, srcHeight / dstHeight);
+        }
+    }
+
+    /**
+     * Reads the cropRect option. All values are fractions of the displayed image.
+     *
+     * @param rect JSON object with x, y, width and height or null
+     * @return the crop rectangle or null if no crop was requested
+     */
+    protected static RectF parseCropRect(JSONObject rect) {
+        if (rect == null) {
+            return null;
+        }
+        float left = (float) Math.max(0d, Math.min(1d, rect.optDouble("x", 0d)));
+        float top = (float) Math.max(0d, Math.min(1d, rect.optDouble("y", 0d)));
+        float right = (float) Math.max(left, Math.min(1d, left + rect.optDouble("width", 1d)));
+        float bottom = (float) Math.max(top, Math.min(1d, top + rect.optDouble("height", 1d)));
+        if (right <= left || bottom <= top) {
+            return null;
+        }
+        return new RectF(left, top, right, bottom);
+    }
+
+    /**
+     * Reads the outputs option. Missing fields fall back to the values of the request.
+     *
+     * @param outputs JSON array of objects with targetWidth, targetHeight, encodingType and quality, or null
+     * @return the outputs or null if none were requested
+     */
+    protected static List<ImagePipeline.Output> parseOutputs(JSONArray outputs, int targetWidth, int targetHeight,
+                                                            int encodingType, int quality) {
+        if (outputs == null || outputs.length() == 0) {
+            return null;
+        }
+        List<ImagePipeline.Output> result = new ArrayList<ImagePipeline.Output>(outputs.length());
+        for (int i = 0; i < outputs.length(); i++) {
+            JSONObject output = outputs.optJSONObject(i);
+            if (output == null) {
+                output = new JSONObject();
+            }
+            int width = output.optInt("targetWidth", targetWidth);
+            int height = output.optInt("targetHeight", targetHeight);
+            int type = BitmapEncoder.resolveEncodingType(output.optInt("encodingType", encodingType));
+            int outputQuality = Math.max(0, Math.min(100, output.optInt("quality", quality)));
+            result.add(new ImagePipeline.Output(width < 1 ? -1 : width, height < 1 ? -1 : height, type, outputQuality));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Produces every entry of the outputs option from a single decode of the source, as files
+     * in the cache directory or as Base64 data depending on the destination type.
+     *
+     * @return the results in the order of the option, or null if the source could not be decoded
+     */
+    protected JSONArray processOutputs(Uri sourceUri) throws IOException {
+        ImagePipeline pipeline = createPipeline();
+        JSONArray results = new JSONArray();
+        if (request.destType == DATA_URL) {
+            List<byte[]> images = pipeline.encode(sourceUri, request.outputs);
+            if (images == null) {
+                return null;
+            }
+            for (byte[] image : images) {
+                results.put(new String(Base64.encode(image, Base64.NO_WRAP)));
+            }
+            cacheResultData(images);
+        } else {
+            final File directory = new File(FileHelper.getTempDirectoryPath(getContext()));
+            List<Uri> uris = pipeline.process(sourceUri, request.outputs, new ImagePipeline.OutputSink() {
+                @Override
+                public Uri createOutput(ImagePipeline.Output output, int index) throws IOException {
+                    return Uri.fromFile(FileHelper.createUniqueFile(directory, String.valueOf(index), output.encodingType));
+                }
+            });
+            if (uris == null) {
+                return null;
+            }
+            for (Uri uri : uris) {
+                recordBytesWritten(uri);
+                results.put(uri.toString());
+            }
+            cacheResultFiles(uris);
+        }
+        this.orientationCorrected = pipeline.isOrientationCorrected();
+        return results;
+    }
+
+    /**
+     * Produces the result of this request for the source: from the ResultCache, from an
+     * identical request that is already running, or by running the work, whose result is then
+     * shared with identical requests arriving meanwhile. While waiting for an identical request
+     * this one still sends its preview and stops as soon as its own job is cancelled.
+     *
+     * @param work produces the results in output order, or null if the source cannot be decoded
+     * @return Base64 data or file URIs depending on the destination type, or null
+     */
+    protected JSONArray produceResults(final Uri sourceUri, final SingleFlight.Work<JSONArray> work) throws IOException {
+        this.resultCacheKey = null;
+        final String key = ResultCache.createKey(getContentResolver(), sourceUri, describeResultOptions());
+        if (key == null) {
+            return work.run();
+        }
+        final boolean[] ranHere = new boolean[1];
+        // Both destination types are cached as the same files, but return different results
+        JSONArray results = RESULT_FLIGHTS.execute(key + ";destination=" + request.destType, new SingleFlight.Work<JSONArray>() {
+            @Override
+            public JSONArray run() throws IOException {
+                ranHere[0] = true;
+                JSONArray cached = getCachedResults(key);
+                return cached != null ? cached : work.run();
+            }
+        }, new SingleFlight.Waiter() {
+            @Override
+            public void onWait() {
+                sendPreview(sourceUri);
+            }
+
+            @Override
+            public void poll() {
+                checkpoint(ProcessingJob.Stage.DECODE);
+            }
+        });
+        if (results == null || ranHere[0] || request.destType == DATA_URL) {
+            return results;
+        }
+        try {
+            return copySharedResults(results);
+        } catch (IOException e) {
+            // The request that produced the files removed them before they could be copied
+            LOG.w(LOG_TAG, "Unable to copy shared result: " + e.toString());
+            return work.run();
+        }
+    }
+
+    /**
+     * Copies the files another request produced into outputs of this request. The files belong
+     * to the job of the other request, whose cleanup or cancellation deletes them.
+     *
+     * @return the Uris of the copies in output order
+     */
+    private JSONArray copySharedResults(JSONArray shared) throws IOException {
+        JSONArray results = new JSONArray();
+        long start = metrics.start(RequestMetrics.Stage.COPY);
+        try {
+            for (int i = 0; i < shared.length(); i++) {
+                int type = request.outputs != null ? request.outputs.get(i).encodingType : request.encodingType;
+                Uri uri = FileHelper.copyToInternalStorage(getContext(), Uri.parse(shared.optString(i)), type);
+                trackOutput(uri);
+                recordBytesWritten(uri);
+                results.put(uri.toString());
+            }
+        } finally {
+            metrics.stop(RequestMetrics.Stage.COPY, start);
+        }
+        return results;
+    }
+
+    /**
+     * Looks the result up in the ResultCache. On a miss the key is kept, so cacheResultData or
+     * cacheResultFiles can store the result once it is produced.
+     *
+     * @return the cached results in output order, Base64 data or copies in the cache directory
+     * depending on the destination type, or null on a miss
+     */
+    private JSONArray getCachedResults(String key) {
+        this.resultCacheKey = null;
+        ResultCache cache = ResultCache.getInstance(getContext());
+        if (cache == null) {
+            return null;
+        }
+        List<File> files = cache.get(key);
+        if (files != null) {
+            long start = metrics.start(RequestMetrics.Stage.COPY);
+            try {
+                JSONArray results = readCachedResults(files);
+                LOG.d(LOG_TAG, "Returning cached result " + key);
+                return results;
+            } catch (IOException e) {
+                // Evicted while reading, process the source again
+                LOG.w(LOG_TAG, "Unable to read cached result: " + e.toString());
+            } finally {
+                metrics.stop(RequestMetrics.Stage.COPY, start);
+            }
+        }
+        this.resultCacheKey = key;
+        return null;
+    }
+
+    private JSONArray readCachedResults(List<File> files) throws IOException {
+        JSONArray results = new JSONArray();
+        File directory = new File(FileHelper.getTempDirectoryPath(getContext()));
+        for (int i = 0; i < files.size(); i++) {
+            if (request.destType == DATA_URL) {
+                results.put(new String(Base64.encode(ResultCache.read(files.get(i)), Base64.NO_WRAP)));
+                continue;
+            }
+            int type = request.outputs != null ? request.outputs.get(i).encodingType : request.encodingType;
+            Uri uri = Uri.fromFile(FileHelper.createUniqueFile(directory, String.valueOf(i), type));
+            trackOutput(uri);
+            ResultCache.copy(files.get(i), new File(uri.getPath()));
+            recordBytesWritten(uri);
+            results.put(uri.toString());
+        }
+        return results;
+    }
+
+    /**
+     * Describes every option that changes the processed result, for the result cache key.
+     * Includes the encoder preferences, which may change between runs of the app.
+     */
+    protected String describeResultOptions() {
+        StringBuilder options = new StringBuilder();
+        options.append("size=").append(request.targetWidth).append('x').append(request.targetHeight)
+                .append(";type=").append(request.encodingType)
+                .append(";quality=").append(request.quality)
+                .append(";orientation=").append(request.correctOrientation)
+                .append(";maxBytes=").append(request.maxBytes)
+                .append(";filter=").append(request.scaleFilter)
+                .append(";png=").append(request.png);
+        if (this.cropRect != null) {
+            options.append(";crop=").append(this.cropRect.left).append(',').append(this.cropRect.top)
+                    .append(',').append(this.cropRect.right).append(',').append(this.cropRect.bottom);
+        }
+        if (request.outputs != null) {
+            for (ImagePipeline.Output output : request.outputs) {
+                options.append(";output=").append(output.targetWidth).append('x').append(output.targetHeight)
+                        .append(',').append(output.encodingType).append(',').append(output.quality);
+            }
+        }
+        options.append(";jpeg=").append(request.jpegCoding).append(',').append(ParallelJpegEncoder.isEnabled());
+        return options.toString();
+    }
+
+    /**
+     * Stores the encoded images of the result under the key produceResults looked up.
+     */
+    protected void cacheResultData(List<byte[]> images) {
+        String key = this.resultCacheKey;
+        this.resultCacheKey = null;
+        ResultCache cache = key != null ? ResultCache.getInstance(getContext()) : null;
+        if (cache != null) {
+            cache.put(key, images);
+        }
+    }
+
+    /**
+     * Stores copies of the result files under the key produceResults looked up.
+     */
+    protected void cacheResultFiles(List<Uri> uris) {
+        String key = this.resultCacheKey;
+        this.resultCacheKey = null;
+        ResultCache cache = key != null ? ResultCache.getInstance(getContext()) : null;
+        if (cache == null) {
+            return;
+        }
+        List<File> files = new ArrayList<File>(uris.size());
+        for (Uri uri : uris) {
+            if (!ContentResolver.SCHEME_FILE.equalsIgnoreCase(uri.getScheme())) {
+                return;
+            }
+            files.add(new File(uri.getPath()));
+        }
+        cache.putFiles(key, files);
+    }
+
+    /**
+     * Whether allowEdit should use the plugin's own crop screen and region decoding instead of
+     * an external crop activity.
+     */
+    protected boolean useRegionCrop() {
+        return cordovaPreferences.getBoolean(REGION_CROP_PREFERENCE, false);
+    }
+
+    /**
+     * Opens the plugin's crop screen for the given image. The selected rectangle is stored in
+     * cropRect and handleRegionCropResult is called once the user is done.
+     */
+    protected void startRegionCrop(Uri sourceUri) {
+        Intent intent = new Intent(getContext(), CropActivity.class);
+        intent.setData(sourceUri);
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        if (request.targetWidth > 0 && request.targetHeight > 0) {
+            intent.putExtra(CropActivity.EXTRA_ASPECT_RATIO, request.targetWidth / (float) request.targetHeight);
+        }
+        startActivityForResult(intent, REGION_CROP);
+    }
+
+    /**
+     * Launches an activity whose result comes back through onActivityResult of this request.
+     *
+     * @param kind CAPTURE, PICK, CROP_CAMERA or REGION_CROP
+     */
+    protected void startActivityForResult(Intent intent, int kind) {
+        CameraTrace.beginSection("launchIntent");
+        try {
+            awaitResult();
+            getCordova().startActivityForResult(cordovaPlugin, intent, request.getRequestCode(kind));
+            if (kind == CAPTURE || kind == PICK) {
+                this.metrics.markLaunched();
+            }
+        } finally {
+            CameraTrace.endSection();
+        }
+    }
 
-    protected abstract void getImage(int srcType, int returnType, int encodingType);
+    /**
+     * Prepares the launch of an activity on the thread pool and starts the activity from the
+     * UI thread once it is ready, so the MediaStore work that precedes the camera never blocks
+     * the UI or the bridge thread. Fields the preparation sets for onActivityResult must be
+     * volatile, like imageUri and numPics.
+     *
+     * @param prepare returns the intent to launch, or null if nothing can be launched
+     * @param kind    CAPTURE, PICK, CROP_CAMERA or REGION_CROP
+     */
+    protected void launchInBackground(final Callable<Intent> prepare, final int kind) {
+        executeInBackground(new Runnable() {
+            public void run() {
+                final Intent intent;
+                try {
+                    intent = prepare.call();
+                } catch (Exception e) {
+                    LOG.e(LOG_TAG, "Unable to prepare the activity: " + e.toString());
+                    abandonLaunch(kind);
+                    return;
+                }
+                if (intent == null) {
+                    abandonLaunch(kind);
+                    return;
+                }
+                getCordova().getActivity().runOnUiThread(new Runnable() {
+                    public void run() {
+                        // The request may have been cancelled while it was being prepared
+                        if (isJobCancelled()) {
+                            onJobCancelled();
+                        } else {
+                            startActivityForResult(intent, kind);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Fails a request whose activity could not be launched. The MediaStore row inserted for the
+     * camera is deleted first, no camera app will ever write into it.
+     */
+    private void abandonLaunch(int kind) {
+        if (kind == CAPTURE) {
+            deleteUri(this.imageUri);
+            this.imageUri = null;
+        }
+        failPicture("Error capturing image.");
+        finishJob();
+    }
+
+    /**
+     * Requests permissions whose result comes back through onRequestPermissionResult of this request.
+     *
+     * @param kind TAKE_PIC_SEC or SAVE_TO_ALBUM_SEC
+     */
+    protected void requestPermissions(int kind, String... permissions) {
+        awaitResult();
+        PermissionHelper.requestPermissions(cordovaPlugin, request.getRequestCode(kind), permissions);
+    }
+
+    private void awaitResult() {
+        AWAITING_RESULT.put(request.id, this);
+    }
+
+    /**
+     * Finds the request that started the activity or permission request with this code. The
+     * request stops waiting, it waits again when it starts the next one.
+     *
+     * @return the request or null if the code does not belong to a waiting request
+     */
+    public static ICameraManager takeAwaitingRequest(int requestCode) {
+        int id = CameraRequest.getRequestId(requestCode);
+        return id != -1 ? AWAITING_RESULT.remove(id) : null;
+    }
+
+    /**
+     * @return the requests waiting for an activity or permission result
+     */
+    public static List<ICameraManager> getAwaitingRequests() {
+        return new ArrayList<ICameraManager>(AWAITING_RESULT.values());
+    }
+
+    /**
+     * Runs processing work on the Cordova thread pool.
+     */
+    protected void executeInBackground(final Runnable task) {
+        final int cookie = CameraTrace.jobQueued();
+        getCordova().getThreadPool().execute(new Runnable() {
+            public void run() {
+                CameraTrace.jobStarted(cookie);
+                try {
+                    task.run();
+                } finally {
+                    CameraTrace.jobFinished(cookie);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends a low resolution preview of the source image to JavaScript while the full
+     * result is still being processed. Does nothing unless the preview mode is enabled.
+     *
+     * @param sourceUri Uri of the image that is about to be processed
+     */
+    protected void sendPreview(Uri sourceUri) {
+        // The resume event delivers a single message, which must be the result
+        if (!request.previewFirst || sourceUri == null || this.resumed || this.previewSent) {
+            return;
+        }
+        this.previewSent = true;
+        String preview = PreviewHelper.createPreview(getContext(), sourceUri);
+        if (preview == null) {
+            return;
+        }
+        try {
+            JSONObject message = new JSONObject();
+            message.put(PREVIEW_KEY, preview);
+            PluginResult r = new PluginResult(PluginResult.Status.OK, message);
+            r.setKeepCallback(true);
+            this.callbackContext.sendPluginResult(r);
+        } catch (JSONException e) {
+            LOG.w(LOG_TAG, "Unable to send preview: " + e.toString());
+        }
+    }
+
+    /**
+     * Sends the result to JavaScript, wrapped together with the request metrics when the
+     * debugMetrics option is set, and adds the request to the aggregate stats.
+     *
+     * @param result the URI or Base64 data of the image
+     */
+    protected void sendResult(String result) {
+        sendResult(result, new PluginResult(PluginResult.Status.OK, result));
+    }
+
+    /**
+     * Sends the results of the outputs option, in the same way as sendResult(String).
+     */
+    protected void sendResult(JSONArray results) {
+        sendResult(results, new PluginResult(PluginResult.Status.OK, results));
+    }
+
+    private void sendResult(Object result, PluginResult plainResult) {
+        journalOutputs(result);
+        StatsRegistry.record(this.metrics, request.srcType, request.destType, request.encodingType);
+        try {
+            sendResultMessage(result, plainResult);
+        } finally {
+            forgetJob();
+        }
+    }
+
+    private void sendResultMessage(Object result, PluginResult plainResult) {
+        if (!request.debugMetrics) {
+            this.callbackContext.sendPluginResult(plainResult);
+            return;
+        }
+        try {
+            JSONObject message = new JSONObject();
+            message.put(RESULT_KEY, result);
+            message.put(METRICS_KEY, this.metrics.toJSON());
+            this.callbackContext.success(message);
+        } catch (JSONException e) {
+            LOG.w(LOG_TAG, "Unable to send metrics: " + e.toString());
+            this.callbackContext.sendPluginResult(plainResult);
+        }
+    }
+
+    /**
+     * Adds the size of the file behind the Uri to the bytes read. Only queried for debugMetrics.
+     */
+    protected void recordBytesRead(Uri uri) {
+        if (request.debugMetrics) {
+            this.metrics.addBytesRead(getFileSize(uri));
+        }
+    }
+
+    /**
+     * Adds the size of the file behind the Uri to the bytes written. Only queried for debugMetrics.
+     */
+    protected void recordBytesWritten(Uri uri) {
+        if (request.debugMetrics) {
+            this.metrics.addBytesWritten(getFileSize(uri));
+        }
+    }
+
+    private long getFileSize(Uri uri) {
+        if (uri == null) {
+            return 0;
+        }
+        if (ContentResolver.SCHEME_FILE.equalsIgnoreCase(uri.getScheme())) {
+            return new File(uri.getPath()).length();
+        }
+        AssetFileDescriptor afd = null;
+        try {
+            afd = getContentResolver().openAssetFileDescriptor(uri, "r");
+            return afd != null ? afd.getLength() : 0;
+        } catch (Exception e) {
+            return 0;
+        } finally {
+            if (afd != null) {
+                try {
+                    afd.close();
+                } catch (Exception e) {
+                    LOG.d(LOG_TAG, "Exception while closing file descriptor.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the processing pipeline of this request with the shared stages. Managers plug in
+     * their own stages where the platform differs.
+     */
+    protected ImagePipeline createPipeline() {
+        return new ImagePipeline(getContext(), this.metrics, this.job)
+                .setTargetSize(request.targetWidth, request.targetHeight)
+                .setCorrectOrientation(request.correctOrientation)
+                .setCropRect(this.cropRect)
+                .setEncoding(request.encodingType, request.quality, request.maxBytes)
+                .setPngOptions(request.png)
+                .setJpegCoding(request.jpegCoding)
+                .setTransformer(request.scaleFilter == AREA_AVERAGE ? ImagePipeline.AREA_AVERAGE_AND_ROTATE : ImagePipeline.SCALE_AND_ROTATE);
+    }
+
+    /**
+     * Stops the request if JavaScript cancelled it. Called before each processing stage.
+     *
+     * @throws CancellationException if the job has been cancelled
+     */
+    protected void checkpoint(ProcessingJob.Stage stage) {
+        if (this.job != null) {
+            this.job.checkpoint(stage);
+        }
+    }
+
+    protected boolean isJobCancelled() {
+        return this.job != null && this.job.isCancelled();
+    }
+
+    /**
+     * Registers a file or MediaStore row written while processing, so a cancelled request
+     * does not leave it behind.
+     */
+    protected void trackOutput(Uri uri) {
+        if (this.job != null) {
+            this.job.addOutput(uri);
+        }
+    }
+
+    /**
+     * Deletes everything the cancelled request wrote, including the captured image unless it
+     * was meant to stay in the photo album, and reports the cancellation to JavaScript.
+     */
+    protected void onJobCancelled() {
+        LOG.d(LOG_TAG, "Processing cancelled");
+        if (this.job != null) {
+            for (Uri uri : this.job.getOutputs()) {
+                deleteUri(uri);
+            }
+        }
+        if (!request.saveToPhotoAlbum) {
+            deleteUri(this.croppedUri);
+            deleteUri(this.imageUri);
+        }
+        this.croppedUri = null;
+        this.imageUri = null;
+        failPicture(CANCELLED_ERROR);
+        finishJob();
+    }
+
+    private JobJournal getJournal() {
+        return JobJournal.getInstance(getContext().getFilesDir());
+    }
+
+    /**
+     * Records the job and its request in the JobJournal before processing starts, so it is
+     * resumed if the process is killed before the result is sent.
+     *
+     * @param sourceUri the picked image, null for pictures taken with the camera
+     */
+    protected void journalJob(Uri sourceUri) {
+        if (this.job == null) {
+            return;
+        }
+        this.pickedUri = sourceUri;
+        try {
+            getJournal().begin(this.job.getId(), saveJobState());
+        } catch (IOException e) {
+            LOG.w(LOG_TAG, "Unable to record job " + this.job.getId() + ": " + e.toString());
+            return;
+        }
+        this.journaled = true;
+    }
+
+    /**
+     * Saves what resumeJob needs to process the request again: the request and the Uris and
+     * crop rectangle of the images it is processing.
+     */
+    private JSONObject saveJobState() throws IOException {
+        JSONObject state = new JSONObject();
+        try {
+            this.request.toJSON(state);
+            state.put("numPics", this.numPics);
+            if (this.cropRect != null) {
+                JSONObject rect = new JSONObject();
+                rect.put("x", this.cropRect.left);
+                rect.put("y", this.cropRect.top);
+                rect.put("width", this.cropRect.width());
+                rect.put("height", this.cropRect.height());
+                state.put("cropRect", rect);
+            }
+            if (this.croppedUri != null) {
+                state.put(CROPPED_URI_KEY, this.croppedUri.toString());
+            }
+            if (this.imageUri != null) {
+                state.put(IMAGE_URI_KEY, this.imageUri.toString());
+            }
+            if (this.pickedUri != null) {
+                state.put(PICKED_URI_KEY, this.pickedUri.toString());
+            }
+        } catch (JSONException e) {
+            throw new IOException(e.toString());
+        }
+        return state;
+    }
+
+    private void restoreJobState(JSONObject state) {
+        this.request = CameraRequest.fromJSON(state);
+        if (this.request == null) {
+            return;
+        }
+        this.numPics = state.optInt("numPics");
+        this.cropRect = parseCropRect(state.optJSONObject("cropRect"));
+        if (state.has(CROPPED_URI_KEY)) {
+            this.croppedUri = Uri.parse(state.optString(CROPPED_URI_KEY));
+        }
+        if (state.has(IMAGE_URI_KEY)) {
+            this.imageUri = Uri.parse(state.optString(IMAGE_URI_KEY));
+        }
+        if (state.has(PICKED_URI_KEY)) {
+            this.pickedUri = Uri.parse(state.optString(PICKED_URI_KEY));
+        }
+    }
+
+    /**
+     * Records the outputs of a FILE_URI result before it is sent, so a job killed after
+     * writing them only sends them again. Other results are not kept on disk.
+     */
+    private void journalOutputs(Object result) {
+        if (!this.journaled || request.destType != FILE_URI) {
+            return;
+        }
+        List<String> outputs = new ArrayList<String>();
+        if (result instanceof JSONArray) {
+            JSONArray results = (JSONArray) result;
+            for (int i = 0; i < results.length(); i++) {
+                outputs.add(results.optString(i));
+            }
+        } else {
+            outputs.add(result.toString());
+        }
+        try {
+            getJournal().write(this.job.getId(), saveJobState(), outputs);
+        } catch (IOException e) {
+            LOG.w(LOG_TAG, "Unable to record outputs of job " + this.job.getId() + ": " + e.toString());
+        }
+    }
+
+    /**
+     * Removes the job from the JobJournal once its result or error has been sent.
+     */
+    private void forgetJob() {
+        if (this.journaled) {
+            getJournal().remove(this.job.getId());
+            this.journaled = false;
+        }
+    }
+
+    /**
+     * Continues a job the process was killed in, from the last stage the journal checkpointed:
+     * the recorded outputs are sent if they are all still there, otherwise processing starts
+     * over from the source image.
+     *
+     * @param entry           the job left in the JobJournal by the killed process
+     * @param callbackContext delivers the result through the resume event
+     */
+    public void resumeJob(JobJournal.Entry entry, CallbackContext callbackContext) {
+        this.callbackContext = callbackContext;
+        if (entry.request != null) {
+            restoreJobState(entry.request);
+        }
+        if (this.request == null) {
+            // Written by a version that did not record the request, or torn
+            getJournal().remove(entry.jobId);
+            failPicture("Did not complete!");
+            return;
+        }
+        this.job = ProcessingJob.start(entry.jobId);
+        this.metrics = RequestMetrics.create(request.debugMetrics || StatsRegistry.isEnabled());
+        this.resumed = true;
+        this.journaled = true;
+        initApplicationId();
+        ProcessingJob.Stage stage = JobJournal.getResumeStage(entry, new JobJournal.Outputs() {
+            public boolean exists(String output) {
+                return outputExists(Uri.parse(output));
+            }
+        });
+        LOG.d(LOG_TAG, "Resuming job " + entry.jobId + " from " + stage);
+        if (stage == ProcessingJob.Stage.WRITE) {
+            resumeWrite(entry.outputs);
+        } else if (request.srcType == CAMERA || this.pickedUri != null) {
+            resumeProcessing(this.pickedUri);
+        } else {
+            failPicture("Did not complete!");
+            finishJob();
+        }
+    }
+
+    /**
+     * Sends the outputs a job had written before the process was killed.
+     */
+    private void resumeWrite(List<String> outputs) {
+        try {
+            if (request.outputs != null) {
+                sendResult(new JSONArray(outputs));
+            } else {
+                sendResult(outputs.get(0));
+            }
+        } finally {
+            finishJob();
+        }
+    }
+
+    private boolean outputExists(Uri uri) {
+        if (ContentResolver.SCHEME_FILE.equalsIgnoreCase(uri.getScheme())) {
+            return new File(uri.getPath()).exists();
+        }
+        try {
+            AssetFileDescriptor fd = getContentResolver().openAssetFileDescriptor(uri, "r");
+            if (fd == null) {
+                return false;
+            }
+            fd.close();
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Starts processing the restored request again, in the background.
+     *
+     * @param sourceUri the picked image, null for pictures taken with the camera
+     */
+    protected abstract void resumeProcessing(Uri sourceUri);
+
+    /**
+     * Unregisters the job once the request is complete.
+     */
+    protected void finishJob() {
+        if (this.job != null) {
+            this.job.finish();
+            forgetJob();
+        }
+    }
+
+    /**
+     * Deletes a file or MediaStore entry the request created. Failures are only logged.
+     */
+    protected void deleteUri(Uri uri) {
+        if (uri == null) {
+            return;
+        }
+        try {
+            if (ContentResolver.SCHEME_FILE.equalsIgnoreCase(uri.getScheme())) {
+                new File(uri.getPath()).delete();
+            } else {
+                getContentResolver().delete(uri, null, null);
+            }
+        } catch (Exception e) {
+            LOG.w(LOG_TAG, "Unable to delete " + uri + ": " + e.toString());
+        }
+    }
+
+    /**
+     * Get image from photo library.
+     *
+     * @param srcType      The album to get image from.
+     * @param returnType   Set the type of image to return.
+     * @param encodingType
+     */
+    // TODO: Images selected from SDCARD don't display correctly, but from CAMERA ALBUM do!
+    // TODO: Images from kitkat filechooser not going into crop function
+    protected void getImage(int srcType, int returnType, int encodingType) {
+        Intent intent = new Intent();
+        String title = GET_PICTURE;
+        croppedUri = null;
+        if (request.mediaType == PICTURE) {
+            intent.setType("image/*");
+            if (request.allowEdit && this.cropRect == null && !useRegionCrop()) {
+                intent.setAction(Intent.ACTION_PICK);
+                intent.putExtra("crop", "true");
+                if (request.targetWidth > 0) {
+                    intent.putExtra("outputX", request.targetWidth);
+                }
+                if (request.targetHeight > 0) {
+                    intent.putExtra("outputY", request.targetHeight);
+                }
+                if (request.targetHeight > 0 && request.targetWidth > 0 && request.targetWidth == request.targetHeight) {
+                    intent.putExtra("aspectX", 1);
+                    intent.putExtra("aspectY", 1);
+                }
+                croppedUri = FileHelper.createCaptureFile(getContentResolver(), JPEG, "");
+                intent.putExtra(MediaStore.EXTRA_OUTPUT, croppedUri);
+            } else {
+                intent.setAction(Intent.ACTION_GET_CONTENT);
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+            }
+        } else if (request.mediaType == VIDEO) {
+            intent.setType("video/*");
+            title = GET_VIDEO;
+            intent.setAction(Intent.ACTION_GET_CONTENT);
+            intent.addCategory(Intent.CATEGORY_OPENABLE);
+        } else if (request.mediaType == ALLMEDIA) {
+            // I wanted to make the type 'image/*, video/*' but this does not work on all versions
+            // of android so I had to go with the wildcard search.
+            intent.setType("*/*");
+            title = GET_All;
+            intent.setAction(Intent.ACTION_GET_CONTENT);
+            intent.addCategory(Intent.CATEGORY_OPENABLE);
+        }
+        if (getCordova() != null) {
+           startActivityForResult(Intent.createChooser(intent,
+                    new String(title)), PICK);
+        }
+    }
+
+    protected void handleSaveGalleryResult(int requestCode, int resultCode, Intent intent) {
+        if (resultCode == Activity.RESULT_OK && intent != null && intent.getData() != null &&
+                request.mediaType == PICTURE && request.allowEdit && this.cropRect == null && useRegionCrop()) {
+            // Let the user pick the region first, only that region gets decoded afterwards
+            this.pendingGalleryIntent = intent;
+            startRegionCrop(intent.getData());
+        } else if (resultCode == Activity.RESULT_OK && intent != null) {
+            processResultFromGalleryInBackground(request.destType, intent);
+        } else if (resultCode == Activity.RESULT_CANCELED) {
+            this.failPicture("No Image Selected");
+        } else {
+            this.failPicture("Selection did not complete!");
+        }
+    }
+
+    /**
+     * Runs processResultFromGallery on the thread pool.
+     */
+    protected void processResultFromGalleryInBackground(final int destType, final Intent intent) {
+        executeInBackground(new Runnable() {
+            public void run() {
+                try {
+                    journalJob(intent.getData());
+                    processResultFromGallery(destType, intent);
+                } catch (CancellationException e) {
+                    onJobCancelled();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    BaseCameraManager.this.failPicture("No Image Selected");
+                } finally {
+                    finishJob();
+                }
+            }
+        });
+    }
+
+    /**
+     * Processes the picked image once the plugin's crop screen returned the region to decode.
+     */
+    protected void processPendingGalleryResult() {
+        if (this.pendingGalleryIntent != null) {
+            processResultFromGalleryInBackground(request.destType, this.pendingGalleryIntent);
+            this.pendingGalleryIntent = null;
+        }
+    }
+
+    /**
+     * Applies all needed transformation to the image received from the gallery.
+     *
+     * @param destType In which form should we return the image
+     * @param intent   An Intent, which can return result data to the caller (various data can be attached to Intent "extras").
+     */
+    private void processResultFromGallery(final int destType, Intent intent) throws IOException {
+        checkpoint(ProcessingJob.Stage.INGEST);
+        Uri uri = intent.getData();
+        if (uri == null) {
+            if (croppedUri != null) {
+                uri = croppedUri;
+            } else {
+                this.failPicture("null data from photo library");
+                return;
+            }
+        }
+
+        String fileLocation = FileHelper.getRealPath(uri, getCordova());
+        LOG.d(LOG_TAG, "File location is: " + fileLocation);
+
+        String uriString = uri.toString();
+        String finalLocation = fileLocation != null ? fileLocation : uriString;
+        String mimeType = FileHelper.getMimeType(uriString, getCordova());
+
+        if (finalLocation == null) {
+            this.failPicture("Error retrieving result.");
+        } else {
+
+            // If you ask for video or the selected file doesn't have a JPEG, PNG, WebP or HEIF mime type
+            //  there will be no attempt to resize any returned data
+            if (request.mediaType == VIDEO || !FileHelper.isSupportedImageMimeType(mimeType)) {
+                returnResultToApp(finalLocation, request.encodingType);
+            } else if (request.outputs != null) {
+                final Uri source = uri;
+                JSONArray results = produceResults(source, new SingleFlight.Work<JSONArray>() {
+                    @Override
+                    public JSONArray run() throws IOException {
+                        sendPreview(source);
+                        recordBytesRead(source);
+                        return processOutputs(source);
+                    }
+                });
+                if (results == null) {
+                    LOG.d(LOG_TAG, "I either have a null image path or bitmap");
+                    this.failPicture("Unable to create bitmap!");
+                    return;
+                }
+                checkpoint(ProcessingJob.Stage.WRITE);
+                deleteIntermediateFiles();
+                sendResult(results);
+            } else {
+
+                // This is a special case to just return the path as no scaling,
+                // rotating, nor compressing needs to be done
+                if (request.targetHeight == -1 && request.targetWidth == -1 && request.maxBytes == 0 &&
+                        this.cropRect == null && destType == FILE_URI && !request.correctOrientation &&
+                        mimeType != null && mimeType.equalsIgnoreCase(FileHelper.getMimetypeForFormat(request.encodingType))) {
+                    returnResultToApp(finalLocation, request.encodingType);
+                } else {
+                    final Uri source = uri;
+                    final String location = finalLocation;
+                    final String sourceMimeType = mimeType;
+                    JSONArray results;
+                    try {
+                        // Re-picking an image, or picking it twice at once, shares the result
+                        results = produceResults(source, new SingleFlight.Work<JSONArray>() {
+                            @Override
+                            public JSONArray run() throws IOException {
+                                String result = processGalleryImage(destType, source, location, sourceMimeType);
+                                return result != null ? new JSONArray().put(result) : null;
+                            }
+                        });
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        this.failPicture(destType == DATA_URL ? "Error compressing image." : "Error retrieving image.");
+                        return;
+                    }
+                    if (results == null) {
+                        LOG.d(LOG_TAG, "I either have a null image path or bitmap");
+                        this.failPicture("Unable to create bitmap!");
+                        return;
+                    }
+                    checkpoint(ProcessingJob.Stage.WRITE);
+                    deleteIntermediateFiles();
+                    sendResult(results.optString(0));
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Decodes, transforms and encodes a single image from the gallery.
+     *
+     * @return the Base64 data or the Uri of the result, or null if the image cannot be decoded
+     */
+    private String processGalleryImage(int destType, Uri uri, String finalLocation, String mimeType) throws IOException {
+        sendPreview(uri);
+
+        recordBytesRead(uri);
+        checkpoint(ProcessingJob.Stage.DECODE);
+        Bitmap bitmap = null;
+        try {
+            bitmap = getProcessedBitmap(uri);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (bitmap == null) {
+            return null;
+        }
+
+        try {
+            checkpoint(ProcessingJob.Stage.ENCODE);
+
+            // If sending base64 image back
+            if (destType == DATA_URL) {
+                return encodePicture(bitmap);
+            }
+
+            // Did we modify the image?
+            if ((request.targetHeight > 0 && request.targetWidth > 0) || request.maxBytes > 0 || this.cropRect != null ||
+                    (request.correctOrientation && this.orientationCorrected) ||
+                    !mimeType.equalsIgnoreCase(FileHelper.getMimetypeForFormat(request.encodingType))) {
+                return copyResultToInternalStorage(this.outputModifiedBitmap(bitmap, uri), request.encodingType).toString();
+            }
+            return copyResultToInternalStorage(Uri.parse(finalLocation), request.encodingType).toString();
+        } finally {
+            bitmap.recycle();
+            System.gc();
+        }
+    }
+
+    private Uri outputModifiedBitmap(Bitmap bitmap, Uri uri) throws IOException {
+        Uri outputUri = createPipeline().encode(bitmap, outputSink("modified"));
+
+        if (exifData != null && FileHelper.canWriteExif(request.encodingType)) {
+            long start = metrics.start(RequestMetrics.Stage.EXIF);
+            try {
+                if (this.orientationCorrected) {
+                    exifData.resetOrientation();
+                }
+                exifData.createOutFile(outputUri.toString());
+                exifData.writeExifData();
+                exifData = null;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            metrics.stop(RequestMetrics.Stage.EXIF, start);
+        }
+        return outputUri;
+    }
+
+    /**
+     * Returns the bitmap to encode: the cropped region when a crop rectangle is set, otherwise
+     * the scaled and rotated image. The EXIF data of the source is kept for the output.
+     *
+     * @param imageUrl
+     * @return
+     * @throws IOException
+     */
+    protected Bitmap getProcessedBitmap(Uri imageUrl) throws IOException {
+        long start = metrics.start(RequestMetrics.Stage.EXIF);
+        readExifData(imageUrl);
+        metrics.stop(RequestMetrics.Stage.EXIF, start);
+
+        ImagePipeline pipeline = createPipeline();
+        Bitmap bitmap = pipeline.decode(imageUrl);
+        this.orientationCorrected = pipeline.isOrientationCorrected();
+        return bitmap;
+    }
+
+    /**
+     * Keeps the EXIF data of the source so it can be written to the modified image.
+     */
+    private void readExifData(Uri imageUrl) {
+        InputStream fileStream = null;
+        try {
+            fileStream = getContentResolver().openInputStream(imageUrl);
+            exifData = new ExifHelper();
+            exifData.createInStream(fileStream);
+            exifData.readExifData();
+        } catch (Exception e) {
+            LOG.w(LOG_TAG, "Unable to read Exif data: " + e.toString());
+            exifData = null;
+        } finally {
+            if (fileStream != null) {
+                try {
+                    fileStream.close();
+                } catch (IOException e) {
+                    LOG.d(LOG_TAG, "Exception while closing file input stream.");
+                }
+            }
+        }
+    }
+
+    protected String encodePicture(Bitmap bitmap) throws IOException {
+        byte[] code = createPipeline().encode(bitmap);
+        cacheResultData(Collections.singletonList(code));
+        return new String(Base64.encode(code, Base64.NO_WRAP));
+    }
+
+    protected void returnResultToApp(String uri, int encodingType) throws IOException {
+        returnResultToApp(Uri.parse(uri), encodingType);
+    }
+
+    protected void returnResultToApp(Uri uri, int encodingType) throws IOException {
+        Uri destUri = copyResultToInternalStorage(uri, encodingType);
+        deleteIntermediateFiles();
+        sendResult(destUri.toString());
+    }
+
+    protected Uri copyResultToInternalStorage(Uri uri, int encodingType) throws IOException {
+        long start = metrics.start(RequestMetrics.Stage.COPY);
+        Uri destUri = FileHelper.copyToInternalStorage(getContext(), uri, encodingType);
+        metrics.stop(RequestMetrics.Stage.COPY, start);
+        recordBytesWritten(destUri);
+        cacheResultFiles(Collections.singletonList(destUri));
+        return destUri;
+    }
+
+    /**
+     * Removes the camera and crop outputs from the MediaStore once the result has been copied.
+     */
+    protected void deleteIntermediateFiles() {
+        long start = metrics.start(RequestMetrics.Stage.MEDIASTORE);
+        if (!request.saveToPhotoAlbum) {
+            if (request.allowEdit) {
+                FileHelper.deleteFileFromMediaStore(getContentResolver(), croppedUri);
+            }
+            FileHelper.deleteFileFromMediaStore(getContentResolver(), imageUri);
+        } else {
+            FileHelper.deleteFileFromMediaStore(getContentResolver(), request.allowEdit ? imageUri : croppedUri);
+        }
+        metrics.stop(RequestMetrics.Stage.MEDIASTORE, start);
+    }
+
+    protected Uri insertOutputFile(String namePostfix) {
+        long start = metrics.start(RequestMetrics.Stage.MEDIASTORE);
+        Uri uri = FileHelper.createCaptureFile(getContentResolver(), request.encodingType, namePostfix);
+        metrics.stop(RequestMetrics.Stage.MEDIASTORE, start);
+        return uri;
+    }
+
+    /**
+     * Pipeline sink writing to a new MediaStore entry. The pipeline registers it with the job.
+     */
+    protected ImagePipeline.Sink outputSink(final String namePostfix) {
+        return new ImagePipeline.Sink() {
+            @Override
+            public Uri createOutput() {
+                return insertOutputFile(namePostfix);
+            }
+        };
+    }
+
+    protected abstract void requestPermissionsAndTakePicture(int returnType, int encodingType);
 
     protected CordovaInterface getCordova() {
         return cordovaPlugin.cordova;
@@ -205,26 +1448,62 @@ public abstract class BaseCameraManager implements ICameraManager {
 
     protected abstract void handleCameraResult(int requestCode, int resultCode, Intent intent);
 
-    protected abstract void handleSaveGalleryResult(int requestCode, int resultCode, Intent intent);
+
+    /**
+     * Called after the crop screen returned a rectangle, which is available in cropRect.
+     */
+    protected abstract void handleRegionCropResult();
 
     @Override
     public void onActivityResult(int requestCode, int resultCode, Intent intent) {
+        if (this.request == null) {
+            LOG.w(LOG_TAG, "No request for activity result " + requestCode);
+            return;
+        }
+        this.metrics.markProcessingStart();
+        CameraTrace.beginSection("onActivityResult");
+        try {
+            dispatchActivityResult(requestCode, resultCode, intent);
+        } catch (CancellationException e) {
+            onJobCancelled();
+        } finally {
+            // Also closes stage sections an exception may have left open
+            CameraTrace.endAllSections();
+        }
+    }
 
-        // Get src and dest types from request code for a Camera Activity
-        int srcType = (requestCode / 16) - 1;
-        int destType = (requestCode % 16) - 1;
+    private void dispatchActivityResult(int requestCode, int resultCode, Intent intent) {
+        // The request may have been cancelled while the other activity was open
+        checkpoint(ProcessingJob.Stage.INGEST);
 
-        // If Camera Crop
-        if (requestCode >= CROP_CAMERA) {
-            handleCameraCropResult(requestCode, resultCode, intent);
-        }
-        // If CAMERA
-        else if (srcType == CAMERA) {
-            handleCameraResult(requestCode, resultCode, intent);
+        // Results without the id of a request match no kind
+        if (CameraRequest.getRequestId(requestCode) == -1) {
+            return;
         }
-        // If retrieving photo from library
-        else if ((srcType == PHOTOLIBRARY) || (srcType == SAVEDPHOTOALBUM)) {
-            handleSaveGalleryResult(requestCode, resultCode, intent);
+        switch (CameraRequest.getKind(requestCode)) {
+            // If the plugin's own crop screen
+            case REGION_CROP:
+                this.cropRect = resultCode == Activity.RESULT_OK ? CropActivity.getCropRect(intent) : null;
+                if (this.cropRect != null) {
+                    handleRegionCropResult();
+                } else if (resultCode == Activity.RESULT_CANCELED) {
+                    failPicture("No Image Selected");
+                } else {
+                    failPicture("Did not complete!");
+                }
+                break;
+            // If Camera Crop
+            case CROP_CAMERA:
+                handleCameraCropResult(requestCode, resultCode, intent);
+                break;
+            // If CAMERA
+            case CAPTURE:
+                handleCameraResult(requestCode, resultCode, intent);
+                break;
+            // If retrieving photo from library
+            case PICK:
+                handleSaveGalleryResult(requestCode, resultCode, intent);
+                break;
         }
     }
 
@@ -235,17 +1514,17 @@ public abstract class BaseCameraManager implements ICameraManager {
      */
     public Bundle onSaveInstanceState() {
         Bundle state = new Bundle();
-        state.putInt("destType", this.destType);
-        state.putInt("srcType", this.srcType);
-        state.putInt("mQuality", this.quality);
-        state.putInt("targetWidth", this.targetWidth);
-        state.putInt("targetHeight", this.targetHeight);
-        state.putInt("encodingType", encodingType);
-        state.putInt("mediaType", this.mediaType);
+        if (this.request == null) {
+            return state;
+        }
+        this.request.toBundle(state);
         state.putInt("numPics", this.numPics);
-        state.putBoolean("allowEdit", this.allowEdit);
-        state.putBoolean("correctOrientation", this.correctOrientation);
-        state.putBoolean("saveToPhotoAlbum", this.saveToPhotoAlbum);
+        if (this.job != null) {
+            state.putString(JOB_ID_KEY, this.job.getId());
+        }
+        if (this.cropRect != null) {
+            state.putParcelable("cropRect", this.cropRect);
+        }
 
         if (this.croppedUri != null) {
             state.putString(CROPPED_URI_KEY, croppedUri.toString());
@@ -259,17 +1538,15 @@ public abstract class BaseCameraManager implements ICameraManager {
     }
 
     public void onRestoreStateForActivityResult(Bundle state, CallbackContext callbackContext) {
-        this.destType = state.getInt("destType");
-        this.srcType = state.getInt("srcType");
-        this.quality = state.getInt("mQuality");
-        this.targetWidth = state.getInt("targetWidth");
-        this.targetHeight = state.getInt("targetHeight");
-        this.encodingType = state.getInt("encodingType");
-        this.mediaType = state.getInt("mediaType");
+        this.request = CameraRequest.fromBundle(state);
+        this.callbackContext = callbackContext;
+        if (this.request == null) {
+            return;
+        }
         this.numPics = state.getInt("numPics");
-        this.allowEdit = state.getBoolean("allowEdit");
-        this.correctOrientation = state.getBoolean("correctOrientation");
-        this.saveToPhotoAlbum = state.getBoolean("saveToPhotoAlbum");
+        this.cropRect = state.getParcelable("cropRect");
+        this.job = ProcessingJob.start(state.getString(JOB_ID_KEY));
+        this.metrics = RequestMetrics.create(request.debugMetrics || StatsRegistry.isEnabled());
 
         if (state.containsKey(CROPPED_URI_KEY)) {
             this.croppedUri = Uri.parse(state.getString(CROPPED_URI_KEY));
@@ -280,7 +1557,8 @@ public abstract class BaseCameraManager implements ICameraManager {
             this.imageUri = Uri.parse(state.getString(IMAGE_URI_KEY));
         }
 
-        this.callbackContext = callbackContext;
+        // The result of the activity that was open when the app was killed follows
+        awaitResult();
     }
 
     public abstract void takePicture(int returnType, int encodingType);
@@ -293,12 +1571,12 @@ public abstract class BaseCameraManager implements ICameraManager {
                 return;
             }
         }
-        switch (requestCode) {
+        switch (CameraRequest.getKind(requestCode)) {
             case TAKE_PIC_SEC:
-                takePicture(this.destType, encodingType);
+                takePicture(request.destType, request.encodingType);
                 break;
             case SAVE_TO_ALBUM_SEC:
-                this.getImage(this.srcType, this.destType, encodingType);
+                this.getImage(request.srcType, request.destType, request.encodingType);
                 break;
         }
     }
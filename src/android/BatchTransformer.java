@@ -0,0 +1,335 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+import android.net.Uri;
+import android.util.Base64;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.LOG;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the transformImages action: images that are already on the device go through the same
+ * scale, rotate, encode and EXIF stages as a picked image, without any UI. The images are
+ * processed on a small shared worker pool and each result is sent to JavaScript as soon as it
+ * is ready, followed by a summary once every image is done.
+ * <p>
+ * Only a few images are handed to the pool at a time, so a long list never holds more
+ * decoded bitmaps or undelivered results than there are workers to process them.
+ */
+public class BatchTransformer implements Runnable {
+    private static final String LOG_TAG = "BatchTransformer";
+
+    // Every worker holds a decoded bitmap, and its encode already runs on the parallel encoders
+    private static final int MAX_WORKERS = 3;
+    // Images submitted ahead of the running ones, so a worker does not wait for the next one
+    private static final int QUEUED_PER_WORKER = 1;
+
+    private static final String INDEX_KEY = "index";
+    private static final String URI_KEY = "uri";
+    private static final String RESULT_KEY = "result";
+    private static final String ERROR_KEY = "error";
+    private static final String DONE_KEY = "done";
+    private static final String SUCCEEDED_KEY = "succeeded";
+    private static final String FAILED_KEY = "failed";
+
+    private static ExecutorService workerExecutor;
+
+    private final Context context;
+    private final CallbackContext callbackContext;
+    private final JSONArray sources;
+    private final int quality;
+    private final int destType;
+    private final int targetWidth;
+    private final int targetHeight;
+    private final int encodingType;
+    private final boolean correctOrientation;
+    private final int maxBytes;
+    private final RectF cropRect;
+    private final ProcessingJob job;
+    private final int scaleFilter;
+    private final ParallelPngEncoder.Options png;
+    private final int jpegCoding;
+
+    private final AtomicInteger succeeded = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    /**
+     * @param args the URIs followed by the options, as sent by camera.transformImages
+     */
+    public BatchTransformer(Context context, JSONArray args, CallbackContext callbackContext) throws JSONException {
+        this.context = context;
+        this.callbackContext = callbackContext;
+        this.sources = args.getJSONArray(0);
+        this.quality = Math.max(0, Math.min(100, args.getInt(1)));
+        this.destType = args.getInt(2);
+        int width = args.getInt(3);
+        int height = args.getInt(4);
+        this.targetWidth = width < 1 ? -1 : width;
+        this.targetHeight = height < 1 ? -1 : height;
+        this.encodingType = BitmapEncoder.resolveEncodingType(args.getInt(5));
+        this.correctOrientation = args.getBoolean(6);
+        this.maxBytes = Math.max(0, args.optInt(7, 0));
+        this.cropRect = BaseCameraManager.parseCropRect(args.optJSONObject(8));
+        this.job = ProcessingJob.start(args.isNull(9) ? null : args.getString(9));
+        this.scaleFilter = args.optInt(10, BaseCameraManager.BILINEAR);
+        this.png = ParallelPngEncoder.Options.fromRequest(args.optInt(11, ParallelPngEncoder.LEVEL_PLATFORM),
+                args.optInt(12, ParallelPngEncoder.FILTER_ADAPTIVE));
+        this.jpegCoding = JpegStreamEncoder.resolveCoding(args.optInt(13, -1));
+    }
+
+    private static int getWorkerCount() {
+        return Math.max(1, Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    private static synchronized ExecutorService getWorkerExecutor() {
+        if (workerExecutor == null) {
+            workerExecutor = Executors.newFixedThreadPool(getWorkerCount(), new ThreadFactory() {
+                private int count;
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "CameraBatch-" + (++count));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return workerExecutor;
+    }
+
+    /**
+     * Submits the images in order, blocking while all slots are taken, and reports the summary
+     * or the cancellation once the last one has finished. Runs on the Cordova thread pool.
+     */
+    @Override
+    public void run() {
+        ExecutorService executor = getWorkerExecutor();
+        int slotCount = getWorkerCount() * (1 + QUEUED_PER_WORKER);
+        final Semaphore slots = new Semaphore(slotCount);
+        try {
+            for (int i = 0; i < sources.length() && !job.isCancelled(); i++) {
+                final int index = i;
+                final String source = sources.isNull(i) ? null : sources.optString(i);
+                slots.acquireUninterruptibly();
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            transform(index, source);
+                        } finally {
+                            slots.release();
+                        }
+                    }
+                });
+            }
+            // Every slot is free again once the last image has been reported
+            slots.acquireUninterruptibly(slotCount);
+
+            if (job.isCancelled()) {
+                callbackContext.error(BaseCameraManager.CANCELLED_ERROR);
+                return;
+            }
+            JSONObject summary = new JSONObject();
+            summary.put(DONE_KEY, true);
+            summary.put(SUCCEEDED_KEY, succeeded.get());
+            summary.put(FAILED_KEY, failed.get());
+            callbackContext.success(summary);
+        } catch (JSONException e) {
+            LOG.e(LOG_TAG, "Unable to send summary: " + e.toString());
+            callbackContext.error("Error transforming images.");
+        } finally {
+            job.finish();
+        }
+    }
+
+    /**
+     * Processes one image and reports its result or error. An image that was interrupted by a
+     * cancellation is not reported and its partial output is removed.
+     */
+    private void transform(int index, String source) {
+        final File[] output = new File[1];
+        try {
+            job.checkpoint(ProcessingJob.Stage.INGEST);
+            Uri sourceUri = parseSource(source);
+            String result = this.destType == BaseCameraManager.DATA_URL ? encodeData(sourceUri) : encodeFile(sourceUri, index, output);
+            if (result == null) {
+                sendError(index, source, "Unable to create bitmap!");
+            } else {
+                sendItem(index, source, RESULT_KEY, result, succeeded);
+            }
+        } catch (CancellationException e) {
+            deleteOutput(output[0]);
+        } catch (IOException e) {
+            LOG.w(LOG_TAG, "Unable to transform " + source + ": " + e.toString());
+            deleteOutput(output[0]);
+            sendError(index, source, "Error retrieving image.");
+        } catch (RuntimeException e) {
+            // One bad image must not stop the rest of the list
+            LOG.w(LOG_TAG, "Unable to transform " + source + ": " + e.toString());
+            deleteOutput(output[0]);
+            sendError(index, source, "Error retrieving image.");
+        }
+    }
+
+    private static Uri parseSource(String source) throws IOException {
+        if (source == null || source.length() == 0) {
+            throw new IOException("Missing image URI");
+        }
+        Uri uri = Uri.parse(source);
+        return uri.getScheme() != null ? uri : Uri.fromFile(new File(source));
+    }
+
+    private ImagePipeline createPipeline() {
+        return new ImagePipeline(context, RequestMetrics.create(false), job)
+                .setTargetSize(this.targetWidth, this.targetHeight)
+                .setCorrectOrientation(this.correctOrientation)
+                .setCropRect(this.cropRect)
+                .setEncoding(this.encodingType, this.quality, this.maxBytes)
+                .setPngOptions(this.png)
+                .setJpegCoding(this.jpegCoding)
+                .setTransformer(this.scaleFilter == BaseCameraManager.AREA_AVERAGE ?
+                        ImagePipeline.AREA_AVERAGE_AND_ROTATE : ImagePipeline.SCALE_AND_ROTATE);
+    }
+
+    /**
+     * @return the Base64 data of the image or null if the source could not be decoded
+     */
+    private String encodeData(Uri sourceUri) throws IOException {
+        ImagePipeline pipeline = createPipeline();
+        Bitmap bitmap = pipeline.decode(sourceUri);
+        if (bitmap == null) {
+            return null;
+        }
+        try {
+            return new String(Base64.encode(pipeline.encode(bitmap), Base64.NO_WRAP));
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Writes the image to a new file in the cache directory, with the EXIF data of the source.
+     *
+     * @param output receives the file as soon as it is created, so a failure can remove it
+     * @return the file URI or null if the source could not be decoded
+     */
+    private String encodeFile(Uri sourceUri, final int index, final File[] output) throws IOException {
+        ExifHelper exif = FileHelper.canWriteExif(this.encodingType) ? readExifData(sourceUri) : null;
+
+        final File directory = new File(FileHelper.getTempDirectoryPath(context));
+        ImagePipeline pipeline = createPipeline();
+        Uri outputUri = pipeline.process(sourceUri, new ImagePipeline.Sink() {
+            @Override
+            public Uri createOutput() throws IOException {
+                output[0] = FileHelper.createUniqueFile(directory, String.valueOf(index), encodingType);
+                return Uri.fromFile(output[0]);
+            }
+        });
+        if (outputUri == null) {
+            return null;
+        }
+
+        if (exif != null) {
+            job.checkpoint(ProcessingJob.Stage.WRITE);
+            try {
+                if (pipeline.isOrientationCorrected()) {
+                    exif.resetOrientation();
+                }
+                exif.createOutFile(output[0].getAbsolutePath());
+                exif.writeExifData();
+            } catch (IOException e) {
+                LOG.w(LOG_TAG, "Unable to write Exif data: " + e.toString());
+            }
+        }
+        return outputUri.toString();
+    }
+
+    /**
+     * @return the EXIF data of the source or null if it has none that can be read
+     */
+    private ExifHelper readExifData(Uri sourceUri) {
+        InputStream fileStream = null;
+        try {
+            fileStream = context.getContentResolver().openInputStream(sourceUri);
+            if (fileStream == null) {
+                return null;
+            }
+            ExifHelper exif = new ExifHelper();
+            exif.createInStream(fileStream);
+            exif.readExifData();
+            return exif;
+        } catch (Exception e) {
+            LOG.w(LOG_TAG, "Unable to read Exif data: " + e.toString());
+            return null;
+        } finally {
+            if (fileStream != null) {
+                try {
+                    fileStream.close();
+                } catch (IOException e) {
+                    LOG.d(LOG_TAG, "Exception while closing file input stream.");
+                }
+            }
+        }
+    }
+
+    private void sendError(int index, String source, String message) {
+        sendItem(index, source, ERROR_KEY, message, failed);
+    }
+
+    /**
+     * Sends the result or error of one image, keeping the callback for the rest of the list.
+     */
+    private void sendItem(int index, String source, String key, String value, AtomicInteger counter) {
+        counter.incrementAndGet();
+        try {
+            JSONObject message = new JSONObject();
+            message.put(INDEX_KEY, index);
+            message.put(URI_KEY, source);
+            message.put(key, value);
+            PluginResult r = new PluginResult(PluginResult.Status.OK, message);
+            r.setKeepCallback(true);
+            callbackContext.sendPluginResult(r);
+        } catch (JSONException e) {
+            LOG.w(LOG_TAG, "Unable to send result: " + e.toString());
+        }
+    }
+
+    private static void deleteOutput(File file) {
+        if (file != null && file.exists() && !file.delete()) {
+            LOG.w(LOG_TAG, "Unable to delete " + file);
+        }
+    }
+}
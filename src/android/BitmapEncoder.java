@@ -0,0 +1,462 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+
+import androidx.heifwriter.HeifWriter;
+
+import org.apache.cordova.LOG;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.apache.cordova.camera.BaseCameraManager.HEIF;
+import static org.apache.cordova.camera.BaseCameraManager.JPEG;
+import static org.apache.cordova.camera.BaseCameraManager.PNG;
+import static org.apache.cordova.camera.BaseCameraManager.WEBP;
+import static org.apache.cordova.camera.BaseCameraManager.WEBP_LOSSLESS;
+
+/**
+ * Encodes bitmaps in every output format the plugin supports. JPEG, PNG and WebP go through
+ * Bitmap.compress, HEIF goes through the platform HEVC encoder via HeifWriter. PNG goes
+ * through ParallelPngEncoder when the request sets a compression level. JPEG goes through
+ * JpegStreamEncoder when the request, or the CameraJpegCoding preference it defaults to, asks
+ * for optimized or progressive coding, and large JPEG outputs go through ParallelJpegEncoder
+ * when the CameraParallelJpeg preference is set.
+ */
+public class BitmapEncoder {
+    private static final String LOG_TAG = "BitmapEncoder";
+
+    // How long to wait for the HEVC encoder to finish a single image
+    private static final long HEIF_TIMEOUT_MS = 10000;
+
+    private static Boolean heifSupported;
+
+    /**
+     * Returns the encoding type that will actually be produced on this device. HEIF falls back
+     * to JPEG when there is no hardware HEVC encoder that HeifWriter can use.
+     *
+     * @param encodingType requested encoding type
+     * @return the encoding type to use
+     */
+    public static int resolveEncodingType(int encodingType) {
+        if (encodingType == HEIF && !isHeifSupported()) {
+            LOG.d(LOG_TAG, "HEIF encoding is not available on this device, falling back to JPEG");
+            return JPEG;
+        }
+        if (encodingType < JPEG || encodingType > HEIF) {
+            return JPEG;
+        }
+        return encodingType;
+    }
+
+    /**
+     * HeifWriter needs API 28 and an HEVC encoder that supports the constant quality mode.
+     */
+    public static synchronized boolean isHeifSupported() {
+        if (heifSupported == null) {
+            heifSupported = Build.VERSION.SDK_INT >= Build.VERSION_CODES.P && hasHevcEncoder();
+        }
+        return heifSupported;
+    }
+
+    private static boolean hasHevcEncoder() {
+        MediaCodecList codecs = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        for (MediaCodecInfo info : codecs.getCodecInfos()) {
+            if (!info.isEncoder()) {
+                continue;
+            }
+            for (String type : info.getSupportedTypes()) {
+                if (!type.equalsIgnoreCase(MediaFormat.MIMETYPE_VIDEO_HEVC)) {
+                    continue;
+                }
+                MediaCodecInfo.EncoderCapabilities caps =
+                        info.getCapabilitiesForType(type).getEncoderCapabilities();
+                if (caps != null
+                        && caps.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Maps an encoding type to the Bitmap.CompressFormat used to produce it. Not valid for HEIF.
+     */
+    @SuppressWarnings("deprecation")
+    public static Bitmap.CompressFormat getCompressFormat(int encodingType) {
+        if (encodingType == PNG) {
+            return Bitmap.CompressFormat.PNG;
+        }
+        if (encodingType == WEBP || encodingType == WEBP_LOSSLESS) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                return encodingType == WEBP ? Bitmap.CompressFormat.WEBP_LOSSY : Bitmap.CompressFormat.WEBP_LOSSLESS;
+            }
+            return Bitmap.CompressFormat.WEBP;
+        }
+        return Bitmap.CompressFormat.JPEG;
+    }
+
+    /**
+     * Returns the quality value to hand to Bitmap.compress. Before API 30 the legacy WEBP format
+     * only switches to lossless mode when the quality is 100.
+     */
+    private static int getCompressQuality(int encodingType, int quality) {
+        if (encodingType == WEBP_LOSSLESS && Build.VERSION.SDK_INT < Build.VERSION_CODES.R) {
+            return 100;
+        }
+        return quality;
+    }
+
+    /**
+     * Encodes the bitmap into the stream. HEIF is not supported here because HeifWriter needs a
+     * seekable file; use encode(Context, Bitmap, int, int, ParallelPngEncoder.Options, int, Uri)
+     * for it instead.
+     *
+     * @param png        level and filter of PNG outputs, or null to write them with Bitmap.compress
+     * @param jpegCoding coding of JPEG outputs, one of the JpegStreamEncoder codings
+     * @return true if the bitmap was successfully compressed
+     */
+    public static boolean encode(Bitmap bitmap, int encodingType, int quality, ParallelPngEncoder.Options png,
+                                 int jpegCoding, OutputStream outputStream) {
+        if (encodingType == JPEG && jpegCoding != JpegStreamEncoder.CODING_STANDARD && !isHardware(bitmap)) {
+            return encodeWithCoding(bitmap, quality, jpegCoding, outputStream);
+        }
+        if (encodingType == JPEG && canEncodeInParallel(bitmap)) {
+            return encodeInParallel(bitmap, quality, outputStream);
+        }
+        if (encodingType == PNG && png != null && !isHardware(bitmap)) {
+            return encodePng(bitmap, png, outputStream);
+        }
+        return bitmap.compress(getCompressFormat(encodingType), getCompressQuality(encodingType, quality), outputStream);
+    }
+
+    /**
+     * Hardware bitmaps cannot hand out their pixels, and small ones are faster through compress.
+     */
+    private static boolean canEncodeInParallel(Bitmap bitmap) {
+        return !isHardware(bitmap) && ParallelJpegEncoder.shouldEncode(bitmap.getWidth(), bitmap.getHeight());
+    }
+
+    private static boolean isHardware(Bitmap bitmap) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && bitmap.getConfig() == Bitmap.Config.HARDWARE;
+    }
+
+    private static boolean encodePng(Bitmap bitmap, ParallelPngEncoder.Options png, OutputStream outputStream) {
+        int width = bitmap.getWidth();
+        try {
+            ParallelPngEncoder.encode(getSource(bitmap), width, bitmap.getHeight(), bitmap.hasAlpha(), png, outputStream);
+            return true;
+        } catch (IOException e) {
+            LOG.e(LOG_TAG, "Unable to encode PNG in parallel", e);
+            return false;
+        }
+    }
+
+    /**
+     * Bitmap.compress always writes baseline JPEG with the standard Huffman tables, so the
+     * other codings go through JpegStreamEncoder one row of MCUs at a time.
+     */
+    private static boolean encodeWithCoding(Bitmap bitmap, int quality, int coding, OutputStream outputStream) {
+        JpegStreamEncoder encoder = new JpegStreamEncoder(outputStream, bitmap.getWidth(), bitmap.getHeight(), quality);
+        encoder.setCoding(coding);
+        return writeRows(bitmap, encoder, new int[bitmap.getWidth() * JpegStreamEncoder.MCU_SIZE]);
+    }
+
+    /**
+     * Feeds the bitmap to the encoder one row of MCUs at a time.
+     *
+     * @param pixels buffer for one row of MCUs
+     */
+    private static boolean writeRows(Bitmap bitmap, JpegStreamEncoder encoder, int[] pixels) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        try {
+            for (int y = 0; y < height; y += JpegStreamEncoder.MCU_SIZE) {
+                int rows = Math.min(JpegStreamEncoder.MCU_SIZE, height - y);
+                bitmap.getPixels(pixels, 0, width, 0, y, width, rows);
+                encoder.writeRows(pixels, 0, width, rows);
+            }
+            encoder.finish();
+            return true;
+        } catch (IOException e) {
+            LOG.e(LOG_TAG, "Unable to encode JPEG", e);
+            return false;
+        }
+    }
+
+    private static boolean encodeInParallel(Bitmap bitmap, int quality, OutputStream outputStream) {
+        try {
+            ParallelJpegEncoder.encode(getSource(bitmap), bitmap.getWidth(), bitmap.getHeight(), quality, outputStream);
+            return true;
+        } catch (IOException e) {
+            LOG.e(LOG_TAG, "Unable to encode JPEG in parallel", e);
+            return false;
+        }
+    }
+
+    private static PixelStrips.Source getSource(final Bitmap bitmap) {
+        final int width = bitmap.getWidth();
+        return new PixelStrips.Source() {
+            @Override
+            public void getRows(int[] pixels, int y, int rows) {
+                bitmap.getPixels(pixels, 0, width, 0, y, width, rows);
+            }
+        };
+    }
+
+    /**
+     * Encodes the bitmap and writes it to the given content or file Uri.
+     */
+    public static void encode(Context context, Bitmap bitmap, int encodingType, int quality, ParallelPngEncoder.Options png,
+                              int jpegCoding, Uri dest) throws IOException {
+        if (encodingType == HEIF) {
+            ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(dest, "rw");
+            if (pfd == null) {
+                throw new IOException("Unable to open " + dest);
+            }
+            try {
+                encodeHeif(bitmap, quality, pfd);
+            } finally {
+                pfd.close();
+            }
+            return;
+        }
+        OutputStream outputStream = context.getContentResolver().openOutputStream(dest);
+        if (outputStream == null) {
+            throw new IOException("Unable to open " + dest);
+        }
+        try {
+            if (!encode(bitmap, encodingType, quality, png, jpegCoding, outputStream)) {
+                throw new IOException("Unable to compress bitmap");
+            }
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Encodes the bitmap to the given Uri at the highest quality, up to the requested one, whose
+     * output fits into maxBytes. A maxBytes of zero or less disables the search.
+     */
+    public static void encode(Context context, Bitmap bitmap, int encodingType, int quality, int maxBytes,
+                              ParallelPngEncoder.Options png, int jpegCoding, Uri dest) throws IOException {
+        QualitySearch search = searchQuality(bitmap, encodingType, quality, maxBytes, jpegCoding);
+        if (search == null) {
+            encode(context, bitmap, encodingType, getFallbackQuality(encodingType, quality, maxBytes), png, jpegCoding, dest);
+            return;
+        }
+        OutputStream outputStream = context.getContentResolver().openOutputStream(dest);
+        if (outputStream == null) {
+            throw new IOException("Unable to open " + dest);
+        }
+        try {
+            search.writeBest(outputStream);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * In-memory variant of encode(Context, Bitmap, int, int, int, ParallelPngEncoder.Options, int,
+     * Uri) used for DATA_URL results.
+     */
+    public static byte[] encode(Context context, Bitmap bitmap, int encodingType, int quality, int maxBytes,
+                                ParallelPngEncoder.Options png, int jpegCoding) throws IOException {
+        QualitySearch search = searchQuality(bitmap, encodingType, quality, maxBytes, jpegCoding);
+        if (search == null) {
+            return encode(context, bitmap, encodingType, getFallbackQuality(encodingType, quality, maxBytes), png, jpegCoding);
+        }
+        return search.toByteArray();
+    }
+
+    /**
+     * Only the lossy formats written through Bitmap.compress react to the quality value.
+     */
+    public static boolean supportsQualitySearch(int encodingType) {
+        return encodingType == JPEG || encodingType == WEBP;
+    }
+
+    /**
+     * Runs the quality search on the already decoded bitmap.
+     *
+     * @return the search holding the encoded result, or null if no search applies or no quality fits
+     */
+    private static QualitySearch searchQuality(final Bitmap bitmap, final int encodingType, int quality, int maxBytes,
+                                               int jpegCoding) throws IOException {
+        if (maxBytes <= 0 || !supportsQualitySearch(encodingType)) {
+            return null;
+        }
+        QualitySearch search = new QualitySearch(maxBytes);
+        int chosen = search.search(newCandidateEncoder(bitmap, encodingType, jpegCoding), quality);
+        if (chosen < 0) {
+            LOG.d(LOG_TAG, "Image does not fit into " + maxBytes + " bytes even at the lowest quality");
+            return null;
+        }
+        LOG.d(LOG_TAG, "Encoded at quality " + chosen + " to fit into " + maxBytes + " bytes");
+        return search;
+    }
+
+    /**
+     * Returns the encoder of the quality candidates. It takes the same path encode would, but
+     * the JpegStreamEncoder and ParallelJpegEncoder paths set up their encoder and scratch
+     * buffers once and reuse them for every candidate.
+     */
+    private static QualitySearch.Encoder newCandidateEncoder(final Bitmap bitmap, final int encodingType, final int jpegCoding) {
+        if (encodingType == JPEG && jpegCoding != JpegStreamEncoder.CODING_STANDARD && !isHardware(bitmap)) {
+            return new CodingCandidates(bitmap, jpegCoding);
+        }
+        if (encodingType == JPEG && canEncodeInParallel(bitmap)) {
+            return new ParallelCandidates(bitmap);
+        }
+        return new QualitySearch.Encoder() {
+            @Override
+            public boolean encode(int candidateQuality, OutputStream outputStream) {
+                return BitmapEncoder.encode(bitmap, encodingType, candidateQuality, null, jpegCoding, outputStream);
+            }
+        };
+    }
+
+    /**
+     * Candidates through JpegStreamEncoder. The encoder, with the coefficient buffer of
+     * optimized and progressive coding, and the pixel rows are created by the first candidate.
+     */
+    private static class CodingCandidates implements QualitySearch.Encoder {
+        private final Bitmap bitmap;
+        private final int coding;
+        private final int[] pixels;
+        private JpegStreamEncoder encoder;
+
+        CodingCandidates(Bitmap bitmap, int coding) {
+            this.bitmap = bitmap;
+            this.coding = coding;
+            this.pixels = new int[bitmap.getWidth() * JpegStreamEncoder.MCU_SIZE];
+        }
+
+        @Override
+        public boolean encode(int quality, OutputStream outputStream) {
+            if (encoder == null) {
+                encoder = new JpegStreamEncoder(outputStream, bitmap.getWidth(), bitmap.getHeight(), quality);
+                encoder.setCoding(coding);
+            } else {
+                encoder.restart(outputStream, quality);
+            }
+            return writeRows(bitmap, encoder, pixels);
+        }
+    }
+
+    /**
+     * Candidates through ParallelJpegEncoder, one session holding the strips and their buffers.
+     */
+    private static class ParallelCandidates implements QualitySearch.Encoder {
+        private final ParallelJpegEncoder.Session session;
+
+        ParallelCandidates(Bitmap bitmap) {
+            session = new ParallelJpegEncoder.Session(getSource(bitmap), bitmap.getWidth(), bitmap.getHeight());
+        }
+
+        @Override
+        public boolean encode(int quality, OutputStream outputStream) {
+            try {
+                session.encode(quality, outputStream);
+                return true;
+            } catch (IOException e) {
+                LOG.e(LOG_TAG, "Unable to encode JPEG in parallel", e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Quality used when the budget cannot be met: the floor of the search, or the requested
+     * quality when no search applies to the format.
+     */
+    private static int getFallbackQuality(int encodingType, int quality, int maxBytes) {
+        if (maxBytes > 0 && supportsQualitySearch(encodingType)) {
+            return Math.min(QualitySearch.MIN_QUALITY, quality);
+        }
+        return quality;
+    }
+
+    /**
+     * Encodes the bitmap into memory, used when the result is returned as a DATA_URL.
+     */
+    public static byte[] encode(Context context, Bitmap bitmap, int encodingType, int quality,
+                                ParallelPngEncoder.Options png, int jpegCoding) throws IOException {
+        if (encodingType != HEIF) {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            if (!encode(bitmap, encodingType, quality, png, jpegCoding, data)) {
+                throw new IOException("Unable to compress bitmap");
+            }
+            return data.toByteArray();
+        }
+
+        File file = File.createTempFile("heif", FileHelper.getExtensionForFormat(HEIF), context.getCacheDir());
+        try {
+            encode(context, bitmap, HEIF, quality, null, JpegStreamEncoder.CODING_STANDARD, Uri.fromFile(file));
+            ByteArrayOutputStream data = new ByteArrayOutputStream((int) file.length());
+            InputStream inputStream = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[4096];
+                int len;
+                while ((len = inputStream.read(buffer)) != -1) {
+                    data.write(buffer, 0, len);
+                }
+            } finally {
+                inputStream.close();
+            }
+            return data.toByteArray();
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void encodeHeif(Bitmap bitmap, int quality, ParcelFileDescriptor pfd) throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.P) {
+            throw new IOException("HEIF encoding requires Android 9");
+        }
+        HeifWriter writer = new HeifWriter.Builder(pfd.getFileDescriptor(), bitmap.getWidth(), bitmap.getHeight(),
+                HeifWriter.INPUT_MODE_BITMAP)
+                .setQuality(quality)
+                .setMaxImages(1)
+                .build();
+        try {
+            writer.start();
+            writer.addBitmap(bitmap);
+            writer.stop(HEIF_TIMEOUT_MS);
+        } catch (Exception e) {
+            throw new IOException("Unable to encode HEIF image", e);
+        } finally {
+            writer.close();
+        }
+    }
+}
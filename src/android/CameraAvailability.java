@@ -0,0 +1,47 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import android.content.Context;
+import android.content.Intent;
+import android.provider.MediaStore;
+
+/**
+ * Remembers whether a camera app handles ACTION_IMAGE_CAPTURE. Resolving the intent is a call
+ * into the package manager, so it is done once on the thread pool when the plugin starts
+ * instead of every time the camera is opened. Only a positive answer is kept, a device
+ * without a camera app is asked again in case one was installed since.
+ */
+public class CameraAvailability {
+    private static volatile boolean available;
+
+    /**
+     * Resolves the intent ahead of the first picture. Call from a background thread.
+     */
+    public static void warmUp(Context context) {
+        isAvailable(context);
+    }
+
+    public static boolean isAvailable(Context context) {
+        if (!available) {
+            available = new Intent(MediaStore.ACTION_IMAGE_CAPTURE).resolveActivity(context.getPackageManager()) != null;
+        }
+        return available;
+    }
+}
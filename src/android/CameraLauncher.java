@@ -24,17 +24,48 @@ import android.os.Bundle;
 
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaPlugin;
+import org.apache.cordova.PluginResult;
+import org.apache.cordova.ResumeCallback;
 import org.json.JSONArray;
 import org.json.JSONException;
 
+import java.util.ArrayList;
+
 /**
  * This class launches the camera view, allows the user to take a picture, closes the camera view,
  * and returns the captured image.  When the camera view is closed, the screen displayed before
  * the camera view was shown is redisplayed.
  */
 public class CameraLauncher extends CordovaPlugin {
+    private static final String CANCEL_ACTION = "cancel";
+    private static final String GET_STATS_ACTION = "getStats";
+    private static final String TRANSFORM_IMAGES_ACTION = "transformImages";
+    private static final String REQUESTS_KEY = "requests";
+    private static final String PAGE_FINISHED_MESSAGE = "onPageFinished";
+
+    // The request started last, which receives results that carry no request id
     private ICameraManager cameraManager;
 
+    @Override
+    protected void pluginInitialize() {
+        StatsRegistry.setEnabled(preferences.getBoolean(StatsRegistry.STATS_PREFERENCE, false));
+        CameraTrace.setEnabled(preferences.getBoolean(CameraTrace.TRACING_PREFERENCE, false));
+        ParallelJpegEncoder.setEnabled(preferences.getBoolean(ParallelJpegEncoder.PARALLEL_PREFERENCE, false));
+        JpegStreamEncoder.setDefaultCoding(preferences.getString(JpegStreamEncoder.CODING_PREFERENCE, "standard"));
+        ResultCache.setMaxBytes(preferences.getInteger(ResultCache.SIZE_PREFERENCE, ResultCache.DEFAULT_SIZE_MB) * 1024L * 1024L);
+        DecodePlanner.init(cordova.getActivity());
+        // Before a restored activity result can begin a job of this process
+        JobJournal.getInstance(cordova.getContext().getFilesDir()).collectLeftovers();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            // Only the pre-Q manager checks for a camera app before opening it
+            cordova.getThreadPool().execute(new Runnable() {
+                public void run() {
+                    CameraAvailability.warmUp(cordova.getContext());
+                }
+            });
+        }
+    }
+
     /**
      * Executes the request and returns PluginResult.
      *
@@ -45,33 +76,128 @@ public class CameraLauncher extends CordovaPlugin {
      */
     @Override
     public boolean execute(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
+        // These actions must not replace the manager that is waiting for the activity result
+        if (action.equals(CANCEL_ACTION)) {
+            callbackContext.success(ProcessingJob.cancel(args.getString(0)) ? 1 : 0);
+            return true;
+        }
+        if (action.equals(GET_STATS_ACTION)) {
+            callbackContext.success(StatsRegistry.getStats(args.optBoolean(0, false)));
+            return true;
+        }
+        if (action.equals(TRANSFORM_IMAGES_ACTION)) {
+            cordova.getThreadPool().execute(new BatchTransformer(cordova.getContext(), args, callbackContext));
+            PluginResult r = new PluginResult(PluginResult.Status.NO_RESULT);
+            r.setKeepCallback(true);
+            callbackContext.sendPluginResult(r);
+            return true;
+        }
+        // Every request gets a manager of its own, requests still in progress keep theirs
+        ICameraManager manager = createCameraManager();
+        if (!manager.execute(action, args, callbackContext)) {
+            return false;
+        }
+        cameraManager = manager;
+        return true;
+    }
+
+    private ICameraManager createCameraManager() {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
-            cameraManager = new CameraManagerAndroidLollipop(this, preferences);
-        } else {
-            cameraManager = new CameraManagerAndroidQ(this, preferences);
+            return new CameraManagerAndroidLollipop(this, preferences);
         }
-        return cameraManager.execute(action, args, callbackContext);
+        return new CameraManagerAndroidQ(this, preferences);
+    }
+
+    /**
+     * Returns the manager of the request that started the activity or permission request with
+     * this code, or the request started last for codes that do not carry a request id.
+     */
+    private ICameraManager getCameraManager(int requestCode) {
+        ICameraManager manager = BaseCameraManager.takeAwaitingRequest(requestCode);
+        return manager != null ? manager : cameraManager;
     }
 
     @Override
     public void onActivityResult(int requestCode, int resultCode, Intent intent) {
-        cameraManager.onActivityResult(requestCode, resultCode, intent);
+        ICameraManager manager = BaseCameraManager.takeAwaitingRequest(requestCode);
+        if (manager == null && CameraRequest.getRequestId(requestCode) != -1) {
+            // The request already had its result
+            return;
+        }
+        if (manager == null) {
+            manager = cameraManager;
+        }
+        if (manager != null) {
+            manager.onActivityResult(requestCode, resultCode, intent);
+        }
     }
 
+    /**
+     * Saves every request waiting for an activity or permission result. Requests being
+     * processed are in the JobJournal, which resumes them when the app starts again.
+     */
     @Override
     public Bundle onSaveInstanceState() {
-        return cameraManager.onSaveInstanceState();
+        ArrayList<Bundle> requests = new ArrayList<Bundle>();
+        for (ICameraManager manager : BaseCameraManager.getAwaitingRequests()) {
+            requests.add(manager.onSaveInstanceState());
+        }
+        Bundle state = new Bundle();
+        state.putParcelableArrayList(REQUESTS_KEY, requests);
+        return state;
     }
 
     @Override
     public void onRequestPermissionResult(int requestCode,
                                           String[] permissions,
                                           int[] grantResults) throws JSONException {
-        cameraManager.onRequestPermissionResult(requestCode, permissions, grantResults);
+        ICameraManager manager = getCameraManager(requestCode);
+        if (manager != null) {
+            manager.onRequestPermissionResult(requestCode, permissions, grantResults);
+        }
     }
 
     @Override
     public void onRestoreStateForActivityResult(Bundle state, CallbackContext callbackContext) {
-        cameraManager.onRestoreStateForActivityResult(state, callbackContext);
+        // The process may have been restarted, in which case no manager exists yet
+        ArrayList<Bundle> requests = state.getParcelableArrayList(REQUESTS_KEY);
+        if (requests == null) {
+            return;
+        }
+        for (Bundle request : requests) {
+            ICameraManager manager = createCameraManager();
+            manager.onRestoreStateForActivityResult(request, callbackContext);
+            cameraManager = manager;
+        }
+    }
+
+    /**
+     * Resumes the jobs a killed process left in the JobJournal once the page has loaded. Before
+     * that Cordova keeps only the last resume event, which would drop all other results.
+     */
+    @Override
+    public Object onMessage(String id, Object data) {
+        if (PAGE_FINISHED_MESSAGE.equals(id)) {
+            cordova.getThreadPool().execute(new Runnable() {
+                public void run() {
+                    resumeJournaledJobs();
+                }
+            });
+        }
+        return null;
+    }
+
+    private void resumeJournaledJobs() {
+        for (JobJournal.Entry entry : JobJournal.getInstance(cordova.getContext().getFilesDir()).takeLeftovers()) {
+            createCameraManager().resumeJob(entry, createResumeCallback());
+        }
+    }
+
+    /**
+     * Returns the callback of a resumed job, which delivers its result through the resume
+     * event, as Cordova does for activity results that arrive after a restart.
+     */
+    protected CallbackContext createResumeCallback() {
+        return new ResumeCallback(getServiceName(), webView.getPluginManager());
     }
 }
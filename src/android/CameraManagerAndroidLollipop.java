@@ -3,47 +3,33 @@ package org.apache.cordova.camera;
 import android.Manifest;
 import android.app.Activity;
 import android.content.ActivityNotFoundException;
-import android.content.ContentResolver;
-import android.content.ContentValues;
-import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Matrix;
-import android.media.ExifInterface;
 import android.media.MediaScannerConnection;
 import android.net.Uri;
 import android.os.Build;
-import android.os.Bundle;
 import android.os.Environment;
 import android.provider.MediaStore;
-import android.util.Base64;
 
 import androidx.annotation.RequiresApi;
 
-import org.apache.cordova.BuildHelper;
-import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaPlugin;
 import org.apache.cordova.CordovaPreferences;
 import org.apache.cordova.LOG;
 import org.apache.cordova.PermissionHelper;
-import org.apache.cordova.PluginResult;
 import org.json.JSONArray;
-import org.json.JSONException;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 
 @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
 public class CameraManagerAndroidLollipop extends BaseCameraManager implements MediaScannerConnection.MediaScannerConnectionClient {
@@ -71,6 +57,7 @@ public class CameraManagerAndroidLollipop extends BaseCameraManager implements M
      */
     @Override
     public void requestPermissionsAndTakePicture(int returnType, int encodingType) {
+        CameraTrace.beginSection("checkPermissions");
         boolean saveAlbumPermission = PermissionHelper.hasPermission(cordovaPlugin, Manifest.permission.READ_EXTERNAL_STORAGE)
                 && PermissionHelper.hasPermission(cordovaPlugin, Manifest.permission.WRITE_EXTERNAL_STORAGE);
         boolean takePicturePermission = PermissionHelper.hasPermission(cordovaPlugin, Manifest.permission.CAMERA);
@@ -97,101 +84,53 @@ public class CameraManagerAndroidLollipop extends BaseCameraManager implements M
                 // never be caught
             }
         }
+        CameraTrace.endSection();
 
         if (takePicturePermission && saveAlbumPermission) {
             takePicture(returnType, encodingType);
         } else if (saveAlbumPermission && !takePicturePermission) {
-            PermissionHelper.requestPermission(cordovaPlugin, TAKE_PIC_SEC, Manifest.permission.CAMERA);
+            requestPermissions(TAKE_PIC_SEC, Manifest.permission.CAMERA);
         } else if (!saveAlbumPermission && takePicturePermission && Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
-            PermissionHelper.requestPermissions(cordovaPlugin, TAKE_PIC_SEC,
+            requestPermissions(TAKE_PIC_SEC,
                     new String[]{Manifest.permission.READ_EXTERNAL_STORAGE, Manifest.permission.WRITE_EXTERNAL_STORAGE});
         } else if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
-            PermissionHelper.requestPermissions(cordovaPlugin, TAKE_PIC_SEC, permissions);
+            requestPermissions(TAKE_PIC_SEC, permissions);
         } else {
-            PermissionHelper.requestPermission(cordovaPlugin, TAKE_PIC_SEC, Manifest.permission.CAMERA);
+            requestPermissions(TAKE_PIC_SEC, Manifest.permission.CAMERA);
         }
     }
 
-    public void takePicture(int returnType, int encodingType) {
-        // Save the number of images currently on disk for later
-        this.numPics = queryImgDB(whichContentStore()).getCount();
-
-        // Let's use the intent and see what happens
-        Intent intent = new Intent(MediaStore.ACTION_IMAGE_CAPTURE);
-
-        // Specify file so that large image is captured and returned
-        this.imageUri = FileHelper.createCaptureFile(getContentResolver(), encodingType, "");
-        intent.putExtra(MediaStore.EXTRA_OUTPUT, imageUri);
-        //We can write to this URI, this will hopefully allow us to write files to get to the next step
-        intent.addFlags(Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
+    public void takePicture(int returnType, final int encodingType) {
+        // The MediaStore query and insert run on the thread pool, the camera opens once they are done
+        launchInBackground(new Callable<Intent>() {
+            public Intent call() {
+                // Let's check to make sure the camera is actually installed. (Legacy Nexus 7 code)
+                if (!CameraAvailability.isAvailable(getContext())) {
+                    LOG.d(LOG_TAG, "Error: You don't have a default camera.  Your device may not be CTS complaint.");
+                    return null;
+                }
 
-        if (getCordova() != null) {
-            // Let's check to make sure the camera is actually installed. (Legacy Nexus 7 code)
-            PackageManager mPm = this.getContext().getPackageManager();
-            if (intent.resolveActivity(mPm) != null) {
-                getCordova().startActivityForResult(cordovaPlugin, intent, (CAMERA + 1) * 16 + returnType + 1);
-            } else {
-                LOG.d(LOG_TAG, "Error: You don't have a default camera.  Your device may not be CTS complaint.");
-            }
-        }
-    }
+                // Save the number of images currently on disk for later
+                long start = metrics.start(RequestMetrics.Stage.MEDIASTORE);
+                Cursor cursor = queryImgDB(whichContentStore());
+                numPics = cursor.getCount();
+                cursor.close();
 
+                // Let's use the intent and see what happens
+                Intent intent = new Intent(MediaStore.ACTION_IMAGE_CAPTURE);
 
-    /**
-     * Get image from photo library.
-     *
-     * @param srcType      The album to get image from.
-     * @param returnType   Set the type of image to return.
-     * @param encodingType
-     */
-    // TODO: Images selected from SDCARD don't display correctly, but from CAMERA ALBUM do!
-    // TODO: Images from kitkat filechooser not going into crop function
-    public void getImage(int srcType, int returnType, int encodingType) {
-        Intent intent = new Intent();
-        String title = GET_PICTURE;
-        croppedUri = null;
-        if (this.mediaType == PICTURE) {
-            intent.setType("image/*");
-            if (this.allowEdit) {
-                intent.setAction(Intent.ACTION_PICK);
-                intent.putExtra("crop", "true");
-                if (targetWidth > 0) {
-                    intent.putExtra("outputX", targetWidth);
-                }
-                if (targetHeight > 0) {
-                    intent.putExtra("outputY", targetHeight);
-                }
-                if (targetHeight > 0 && targetWidth > 0 && targetWidth == targetHeight) {
-                    intent.putExtra("aspectX", 1);
-                    intent.putExtra("aspectY", 1);
-                }
-                croppedUri = FileHelper.createCaptureFile(getContentResolver(), JPEG, "");
-                intent.putExtra(MediaStore.EXTRA_OUTPUT, croppedUri);
-            } else {
-                intent.setAction(Intent.ACTION_GET_CONTENT);
-                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                // Specify file so that large image is captured and returned
+                imageUri = FileHelper.createCaptureFile(getContentResolver(), encodingType, "");
+                metrics.stop(RequestMetrics.Stage.MEDIASTORE, start);
+                intent.putExtra(MediaStore.EXTRA_OUTPUT, imageUri);
+                //We can write to this URI, this will hopefully allow us to write files to get to the next step
+                intent.addFlags(Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
+                return intent;
             }
-        } else if (this.mediaType == VIDEO) {
-            intent.setType("video/*");
-            title = GET_VIDEO;
-            intent.setAction(Intent.ACTION_GET_CONTENT);
-            intent.addCategory(Intent.CATEGORY_OPENABLE);
-        } else if (this.mediaType == ALLMEDIA) {
-            // I wanted to make the type 'image/*, video/*' but this does not work on all versions
-            // of android so I had to go with the wildcard search.
-            intent.setType("*/*");
-            title = GET_All;
-            intent.setAction(Intent.ACTION_GET_CONTENT);
-            intent.addCategory(Intent.CATEGORY_OPENABLE);
-        }
-        if (getCordova() != null) {
-           getCordova().startActivityForResult(cordovaPlugin, Intent.createChooser(intent,
-                    new String(title)), (srcType + 1) * 16 + returnType + 1);
-        }
+        }, CAPTURE);
     }
 
 
-
     /**
      * Brings up the UI to perform crop on passed image URI
      *
@@ -208,21 +147,21 @@ public class CameraManagerAndroidLollipop extends BaseCameraManager implements M
 
 
             // indicate output X and Y
-            if (targetWidth > 0) {
-                cropIntent.putExtra("outputX", targetWidth);
+            if (request.targetWidth > 0) {
+                cropIntent.putExtra("outputX", request.targetWidth);
             }
-            if (targetHeight > 0) {
-                cropIntent.putExtra("outputY", targetHeight);
+            if (request.targetHeight > 0) {
+                cropIntent.putExtra("outputY", request.targetHeight);
             }
-            if (targetHeight > 0 && targetWidth > 0 && targetWidth == targetHeight) {
+            if (request.targetHeight > 0 && request.targetWidth > 0 && request.targetWidth == request.targetHeight) {
                 cropIntent.putExtra("aspectX", 1);
                 cropIntent.putExtra("aspectY", 1);
             }
             // create new file handle to get full resolution crop
             if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
-                croppedUri = Uri.fromFile(new File(FileHelper.getRealPath(FileHelper.createCaptureFile(getContentResolver(), encodingType, ""), getCordova())));
+                croppedUri = Uri.fromFile(new File(FileHelper.getRealPath(FileHelper.createCaptureFile(getContentResolver(), request.encodingType, ""), getCordova())));
             } else {
-                croppedUri = FileHelper.createCaptureFile(getContentResolver(), encodingType, "");
+                croppedUri = FileHelper.createCaptureFile(getContentResolver(), request.encodingType, "");
             }
             cropIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
             cropIntent.addFlags(Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
@@ -234,12 +173,10 @@ public class CameraManagerAndroidLollipop extends BaseCameraManager implements M
             List<ResolveInfo> list = packageManager.queryIntentActivities(cropIntent, 0);
             int size = list.size();
             if (getCordova() != null && cropIntent.resolveActivity(packageManager) != null && size > 0) {
-               getCordova().startActivityForResult(cordovaPlugin,
-                        cropIntent, CROP_CAMERA + destType);
+               startActivityForResult(cropIntent, CROP_CAMERA);
             } else if (getCordova()!= null || size == 0) {
-                int type = CROP_CAMERA + destType - CROP_CAMERA;
                 try {
-                    processResultFromCamera(type, cropIntent);
+                    processResultFromCamera(destType, cropIntent);
                 } catch (IOException e) {
                     e.printStackTrace();
                     LOG.e(LOG_TAG, "Unable to write to file");
@@ -263,79 +200,94 @@ public class CameraManagerAndroidLollipop extends BaseCameraManager implements M
      * @param intent   An Intent, which can return result data to the caller (various data can be attached to Intent "extras").
      */
     private void processResultFromCamera(int destType, Intent intent) throws IOException {
+        checkpoint(ProcessingJob.Stage.INGEST);
         int rotate = 0;
 
         // Create an ExifHelper to save the exif data that is lost during compression
         ExifHelper exif = new ExifHelper();
 
-        Uri sourceUri = (this.allowEdit && this.croppedUri != null) ?
+        Uri sourceUri = (request.allowEdit && this.croppedUri != null) ?
                 this.croppedUri :
                 this.imageUri;
 
         Bitmap bitmap = null;
         Uri savedImageUri = null;
 
+        recordBytesRead(sourceUri);
+        sendPreview(sourceUri);
+
         // CB-5479 When this option is given the unchanged image should be saved
         // in the gallery and the modified image is saved in the temporary
         // directory
-        if (this.saveToPhotoAlbum) {
-            if (saveToPhotoAlbum) {
-                savedImageUri = allowEdit ? croppedUri : imageUri;
+        if (request.saveToPhotoAlbum) {
+            if (request.saveToPhotoAlbum) {
+                savedImageUri = request.allowEdit ? croppedUri : imageUri;
+            }
+        }
+
+        // Every requested output comes from one decode of the picture
+        if (request.outputs != null) {
+            JSONArray results = processOutputs(sourceUri);
+            if (results == null) {
+                LOG.d(LOG_TAG, "I either have a null image path or bitmap");
+                this.failPicture("Unable to create bitmap!");
+                return;
             }
+            checkpoint(ProcessingJob.Stage.WRITE);
+            deleteIntermediateFiles();
+            sendResult(results);
         }
 
         // If sending base64 image back
-        if (destType == DATA_URL) {
+        else if (destType == DATA_URL) {
             saveCameraPhotoToFile(sourceUri, intent);
         }
 
         // If sending filename back
         else if (destType == FILE_URI) {
             // If all this is true we shouldn't compress the image.
-            if (this.targetHeight == -1 && this.targetWidth == -1 && this.quality == 100 &&
-                    !this.correctOrientation) {
+            if (request.targetHeight == -1 && request.targetWidth == -1 && request.quality == 100 &&
+                    request.maxBytes == 0 && this.cropRect == null && !request.correctOrientation) {
 
                 // If we saved the uncompressed photo to the album, we can just
                 // return the URI we already created
-                if (this.saveToPhotoAlbum) {
-                    returnResultToApp(savedImageUri, encodingType);
+                if (request.saveToPhotoAlbum) {
+                    returnResultToApp(savedImageUri, request.encodingType);
                 } else {
-                    Uri uri = FileHelper.createCaptureFile(getContentResolver(), encodingType, "");
-                    if (this.allowEdit && this.croppedUri != null) {
+                    checkpoint(ProcessingJob.Stage.WRITE);
+                    Uri uri = createOutputFile("");
+                    long start = metrics.start(RequestMetrics.Stage.COPY);
+                    if (request.allowEdit && this.croppedUri != null) {
                         writeUncompressedImage(croppedUri, uri);
                     } else {
                         Uri imageUri = this.imageUri;
                         writeUncompressedImage(imageUri, uri);
                     }
+                    metrics.stop(RequestMetrics.Stage.COPY, start);
 
-                    returnResultToApp(uri, encodingType);
+                    returnResultToApp(uri, request.encodingType);
                 }
             } else {
-                Uri uri = FileHelper.createCaptureFile(getContentResolver(), encodingType, "");
-                bitmap = getScaledAndRotatedBitmap(sourceUri);
-
-                // Double-check the bitmap.
-                if (bitmap == null) {
+                // Add compressed version of captured image to returned media store Uri
+                ImagePipeline pipeline = createPipeline();
+                Uri uri = pipeline.process(sourceUri, outputSink(""));
+                if (uri == null) {
                     LOG.d(LOG_TAG, "I either have a null image path or bitmap");
                     this.failPicture("Unable to create bitmap!");
                     return;
                 }
+                this.orientationCorrected = pipeline.isOrientationCorrected();
 
-
-                // Add compressed version of captured image to returned media store Uri
-                OutputStream outputStream = getContentResolver().openOutputStream(uri);
-                Bitmap.CompressFormat compressFormat = getCompressFormatForEncodingType(encodingType);
-
-                bitmap.compress(compressFormat, quality, outputStream);
-                outputStream.close();
-
-                // Restore orientation data to file
-                if (encodingType == JPEG) {
+                // Restore orientation data to file, a region crop is already rotated upright
+                if (FileHelper.canWriteExif(request.encodingType) && this.cropRect == null) {
+                    long start = metrics.start(RequestMetrics.Stage.EXIF);
                     FileHelper.copyOrientation(getCordova(), sourceUri, uri);
+                    metrics.stop(RequestMetrics.Stage.EXIF, start);
                 }
 
                 // Send Uri back to JavaScript for viewing image
-                returnResultToApp(uri, encodingType);
+                checkpoint(ProcessingJob.Stage.WRITE);
+                returnResultToApp(uri, request.encodingType);
             }
         } else {
             throw new IllegalStateException();
@@ -344,27 +296,20 @@ public class CameraManagerAndroidLollipop extends BaseCameraManager implements M
         this.cleanup(FILE_URI, this.imageUri, savedImageUri, bitmap);
     }
 
-    private void returnResultToApp(String uri, int encodingType) throws IOException {
-        returnResultToApp(Uri.parse(uri), encodingType);
-    }
-
-    private void returnResultToApp(Uri uri, int encodingType) throws IOException {
-        Uri destUri = FileHelper.copyToInternalStorage(getContext(), uri, encodingType);
-        if (!saveToPhotoAlbum) {
-            if (allowEdit) {
-                FileHelper.deleteFileFromMediaStore(getContentResolver(), croppedUri);
-            }
-            FileHelper.deleteFileFromMediaStore(getContentResolver(), imageUri);
-        } else {
-            FileHelper.deleteFileFromMediaStore(getContentResolver(), allowEdit ? imageUri : croppedUri);
-        }
-        callbackContext.success(destUri.toString());
+    /**
+     * Creates an output entry in the MediaStore that is removed again if the request is cancelled.
+     */
+    private Uri createOutputFile(String namePostfix) {
+        Uri uri = insertOutputFile(namePostfix);
+        trackOutput(uri);
+        return uri;
     }
 
     private void saveCameraPhotoToFile(Uri sourceUri, Intent intent) throws IOException {
-        Bitmap bitmap = getScaledAndRotatedBitmap(sourceUri);
+        checkpoint(ProcessingJob.Stage.DECODE);
+        Bitmap bitmap = getProcessedBitmap(sourceUri);
 
-        if (bitmap == null) {
+        if (bitmap == null && intent != null && intent.getExtras() != null) {
             // Try to get the bitmap from intent.
             bitmap = (Bitmap) intent.getExtras().get("data");
         }
@@ -376,152 +321,19 @@ public class CameraManagerAndroidLollipop extends BaseCameraManager implements M
             return;
         }
 
-        this.processPicture(bitmap, encodingType);
+        checkpoint(ProcessingJob.Stage.ENCODE);
+        this.processPicture(bitmap, request.encodingType);
 
-        if (!this.saveToPhotoAlbum) {
+        if (!request.saveToPhotoAlbum) {
             checkForDuplicateImage(DATA_URL);
         }
     }
 
-    private Bitmap.CompressFormat getCompressFormatForEncodingType(int encodingType) {
-        return encodingType == JPEG ? Bitmap.CompressFormat.JPEG : Bitmap.CompressFormat.PNG;
-    }
-
-    /**
-     * Converts output image format int value to string value of mime type.
-     *
-     * @param outputFormat int Output format of camera API.
-     *                     Must be value of either JPEG or PNG constant
-     * @return String String value of mime type or empty string if mime type is not supported
-     */
-    private String getMimetypeForFormat(int outputFormat) {
-        if (outputFormat == PNG) return PNG_MIME_TYPE;
-        if (outputFormat == JPEG) return JPEG_MIME_TYPE;
-        return "";
-    }
-
-
-    private Uri outputModifiedBitmap(Bitmap bitmap, Uri uri) throws IOException {
-        Uri outputUri = FileHelper.createCaptureFile(getContentResolver(), encodingType, "modified");
-        OutputStream os = getContext().getContentResolver().openOutputStream(outputUri);
-        Bitmap.CompressFormat compressFormat = getCompressFormatForEncodingType(encodingType);
-        bitmap.compress(compressFormat, this.quality, os);
-        os.close();
-
-        if (exifData != null && encodingType == JPEG) {
-            try {
-                if (this.correctOrientation && this.orientationCorrected) {
-                    exifData.resetOrientation();
-                }
-                exifData.createOutFile(outputUri.toString());
-                exifData.writeExifData();
-                exifData = null;
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-        return outputUri;
-    }
-
-
-    /**
-     * Applies all needed transformation to the image received from the gallery.
-     *
-     * @param destType In which form should we return the image
-     * @param intent   An Intent, which can return result data to the caller (various data can be attached to Intent "extras").
-     */
-    private void processResultFromGallery(int destType, Intent intent) throws IOException {
-        Uri uri = intent.getData();
-        if (uri == null) {
-            if (croppedUri != null) {
-                uri = croppedUri;
-            } else {
-                this.failPicture("null data from photo library");
-                return;
-            }
-        }
-
-        String fileLocation = FileHelper.getRealPath(uri, getCordova());
-        LOG.d(LOG_TAG, "File location is: " + fileLocation);
-
-        String uriString = uri.toString();
-        String finalLocation = fileLocation != null ? fileLocation : uriString;
-        String mimeType = FileHelper.getMimeType(uriString, getCordova());
-
-        if (finalLocation == null) {
-            this.failPicture("Error retrieving result.");
-        } else {
-
-            // If you ask for video or the selected file doesn't have JPEG or PNG mime type
-            //  there will be no attempt to resize any returned data
-            if (this.mediaType == VIDEO || !(JPEG_MIME_TYPE.equalsIgnoreCase(mimeType) || PNG_MIME_TYPE.equalsIgnoreCase(mimeType))) {
-                returnResultToApp(finalLocation, encodingType);
-            } else {
-
-                // This is a special case to just return the path as no scaling,
-                // rotating, nor compressing needs to be done
-                if (this.targetHeight == -1 && this.targetWidth == -1 &&
-                        destType == FILE_URI && !this.correctOrientation &&
-                        mimeType != null && mimeType.equalsIgnoreCase(getMimetypeForFormat(encodingType))) {
-                    returnResultToApp(finalLocation, encodingType);
-                } else {
-                    Bitmap bitmap = null;
-                    try {
-                        bitmap = getScaledAndRotatedBitmap(uri);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                    if (bitmap == null) {
-                        LOG.d(LOG_TAG, "I either have a null image path or bitmap");
-                        this.failPicture("Unable to create bitmap!");
-                        return;
-                    }
-
-                    // If sending base64 image back
-                    if (destType == DATA_URL) {
-                        this.processPicture(bitmap, encodingType);
-                    }
-
-                    // If sending filename back
-                    else if (destType == FILE_URI) {
-                        // Did we modify the image?
-                        if ((this.targetHeight > 0 && this.targetWidth > 0) ||
-                                (this.correctOrientation && this.orientationCorrected) ||
-                                !mimeType.equalsIgnoreCase(getMimetypeForFormat(encodingType))) {
-                            try {
-                                returnResultToApp(this.outputModifiedBitmap(bitmap, uri), encodingType);
-                            } catch (Exception e) {
-                                e.printStackTrace();
-                                this.failPicture("Error retrieving image.");
-                            }
-                        } else {
-                            returnResultToApp(finalLocation, encodingType);
-                        }
-                    }
-                    if (bitmap != null) {
-                        bitmap.recycle();
-                        bitmap = null;
-                    }
-                    System.gc();
-                }
-            }
-        }
-
-    }
 
     @Override
     protected void handleCameraCropResult(int requestCode, int resultCode, Intent intent) {
         if (resultCode == Activity.RESULT_OK) {
-
-            // Because of the inability to pass through multiple intents, this hack will allow us
-            // to pass arcane codes back.
-            destType = requestCode - CROP_CAMERA;
-            try {
-                processResultFromCamera(destType, intent);
-            } catch (IOException e) {
-                e.printStackTrace();
-                LOG.e(LOG_TAG, "Unable to write to file");
-            }
+            processResultFromCameraInBackground(request.destType, intent);
 
         }// If cancelled
         else if (resultCode == Activity.RESULT_CANCELED) {
@@ -539,20 +351,22 @@ public class CameraManagerAndroidLollipop extends BaseCameraManager implements M
         // If image available
         if (resultCode == Activity.RESULT_OK) {
             try {
-                if (this.allowEdit) {
-                    if (destType != FILE_URI) {
-                        Uri tmpFile = FileHelper.createCaptureFile(getContentResolver(), encodingType, "");
+                if (request.allowEdit && this.cropRect == null && useRegionCrop()) {
+                    startRegionCrop(imageUri);
+                } else if (request.allowEdit && this.cropRect == null) {
+                    if (request.destType != FILE_URI) {
+                        Uri tmpFile = FileHelper.createCaptureFile(getContentResolver(), request.encodingType, "");
                         saveCameraPhotoToFile(tmpFile, intent);
-                        performCrop(tmpFile, destType, intent);
+                        performCrop(tmpFile, request.destType, intent);
                     } else {
                         if (FileHelper.createThumbnails(imageUri, getContentResolver()) != null || Build.VERSION.SDK_INT != Build.VERSION_CODES.Q) {
-                            performCrop(imageUri, destType, intent);
+                            performCrop(imageUri, request.destType, intent);
                         } else {
-                            this.processResultFromCamera(destType, intent);
+                            this.processResultFromCamera(request.destType, intent);
                         }
                     }
                 } else {
-                    this.processResultFromCamera(destType, intent);
+                    processResultFromCameraInBackground(request.destType, intent);
                 }
             } catch (IOException e) {
                 e.printStackTrace();
@@ -571,37 +385,44 @@ public class CameraManagerAndroidLollipop extends BaseCameraManager implements M
         }
     }
 
-    @Override
-    protected void handleSaveGalleryResult(int requestCode, int resultCode, Intent intent) {
-        if (resultCode == Activity.RESULT_OK && intent != null) {
-            final Intent i = intent;
-            final int finalDestType = destType;
-            getCordova().getThreadPool().execute(new Runnable() {
-                public void run() {
-                    try {
-                        processResultFromGallery(finalDestType, i);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        CameraManagerAndroidLollipop.this.failPicture("No Image Selected");
-                    }
+    /**
+     * Runs processResultFromCamera on the thread pool so the UI thread stays free while the
+     * image is decoded and compressed (and a preview, if requested, can be rendered meanwhile).
+     */
+    private void processResultFromCameraInBackground(final int destType, final Intent intent) {
+        executeInBackground(new Runnable() {
+            public void run() {
+                try {
+                    journalJob(null);
+                    processResultFromCamera(destType, intent);
+                } catch (CancellationException e) {
+                    onJobCancelled();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    LOG.e(LOG_TAG, "Unable to write to file");
+                    CameraManagerAndroidLollipop.this.failPicture("Error capturing image.");
+                } finally {
+                    finishJob();
                 }
-            });
-        } else if (resultCode == Activity.RESULT_CANCELED) {
-            this.failPicture("No Image Selected");
+            }
+        });
+    }
+
+    @Override
+    protected void handleRegionCropResult() {
+        if (request.srcType == CAMERA) {
+            processResultFromCameraInBackground(request.destType, new Intent());
         } else {
-            this.failPicture("Selection did not complete!");
+            processPendingGalleryResult();
         }
     }
 
-    private int exifToDegrees(int exifOrientation) {
-        if (exifOrientation == ExifInterface.ORIENTATION_ROTATE_90) {
-            return 90;
-        } else if (exifOrientation == ExifInterface.ORIENTATION_ROTATE_180) {
-            return 180;
-        } else if (exifOrientation == ExifInterface.ORIENTATION_ROTATE_270) {
-            return 270;
+    @Override
+    protected void resumeProcessing(Uri sourceUri) {
+        if (request.srcType == CAMERA) {
+            processResultFromCameraInBackground(request.destType, new Intent());
         } else {
-            return 0;
+            processResultFromGalleryInBackground(request.destType, new Intent().setData(sourceUri));
         }
     }
 
@@ -658,246 +479,6 @@ public class CameraManagerAndroidLollipop extends BaseCameraManager implements M
 
     }
 
-    /**
-     * Return a scaled and rotated bitmap based on the target width and height
-     *
-     * @param imageUrl
-     * @return
-     * @throws IOException
-     */
-    private Bitmap getScaledAndRotatedBitmap(Uri imageUrl) throws IOException {
-        // If no new width or height were specified, and orientation is not needed return the original bitmap
-        if (this.targetWidth <= 0 && this.targetHeight <= 0 && !(this.correctOrientation)) {
-            InputStream fileStream = null;
-            Bitmap image = null;
-            try {
-                fileStream = getContentResolver().openInputStream(imageUrl);
-                image = BitmapFactory.decodeStream(fileStream);
-            } catch (OutOfMemoryError e) {
-                callbackContext.error(e.getLocalizedMessage());
-            } catch (Exception e) {
-                callbackContext.error(e.getLocalizedMessage());
-            } finally {
-                if (fileStream != null) {
-                    try {
-                        fileStream.close();
-                    } catch (IOException e) {
-                        LOG.d(LOG_TAG, "Exception while closing file input stream.");
-                    }
-                }
-            }
-            return image;
-        }
-
-
-        /*  Copy the inputstream to a temporary file on the device.
-            We then use this temporary file to determine the width/height/orientation.
-            This is the only way to determine the orientation of the photo coming from 3rd party providers (Google Drive, Dropbox,etc)
-            This also ensures we create a scaled bitmap with the correct orientation
-
-             We delete the temporary file once we are done
-         */
-        File localFile = null;
-        Uri galleryUri = null;
-        int rotate = 0;
-        try {
-            InputStream fileStream = getContentResolver().openInputStream(imageUrl);
-            if (fileStream != null) {
-                // Generate a temporary file
-                //Work in internal storage, don't need use Scoped Storage
-                String timeStamp = new SimpleDateFormat(TIME_FORMAT).format(new Date());
-                String fileName = "IMG_" + timeStamp + (encodingType == JPEG ? JPEG_EXTENSION : PNG_EXTENSION);
-                localFile = new File(FileHelper.getTempDirectoryPath(getContext()) + fileName);
-                galleryUri = Uri.fromFile(localFile);
-                writeUncompressedImage(fileStream, galleryUri);
-                try {
-                    String mimeType = FileHelper.getMimeType(imageUrl.toString(), getCordova());
-                    if (JPEG_MIME_TYPE.equalsIgnoreCase(mimeType)) {
-                        //  ExifInterface doesn't like the file:// prefix
-                        String filePath = galleryUri.toString().replace("file://", "");
-                        // read exifData of source
-                        exifData = new ExifHelper();
-                        exifData.createInFile(filePath);
-                        exifData.readExifData();
-                        // Use ExifInterface to pull rotation information
-                        if (this.correctOrientation) {
-                            ExifInterface exif = new ExifInterface(filePath);
-                            rotate = exifToDegrees(exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_UNDEFINED));
-                        }
-                    }
-                } catch (Exception oe) {
-                    LOG.w(LOG_TAG, "Unable to read Exif data: " + oe.toString());
-                    rotate = 0;
-                }
-            }
-        } catch (Exception e) {
-            LOG.e(LOG_TAG, "Exception while getting input stream: " + e.toString());
-            return null;
-        }
-
-
-        try {
-            // figure out the original width and height of the image
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inJustDecodeBounds = true;
-            InputStream fileStream = null;
-            try {
-                fileStream = FileHelper.getInputStreamFromUriString(galleryUri.toString(), getCordova());
-                BitmapFactory.decodeStream(fileStream, null, options);
-            } finally {
-                if (fileStream != null) {
-                    try {
-                        fileStream.close();
-                    } catch (IOException e) {
-                        LOG.d(LOG_TAG, "Exception while closing file input stream.");
-                    }
-                }
-            }
-
-
-            //CB-2292: WTF? Why is the width null?
-            if (options.outWidth == 0 || options.outHeight == 0) {
-                return null;
-            }
-
-            // User didn't specify output dimensions, but they need orientation
-            if (this.targetWidth <= 0 && this.targetHeight <= 0) {
-                this.targetWidth = options.outWidth;
-                this.targetHeight = options.outHeight;
-            }
-
-            // Setup target width/height based on orientation
-            int rotatedWidth, rotatedHeight;
-            boolean rotated = false;
-            if (rotate == 90 || rotate == 270) {
-                rotatedWidth = options.outHeight;
-                rotatedHeight = options.outWidth;
-                rotated = true;
-            } else {
-                rotatedWidth = options.outWidth;
-                rotatedHeight = options.outHeight;
-            }
-
-            // determine the correct aspect ratio
-            int[] widthHeight = calculateAspectRatio(rotatedWidth, rotatedHeight);
-
-
-            // Load in the smallest bitmap possible that is closest to the size we want
-            options.inJustDecodeBounds = false;
-            options.inSampleSize = calculateSampleSize(rotatedWidth, rotatedHeight, widthHeight[0], widthHeight[1]);
-            Bitmap unscaledBitmap = null;
-            try {
-                fileStream = FileHelper.getInputStreamFromUriString(galleryUri.toString(), getCordova());
-                unscaledBitmap = BitmapFactory.decodeStream(fileStream, null, options);
-            } finally {
-                if (fileStream != null) {
-                    try {
-                        fileStream.close();
-                    } catch (IOException e) {
-                        LOG.d(LOG_TAG, "Exception while closing file input stream.");
-                    }
-                }
-            }
-            if (unscaledBitmap == null) {
-                return null;
-            }
-
-            int scaledWidth = (!rotated) ? widthHeight[0] : widthHeight[1];
-            int scaledHeight = (!rotated) ? widthHeight[1] : widthHeight[0];
-
-            Bitmap scaledBitmap = Bitmap.createScaledBitmap(unscaledBitmap, scaledWidth, scaledHeight, true);
-            if (scaledBitmap != unscaledBitmap) {
-                unscaledBitmap.recycle();
-                unscaledBitmap = null;
-            }
-            if (this.correctOrientation && (rotate != 0)) {
-                Matrix matrix = new Matrix();
-                matrix.setRotate(rotate);
-                try {
-                    scaledBitmap = Bitmap.createBitmap(scaledBitmap, 0, 0, scaledBitmap.getWidth(), scaledBitmap.getHeight(), matrix, true);
-                    this.orientationCorrected = true;
-                } catch (OutOfMemoryError oom) {
-                    this.orientationCorrected = false;
-                }
-            }
-            return scaledBitmap;
-        } finally {
-            // delete the temporary copy
-            if (localFile != null) {
-                localFile.delete();
-            }
-        }
-
-    }
-
-    /**
-     * Maintain the aspect ratio so the resulting image does not look smooshed
-     *
-     * @param origWidth
-     * @param origHeight
-     * @return
-     */
-    public int[] calculateAspectRatio(int origWidth, int origHeight) {
-        int newWidth = this.targetWidth;
-        int newHeight = this.targetHeight;
-
-        // If no new width or height were specified return the original bitmap
-        if (newWidth <= 0 && newHeight <= 0) {
-            newWidth = origWidth;
-            newHeight = origHeight;
-        }
-        // Only the width was specified
-        else if (newWidth > 0 && newHeight <= 0) {
-            newHeight = (int) ((double) (newWidth / (double) origWidth) * origHeight);
-        }
-        // only the height was specified
-        else if (newWidth <= 0 && newHeight > 0) {
-            newWidth = (int) ((double) (newHeight / (double) origHeight) * origWidth);
-        }
-        // If the user specified both a positive width and height
-        // (potentially different aspect ratio) then the width or height is
-        // scaled so that the image fits while maintaining aspect ratio.
-        // Alternatively, the specified width and height could have been
-        // kept and Bitmap.SCALE_TO_FIT specified when scaling, but this
-        // would result in whitespace in the new image.
-        else {
-            double newRatio = newWidth / (double) newHeight;
-            double origRatio = origWidth / (double) origHeight;
-
-            if (origRatio > newRatio) {
-                newHeight = (newWidth * origHeight) / origWidth;
-            } else if (origRatio < newRatio) {
-                newWidth = (newHeight * origWidth) / origHeight;
-            }
-        }
-
-        int[] retval = new int[2];
-        retval[0] = newWidth;
-        retval[1] = newHeight;
-        return retval;
-    }
-
-    /**
-     * Figure out what ratio we can load our image into memory at while still being bigger than
-     * our desired width and height
-     *
-     * @param srcWidth
-     * @param srcHeight
-     * @param dstWidth
-     * @param dstHeight
-     * @return
-     */
-    public static int calculateSampleSize(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
-        final float srcAspect = (float) srcWidth / (float) srcHeight;
-        final float dstAspect = (float) dstWidth / (float) dstHeight;
-
-        if (srcAspect > dstAspect) {
-            return srcWidth / dstWidth;
-        } else {
-            return srcHeight / dstHeight;
-        }
-    }
-
     /**
      * Creates a cursor that can be used to determine how many images we have.
      *
@@ -927,7 +508,7 @@ public class CameraManagerAndroidLollipop extends BaseCameraManager implements M
 
         checkForDuplicateImage(imageType);
         // Scan for the gallery to update pic refs in gallery
-        if (saveToPhotoAlbum && newImage != null) {
+        if (request.saveToPhotoAlbum && newImage != null) {
             this.scanForGallery(newImage);
         }
 
@@ -947,7 +528,7 @@ public class CameraManagerAndroidLollipop extends BaseCameraManager implements M
         Cursor cursor = queryImgDB(contentStore);
         int currentNumOfImages = cursor.getCount();
 
-        if (type == FILE_URI && this.saveToPhotoAlbum) {
+        if (type == FILE_URI && request.saveToPhotoAlbum) {
             diff = 2;
         }
 
@@ -983,16 +564,13 @@ public class CameraManagerAndroidLollipop extends BaseCameraManager implements M
      * @param bitmap
      */
     public void processPicture(Bitmap bitmap, int encodingType) {
-        ByteArrayOutputStream jpegData = new ByteArrayOutputStream();
-        Bitmap.CompressFormat compressFormat = getCompressFormatForEncodingType(encodingType);
-
         try {
-            if (bitmap.compress(compressFormat, quality, jpegData)) {
-                byte[] code = jpegData.toByteArray();
-                byte[] output = Base64.encode(code, Base64.NO_WRAP);
-                String js_out = new String(output);
-                returnResultToApp(js_out, encodingType);
-            }
+            String js_out = encodePicture(bitmap);
+            deleteIntermediateFiles();
+            sendResult(js_out);
+        } catch (CancellationException e) {
+            // The job's own handler sends the cancel result and cleans up
+            throw e;
         } catch (Exception e) {
             this.failPicture("Error compressing image.");
         }
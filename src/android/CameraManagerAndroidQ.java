@@ -2,14 +2,14 @@ package org.apache.cordova.camera;
 
 import android.Manifest;
 import android.app.Activity;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.graphics.ImageDecoder;
 import android.net.Uri;
 import android.os.Build;
 import android.provider.MediaStore;
+import android.util.Size;
 
 import androidx.annotation.RequiresApi;
 
@@ -17,17 +17,13 @@ import com.theartofdev.edmodo.cropper.CropImage;
 
 import org.apache.cordova.CordovaPlugin;
 import org.apache.cordova.CordovaPreferences;
-import org.apache.cordova.LOG;
 import org.apache.cordova.PermissionHelper;
+import org.json.JSONArray;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-
-import static android.content.ContentResolver.SCHEME_FILE;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 
 @RequiresApi(api = Build.VERSION_CODES.Q)
 public class CameraManagerAndroidQ extends BaseCameraManager {
@@ -40,69 +36,47 @@ public class CameraManagerAndroidQ extends BaseCameraManager {
 
     @Override
     protected void requestPermissionsAndTakePicture(int returnType, int encodingType) {
+        CameraTrace.beginSection("checkPermissions");
         boolean hasReadPermission = PermissionHelper.hasPermission(cordovaPlugin, Manifest.permission.READ_EXTERNAL_STORAGE);
         boolean hasCameraPermission = PermissionHelper.hasPermission(cordovaPlugin, Manifest.permission.CAMERA);
+        CameraTrace.endSection();
 
         if (hasCameraPermission && hasReadPermission) {
             takePicture(returnType, encodingType);
         } else if (hasReadPermission) {
-            PermissionHelper.requestPermission(cordovaPlugin, TAKE_PIC_SEC, Manifest.permission.CAMERA);
+            requestPermissions(TAKE_PIC_SEC, Manifest.permission.CAMERA);
         } else if (hasCameraPermission) {
-            PermissionHelper.requestPermissions(cordovaPlugin, TAKE_PIC_SEC,
+            requestPermissions(TAKE_PIC_SEC,
                     new String[]{Manifest.permission.READ_EXTERNAL_STORAGE});
         } else {
-            PermissionHelper.requestPermissions(cordovaPlugin, TAKE_PIC_SEC, permissions);
-        }
-    }
-
-    @Override
-    protected void getImage(int srcType, int returnType, int encodingType) {
-        //do nothing
-    }
-
-    @Override
-    public void onActivityResult(int requestCode, int resultCode, Intent intent) {
-        if (requestCode == CropImage.CROP_IMAGE_ACTIVITY_REQUEST_CODE) {
-            croppedUri = CropImage.getActivityResult(intent).getUri();
-            try {
-                compressCameraResult();
-            } catch (IOException e) {
-                failPicture("Did not complete!");
-            }
+            requestPermissions(TAKE_PIC_SEC, permissions);
         }
-        super.onActivityResult(requestCode, resultCode, intent);
     }
 
     @Override
     protected void handleCameraCropResult(int requestCode, int resultCode, Intent intent) {
-    /*    if (resultCode == Activity.RESULT_OK) {
-            try {
-                compressCameraResult();
-            } catch (IOException e) {
-                e.printStackTrace();
-                LOG.e(LOG_TAG, "Unable to write to file");
-            }
-        }// If cancelled
-        else if (resultCode == Activity.RESULT_CANCELED) {
+        // A cancelled crop comes back without an intent, or without a result in it
+        CropImage.ActivityResult result = resultCode == Activity.RESULT_OK && intent != null
+                ? CropImage.getActivityResult(intent) : null;
+        if (result != null && result.getUri() != null) {
+            croppedUri = result.getUri();
+            compressCameraResultInBackground();
+        } else {
             failPicture("No Image Selected");
         }
-        // If something else
-        else {
-            failPicture("Did not complete!");
-        }*/
-        //do nothing
     }
 
-
     @Override
     protected void handleCameraResult(int requestCode, int resultCode, Intent intent) {
         // If image available
         if (resultCode == Activity.RESULT_OK) {
             try {
-                if (this.allowEdit) {
+                if (request.allowEdit && this.cropRect == null && useRegionCrop()) {
+                    startRegionCrop(imageUri);
+                } else if (request.allowEdit && this.cropRect == null) {
                     performCrop();
                 } else {
-                    compressCameraResult();
+                    compressCameraResultInBackground();
                 }
             } catch (IOException e) {
                 e.printStackTrace();
@@ -121,52 +95,160 @@ public class CameraManagerAndroidQ extends BaseCameraManager {
         }
     }
 
+    @Override
+    protected void handleRegionCropResult() {
+        if (request.srcType == CAMERA) {
+            compressCameraResultInBackground();
+        } else {
+            processPendingGalleryResult();
+        }
+    }
+
+    @Override
+    protected void resumeProcessing(Uri sourceUri) {
+        if (request.srcType == CAMERA) {
+            compressCameraResultInBackground();
+        } else {
+            processResultFromGalleryInBackground(request.destType, new Intent().setData(sourceUri));
+        }
+    }
+
+    /**
+     * Runs compressCameraResult on the thread pool so the UI thread stays free while the
+     * image is decoded and compressed (and a preview, if requested, can be rendered meanwhile).
+     */
+    private void compressCameraResultInBackground() {
+        executeInBackground(new Runnable() {
+            public void run() {
+                try {
+                    journalJob(null);
+                    compressCameraResult();
+                } catch (CancellationException e) {
+                    onJobCancelled();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    failPicture("Did not complete!");
+                } finally {
+                    finishJob();
+                }
+            }
+        });
+    }
+
+    /**
+     * Decode stage that lets ImageDecoder scale while decoding. ImageDecoder applies the EXIF
+     * orientation itself, so the requested size is the upright one. Tiled plans are left to
+     * the default decoder, which never holds the whole sampled image.
+     */
+    private static final ImagePipeline.Decoder IMAGE_DECODER = new ImagePipeline.Decoder() {
+        @Override
+        public Bitmap decode(Context context, Uri source, ImagePipeline.ImageInfo info, final DecodePlanner.Plan plan, int rotate) throws IOException {
+            if (plan.isTiled()) {
+                return ImagePipeline.BITMAP_FACTORY_DECODER.decode(context, source, info, plan, rotate);
+            }
+            final boolean rotated = info.rotation == 90 || info.rotation == 270;
+            ImageDecoder.Source imageSource = ImageDecoder.createSource(context.getContentResolver(), source);
+            return ImageDecoder.decodeBitmap(imageSource, new ImageDecoder.OnHeaderDecodedListener() {
+                @Override
+                public void onHeaderDecoded(ImageDecoder decoder, ImageDecoder.ImageInfo imageInfo, ImageDecoder.Source source) {
+                    int width = rotated ? plan.outHeight : plan.outWidth;
+                    int height = rotated ? plan.outWidth : plan.outHeight;
+                    Size size = imageInfo.getSize();
+                    if (size.getWidth() != width || size.getHeight() != height) {
+                        decoder.setTargetSize(width, height);
+                    }
+                    // The bitmap is compressed afterwards, which needs its pixels in memory
+                    decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE);
+                    if (plan.config == Bitmap.Config.RGB_565) {
+                        decoder.setMemorySizePolicy(ImageDecoder.MEMORY_POLICY_LOW_RAM);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public boolean transforms(DecodePlanner.Plan plan) {
+            return true;
+        }
+    };
+
+    /**
+     * ImageDecoder always applies the EXIF orientation and the output carries no EXIF data, so
+     * the pipeline plans for the upright image. ImageDecoder scales bilinearly while decoding,
+     * so area averaging keeps the default decoder and scales in the transform stage.
+     */
+    @Override
+    protected ImagePipeline createPipeline() {
+        return super.createPipeline()
+                .setCorrectOrientation(true)
+                .setDecoder(request.scaleFilter == AREA_AVERAGE ? ImagePipeline.BITMAP_FACTORY_DECODER : IMAGE_DECODER);
+    }
+
     /**
      * Applies all needed transformation to the image received from the camera.
      */
     private void compressCameraResult() throws IOException {
-        // If all this is true we shouldn't compress the image.
-        if (targetHeight == -1 && targetWidth == -1 && quality == 100) {
-            compressedImage = copyToInternalStorage(allowEdit ? croppedUri : imageUri, "compressed");
-        } else {
-            Uri savedImageUri = null;
-            if (allowEdit) {
-                savedImageUri = croppedUri;
-            } else {
-                savedImageUri = imageUri;
+        checkpoint(ProcessingJob.Stage.INGEST);
+        Uri savedImageUri = (request.allowEdit && croppedUri != null) ? croppedUri : imageUri;
+        recordBytesRead(savedImageUri);
+        sendPreview(savedImageUri);
+
+        // Every requested output comes from one decode of the picture
+        if (request.outputs != null) {
+            JSONArray results = processOutputs(savedImageUri);
+            if (results == null) {
+                failPicture("Unable to create bitmap!");
+                return;
             }
-            Bitmap bitmap = getScaledAndRotatedBitmap(savedImageUri);
-            File file = createFileInExternalStorage("compressed");
-            file.createNewFile();
-            //  compressedImage = CustomFileProvider.getUriForFile(getContext(), applicationId + ".cordova.plugin.camera.provider", file);
-            compressedImage = Uri.fromFile(file);
-            OutputStream outputStream = getContentResolver().openOutputStream(compressedImage);
-            Bitmap.CompressFormat compressFormat = getCompressFormatForEncodingType();
+            checkpoint(ProcessingJob.Stage.WRITE);
+            // The first output stands in for the picture in the photo album
+            deleteIntermediateFiles(request.destType == FILE_URI ? Uri.parse(results.optString(0)) : null);
+            sendResult(results);
+            return;
+        }
 
-            bitmap.compress(compressFormat, this.quality, outputStream);
-            outputStream.close();
+        // A data URL is encoded in memory like on the other managers, no file is written
+        if (request.destType == DATA_URL) {
+            Bitmap bitmap = getProcessedBitmap(savedImageUri);
+            if (bitmap == null) {
+                failPicture("Unable to create bitmap!");
+                return;
+            }
+            String data;
+            try {
+                data = encodePicture(bitmap);
+            } finally {
+                bitmap.recycle();
+            }
+            checkpoint(ProcessingJob.Stage.WRITE);
+            deleteIntermediateFiles(null);
+            sendResult(data);
+            return;
         }
-        returnResultToApp();
-    }
 
-    private Bitmap getScaledAndRotatedBitmap(Uri imageUrl) {
-        InputStream fileStream = null;
-        Bitmap image = null;
-        try {
-            fileStream = getContentResolver().openInputStream(imageUrl);
-            image = BitmapFactory.decodeStream(fileStream);
-        } catch (OutOfMemoryError | Exception e) {
-            callbackContext.error(e.getLocalizedMessage());
-        } finally {
-            if (fileStream != null) {
-                try {
-                    fileStream.close();
-                } catch (IOException e) {
-                    LOG.d(LOG_TAG, "Exception while closing file input stream.");
+        // If all this is true we shouldn't compress the image.
+        if (request.targetHeight == -1 && request.targetWidth == -1 && request.quality == 100 && request.maxBytes == 0 && cropRect == null && !request.correctOrientation) {
+            checkpoint(ProcessingJob.Stage.WRITE);
+            compressedImage = copyResultToInternalStorage(savedImageUri, request.encodingType);
+            trackOutput(compressedImage);
+        } else {
+            ImagePipeline pipeline = createPipeline();
+            compressedImage = pipeline.process(savedImageUri, new ImagePipeline.Sink() {
+                @Override
+                public Uri createOutput() throws IOException {
+                    File file = createFileInExternalStorage("compressed");
+                    //  compressedImage = CustomFileProvider.getUriForFile(getContext(), applicationId + ".cordova.plugin.camera.provider", file);
+                    return Uri.fromFile(file);
                 }
+            });
+            if (compressedImage == null) {
+                failPicture("Unable to create bitmap!");
+                return;
             }
+            recordBytesWritten(compressedImage);
         }
-        return image;
+        checkpoint(ProcessingJob.Stage.WRITE);
+        returnResultToApp();
     }
 
     /**
@@ -174,19 +256,14 @@ public class CameraManagerAndroidQ extends BaseCameraManager {
      */
     private void performCrop() throws IOException {
         File file = createFileInExternalStorage("cropped");
-        file.createNewFile();
         croppedUri = Uri.fromFile(file);
-        getCordova().setActivityResultCallback(cordovaPlugin);
-        CropImage.activity(imageUri).start(getCordova().getActivity());
-    }
-
-    @Override
-    protected void handleSaveGalleryResult(int requestCode, int resultCode, Intent intent) {
-        //do nothing
+        // Started with the code of this request rather than the library's fixed one, so the
+        // result comes back to this request even when another one was started since
+        startActivityForResult(CropImage.activity(imageUri).getIntent(getContext()), CROP_CAMERA);
     }
 
-    private File createFileInExternalStorage(String postfix) {
-        return new File(getAppExternalFilesDir(), generateFileName(postfix));
+    private File createFileInExternalStorage(String postfix) throws IOException {
+        return FileHelper.createUniqueFile(getAppExternalFilesDir(), postfix, request.encodingType);
     }
 
     private File getAppExternalFilesDir() {
@@ -197,31 +274,6 @@ public class CameraManagerAndroidQ extends BaseCameraManager {
         return file;
     }
 
-    public Uri createCaptureFile(String namePostfix) {
-        String volume = getMediaStoreVolume();
-        Uri imagesCollections = MediaStore.Images.Media.getContentUri(volume);
-        ContentValues contentValues = new ContentValues();
-        contentValues.clear();
-        contentValues.put(MediaStore.Images.ImageColumns.DISPLAY_NAME, generateFileName(namePostfix));
-        contentValues.put(MediaStore.Images.ImageColumns.MIME_TYPE, getMimetypeForFormat(encodingType));
-        return getContentResolver().insert(imagesCollections, contentValues);
-    }
-
-    public static String getMediaStoreVolume() {
-        // On API <= 28, use VOLUME_EXTERNAL instead
-        if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.P) {
-            return MediaStore.VOLUME_EXTERNAL;
-        } else {
-            return MediaStore.VOLUME_EXTERNAL_PRIMARY;
-        }
-    }
-
-    private static String getMimetypeForFormat(int outputFormat) {
-        if (outputFormat == PNG) return PNG_MIME_TYPE;
-        if (outputFormat == JPEG) return JPEG_MIME_TYPE;
-        return "";
-    }
-
     /**
      * call with permissions
      *
@@ -230,88 +282,39 @@ public class CameraManagerAndroidQ extends BaseCameraManager {
      */
     @Override
     public void takePicture(int returnType, int encodingType) {
-        Intent intent = new Intent(MediaStore.ACTION_IMAGE_CAPTURE);
-        this.imageUri = createCaptureFile("");
-        intent.putExtra(MediaStore.EXTRA_OUTPUT, imageUri);
-        intent.addFlags(Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
-
-        if (getCordova() != null) {
-            getCordova().startActivityForResult(cordovaPlugin, intent, (CAMERA + 1) * 16 + returnType + 1);
-        }
+        // The MediaStore insert runs on the thread pool, the camera opens once it is done
+        launchInBackground(new Callable<Intent>() {
+            public Intent call() {
+                Intent intent = new Intent(MediaStore.ACTION_IMAGE_CAPTURE);
+                imageUri = insertOutputFile("");
+                intent.putExtra(MediaStore.EXTRA_OUTPUT, imageUri);
+                intent.addFlags(Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
+                return getCordova() != null ? intent : null;
+            }
+        }, CAPTURE);
     }
 
     private void returnResultToApp() throws IOException {
-        if (croppedUri != null) {
-            new File(croppedUri.toString()).deleteOnExit();
-        }
-        croppedUri = null;
-        if (imageUri != null) {
-            deleteFileFromMediaStore(imageUri);
-        }
-        imageUri = null;
-        if (saveToPhotoAlbum) {
-            MediaStore.Images.Media.insertImage(getContentResolver(), compressedImage.toString(), compressedImage.getLastPathSegment(), "");
-        }
-        callbackContext.success(compressedImage.toString());
+        deleteIntermediateFiles(compressedImage);
+        sendResult(compressedImage.toString());
         compressedImage = null;
     }
 
-    public Uri copyToInternalStorage(Uri sourceUri, String namePostfix) throws IOException {
-        OutputStream os = null;
-        InputStream inputStream = getContentResolver().openInputStream(sourceUri);
-        Uri dest = createTempFile(namePostfix);
-        try {
-            os = getContentResolver().openOutputStream(dest);
-            byte[] buffer = new byte[4096];
-            int len;
-            while ((len = inputStream.read(buffer)) != -1) {
-                os.write(buffer, 0, len);
-            }
-            os.flush();
-        } finally {
-            if (os != null) {
-                try {
-                    os.close();
-                } catch (IOException e) {
-                    LOG.d(LOG_TAG, "Exception while closing output stream.");
-                }
-            }
-            if (inputStream != null) {
-                try {
-                    inputStream.close();
-                } catch (IOException e) {
-                    LOG.d(LOG_TAG, "Exception while closing file input stream.");
-                }
-            }
-        }
-        return dest;
-    }
-
-    public void deleteFileFromMediaStore(Uri uri) {
-        if (uri == null) return;
-        if (uri.getScheme().equalsIgnoreCase(SCHEME_FILE)) {
-            File file = new File(uri.getPath());
-            file.deleteOnExit();
-        } else {
-            getContentResolver().delete(uri, null, null);
+    /**
+     * Removes the captured and cropped images and adds the result to the photo album when
+     * requested.
+     *
+     * @param result the result file, or null if there is none to add
+     */
+    private void deleteIntermediateFiles(Uri result) throws IOException {
+        deleteUri(croppedUri);
+        croppedUri = null;
+        long start = metrics.start(RequestMetrics.Stage.MEDIASTORE);
+        FileHelper.deleteFileFromMediaStore(getContentResolver(), imageUri);
+        imageUri = null;
+        if (request.saveToPhotoAlbum && result != null) {
+            MediaStore.Images.Media.insertImage(getContentResolver(), result.toString(), result.getLastPathSegment(), "");
         }
-    }
-
-    public Uri createTempFile(String namePostfix) {
-        File file = new File(getTempDirectoryPath(getContext()) + "/" + generateFileName(namePostfix));
-        return Uri.fromFile(file);
-    }
-
-
-    public static String getTempDirectoryPath(Context context) {
-        File cache = context.getCacheDir();
-        // Create the cache directory if it doesn't exist
-        cache.mkdirs();
-        return cache.getAbsolutePath();
-    }
-
-    private String generateFileName(String namePostfix) {
-        String timeStamp = new SimpleDateFormat(TIME_FORMAT).format(new Date());
-        return "IMG_" + timeStamp + "_" + namePostfix + (encodingType == JPEG ? JPEG_EXTENSION : PNG_EXTENSION);
+        metrics.stop(RequestMetrics.Stage.MEDIASTORE, start);
     }
 }
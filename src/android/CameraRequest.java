@@ -0,0 +1,195 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import android.graphics.RectF;
+import android.os.Bundle;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Options of one getPicture request, read once from the arguments and never changed
+ * afterwards, so the threads processing a request never see the options of another one.
+ * <p>
+ * Every request also gets an id of its own. The id is encoded into the request codes of the
+ * activities and permission dialogs the request starts, so their results reach the request
+ * that started them even while other requests are in progress.
+ */
+public final class CameraRequest {
+    private static final String ARGS_KEY = "args";
+    private static final String REQUEST_ID_KEY = "requestId";
+
+    // Request codes are (id << KIND_BITS) | kind and have to fit into the 16 bits Android allows
+    private static final int KIND_BITS = 4;
+    private static final int KIND_MASK = (1 << KIND_BITS) - 1;
+    // Ids start above the request codes used before ids existed and by the crop library
+    private static final int FIRST_ID = 16;
+    private static final int LAST_ID = 0xFFFF >> KIND_BITS;
+
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+    public final int id;
+    public final int quality;
+    public final int destType;
+    public final int srcType;
+    public final int targetWidth;               // -1 when derived from the height or not scaled
+    public final int targetHeight;              // -1 when derived from the width or not scaled
+    public final int encodingType;
+    public final int mediaType;
+    public final boolean allowEdit;
+    public final boolean correctOrientation;
+    public final boolean saveToPhotoAlbum;
+    public final boolean previewFirst;
+    public final int maxBytes;                  // 0 when unlimited
+    public final String jobId;                  // null to let ProcessingJob generate one
+    public final boolean debugMetrics;
+    public final List<ImagePipeline.Output> outputs; // unmodifiable, null when not requested
+    public final int scaleFilter;
+    public final ParallelPngEncoder.Options png; // null to leave PNG to Bitmap.compress
+    public final int jpegCoding;
+
+    // RectF is mutable, so it is only handed out as a copy
+    private final RectF cropRect;
+    private final String args;
+
+    private CameraRequest(int id, JSONArray args) throws JSONException {
+        this.id = id;
+        this.args = args.toString();
+        this.quality = args.getInt(0);
+        this.destType = args.getInt(1);
+        this.srcType = args.getInt(2);
+        int width = args.getInt(3);
+        int height = args.getInt(4);
+        this.mediaType = args.getInt(6);
+        this.allowEdit = args.getBoolean(7);
+        this.correctOrientation = args.getBoolean(8);
+        this.saveToPhotoAlbum = args.getBoolean(9);
+        this.previewFirst = args.optBoolean(12, false);
+        this.maxBytes = Math.max(0, args.optInt(13, 0));
+        this.cropRect = BaseCameraManager.parseCropRect(args.optJSONObject(14));
+        this.jobId = args.isNull(15) ? null : args.getString(15);
+        this.debugMetrics = args.optBoolean(16, false);
+        this.scaleFilter = args.optInt(18, BaseCameraManager.BILINEAR);
+        this.png = ParallelPngEncoder.Options.fromRequest(args.optInt(19, ParallelPngEncoder.LEVEL_PLATFORM),
+                args.optInt(20, ParallelPngEncoder.FILTER_ADAPTIVE));
+        this.jpegCoding = JpegStreamEncoder.resolveCoding(args.optInt(21, -1));
+
+        // If the user specifies a 0 or smaller width/height
+        // make it -1 so later comparisons succeed
+        this.targetWidth = width < 1 ? -1 : width;
+        this.targetHeight = height < 1 ? -1 : height;
+
+        // We don't return full-quality PNG files. The camera outputs a JPEG
+        // so requesting it as a PNG provides no actual benefit
+        int type = args.getInt(5);
+        if (this.targetHeight == -1 && this.targetWidth == -1 && this.quality == 100 && this.maxBytes == 0 &&
+                !this.correctOrientation && type == BaseCameraManager.PNG && this.srcType == BaseCameraManager.CAMERA) {
+            type = BaseCameraManager.JPEG;
+        }
+        this.encodingType = BitmapEncoder.resolveEncodingType(type);
+        this.outputs = BaseCameraManager.parseOutputs(args.optJSONArray(17), this.targetWidth, this.targetHeight,
+                this.encodingType, this.quality);
+    }
+
+    /**
+     * Reads the arguments of a takePicture action into a request with a new id.
+     */
+    public static CameraRequest fromArgs(JSONArray args) throws JSONException {
+        int range = LAST_ID - FIRST_ID + 1;
+        return new CameraRequest(FIRST_ID + (NEXT_ID.getAndIncrement() & Integer.MAX_VALUE) % range, args);
+    }
+
+    /**
+     * Restores a request saved by toBundle(), keeping its id so the pending activity result
+     * still finds it.
+     *
+     * @return the request or null if the bundle holds none
+     */
+    public static CameraRequest fromBundle(Bundle state) {
+        String args = state.getString(ARGS_KEY);
+        if (args == null) {
+            return null;
+        }
+        try {
+            return new CameraRequest(state.getInt(REQUEST_ID_KEY), new JSONArray(args));
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    public void toBundle(Bundle state) {
+        state.putInt(REQUEST_ID_KEY, this.id);
+        state.putString(ARGS_KEY, this.args);
+    }
+
+    /**
+     * Restores a request saved by toJSON(), for a job resumed from the JobJournal.
+     *
+     * @return the request or null if the object holds none
+     */
+    public static CameraRequest fromJSON(JSONObject state) {
+        JSONArray args = state.optJSONArray(ARGS_KEY);
+        if (args == null) {
+            return null;
+        }
+        try {
+            return new CameraRequest(state.getInt(REQUEST_ID_KEY), args);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    public void toJSON(JSONObject state) throws JSONException {
+        state.put(REQUEST_ID_KEY, this.id);
+        state.put(ARGS_KEY, new JSONArray(this.args));
+    }
+
+    /**
+     * @return the crop rectangle of the cropRect option or null
+     */
+    public RectF getCropRect() {
+        return cropRect != null ? new RectF(cropRect) : null;
+    }
+
+    /**
+     * Returns the code for an activity or permission request of this request.
+     *
+     * @param kind what is requested, one of the request kinds of BaseCameraManager
+     */
+    public int getRequestCode(int kind) {
+        return (this.id << KIND_BITS) | kind;
+    }
+
+    /**
+     * @return the id of the request that created the code, or -1 if no request did
+     */
+    public static int getRequestId(int requestCode) {
+        int id = requestCode >> KIND_BITS;
+        return id >= FIRST_ID && id <= LAST_ID ? id : -1;
+    }
+
+    public static int getKind(int requestCode) {
+        return requestCode & KIND_MASK;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import android.os.Build;
+import android.os.Trace;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Emits android.os.Trace sections and counters so the plugin shows up in systrace and
+ * Perfetto captures. Everything is off unless the CameraTracing preference is set, in which
+ * case each call costs a single branch.
+ * <p>
+ * Sections are counted per thread, so a section left open by an exception can be closed with
+ * endAllSections() before the thread is handed back to the pool.
+ */
+public class CameraTrace {
+    public static final String TRACING_PREFERENCE = "CameraTracing";
+
+    private static final String PREFIX = "Camera:";
+    private static final String QUEUED_COUNTER = PREFIX + "queuedJobs";
+    private static final String RUNNING_COUNTER = PREFIX + "runningJobs";
+    private static final String QUEUED_SECTION = PREFIX + "queued";
+
+    private static final String[] STAGE_SECTIONS = new String[RequestMetrics.Stage.values().length];
+
+    static {
+        for (RequestMetrics.Stage stage : RequestMetrics.Stage.values()) {
+            STAGE_SECTIONS[stage.ordinal()] = PREFIX + stage.name().toLowerCase(Locale.US);
+        }
+    }
+
+    private static volatile boolean enabled;
+
+    private static final AtomicInteger queuedJobs = new AtomicInteger();
+    private static final AtomicInteger runningJobs = new AtomicInteger();
+    private static final AtomicInteger nextCookie = new AtomicInteger();
+
+    private static final ThreadLocal<int[]> depth = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        CameraTrace.enabled = enabled;
+    }
+
+    /**
+     * Opens a section on the current thread. Must be closed with endSection() on the same thread.
+     */
+    public static void beginSection(String name) {
+        if (!enabled) {
+            return;
+        }
+        Trace.beginSection(PREFIX + name);
+        depth.get()[0]++;
+    }
+
+    public static void beginSection(RequestMetrics.Stage stage) {
+        if (!enabled) {
+            return;
+        }
+        Trace.beginSection(STAGE_SECTIONS[stage.ordinal()]);
+        depth.get()[0]++;
+    }
+
+    public static void endSection() {
+        if (!enabled) {
+            return;
+        }
+        int[] open = depth.get();
+        if (open[0] > 0) {
+            open[0]--;
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Closes every section the current thread still has open.
+     */
+    public static void endAllSections() {
+        if (!enabled) {
+            return;
+        }
+        int[] open = depth.get();
+        while (open[0] > 0) {
+            open[0]--;
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Records that a job was handed to the thread pool.
+     *
+     * @return the cookie to pass to jobStarted and jobFinished
+     */
+    public static int jobQueued() {
+        if (!enabled) {
+            return 0;
+        }
+        int cookie = nextCookie.incrementAndGet();
+        setCounter(QUEUED_COUNTER, queuedJobs.incrementAndGet());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.beginAsyncSection(QUEUED_SECTION, cookie);
+        }
+        return cookie;
+    }
+
+    public static void jobStarted(int cookie) {
+        if (!enabled) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.endAsyncSection(QUEUED_SECTION, cookie);
+        }
+        setCounter(QUEUED_COUNTER, queuedJobs.decrementAndGet());
+        setCounter(RUNNING_COUNTER, runningJobs.incrementAndGet());
+        beginSection("job");
+    }
+
+    public static void jobFinished(int cookie) {
+        if (!enabled) {
+            return;
+        }
+        endAllSections();
+        setCounter(RUNNING_COUNTER, runningJobs.decrementAndGet());
+    }
+
+    private static void setCounter(String name, int value) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.setCounter(name, value);
+        }
+    }
+}
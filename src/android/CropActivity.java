@@ -0,0 +1,350 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.DisplayMetrics;
+import android.view.Gravity;
+import android.view.MotionEvent;
+import android.view.View;
+import android.widget.Button;
+import android.widget.FrameLayout;
+import android.widget.LinearLayout;
+
+import org.apache.cordova.LOG;
+
+/**
+ * Lightweight crop screen. It only shows a screen sized, subsampled copy of the image and
+ * returns the selected rectangle in fractions of the displayed image; the actual crop is done
+ * afterwards by RegionCropper on the full resolution source.
+ */
+public class CropActivity extends Activity {
+    private static final String LOG_TAG = "CropActivity";
+
+    public static final String EXTRA_ASPECT_RATIO = "org.apache.cordova.camera.ASPECT_RATIO";
+    public static final String EXTRA_CROP_RECT = "org.apache.cordova.camera.CROP_RECT";
+    private static final String STATE_CROP_RECT = "cropRect";
+
+    private CropView cropView;
+
+    /**
+     * Returns the rectangle selected by the user, or null if the result does not contain one.
+     */
+    public static RectF getCropRect(Intent data) {
+        return data != null ? (RectF) data.getParcelableExtra(EXTRA_CROP_RECT) : null;
+    }
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        cropView = new CropView(this, getIntent().getFloatExtra(EXTRA_ASPECT_RATIO, 0f));
+        if (savedInstanceState != null && savedInstanceState.containsKey(STATE_CROP_RECT)) {
+            cropView.setCropRect((RectF) savedInstanceState.getParcelable(STATE_CROP_RECT));
+        }
+
+        Button cancel = new Button(this);
+        cancel.setText(android.R.string.cancel);
+        cancel.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                setResult(RESULT_CANCELED);
+                finish();
+            }
+        });
+        Button done = new Button(this);
+        done.setText(android.R.string.ok);
+        done.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                Intent result = new Intent();
+                result.putExtra(EXTRA_CROP_RECT, cropView.getCropRect());
+                setResult(RESULT_OK, result);
+                finish();
+            }
+        });
+
+        LinearLayout buttons = new LinearLayout(this);
+        buttons.setOrientation(LinearLayout.HORIZONTAL);
+        buttons.setGravity(Gravity.END);
+        buttons.addView(cancel);
+        buttons.addView(done);
+
+        LinearLayout root = new LinearLayout(this);
+        root.setOrientation(LinearLayout.VERTICAL);
+        root.setBackgroundColor(Color.BLACK);
+        root.addView(cropView, new LinearLayout.LayoutParams(FrameLayout.LayoutParams.MATCH_PARENT, 0, 1f));
+        root.addView(buttons, new LinearLayout.LayoutParams(FrameLayout.LayoutParams.MATCH_PARENT, FrameLayout.LayoutParams.WRAP_CONTENT));
+        setContentView(root);
+
+        loadImage(getIntent().getData());
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putParcelable(STATE_CROP_RECT, cropView.getCropRect());
+    }
+
+    /**
+     * Decodes a screen sized copy of the image off the UI thread.
+     */
+    private void loadImage(final Uri uri) {
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        final int size = Math.max(metrics.widthPixels, metrics.heightPixels);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bitmap = null;
+                try {
+                    int rotate = RegionCropper.readRotation(CropActivity.this, uri);
+                    boolean hardware = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+                    if (hardware && rotate == 0) {
+                        // The image is only drawn, keep its pixels in graphics memory
+                        bitmap = PreviewHelper.decodeSubsampled(CropActivity.this, uri, size, Bitmap.Config.HARDWARE);
+                    } else {
+                        bitmap = PreviewHelper.decodeSubsampled(CropActivity.this, uri, size);
+                    }
+                    if (bitmap != null && rotate != 0) {
+                        Matrix matrix = new Matrix();
+                        matrix.setRotate(rotate);
+                        Bitmap rotated = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+                        if (rotated != bitmap) {
+                            bitmap.recycle();
+                            bitmap = rotated;
+                        }
+                        // Hardware bitmaps cannot be rotated before Android 9, move the result instead
+                        Bitmap uploaded = hardware ? bitmap.copy(Bitmap.Config.HARDWARE, false) : null;
+                        if (uploaded != null) {
+                            bitmap.recycle();
+                            bitmap = uploaded;
+                        }
+                    }
+                } catch (Exception e) {
+                    LOG.e(LOG_TAG, "Unable to load image: " + e.toString());
+                }
+                final Bitmap image = bitmap;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (image == null) {
+                            setResult(RESULT_CANCELED);
+                            finish();
+                        } else {
+                            cropView.setImageBitmap(image);
+                        }
+                    }
+                });
+            }
+        }).start();
+    }
+
+    /**
+     * Shows the image with a movable, resizable crop rectangle on top of it.
+     */
+    static class CropView extends View {
+        private static final float MIN_SIZE = 0.05f;
+
+        private final float aspectRatio;
+        private final float touchSlop;
+        private final Paint dimPaint = new Paint();
+        private final Paint borderPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        private final RectF imageBounds = new RectF();
+        private final RectF cropPixels = new RectF();
+
+        private Bitmap bitmap;
+        private RectF crop;
+        private int dragCorner = -1;     // 0..3 clockwise from the top left, -1 when moving
+        private boolean dragging;
+        private float lastX;
+        private float lastY;
+
+        CropView(Context context, float aspectRatio) {
+            super(context);
+            this.aspectRatio = aspectRatio;
+            this.touchSlop = 24 * context.getResources().getDisplayMetrics().density;
+            dimPaint.setColor(0x99000000);
+            borderPaint.setColor(Color.WHITE);
+            borderPaint.setStyle(Paint.Style.STROKE);
+            borderPaint.setStrokeWidth(2 * context.getResources().getDisplayMetrics().density);
+        }
+
+        void setImageBitmap(Bitmap bitmap) {
+            this.bitmap = bitmap;
+            if (crop == null) {
+                crop = initialCrop();
+            }
+            updateImageBounds();
+            invalidate();
+        }
+
+        void setCropRect(RectF crop) {
+            this.crop = crop;
+        }
+
+        RectF getCropRect() {
+            return crop != null ? new RectF(crop) : new RectF(0f, 0f, 1f, 1f);
+        }
+
+        private RectF initialCrop() {
+            if (aspectRatio <= 0) {
+                return new RectF(0f, 0f, 1f, 1f);
+            }
+            float imageAspect = (float) bitmap.getWidth() / bitmap.getHeight();
+            if (imageAspect > aspectRatio) {
+                float width = aspectRatio / imageAspect;
+                return new RectF((1f - width) / 2f, 0f, (1f + width) / 2f, 1f);
+            }
+            float height = imageAspect / aspectRatio;
+            return new RectF(0f, (1f - height) / 2f, 1f, (1f + height) / 2f);
+        }
+
+        @Override
+        protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+            super.onSizeChanged(w, h, oldw, oldh);
+            updateImageBounds();
+        }
+
+        private void updateImageBounds() {
+            if (bitmap == null || getWidth() == 0 || getHeight() == 0) {
+                return;
+            }
+            float scale = Math.min((float) getWidth() / bitmap.getWidth(), (float) getHeight() / bitmap.getHeight());
+            float width = bitmap.getWidth() * scale;
+            float height = bitmap.getHeight() * scale;
+            imageBounds.set((getWidth() - width) / 2f, (getHeight() - height) / 2f,
+                    (getWidth() + width) / 2f, (getHeight() + height) / 2f);
+        }
+
+        @Override
+        protected void onDraw(Canvas canvas) {
+            if (bitmap == null) {
+                return;
+            }
+            canvas.drawBitmap(bitmap, null, imageBounds, null);
+            toPixels(crop, cropPixels);
+            canvas.drawRect(imageBounds.left, imageBounds.top, imageBounds.right, cropPixels.top, dimPaint);
+            canvas.drawRect(imageBounds.left, cropPixels.bottom, imageBounds.right, imageBounds.bottom, dimPaint);
+            canvas.drawRect(imageBounds.left, cropPixels.top, cropPixels.left, cropPixels.bottom, dimPaint);
+            canvas.drawRect(cropPixels.right, cropPixels.top, imageBounds.right, cropPixels.bottom, dimPaint);
+            canvas.drawRect(cropPixels, borderPaint);
+        }
+
+        private void toPixels(RectF fraction, RectF out) {
+            out.set(imageBounds.left + fraction.left * imageBounds.width(),
+                    imageBounds.top + fraction.top * imageBounds.height(),
+                    imageBounds.left + fraction.right * imageBounds.width(),
+                    imageBounds.top + fraction.bottom * imageBounds.height());
+        }
+
+        @Override
+        public boolean onTouchEvent(MotionEvent event) {
+            if (bitmap == null) {
+                return false;
+            }
+            float x = event.getX();
+            float y = event.getY();
+            switch (event.getActionMasked()) {
+                case MotionEvent.ACTION_DOWN:
+                    toPixels(crop, cropPixels);
+                    dragCorner = findCorner(x, y);
+                    dragging = dragCorner >= 0 || cropPixels.contains(x, y);
+                    lastX = x;
+                    lastY = y;
+                    return dragging;
+                case MotionEvent.ACTION_MOVE:
+                    if (!dragging) {
+                        return false;
+                    }
+                    float dx = (x - lastX) / imageBounds.width();
+                    float dy = (y - lastY) / imageBounds.height();
+                    if (dragCorner < 0) {
+                        move(dx, dy);
+                    } else {
+                        resize(dragCorner, dx, dy);
+                    }
+                    lastX = x;
+                    lastY = y;
+                    invalidate();
+                    return true;
+                case MotionEvent.ACTION_UP:
+                case MotionEvent.ACTION_CANCEL:
+                    dragging = false;
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private int findCorner(float x, float y) {
+            float[] xs = {cropPixels.left, cropPixels.right, cropPixels.right, cropPixels.left};
+            float[] ys = {cropPixels.top, cropPixels.top, cropPixels.bottom, cropPixels.bottom};
+            for (int i = 0; i < 4; i++) {
+                if (Math.abs(x - xs[i]) <= touchSlop && Math.abs(y - ys[i]) <= touchSlop) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void move(float dx, float dy) {
+            dx = Math.max(-crop.left, Math.min(dx, 1f - crop.right));
+            dy = Math.max(-crop.top, Math.min(dy, 1f - crop.bottom));
+            crop.offset(dx, dy);
+        }
+
+        private void resize(int corner, float dx, float dy) {
+            RectF next = new RectF(crop);
+            if (corner == 0 || corner == 3) {
+                next.left = Math.max(0f, Math.min(next.left + dx, next.right - MIN_SIZE));
+            } else {
+                next.right = Math.min(1f, Math.max(next.right + dx, next.left + MIN_SIZE));
+            }
+            if (corner == 0 || corner == 1) {
+                next.top = Math.max(0f, Math.min(next.top + dy, next.bottom - MIN_SIZE));
+            } else {
+                next.bottom = Math.min(1f, Math.max(next.bottom + dy, next.top + MIN_SIZE));
+            }
+            if (aspectRatio > 0) {
+                // Keep the requested output aspect ratio by deriving the height from the width
+                float height = next.width() * imageBounds.width() / (imageBounds.height() * aspectRatio);
+                if (corner == 0 || corner == 1) {
+                    next.top = next.bottom - height;
+                } else {
+                    next.bottom = next.top + height;
+                }
+                if (next.top < 0f || next.bottom > 1f) {
+                    return;
+                }
+            }
+            crop.set(next);
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+
+import org.apache.cordova.LOG;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decides how an image is decoded before any pixels are allocated. The plan is sized against
+ * the memory the app can still use, taken from the memory class, the current heap usage and
+ * recent onTrimMemory signals, and picks the sample size, the pixel format and whether the
+ * image is decoded in strips. When even the smallest plan does not fit, the output is made
+ * smaller rather than risking an OutOfMemoryError.
+ */
+public class DecodePlanner {
+    private static final String LOG_TAG = "DecodePlanner";
+
+    // Part of the memory class kept free for the WebView and the rest of the app
+    private static final int RESERVE_DIVISOR = 8;
+    // A trim signal stops shrinking the budget after this long, there is no "memory is fine again" event
+    private static final long TRIM_SIGNAL_TTL_MS = 30000L;
+    // Strips are multiples of a JPEG MCU row and never larger than this
+    private static final int MIN_STRIP_ROWS = 16;
+    private static final long MAX_STRIP_BYTES = 8L * 1024 * 1024;
+
+    private static volatile ActivityManager activityManager;
+    private static volatile long memoryClassBytes = Runtime.getRuntime().maxMemory();
+    private static volatile int trimLevel;
+    private static volatile long trimTime;
+
+    /**
+     * How to decode one image. Sizes are in the stored (unrotated) orientation.
+     */
+    public static final class Plan {
+        public final int sampleSize;
+        public final Bitmap.Config config;
+        public final int outWidth;
+        public final int outHeight;
+        /**
+         * Source rows decoded per strip, or 0 to decode the image in one piece.
+         */
+        public final int stripRows;
+
+        Plan(int sampleSize, Bitmap.Config config, int outWidth, int outHeight, int stripRows) {
+            this.sampleSize = sampleSize;
+            this.config = config;
+            this.outWidth = outWidth;
+            this.outHeight = outHeight;
+            this.stripRows = stripRows;
+        }
+
+        public boolean isTiled() {
+            return stripRows > 0;
+        }
+
+        public BitmapFactory.Options toOptions() {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = config;
+            return options;
+        }
+    }
+
+    /**
+     * Reads the memory class and starts listening for trim signals. Safe to call more than once.
+     */
+    public static synchronized void init(Context context) {
+        if (activityManager != null) {
+            return;
+        }
+        Context appContext = context.getApplicationContext();
+        ActivityManager manager = (ActivityManager) appContext.getSystemService(Context.ACTIVITY_SERVICE);
+        if (manager == null) {
+            return;
+        }
+        memoryClassBytes = manager.getMemoryClass() * 1024L * 1024L;
+        activityManager = manager;
+        appContext.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                DecodePlanner.onTrimMemory(level);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+
+            @Override
+            public void onLowMemory() {
+                DecodePlanner.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+            }
+        });
+    }
+
+    public static void onTrimMemory(int level) {
+        trimLevel = level;
+        trimTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Returns the number of bytes a single decode may allocate right now.
+     */
+    public static long getBudget() {
+        long budget;
+        ActivityManager manager = activityManager;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && manager != null) {
+            // Bitmap pixels live in the native heap, the limit is the memory left on the device
+            ActivityManager.MemoryInfo info = new ActivityManager.MemoryInfo();
+            manager.getMemoryInfo(info);
+            budget = Math.min(info.availMem - info.threshold, memoryClassBytes);
+        } else {
+            Runtime runtime = Runtime.getRuntime();
+            budget = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        }
+        budget -= memoryClassBytes / RESERVE_DIVISOR;
+
+        if (SystemClock.elapsedRealtime() - trimTime < TRIM_SIGNAL_TTL_MS) {
+            int level = trimLevel;
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+                budget /= 4;
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+                budget /= 2;
+            }
+        }
+        return Math.max(0L, budget);
+    }
+
+    /**
+     * Plans the decode of an image into a bitmap of the given size.
+     *
+     * @param srcWidth  width of the stored image
+     * @param srcHeight height of the stored image
+     * @param dstWidth  width of the wanted bitmap, in the stored orientation
+     * @param dstHeight height of the wanted bitmap, in the stored orientation
+     * @param configs   pixel formats to try, in order of preference, from selectConfigs()
+     * @param rotate    whether the bitmap is rotated afterwards, which needs a second copy
+     * @param canTile   whether the caller can decode in strips
+     */
+    public static Plan plan(int srcWidth, int srcHeight, int dstWidth, int dstHeight, Bitmap.Config[] configs, boolean rotate, boolean canTile) {
+        return plan(srcWidth, srcHeight, dstWidth, dstHeight, configs, rotate, canTile, getBudget());
+    }
+
+    /**
+     * Plans against the given budget instead of the memory available right now.
+     */
+    static Plan plan(int srcWidth, int srcHeight, int dstWidth, int dstHeight, Bitmap.Config[] configs, boolean rotate, boolean canTile, long budget) {
+        int sampleSize = BaseCameraManager.calculateSampleSize(srcWidth, srcHeight, dstWidth, dstHeight);
+
+        for (Bitmap.Config config : configs) {
+            int bytesPerPixel = bytesPerPixel(config);
+            if (peakBytes(srcWidth, srcHeight, sampleSize, dstWidth, dstHeight, bytesPerPixel, rotate) <= budget) {
+                return new Plan(sampleSize, config, dstWidth, dstHeight, 0);
+            }
+
+            if (canTile) {
+                long outBytes = (long) dstWidth * dstHeight * bytesPerPixel;
+                int stripRows = stripRows(srcWidth, srcHeight, sampleSize, bytesPerPixel, budget - outBytes);
+                if (stripRows > 0) {
+                    LOG.d(LOG_TAG, "Decoding " + srcWidth + "x" + srcHeight + " in strips of " + stripRows + " rows, budget " + budget);
+                    return new Plan(sampleSize, config, dstWidth, dstHeight, stripRows);
+                }
+            }
+        }
+
+        // Not even the output fits, decode at a coarser sample size and keep the sampled size
+        Bitmap.Config config = configs[configs.length - 1];
+        int bytesPerPixel = bytesPerPixel(config);
+        int size = Integer.highestOneBit(sampleSize);
+        int width;
+        int height;
+        do {
+            size *= 2;
+            width = Math.min(dstWidth, ceilDiv(srcWidth, size));
+            height = Math.min(dstHeight, ceilDiv(srcHeight, size));
+        } while (width > 1 && height > 1 && peakBytes(srcWidth, srcHeight, size, width, height, bytesPerPixel, rotate) > budget);
+        LOG.w(LOG_TAG, "Not enough memory for " + dstWidth + "x" + dstHeight + ", decoding at " + width + "x" + height);
+        return new Plan(size, config, width, height, 0);
+    }
+
+    /**
+     * Decodes a tiled plan strip by strip straight into the output bitmap, scaled and rotated,
+     * so the full sampled image is never held in memory.
+     *
+     * @param rotate clockwise rotation applied while drawing, a multiple of 90
+     * @return the decoded bitmap, rotated, or null if the image could not be decoded
+     */
+    public static Bitmap decodeTiled(Context context, Uri sourceUri, Plan plan, int rotate) throws IOException {
+        BitmapRegionDecoder decoder;
+        InputStream fileStream = context.getContentResolver().openInputStream(sourceUri);
+        if (fileStream == null) {
+            return null;
+        }
+        try {
+            decoder = BitmapRegionDecoder.newInstance(fileStream, false);
+        } finally {
+            closeQuietly(fileStream);
+        }
+
+        try {
+            int srcWidth = decoder.getWidth();
+            int srcHeight = decoder.getHeight();
+            boolean rotated = rotate == 90 || rotate == 270;
+            Bitmap output = Bitmap.createBitmap(rotated ? plan.outHeight : plan.outWidth,
+                    rotated ? plan.outWidth : plan.outHeight, plan.config);
+            Canvas canvas = new Canvas(output);
+            Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+            BitmapFactory.Options options = plan.toOptions();
+            Matrix matrix = new Matrix();
+            Rect region = new Rect();
+
+            for (int top = 0; top < srcHeight; top += plan.stripRows) {
+                region.set(0, top, srcWidth, Math.min(srcHeight, top + plan.stripRows));
+                Bitmap strip = decoder.decodeRegion(region, options);
+                if (strip == null) {
+                    output.recycle();
+                    return null;
+                }
+                // strip pixels -> source pixels -> output pixels -> rotated output pixels
+                matrix.setScale((float) region.width() / strip.getWidth(), (float) region.height() / strip.getHeight());
+                matrix.postTranslate(0, top);
+                matrix.postScale((float) plan.outWidth / srcWidth, (float) plan.outHeight / srcHeight);
+                if (rotate != 0) {
+                    matrix.postRotate(rotate);
+                    if (rotate == 90) {
+                        matrix.postTranslate(plan.outHeight, 0);
+                    } else if (rotate == 180) {
+                        matrix.postTranslate(plan.outWidth, plan.outHeight);
+                    } else if (rotate == 270) {
+                        matrix.postTranslate(0, plan.outWidth);
+                    }
+                }
+                canvas.drawBitmap(strip, matrix, paint);
+                strip.recycle();
+            }
+            return output;
+        } finally {
+            decoder.recycle();
+        }
+    }
+
+    /**
+     * Returns the pixel formats a request may decode into, in order of preference. A JPEG has
+     * no alpha channel, so when it is re-encoded as a lossy JPEG the 16 bit RGB_565 format
+     * halves the decoded size; the rounding it adds is below what the encoder discards. A
+     * quality of 100 asks for the source fidelity and keeps ARGB_8888 unless memory is short.
+     * Other sources may have alpha and always decode into ARGB_8888.
+     *
+     * @param mimeType     MIME type of the source as reported by the decoder
+     * @param encodingType the output encoding type of the request, JPEG only if every output is
+     * @param quality      the highest output quality of the request
+     */
+    public static Bitmap.Config[] selectConfigs(String mimeType, int encodingType, int quality) {
+        if (!"image/jpeg".equals(mimeType)) {
+            return new Bitmap.Config[]{Bitmap.Config.ARGB_8888};
+        }
+        if (encodingType == BaseCameraManager.JPEG && quality < 100) {
+            return new Bitmap.Config[]{Bitmap.Config.RGB_565};
+        }
+        return new Bitmap.Config[]{Bitmap.Config.ARGB_8888, Bitmap.Config.RGB_565};
+    }
+
+    private static int stripRows(int srcWidth, int srcHeight, int sampleSize, int bytesPerPixel, long available) {
+        // The decoder rounds the sample size down to a power of two
+        int effective = Integer.highestOneBit(sampleSize);
+        long rowBytes = (long) ceilDiv(srcWidth, effective) * bytesPerPixel;
+        long sampledRows = Math.min(available, MAX_STRIP_BYTES) / rowBytes;
+        long step = (long) MIN_STRIP_ROWS * effective;
+        long rows = sampledRows * effective / step * step;
+        if (rows < step) {
+            return 0;
+        }
+        return (int) Math.min(rows, srcHeight);
+    }
+
+    /**
+     * Returns the most memory held at once when decoding, scaling and rotating in one piece.
+     */
+    private static long peakBytes(int srcWidth, int srcHeight, int sampleSize, int outWidth, int outHeight, int bytesPerPixel, boolean rotate) {
+        long sampledBytes = sampledBytes(srcWidth, srcHeight, sampleSize, bytesPerPixel);
+        long outBytes = (long) outWidth * outHeight * bytesPerPixel;
+        long peak = sampledBytes == outBytes ? sampledBytes : sampledBytes + outBytes;
+        return rotate ? Math.max(peak, 2 * outBytes) : peak;
+    }
+
+    private static long sampledBytes(int srcWidth, int srcHeight, int sampleSize, int bytesPerPixel) {
+        int effective = Integer.highestOneBit(sampleSize);
+        return (long) ceilDiv(srcWidth, effective) * ceilDiv(srcHeight, effective) * bytesPerPixel;
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        return config == Bitmap.Config.RGB_565 ? 2 : 4;
+    }
+
+    private static int ceilDiv(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+
+    private static void closeQuietly(InputStream stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                LOG.d(LOG_TAG, "Exception while closing file input stream.");
+            }
+        }
+    }
+}
@@ -20,8 +20,9 @@ package org.apache.cordova.camera;
 
 import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.InputStream;
 
-import android.media.ExifInterface;
+import androidx.exifinterface.media.ExifInterface;
 
 public class ExifHelper {
     private String aperture = null;
@@ -51,6 +52,10 @@ public class ExifHelper {
         this.inFile = new ExifInterface(filePath);
     }
 
+    public void createInStream(InputStream inputStream) throws IOException {
+        this.inFile = new ExifInterface(inputStream);
+    }
+
     public void createOutFile(String filePath) throws IOException {
         this.outFile = new ExifInterface(filePath);
     }
@@ -59,7 +64,7 @@ public class ExifHelper {
      * Reads all the EXIF data from the input file.
      */
     public void readExifData() {
-        this.aperture = inFile.getAttribute(ExifInterface.TAG_APERTURE);
+        this.aperture = inFile.getAttribute(ExifInterface.TAG_F_NUMBER);
         this.datetime = inFile.getAttribute(ExifInterface.TAG_DATETIME);
         this.exposureTime = inFile.getAttribute(ExifInterface.TAG_EXPOSURE_TIME);
         this.flash = inFile.getAttribute(ExifInterface.TAG_FLASH);
@@ -73,7 +78,7 @@ public class ExifHelper {
         this.gpsLongitudeRef = inFile.getAttribute(ExifInterface.TAG_GPS_LONGITUDE_REF);
         this.gpsProcessingMethod = inFile.getAttribute(ExifInterface.TAG_GPS_PROCESSING_METHOD);
         this.gpsTimestamp = inFile.getAttribute(ExifInterface.TAG_GPS_TIMESTAMP);
-        this.iso = inFile.getAttribute(ExifInterface.TAG_ISO);
+        this.iso = inFile.getAttribute(ExifInterface.TAG_PHOTOGRAPHIC_SENSITIVITY);
         this.make = inFile.getAttribute(ExifInterface.TAG_MAKE);
         this.model = inFile.getAttribute(ExifInterface.TAG_MODEL);
         this.orientation = inFile.getAttribute(ExifInterface.TAG_ORIENTATION);
@@ -92,7 +97,7 @@ public class ExifHelper {
         }
 
         if (this.aperture != null) {
-            this.outFile.setAttribute(ExifInterface.TAG_APERTURE, this.aperture);
+            this.outFile.setAttribute(ExifInterface.TAG_F_NUMBER, this.aperture);
         }
         if (this.datetime != null) {
             this.outFile.setAttribute(ExifInterface.TAG_DATETIME, this.datetime);
@@ -134,7 +139,7 @@ public class ExifHelper {
             this.outFile.setAttribute(ExifInterface.TAG_GPS_TIMESTAMP, this.gpsTimestamp);
         }
         if (this.iso != null) {
-            this.outFile.setAttribute(ExifInterface.TAG_ISO, this.iso);
+            this.outFile.setAttribute(ExifInterface.TAG_PHOTOGRAPHIC_SENSITIVITY, this.iso);
         }
         if (this.make != null) {
             this.outFile.setAttribute(ExifInterface.TAG_MAKE, this.make);
@@ -24,7 +24,6 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
-import android.media.ExifInterface;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
@@ -32,6 +31,8 @@ import android.provider.DocumentsContract;
 import android.provider.MediaStore;
 import android.webkit.MimeTypeMap;
 
+import androidx.exifinterface.media.ExifInterface;
+
 import org.apache.cordova.CordovaInterface;
 import org.apache.cordova.LOG;
 
@@ -46,12 +47,20 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 
+import static org.apache.cordova.camera.BaseCameraManager.HEIF;
+import static org.apache.cordova.camera.BaseCameraManager.HEIF_ALT_MIME_TYPE;
+import static org.apache.cordova.camera.BaseCameraManager.HEIF_EXTENSION;
+import static org.apache.cordova.camera.BaseCameraManager.HEIF_MIME_TYPE;
 import static org.apache.cordova.camera.BaseCameraManager.JPEG;
 import static org.apache.cordova.camera.BaseCameraManager.JPEG_EXTENSION;
 import static org.apache.cordova.camera.BaseCameraManager.JPEG_MIME_TYPE;
 import static org.apache.cordova.camera.BaseCameraManager.PNG;
 import static org.apache.cordova.camera.BaseCameraManager.PNG_EXTENSION;
 import static org.apache.cordova.camera.BaseCameraManager.PNG_MIME_TYPE;
+import static org.apache.cordova.camera.BaseCameraManager.WEBP;
+import static org.apache.cordova.camera.BaseCameraManager.WEBP_EXTENSION;
+import static org.apache.cordova.camera.BaseCameraManager.WEBP_LOSSLESS;
+import static org.apache.cordova.camera.BaseCameraManager.WEBP_MIME_TYPE;
 
 public class FileHelper {
     private static final String TIME_FORMAT = "yyyyMMdd_HHmmss";
@@ -82,7 +91,7 @@ public class FileHelper {
         Uri imagesCollections = MediaStore.Images.Media.getContentUri(volume);
         ContentValues contentValues = new ContentValues();
         String timeStamp = new SimpleDateFormat(TIME_FORMAT).format(new Date());
-        contentValues.put(MediaStore.MediaColumns.DISPLAY_NAME, "IMG_" + timeStamp + "_" + namePostfix + (encodingType == JPEG ? JPEG_EXTENSION : PNG_EXTENSION));
+        contentValues.put(MediaStore.MediaColumns.DISPLAY_NAME, "IMG_" + timeStamp + "_" + namePostfix + getExtensionForFormat(encodingType));
         contentValues.put(MediaStore.MediaColumns.MIME_TYPE, getMimetypeForFormat(encodingType));
         //    contentValues.put(MediaStore.Images.Thumbnails., getMimetypeForFormat(encodingType));
         return resolver.insert(imagesCollections, contentValues);
@@ -141,17 +150,63 @@ public class FileHelper {
         return thumbnailsUri;
     }
 
-    private static String getMimetypeForFormat(int outputFormat) {
+    /**
+     * Converts output image format int value to string value of mime type.
+     *
+     * @param outputFormat int Output format of camera API.
+     *                     Must be value of one of the encoding type constants
+     * @return String String value of mime type or empty string if mime type is not supported
+     */
+    public static String getMimetypeForFormat(int outputFormat) {
         if (outputFormat == PNG) return PNG_MIME_TYPE;
         if (outputFormat == JPEG) return JPEG_MIME_TYPE;
+        if (outputFormat == WEBP || outputFormat == WEBP_LOSSLESS) return WEBP_MIME_TYPE;
+        if (outputFormat == HEIF) return HEIF_MIME_TYPE;
         return "";
     }
 
-    public static Uri createTempFile(Context context, int encodingType) {
+    /**
+     * Returns the file extension, including the dot, used for files of the given encoding type.
+     */
+    public static String getExtensionForFormat(int outputFormat) {
+        if (outputFormat == PNG) return PNG_EXTENSION;
+        if (outputFormat == WEBP || outputFormat == WEBP_LOSSLESS) return WEBP_EXTENSION;
+        if (outputFormat == HEIF) return HEIF_EXTENSION;
+        return JPEG_EXTENSION;
+    }
+
+    /**
+     * Returns whether the plugin can decode, resize and re-encode images of the given mime type.
+     */
+    public static boolean isSupportedImageMimeType(String mimeType) {
+        return JPEG_MIME_TYPE.equalsIgnoreCase(mimeType) || PNG_MIME_TYPE.equalsIgnoreCase(mimeType)
+                || WEBP_MIME_TYPE.equalsIgnoreCase(mimeType) || HEIF_MIME_TYPE.equalsIgnoreCase(mimeType)
+                || HEIF_ALT_MIME_TYPE.equalsIgnoreCase(mimeType);
+    }
+
+    /**
+     * Returns whether ExifInterface can write EXIF data into files of the given encoding type.
+     */
+    public static boolean canWriteExif(int outputFormat) {
+        return outputFormat == JPEG || outputFormat == PNG || outputFormat == WEBP || outputFormat == WEBP_LOSSLESS;
+    }
+
+    public static Uri createTempFile(Context context, int encodingType) throws IOException {
+        File directory = new File(FileHelper.getTempDirectoryPath(context));
+        return Uri.fromFile(createUniqueFile(directory, "", encodingType));
+    }
+
+    /**
+     * Creates a new empty file named after the current time. Several requests can finish within
+     * the same second, so the name also carries a suffix that no other file in the directory has.
+     *
+     * @param namePostfix added after the time stamp, may be empty
+     * @return the created file
+     */
+    public static File createUniqueFile(File directory, String namePostfix, int encodingType) throws IOException {
         String timeStamp = new SimpleDateFormat(TIME_FORMAT).format(new Date());
-        String fileName = "IMG_" + timeStamp + (encodingType == JPEG ? JPEG_EXTENSION : PNG_EXTENSION);
-        File file = new File(FileHelper.getTempDirectoryPath(context) + "/" + fileName);
-        return Uri.fromFile(file);
+        String prefix = "IMG_" + timeStamp + "_" + (namePostfix.isEmpty() ? "" : namePostfix + "_");
+        return File.createTempFile(prefix, getExtensionForFormat(encodingType), directory);
     }
 
     public static String getTempDirectoryPath(Context context) {
@@ -17,4 +17,6 @@ public interface ICameraManager {
     void onRestoreStateForActivityResult(Bundle state, CallbackContext callbackContext);
 
     void onActivityResult(int requestCode, int resultCode, Intent intent);
+
+    void resumeJob(JobJournal.Entry entry, CallbackContext callbackContext);
 }
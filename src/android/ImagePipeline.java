@@ -0,0 +1,775 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.graphics.RectF;
+import android.net.Uri;
+
+import org.apache.cordova.LOG;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Turns a source image into the encoded output of a request. Processing runs in stages:
+ * inspect, plan, decode, transform, encode, and finally the sink that provides the output.
+ * Each stage is an interface with a default implementation. The camera managers only plug
+ * in what differs per Android version, usually the decoder and the sink.
+ * <p>
+ * A pipeline belongs to one request. It checks the request's ProcessingJob between stages
+ * and records every stage in its RequestMetrics.
+ * <p>
+ * Several outputs can be produced from one decode: the source is decoded once for the
+ * largest output, each smaller output is scaled down from the previous one, and the encodes
+ * run in parallel.
+ */
+public class ImagePipeline {
+    private static final String LOG_TAG = "ImagePipeline";
+
+    /**
+     * What the inspect stage learned about the source without decoding its pixels.
+     */
+    public static class ImageInfo {
+        public final int width;
+        public final int height;
+        public final String mimeType;
+        /**
+         * Clockwise rotation from the EXIF orientation tag.
+         */
+        public final int rotation;
+
+        public ImageInfo(int width, int height, String mimeType, int rotation) {
+            this.width = width;
+            this.height = height;
+            this.mimeType = mimeType;
+            this.rotation = rotation;
+        }
+    }
+
+    /**
+     * Reads the size, type and orientation of the source.
+     */
+    public interface Inspector {
+        ImageInfo inspect(Context context, Uri source) throws IOException;
+    }
+
+    /**
+     * Decodes the source following the plan.
+     */
+    public interface Decoder {
+        /**
+         * @param rotate clockwise rotation the final bitmap needs
+         * @return the decoded bitmap or null if the source could not be decoded
+         */
+        Bitmap decode(Context context, Uri source, ImageInfo info, DecodePlanner.Plan plan, int rotate) throws IOException;
+
+        /**
+         * Whether decode() already returns the scaled and rotated bitmap for this plan, in which
+         * case the transform stage is skipped.
+         */
+        boolean transforms(DecodePlanner.Plan plan);
+    }
+
+    /**
+     * Scales the decoded bitmap to the planned size and rotates it.
+     */
+    public interface Transformer {
+        Bitmap transform(Bitmap bitmap, DecodePlanner.Plan plan, int rotate, RequestMetrics metrics);
+
+        /**
+         * Returns a scaled copy, used to derive the smaller outputs of a request. The bitmap
+         * passed in is left as it is.
+         */
+        Bitmap scale(Bitmap bitmap, int width, int height, RequestMetrics metrics);
+    }
+
+    /**
+     * Provides the location the encoded image is written to.
+     */
+    public interface Sink {
+        Uri createOutput() throws IOException;
+    }
+
+    /**
+     * One entry of the outputs option. The target size works like the targetWidth and
+     * targetHeight options; the encoding and quality replace those of the request.
+     */
+    public static class Output {
+        public final int targetWidth;
+        public final int targetHeight;
+        public final int encodingType;
+        public final int quality;
+
+        public Output(int targetWidth, int targetHeight, int encodingType, int quality) {
+            this.targetWidth = targetWidth;
+            this.targetHeight = targetHeight;
+            this.encodingType = encodingType;
+            this.quality = quality;
+        }
+    }
+
+    /**
+     * Provides the location each output is written to. Called from several threads at once.
+     */
+    public interface OutputSink {
+        /**
+         * @param index position of the output in the list passed to process()
+         */
+        Uri createOutput(Output output, int index) throws IOException;
+    }
+
+    /**
+     * Encodes one output, on the calling thread or a thread of the encode pool.
+     */
+    private interface OutputEncoder<T> {
+        T encode(Bitmap bitmap, Output output, int index) throws IOException;
+    }
+
+    public static final Inspector DEFAULT_INSPECTOR = new Inspector() {
+        @Override
+        public ImageInfo inspect(Context context, Uri source) throws IOException {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            InputStream fileStream = context.getContentResolver().openInputStream(source);
+            if (fileStream == null) {
+                return null;
+            }
+            try {
+                BitmapFactory.decodeStream(fileStream, null, options);
+            } finally {
+                closeQuietly(fileStream);
+            }
+            //CB-2292: WTF? Why is the width null?
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+            return new ImageInfo(options.outWidth, options.outHeight, options.outMimeType,
+                    RegionCropper.readRotation(context, source));
+        }
+    };
+
+    public static final Decoder BITMAP_FACTORY_DECODER = new Decoder() {
+        @Override
+        public Bitmap decode(Context context, Uri source, ImageInfo info, DecodePlanner.Plan plan, int rotate) throws IOException {
+            if (plan.isTiled()) {
+                return DecodePlanner.decodeTiled(context, source, plan, rotate);
+            }
+            InputStream fileStream = context.getContentResolver().openInputStream(source);
+            if (fileStream == null) {
+                return null;
+            }
+            try {
+                return BitmapFactory.decodeStream(fileStream, null, plan.toOptions());
+            } finally {
+                closeQuietly(fileStream);
+            }
+        }
+
+        @Override
+        public boolean transforms(DecodePlanner.Plan plan) {
+            return plan.isTiled();
+        }
+    };
+
+    /**
+     * Scales with bilinear filtering through Bitmap.createScaledBitmap.
+     */
+    public static final Transformer SCALE_AND_ROTATE = new ScaleAndRotate(false);
+
+    /**
+     * Reduces with AreaResampler on all cores, which does not alias at large ratios.
+     * Enlarging still uses bilinear filtering.
+     */
+    public static final Transformer AREA_AVERAGE_AND_ROTATE = new ScaleAndRotate(true);
+
+    private static class ScaleAndRotate implements Transformer {
+        private final boolean areaAverage;
+
+        ScaleAndRotate(boolean areaAverage) {
+            this.areaAverage = areaAverage;
+        }
+
+        @Override
+        public Bitmap scale(Bitmap bitmap, int width, int height, RequestMetrics metrics) {
+            long start = metrics.start(RequestMetrics.Stage.SCALE);
+            try {
+                if (areaAverage && AreaResampler.canResample(bitmap.getWidth(), bitmap.getHeight(), width, height)) {
+                    return areaAverage(bitmap, width, height);
+                }
+                Bitmap scaled = Bitmap.createScaledBitmap(bitmap, width, height, true);
+                // createScaledBitmap hands back the bitmap itself when the size already matches
+                return scaled != bitmap ? scaled : bitmap.copy(bitmap.getConfig(), false);
+            } finally {
+                metrics.stop(RequestMetrics.Stage.SCALE, start);
+            }
+        }
+
+        @Override
+        public Bitmap transform(Bitmap bitmap, DecodePlanner.Plan plan, int rotate, RequestMetrics metrics) {
+            if (bitmap.getWidth() != plan.outWidth || bitmap.getHeight() != plan.outHeight) {
+                Bitmap scaled = scale(bitmap, plan.outWidth, plan.outHeight, metrics);
+                bitmap.recycle();
+                bitmap = scaled;
+            }
+            if (rotate != 0) {
+                long start = metrics.start(RequestMetrics.Stage.ROTATE);
+                Matrix matrix = new Matrix();
+                matrix.setRotate(rotate);
+                // The plan left room for the rotated copy
+                Bitmap rotated = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+                if (rotated != bitmap) {
+                    bitmap.recycle();
+                    bitmap = rotated;
+                }
+                metrics.stop(RequestMetrics.Stage.ROTATE, start);
+            }
+            return bitmap;
+        }
+
+        private static Bitmap areaAverage(final Bitmap bitmap, int width, int height) {
+            Bitmap.Config config = bitmap.getConfig() == Bitmap.Config.RGB_565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+            final Bitmap scaled = Bitmap.createBitmap(width, height, config);
+            final int srcWidth = bitmap.getWidth();
+            final int dstWidth = width;
+            AreaResampler.resample(new PixelStrips.Source() {
+                @Override
+                public void getRows(int[] pixels, int y, int rows) {
+                    bitmap.getPixels(pixels, 0, srcWidth, 0, y, srcWidth, rows);
+                }
+            }, srcWidth, bitmap.getHeight(), new PixelStrips.Sink() {
+                @Override
+                public void setRows(int[] pixels, int y, int rows) {
+                    scaled.setPixels(pixels, 0, dstWidth, 0, y, dstWidth, rows);
+                }
+            }, width, height);
+            return scaled;
+        }
+    }
+
+    private final Context context;
+    private final RequestMetrics metrics;
+    private final ProcessingJob job;
+
+    private Inspector inspector = DEFAULT_INSPECTOR;
+    private Decoder decoder = BITMAP_FACTORY_DECODER;
+    private Transformer transformer = SCALE_AND_ROTATE;
+
+    private int targetWidth = -1;
+    private int targetHeight = -1;
+    private boolean correctOrientation;
+    private RectF cropRect;
+    private int encodingType = BaseCameraManager.JPEG;
+    private int quality = 100;
+    private int maxBytes;
+    private ParallelPngEncoder.Options png;
+    private int jpegCoding = JpegStreamEncoder.getDefaultCoding();
+
+    private boolean orientationCorrected;
+
+    private static ExecutorService encodeExecutor;
+
+    private static synchronized ExecutorService getEncodeExecutor() {
+        if (encodeExecutor == null) {
+            encodeExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                private int count;
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "CameraEncode-" + (++count));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return encodeExecutor;
+    }
+
+    /**
+     * @param metrics the metrics of the request
+     * @param job     the job of the request or null if it cannot be cancelled
+     */
+    public ImagePipeline(Context context, RequestMetrics metrics, ProcessingJob job) {
+        this.context = context;
+        this.metrics = metrics;
+        this.job = job;
+    }
+
+    public ImagePipeline setInspector(Inspector inspector) {
+        this.inspector = inspector;
+        return this;
+    }
+
+    public ImagePipeline setDecoder(Decoder decoder) {
+        this.decoder = decoder;
+        return this;
+    }
+
+    public ImagePipeline setTransformer(Transformer transformer) {
+        this.transformer = transformer;
+        return this;
+    }
+
+    /**
+     * @param targetWidth  wanted width or a value less than 1 to derive it from the height
+     * @param targetHeight wanted height or a value less than 1 to derive it from the width
+     */
+    public ImagePipeline setTargetSize(int targetWidth, int targetHeight) {
+        this.targetWidth = targetWidth;
+        this.targetHeight = targetHeight;
+        return this;
+    }
+
+    public ImagePipeline setCorrectOrientation(boolean correctOrientation) {
+        this.correctOrientation = correctOrientation;
+        return this;
+    }
+
+    /**
+     * @param cropRect region to keep, in fractions of the displayed image, or null
+     */
+    public ImagePipeline setCropRect(RectF cropRect) {
+        this.cropRect = cropRect;
+        return this;
+    }
+
+    public ImagePipeline setEncoding(int encodingType, int quality, int maxBytes) {
+        this.encodingType = encodingType;
+        this.quality = quality;
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * @param png level and filter of PNG outputs, or null to leave them to Bitmap.compress
+     */
+    public ImagePipeline setPngOptions(ParallelPngEncoder.Options png) {
+        this.png = png;
+        return this;
+    }
+
+    /**
+     * @param jpegCoding one of the JpegStreamEncoder codings, the CameraJpegCoding preference
+     *                   when not set
+     */
+    public ImagePipeline setJpegCoding(int jpegCoding) {
+        this.jpegCoding = jpegCoding;
+        return this;
+    }
+
+    /**
+     * Whether the last decode() rotated the pixels upright.
+     */
+    public boolean isOrientationCorrected() {
+        return orientationCorrected;
+    }
+
+    /**
+     * Runs the inspect, plan, decode and transform stages.
+     *
+     * @return the bitmap to encode or null if the source could not be decoded
+     */
+    public Bitmap decode(Uri source) throws IOException {
+        checkpoint(ProcessingJob.Stage.DECODE);
+        orientationCorrected = false;
+
+        if (cropRect != null) {
+            return decodeRegion(source);
+        }
+
+        ImageInfo info = inspect(source);
+        if (info == null) {
+            return null;
+        }
+        int rotate = correctOrientation ? info.rotation : 0;
+        return decode(source, info, plan(info, rotate), rotate);
+    }
+
+    /**
+     * Writes every output to the location the sink provides.
+     *
+     * @return the output Uris in the order of the list, or null if the source could not be decoded
+     */
+    public List<Uri> process(Uri source, List<Output> outputs, final OutputSink sink) throws IOException {
+        return processOutputs(source, outputs, new OutputEncoder<Uri>() {
+            @Override
+            public Uri encode(Bitmap bitmap, Output output, int index) throws IOException {
+                Uri uri = sink.createOutput(output, index);
+                if (job != null) {
+                    job.addOutput(uri);
+                }
+                BitmapEncoder.encode(context, bitmap, output.encodingType, output.quality, maxBytes, png, jpegCoding, uri);
+                return uri;
+            }
+        });
+    }
+
+    /**
+     * Encodes every output into memory, for results returned as data URLs.
+     *
+     * @return the encoded images in the order of the list, or null if the source could not be decoded
+     */
+    public List<byte[]> encode(Uri source, List<Output> outputs) throws IOException {
+        return processOutputs(source, outputs, new OutputEncoder<byte[]>() {
+            @Override
+            public byte[] encode(Bitmap bitmap, Output output, int index) throws IOException {
+                return BitmapEncoder.encode(context, bitmap, output.encodingType, output.quality, maxBytes, png, jpegCoding);
+            }
+        });
+    }
+
+    /**
+     * Decodes the source once for the largest output, scales each smaller output down from
+     * the next larger one and runs the encodes in parallel. The request's target size and
+     * encoding are replaced by those of the outputs.
+     */
+    private <T> List<T> processOutputs(Uri source, final List<Output> outputs, final OutputEncoder<T> encoder) throws IOException {
+        checkpoint(ProcessingJob.Stage.DECODE);
+        orientationCorrected = false;
+        ImageInfo info = inspect(source);
+        if (info == null) {
+            return null;
+        }
+
+        // Rank the outputs by their size relative to the upright image, or the region of it
+        boolean upright = cropRect != null || correctOrientation;
+        boolean rotated = upright && (info.rotation == 90 || info.rotation == 270);
+        int width = rotated ? info.height : info.width;
+        int height = rotated ? info.width : info.height;
+        if (cropRect != null) {
+            width = Math.max(1, Math.round(width * cropRect.width()));
+            height = Math.max(1, Math.round(height * cropRect.height()));
+        }
+        final long[] areas = new long[outputs.size()];
+        Integer[] order = new Integer[outputs.size()];
+        boolean allJpeg = true;
+        int maxQuality = 0;
+        for (int i = 0; i < outputs.size(); i++) {
+            Output output = outputs.get(i);
+            int[] size = BaseCameraManager.calculateAspectRatio(width, height, output.targetWidth, output.targetHeight);
+            areas[i] = (long) size[0] * size[1];
+            order[i] = i;
+            allJpeg &= output.encodingType == BaseCameraManager.JPEG;
+            maxQuality = Math.max(maxQuality, output.quality);
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return areas[b] < areas[a] ? -1 : (areas[b] == areas[a] ? 0 : 1);
+            }
+        });
+
+        // The decode has to keep enough precision for the most demanding output
+        Output largest = outputs.get(order[0]);
+        setTargetSize(largest.targetWidth, largest.targetHeight);
+        encodingType = allJpeg ? BaseCameraManager.JPEG : BaseCameraManager.PNG;
+        quality = maxQuality;
+        Bitmap decoded;
+        if (cropRect != null) {
+            decoded = decodeRegion(source);
+        } else {
+            int rotate = correctOrientation ? info.rotation : 0;
+            decoded = decode(source, info, plan(info, rotate), rotate);
+        }
+        if (decoded == null) {
+            return null;
+        }
+
+        final Bitmap[] bitmaps = new Bitmap[outputs.size()];
+        try {
+            bitmaps[order[0]] = decoded;
+            Bitmap previous = decoded;
+            for (int i = 1; i < order.length; i++) {
+                checkpoint(ProcessingJob.Stage.TRANSFORM);
+                Output output = outputs.get(order[i]);
+                int[] size = BaseCameraManager.calculateAspectRatio(decoded.getWidth(), decoded.getHeight(),
+                        output.targetWidth, output.targetHeight);
+                int outWidth = Math.max(1, Math.min(size[0], previous.getWidth()));
+                int outHeight = Math.max(1, Math.min(size[1], previous.getHeight()));
+                if (outWidth != previous.getWidth() || outHeight != previous.getHeight()) {
+                    previous = transformer.scale(previous, outWidth, outHeight, metrics);
+                }
+                bitmaps[order[i]] = previous;
+            }
+            return encodeOutputs(bitmaps, outputs, encoder);
+        } finally {
+            // Outputs of the same size share their bitmap
+            for (int i = 0; i < order.length; i++) {
+                Bitmap bitmap = bitmaps[order[i]];
+                if (bitmap != null && (i == 0 || bitmap != bitmaps[order[i - 1]])) {
+                    bitmap.recycle();
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the first encode on the calling thread and the others on the encode pool.
+     */
+    private <T> List<T> encodeOutputs(final Bitmap[] bitmaps, final List<Output> outputs, final OutputEncoder<T> encoder) throws IOException {
+        checkpoint(ProcessingJob.Stage.ENCODE);
+        long start = metrics.start(RequestMetrics.Stage.ENCODE);
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+        try {
+            ExecutorService pool = getEncodeExecutor();
+            for (int i = 1; i < outputs.size(); i++) {
+                final int index = i;
+                futures.add(pool.submit(new Callable<T>() {
+                    @Override
+                    public T call() throws IOException {
+                        return encoder.encode(bitmaps[index], outputs.get(index), index);
+                    }
+                }));
+            }
+            List<T> results = new ArrayList<T>(outputs.size());
+            results.add(encoder.encode(bitmaps[0], outputs.get(0), 0));
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return Collections.unmodifiableList(results);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while encoding");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            // The bitmaps are recycled once this returns, so no encode may still be running
+            for (Future<T> future : futures) {
+                if (!future.isDone()) {
+                    try {
+                        future.get();
+                    } catch (Exception e) {
+                        LOG.d(LOG_TAG, "Output encode failed: " + e.toString());
+                    }
+                }
+            }
+            metrics.stop(RequestMetrics.Stage.ENCODE, start);
+        }
+    }
+
+    /**
+     * Decodes only the selected region, already rotated upright.
+     */
+    private Bitmap decodeRegion(Uri source) throws IOException {
+        long start = metrics.start(RequestMetrics.Stage.DECODE);
+        Bitmap bitmap = RegionCropper.decodeRegion(context, source, cropRect, targetWidth, targetHeight);
+        metrics.stop(RequestMetrics.Stage.DECODE, start);
+        metrics.recordBitmap(bitmap);
+        orientationCorrected = bitmap != null;
+        return bitmap;
+    }
+
+    /**
+     * Runs every stage from the source to a new output of the sink. When the output is a JPEG
+     * too large to hold as one bitmap, the decode, transform and encode stages run band by
+     * band through TiledImageEncoder instead, so the full size is kept.
+     *
+     * @return the output the image was written to or null if the source could not be decoded
+     */
+    public Uri process(Uri source, Sink sink) throws IOException {
+        // Streaming needs a fixed quality and the whole image, which rules out maxBytes and crops
+        if (cropRect != null || maxBytes > 0 || encodingType != BaseCameraManager.JPEG) {
+            return decodeAndEncode(source, sink);
+        }
+        checkpoint(ProcessingJob.Stage.DECODE);
+        orientationCorrected = false;
+        ImageInfo info = inspect(source);
+        if (info == null) {
+            return null;
+        }
+        int rotate = correctOrientation ? info.rotation : 0;
+        int[] size = getTargetSize(info, rotate);
+        DecodePlanner.Plan plan = plan(info, rotate);
+        if (!plan.isTiled() && plan.outWidth == size[0] && plan.outHeight == size[1]) {
+            Bitmap bitmap = decode(source, info, plan, rotate);
+            return bitmap != null ? encodeAndRecycle(bitmap, sink) : null;
+        }
+
+        checkpoint(ProcessingJob.Stage.ENCODE);
+        Uri output = sink.createOutput();
+        if (job != null) {
+            job.addOutput(output);
+        }
+        OutputStream outputStream = context.getContentResolver().openOutputStream(output);
+        if (outputStream == null) {
+            throw new IOException("Unable to open " + output);
+        }
+        boolean rotated = rotate == 90 || rotate == 270;
+        long start = metrics.start(RequestMetrics.Stage.ENCODE);
+        try {
+            BufferedOutputStream bufferedStream = new BufferedOutputStream(outputStream);
+            TiledImageEncoder.encode(context, source, info, rotated ? size[1] : size[0], rotated ? size[0] : size[1],
+                    rotate, plan.config, quality, jpegCoding, bufferedStream, job);
+            bufferedStream.flush();
+        } finally {
+            metrics.stop(RequestMetrics.Stage.ENCODE, start);
+            try {
+                outputStream.close();
+            } catch (IOException e) {
+                LOG.d(LOG_TAG, "Exception while closing output stream.");
+            }
+        }
+        orientationCorrected = rotate != 0;
+        return output;
+    }
+
+    private Uri decodeAndEncode(Uri source, Sink sink) throws IOException {
+        Bitmap bitmap = decode(source);
+        return bitmap != null ? encodeAndRecycle(bitmap, sink) : null;
+    }
+
+    private Uri encodeAndRecycle(Bitmap bitmap, Sink sink) throws IOException {
+        try {
+            return encode(bitmap, sink);
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    private ImageInfo inspect(Uri source) throws IOException {
+        long start = metrics.start(RequestMetrics.Stage.EXIF);
+        try {
+            ImageInfo info = inspector.inspect(context, source);
+            if (info == null) {
+                LOG.d(LOG_TAG, "Unable to read the image size");
+            }
+            return info;
+        } finally {
+            metrics.stop(RequestMetrics.Stage.EXIF, start);
+        }
+    }
+
+    private Bitmap decode(Uri source, ImageInfo info, DecodePlanner.Plan plan, int rotate) throws IOException {
+        long start = metrics.start(RequestMetrics.Stage.DECODE);
+        Bitmap bitmap;
+        try {
+            bitmap = decoder.decode(context, source, info, plan, rotate);
+        } finally {
+            metrics.stop(RequestMetrics.Stage.DECODE, start);
+        }
+        if (bitmap == null) {
+            return null;
+        }
+        metrics.recordBitmap(bitmap);
+
+        if (job != null && job.isCancelled()) {
+            bitmap.recycle();
+            checkpoint(ProcessingJob.Stage.TRANSFORM);
+        }
+        if (!decoder.transforms(plan)) {
+            bitmap = transformer.transform(bitmap, plan, rotate, metrics);
+        }
+        orientationCorrected = rotate != 0;
+        return bitmap;
+    }
+
+    /**
+     * Runs the plan stage: the output size in the stored orientation of the source, and how to
+     * decode it within the memory budget.
+     */
+    DecodePlanner.Plan plan(ImageInfo info, int rotate) {
+        int[] size = getTargetSize(info, rotate);
+        return DecodePlanner.plan(info.width, info.height, size[0], size[1],
+                DecodePlanner.selectConfigs(info.mimeType, encodingType, quality), rotate != 0, true);
+    }
+
+    /**
+     * Returns the requested output size in the stored orientation of the source.
+     */
+    private int[] getTargetSize(ImageInfo info, int rotate) {
+        boolean rotated = rotate == 90 || rotate == 270;
+        int[] widthHeight = BaseCameraManager.calculateAspectRatio(
+                rotated ? info.height : info.width, rotated ? info.width : info.height, targetWidth, targetHeight);
+        return rotated ? new int[]{widthHeight[1], widthHeight[0]} : widthHeight;
+    }
+
+    /**
+     * Runs the encode stage into a new output of the sink.
+     *
+     * @return the output the image was written to
+     */
+    public Uri encode(Bitmap bitmap, Sink sink) throws IOException {
+        checkpoint(ProcessingJob.Stage.ENCODE);
+        Uri output = sink.createOutput();
+        if (job != null) {
+            job.addOutput(output);
+        }
+        long start = metrics.start(RequestMetrics.Stage.ENCODE);
+        try {
+            BitmapEncoder.encode(context, bitmap, encodingType, quality, maxBytes, png, jpegCoding, output);
+        } finally {
+            metrics.stop(RequestMetrics.Stage.ENCODE, start);
+        }
+        return output;
+    }
+
+    /**
+     * Runs the encode stage into memory, for results returned as data URLs.
+     */
+    public byte[] encode(Bitmap bitmap) throws IOException {
+        checkpoint(ProcessingJob.Stage.ENCODE);
+        long start = metrics.start(RequestMetrics.Stage.ENCODE);
+        try {
+            byte[] data = BitmapEncoder.encode(context, bitmap, encodingType, quality, maxBytes, png, jpegCoding);
+            metrics.addBytesWritten(data.length);
+            return data;
+        } finally {
+            metrics.stop(RequestMetrics.Stage.ENCODE, start);
+        }
+    }
+
+    private void checkpoint(ProcessingJob.Stage stage) {
+        if (job != null) {
+            job.checkpoint(stage);
+        }
+    }
+
+    private static void closeQuietly(InputStream stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                LOG.d(LOG_TAG, "Exception while closing file input stream.");
+            }
+        }
+    }
+}
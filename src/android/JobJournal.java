@@ -0,0 +1,287 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Durable record of the jobs being processed, so a request whose process is killed while
+ * processing is resumed when the app starts again instead of lost. Each job is a small JSON
+ * file in the files dir holding the job id, the request with the Uris it was processing, the
+ * last stage boundary it passed and the outputs it wrote. Files are replaced by renaming a
+ * complete copy, a crash never leaves a half written record.
+ * <p>
+ * Two boundaries are recorded: INGEST when processing starts and WRITE once the outputs are
+ * complete. Decoded bitmaps do not survive the process, so a job killed before WRITE starts
+ * over from its source image, and one killed after it only sends the outputs again. The entry
+ * is removed once the result is sent.
+ */
+public class JobJournal {
+    private static final String DIRECTORY = "camera-jobs";
+    private static final String EXTENSION = ".json";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final String JOB_ID_KEY = "jobId";
+    private static final String STAGE_KEY = "stage";
+    private static final String OUTPUTS_KEY = "outputs";
+    private static final String REQUEST_KEY = "request";
+    private static final String FILE_PREFIX = "job-";
+
+    // Entries of requests that were never resumed are dropped after a day
+    static final long MAX_AGE_MS = 24 * 60 * 60 * 1000L;
+
+    private static JobJournal instance;
+
+    private final File directory;
+    private boolean leftoversCollected;
+    private List<Entry> leftovers;             // Jobs of the killed process, until they are taken
+
+    /**
+     * A job read back from the journal.
+     */
+    public static class Entry {
+        public final String jobId;
+        public final ProcessingJob.Stage stage;
+        public final List<String> outputs;     // Uris of the outputs, empty before WRITE
+        public final JSONObject request;       // State of the request, null if it cannot be read
+
+        Entry(String jobId, ProcessingJob.Stage stage, List<String> outputs, JSONObject request) {
+            this.jobId = jobId;
+            this.stage = stage;
+            this.outputs = Collections.unmodifiableList(outputs);
+            this.request = request;
+        }
+    }
+
+    /**
+     * Tells whether a recorded output is still there.
+     */
+    public interface Outputs {
+        boolean exists(String output);
+    }
+
+    public static synchronized JobJournal getInstance(File filesDir) {
+        if (instance == null) {
+            instance = new JobJournal(new File(filesDir, DIRECTORY));
+            instance.removeOlderThan(System.currentTimeMillis() - MAX_AGE_MS);
+        }
+        return instance;
+    }
+
+    /**
+     * Forgets the instance, the way the death of the process does.
+     */
+    static synchronized void reset() {
+        instance = null;
+    }
+
+    JobJournal(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Records that processing of the job starts.
+     *
+     * @param request everything needed to process the request again
+     */
+    public synchronized void begin(String jobId, JSONObject request) throws IOException {
+        write(jobId, ProcessingJob.Stage.INGEST, Collections.<String>emptyList(), request);
+    }
+
+    /**
+     * Records that the job has written all its outputs and only the result is left to send.
+     *
+     * @param outputs the Uris sent as the result
+     */
+    public synchronized void write(String jobId, JSONObject request, List<String> outputs) throws IOException {
+        write(jobId, ProcessingJob.Stage.WRITE, outputs, request);
+    }
+
+    /**
+     * Keeps the entries in the journal as the jobs a killed process left. It has to be called
+     * before any job of this process begins; only the first call of the process lists them.
+     */
+    public synchronized void collectLeftovers() {
+        if (!leftoversCollected) {
+            leftoversCollected = true;
+            leftovers = list();
+        }
+    }
+
+    /**
+     * Returns the jobs collectLeftovers found, once. They are not removed until
+     * they are resumed and complete.
+     */
+    public synchronized List<Entry> takeLeftovers() {
+        List<Entry> entries = leftovers != null ? leftovers : Collections.<Entry>emptyList();
+        leftovers = null;
+        return entries;
+    }
+
+    /**
+     * @return every job in the journal, in no particular order. A record that cannot be parsed
+     * belongs to a job that started, it is returned at INGEST.
+     */
+    synchronized List<Entry> list() {
+        List<Entry> entries = new ArrayList<Entry>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return entries;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(FILE_PREFIX) || !name.endsWith(EXTENSION)) {
+                continue;
+            }
+            try {
+                String jobId = URLDecoder.decode(name.substring(FILE_PREFIX.length(), name.length() - EXTENSION.length()), "UTF-8");
+                entries.add(read(jobId, file));
+            } catch (IOException e) {
+                // Removed meanwhile, or not readable at all
+            } catch (IllegalArgumentException e) {
+                // Not a name this class wrote
+            }
+        }
+        return entries;
+    }
+
+    private static Entry read(String jobId, File file) throws IOException {
+        try {
+            JSONObject record = new JSONObject(read(file));
+            ProcessingJob.Stage stage = ProcessingJob.Stage.valueOf(record.getString(STAGE_KEY));
+            List<String> outputs = new ArrayList<String>();
+            JSONArray recordedOutputs = record.optJSONArray(OUTPUTS_KEY);
+            if (recordedOutputs != null) {
+                for (int i = 0; i < recordedOutputs.length(); i++) {
+                    outputs.add(recordedOutputs.getString(i));
+                }
+            }
+            return new Entry(jobId, stage, outputs, record.optJSONObject(REQUEST_KEY));
+        } catch (JSONException e) {
+            return new Entry(jobId, ProcessingJob.Stage.INGEST, Collections.<String>emptyList(), null);
+        } catch (IllegalArgumentException e) {
+            // Written by a version with other stages
+            return new Entry(jobId, ProcessingJob.Stage.INGEST, Collections.<String>emptyList(), null);
+        }
+    }
+
+    /**
+     * Forgets the job once its result or error has been sent.
+     */
+    public synchronized void remove(String jobId) {
+        getFile(jobId).delete();
+    }
+
+    /**
+     * Returns the stage a restored job continues from: WRITE when all of its outputs were
+     * written and are still there, INGEST otherwise. Stages before WRITE are not checkpointed,
+     * they all start over.
+     */
+    public static ProcessingJob.Stage getResumeStage(Entry entry, Outputs outputs) {
+        if (entry.stage != ProcessingJob.Stage.WRITE || entry.outputs.isEmpty()) {
+            return ProcessingJob.Stage.INGEST;
+        }
+        for (String output : entry.outputs) {
+            if (!outputs.exists(output)) {
+                return ProcessingJob.Stage.INGEST;
+            }
+        }
+        return ProcessingJob.Stage.WRITE;
+    }
+
+    synchronized void removeOlderThan(long time) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            // Temporary files are leftovers of interrupted writes
+            if (file.getName().endsWith(TEMP_SUFFIX) || file.lastModified() < time) {
+                file.delete();
+            }
+        }
+    }
+
+    private File getFile(String jobId) {
+        try {
+            // Job ids come from JavaScript, encoding keeps them inside the directory
+            return new File(directory, FILE_PREFIX + URLEncoder.encode(jobId, "UTF-8") + EXTENSION);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void write(String jobId, ProcessingJob.Stage stage, List<String> outputs, JSONObject request) throws IOException {
+        JSONObject record = new JSONObject();
+        try {
+            record.put(JOB_ID_KEY, jobId);
+            record.put(STAGE_KEY, stage.name());
+            record.put(OUTPUTS_KEY, new JSONArray(outputs));
+            record.put(REQUEST_KEY, request);
+        } catch (JSONException e) {
+            throw new IOException(e.toString());
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        File file = getFile(jobId);
+        File temp = new File(directory, file.getName() + TEMP_SUFFIX);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(record.toString().getBytes("UTF-8"));
+            // The rename must not reach the disk before the content
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to move " + temp);
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) file.length()];
+            int length = 0;
+            int count;
+            while (length < data.length && (count = in.read(data, length, data.length - length)) != -1) {
+                length += count;
+            }
+            return new String(data, 0, length, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
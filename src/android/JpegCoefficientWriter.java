@@ -0,0 +1,396 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Holds the quantized coefficients of a whole image for JpegStreamEncoder, so they can be
+ * entropy coded in two passes: the first counts the symbols of a scan and builds Huffman
+ * tables fitted to them, the second writes the scan with those tables. The coefficients are
+ * written either as a single baseline scan or as the progressive scans of libjpeg's
+ * jpeg_simple_progression, which a viewer can show at rising quality while the file loads.
+ * <p>
+ * Coefficients are shorts in zigzag order, 64 per block, blocks in raster order per
+ * component, so the buffer takes 3/4 of an ARGB bitmap of the image. Plain Java only, so it
+ * runs on any JVM.
+ */
+public class JpegCoefficientWriter {
+    // Component (-1 for all), first and last coefficient, successive approximation high and low bit
+    private static final int[][] PROGRESSIVE_SCANS = {
+            {-1, 0, 0, 0, 1},
+            {0, 1, 5, 0, 2},
+            {2, 1, 63, 0, 1},
+            {1, 1, 63, 0, 1},
+            {0, 6, 63, 0, 2},
+            {0, 1, 63, 2, 1},
+            {-1, 0, 0, 1, 0},
+            {2, 1, 63, 1, 0},
+            {1, 1, 63, 1, 0},
+            {0, 1, 63, 1, 0}
+    };
+
+    // Correction bits of a refinement scan held back for an end of block run, as in libjpeg
+    private static final int MAX_CORRECTION_BITS = 1000;
+
+    private static final int MAX_EOB_RUN = 0x7FFF;
+
+    // Takes the bits of the counting pass
+    private static final JpegStreamEncoder.BitWriter DISCARD = new JpegStreamEncoder.BitWriter(null) {
+        @Override
+        void writeBits(int value, int count) {
+        }
+    };
+
+    private OutputStream out;
+    private final JpegStreamEncoder.BitWriter scanWriter;
+    private final int mcusPerRow;
+    private final int mcuRows;
+    private final short[][] blocks = new short[3][];
+    private final int[] blocksPerLine = new int[3];
+    // Blocks of each component inside the image, the ones a single component scan codes
+    private final int[] columns = new int[3];
+    private final int[] rows = new int[3];
+
+    JpegCoefficientWriter(OutputStream out, int width, int height) {
+        this.out = out;
+        this.scanWriter = new JpegStreamEncoder.BitWriter(out);
+        mcusPerRow = (width + JpegStreamEncoder.MCU_SIZE - 1) / JpegStreamEncoder.MCU_SIZE;
+        mcuRows = (height + JpegStreamEncoder.MCU_SIZE - 1) / JpegStreamEncoder.MCU_SIZE;
+        for (int c = 0; c < 3; c++) {
+            int factor = getSamplingFactor(c);
+            blocksPerLine[c] = mcusPerRow * factor;
+            blocks[c] = new short[blocksPerLine[c] * mcuRows * factor * 64];
+            // Chroma planes are half the size, rounded up
+            int divisor = 2 / factor;
+            columns[c] = ((width + divisor - 1) / divisor + 7) / 8;
+            rows[c] = ((height + divisor - 1) / divisor + 7) / 8;
+        }
+    }
+
+    /**
+     * Writes the next image into another stream. Every block is overwritten by the rows of
+     * the next image, so the blocks are reused as they are.
+     */
+    void setOutput(OutputStream out) {
+        this.out = out;
+        scanWriter.setOutput(out);
+    }
+
+    /**
+     * Memory the coefficients of an image of this size take.
+     */
+    public static long getBufferBytes(int width, int height) {
+        long mcus = (long) ((width + JpegStreamEncoder.MCU_SIZE - 1) / JpegStreamEncoder.MCU_SIZE)
+                * ((height + JpegStreamEncoder.MCU_SIZE - 1) / JpegStreamEncoder.MCU_SIZE);
+        return mcus * 6 * 64 * 2;
+    }
+
+    private static int getSamplingFactor(int component) {
+        return component == 0 ? 2 : 1;
+    }
+
+    short[] getBlocks(int component) {
+        return blocks[component];
+    }
+
+    /**
+     * Index of the first coefficient of a block in the array of its component.
+     */
+    int getOffset(int component, int blockX, int blockY) {
+        return (blockY * blocksPerLine[component] + blockX) * 64;
+    }
+
+    /**
+     * Writes the headers and scans, everything between the start and the end of image markers.
+     */
+    void write(JpegStreamEncoder encoder, boolean progressive) throws IOException {
+        encoder.writeFrameHeaders(progressive ? 0xC2 : 0xC0);
+        if (progressive) {
+            for (int[] scan : PROGRESSIVE_SCANS) {
+                writeProgressiveScan(scan[0], scan[1], scan[2], scan[3], scan[4]);
+            }
+        } else {
+            writeSequentialScan();
+        }
+    }
+
+    private void writeSequentialScan() throws IOException {
+        JpegStreamEncoder.SymbolCounter[] dcCounters = {new JpegStreamEncoder.SymbolCounter(), new JpegStreamEncoder.SymbolCounter()};
+        JpegStreamEncoder.SymbolCounter[] acCounters = {new JpegStreamEncoder.SymbolCounter(), new JpegStreamEncoder.SymbolCounter()};
+        codeSequential(dcCounters, acCounters, DISCARD);
+        JpegStreamEncoder.HuffmanTable[] dcTables = {dcCounters[0].toTable(), dcCounters[1].toTable()};
+        JpegStreamEncoder.HuffmanTable[] acTables = {acCounters[0].toTable(), acCounters[1].toTable()};
+
+        JpegStreamEncoder.writeMarker(out, 0xC4);
+        JpegStreamEncoder.writeShort(out, 2 + dcTables[0].length() + acTables[0].length() + dcTables[1].length() + acTables[1].length());
+        dcTables[0].write(out, 0x00);
+        acTables[0].write(out, 0x10);
+        dcTables[1].write(out, 0x01);
+        acTables[1].write(out, 0x11);
+
+        writeScanHeader(new int[]{1, 0x00, 2, 0x11, 3, 0x11}, 0, 63, 0);
+        JpegStreamEncoder.BitWriter writer = scanWriter;
+        codeSequential(dcTables, acTables, writer);
+        writer.flush();
+    }
+
+    private void codeSequential(JpegStreamEncoder.HuffmanTable[] dcTables, JpegStreamEncoder.HuffmanTable[] acTables,
+                                JpegStreamEncoder.BitWriter writer) throws IOException {
+        int[] predictions = new int[3];
+        for (int mcuY = 0; mcuY < mcuRows; mcuY++) {
+            for (int mcuX = 0; mcuX < mcusPerRow; mcuX++) {
+                for (int c = 0; c < 3; c++) {
+                    int factor = getSamplingFactor(c);
+                    int table = c == 0 ? 0 : 1;
+                    for (int y = 0; y < factor; y++) {
+                        for (int x = 0; x < factor; x++) {
+                            int offset = getOffset(c, mcuX * factor + x, mcuY * factor + y);
+                            predictions[c] = JpegStreamEncoder.encodeBlock(blocks[c], offset, predictions[c],
+                                    dcTables[table], acTables[table], writer);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes one scan of the progression: the DC coefficients of all components, or a band of
+     * AC coefficients of one component.
+     */
+    private void writeProgressiveScan(int component, int first, int last, int high, int low) throws IOException {
+        int scanBits = (high << 4) | low;
+        JpegStreamEncoder.BitWriter writer = scanWriter;
+        if (first == 0) {
+            JpegStreamEncoder.HuffmanTable[] tables = null;
+            if (high == 0) {
+                // Refinements are raw bits and need no table
+                JpegStreamEncoder.SymbolCounter[] counters = {new JpegStreamEncoder.SymbolCounter(), new JpegStreamEncoder.SymbolCounter()};
+                codeDc(low, high, counters, DISCARD);
+                tables = new JpegStreamEncoder.HuffmanTable[]{counters[0].toTable(), counters[1].toTable()};
+                JpegStreamEncoder.writeMarker(out, 0xC4);
+                JpegStreamEncoder.writeShort(out, 2 + tables[0].length() + tables[1].length());
+                tables[0].write(out, 0x00);
+                tables[1].write(out, 0x01);
+            }
+            writeScanHeader(new int[]{1, 0x00, 2, 0x10, 3, 0x10}, 0, 0, scanBits);
+            codeDc(low, high, tables, writer);
+        } else {
+            int table = component == 0 ? 0 : 1;
+            JpegStreamEncoder.SymbolCounter counter = new JpegStreamEncoder.SymbolCounter();
+            codeAc(component, first, last, high, low, counter, DISCARD);
+            JpegStreamEncoder.HuffmanTable acTable = counter.toTable();
+            JpegStreamEncoder.writeMarker(out, 0xC4);
+            JpegStreamEncoder.writeShort(out, 2 + acTable.length());
+            acTable.write(out, 0x10 | table);
+
+            writeScanHeader(new int[]{component + 1, table}, first, last, scanBits);
+            codeAc(component, first, last, high, low, acTable, writer);
+        }
+        writer.flush();
+    }
+
+    private void writeScanHeader(int[] components, int first, int last, int scanBits) throws IOException {
+        JpegStreamEncoder.writeMarker(out, 0xDA);
+        JpegStreamEncoder.writeShort(out, 6 + components.length);
+        out.write(components.length / 2);
+        for (int value : components) {
+            out.write(value);
+        }
+        out.write(first);
+        out.write(last);
+        out.write(scanBits);
+    }
+
+    /**
+     * Codes the DC coefficients of all components, interleaved as in a baseline scan. The first
+     * scan codes the differences of the coefficients shifted right by the low bit, a refinement
+     * scan appends the next lower bit of each.
+     */
+    private void codeDc(int low, int high, JpegStreamEncoder.HuffmanTable[] tables, JpegStreamEncoder.BitWriter writer) throws IOException {
+        int[] predictions = new int[3];
+        for (int mcuY = 0; mcuY < mcuRows; mcuY++) {
+            for (int mcuX = 0; mcuX < mcusPerRow; mcuX++) {
+                for (int c = 0; c < 3; c++) {
+                    int factor = getSamplingFactor(c);
+                    for (int y = 0; y < factor; y++) {
+                        for (int x = 0; x < factor; x++) {
+                            int value = blocks[c][getOffset(c, mcuX * factor + x, mcuY * factor + y)] >> low;
+                            if (high > 0) {
+                                writer.writeBits(value, 1);
+                                continue;
+                            }
+                            int diff = value - predictions[c];
+                            predictions[c] = value;
+                            int size = JpegStreamEncoder.bitLength(diff);
+                            tables[c == 0 ? 0 : 1].encode(writer, size);
+                            if (size > 0) {
+                                writer.writeBits(diff < 0 ? diff - 1 : diff, size);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Codes a band of AC coefficients of one component, block by block in raster order.
+     */
+    private void codeAc(int component, int first, int last, int high, int low, JpegStreamEncoder.HuffmanTable table,
+                        JpegStreamEncoder.BitWriter writer) throws IOException {
+        AcCoder coder = new AcCoder(table, writer);
+        short[] data = blocks[component];
+        for (int y = 0; y < rows[component]; y++) {
+            for (int x = 0; x < columns[component]; x++) {
+                int offset = getOffset(component, x, y);
+                if (high == 0) {
+                    coder.codeFirst(data, offset, first, last, low);
+                } else {
+                    coder.codeRefinement(data, offset, first, last, low);
+                }
+            }
+        }
+        coder.flushEndOfBlocks();
+    }
+
+    /**
+     * Codes the AC coefficients of successive blocks, following G.1.2.2 and G.1.2.3 the way
+     * libjpeg's jcphuff does. Blocks with only zeros left in the band are folded into end of
+     * block runs, which in a refinement scan carry the correction bits of their blocks.
+     */
+    private static class AcCoder {
+        private final JpegStreamEncoder.HuffmanTable table;
+        private final JpegStreamEncoder.BitWriter writer;
+        private final int[] magnitudes = new int[64];
+        private final byte[] corrections = new byte[MAX_CORRECTION_BITS];
+        private int endOfBlocks;
+        // Correction bits that belong to the pending end of block run
+        private int pendingCorrections;
+
+        AcCoder(JpegStreamEncoder.HuffmanTable table, JpegStreamEncoder.BitWriter writer) {
+            this.table = table;
+            this.writer = writer;
+        }
+
+        void codeFirst(short[] data, int offset, int first, int last, int low) throws IOException {
+            int run = 0;
+            for (int k = first; k <= last; k++) {
+                int value = data[offset + k];
+                int magnitude = (value < 0 ? -value : value) >> low;
+                if (magnitude == 0) {
+                    run++;
+                    continue;
+                }
+                flushEndOfBlocks();
+                while (run > 15) {
+                    table.encode(writer, 0xF0);
+                    run -= 16;
+                }
+                int size = JpegStreamEncoder.bitLength(magnitude);
+                table.encode(writer, (run << 4) | size);
+                writer.writeBits(value < 0 ? ~magnitude : magnitude, size);
+                run = 0;
+            }
+            if (run > 0) {
+                endOfBlocks++;
+                if (endOfBlocks == MAX_EOB_RUN) {
+                    flushEndOfBlocks();
+                }
+            }
+        }
+
+        void codeRefinement(short[] data, int offset, int first, int last, int low) throws IOException {
+            // The last coefficient that becomes nonzero in this scan
+            int end = 0;
+            for (int k = first; k <= last; k++) {
+                int value = data[offset + k];
+                magnitudes[k] = (value < 0 ? -value : value) >> low;
+                if (magnitudes[k] == 1) {
+                    end = k;
+                }
+            }
+
+            int run = 0;
+            // Correction bits of this block, appended to the pending ones
+            int start = pendingCorrections;
+            int count = 0;
+            for (int k = first; k <= last; k++) {
+                int magnitude = magnitudes[k];
+                if (magnitude == 0) {
+                    run++;
+                    continue;
+                }
+                // Zero runs past the last new coefficient are folded into the end of block
+                while (run > 15 && k <= end) {
+                    flushEndOfBlocks();
+                    table.encode(writer, 0xF0);
+                    run -= 16;
+                    writeCorrections(start, count);
+                    start = 0;
+                    count = 0;
+                }
+                if (magnitude > 1) {
+                    // Already nonzero after the previous scan, only the next bit is sent
+                    corrections[start + count++] = (byte) (magnitude & 1);
+                    continue;
+                }
+                flushEndOfBlocks();
+                table.encode(writer, (run << 4) | 1);
+                writer.writeBits(data[offset + k] < 0 ? 0 : 1, 1);
+                writeCorrections(start, count);
+                start = 0;
+                count = 0;
+                run = 0;
+            }
+            if (run > 0 || count > 0) {
+                endOfBlocks++;
+                pendingCorrections += count;
+                if (endOfBlocks == MAX_EOB_RUN || pendingCorrections > MAX_CORRECTION_BITS - 64 + 1) {
+                    flushEndOfBlocks();
+                }
+            }
+        }
+
+        /**
+         * Writes the pending end of block run and the correction bits it carries.
+         */
+        void flushEndOfBlocks() throws IOException {
+            if (endOfBlocks == 0) {
+                return;
+            }
+            int size = JpegStreamEncoder.bitLength(endOfBlocks) - 1;
+            table.encode(writer, size << 4);
+            if (size > 0) {
+                writer.writeBits(endOfBlocks, size);
+            }
+            endOfBlocks = 0;
+            writeCorrections(0, pendingCorrections);
+            pendingCorrections = 0;
+        }
+
+        private void writeCorrections(int start, int count) throws IOException {
+            for (int i = start; i < start + count; i++) {
+                writer.writeBits(corrections[i], 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,930 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Baseline JPEG encoder that takes the image a few rows at a time, so an image can be
+ * written without ever holding all of its pixels. Pixels are packed ARGB ints as returned by
+ * Bitmap.getPixels; alpha is ignored. The output uses 4:2:0 chroma subsampling and the
+ * quantization tables of the JPEG specification scaled the same way libjpeg scales them, so
+ * quality values mean the same as for Bitmap.compress.
+ * <p>
+ * Rows are buffered until a full row of 16x16 MCUs is available, then transformed and
+ * entropy coded. Plain Java only, no Android classes, so it runs on any JVM.
+ * <p>
+ * The headers, tables and MCU coder are also used by ParallelJpegEncoder, which codes strips
+ * of MCU rows separated by restart markers on several threads.
+ * <p>
+ * With optimized or progressive coding the quantized coefficients are kept in a
+ * JpegCoefficientWriter instead, which entropy codes them once all rows are in, with Huffman
+ * tables built for the image.
+ */
+public class JpegStreamEncoder {
+    public static final String CODING_PREFERENCE = "CameraJpegCoding";
+
+    // Baseline with the Huffman tables of Annex K.3, as Bitmap.compress writes
+    public static final int CODING_STANDARD = 0;
+    // Baseline with Huffman tables built for the image
+    public static final int CODING_OPTIMIZED = 1;
+    // Progressive scans with Huffman tables built for every scan
+    public static final int CODING_PROGRESSIVE = 2;
+
+    private static final String[] CODING_NAMES = {"standard", "optimized", "progressive"};
+
+    static final int MCU_SIZE = 16;
+
+    private static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10,
+            17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    // Annex K.1, in natural order
+    private static final int[] LUMINANCE_QUANTIZATION = {
+            16, 11, 10, 16, 24, 40, 51, 61,
+            12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56,
+            14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77,
+            24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103, 99
+    };
+    private static final int[] CHROMINANCE_QUANTIZATION = {
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99
+    };
+
+    // Annex K.3, code lengths followed by symbols
+    private static final int[] DC_LUMINANCE_BITS = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    private static final int[] DC_LUMINANCE_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private static final int[] DC_CHROMINANCE_BITS = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    private static final int[] DC_CHROMINANCE_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private static final int[] AC_LUMINANCE_BITS = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+    private static final int[] AC_LUMINANCE_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+            0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+    private static final int[] AC_CHROMINANCE_BITS = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    private static final int[] AC_CHROMINANCE_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+            0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+            0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+            0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+            0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+
+    private static final double[] AAN_SCALE = {
+            1.0, 1.387039845, 1.306562965, 1.175875602, 1.0, 0.785694958, 0.541196100, 0.275899379
+    };
+
+    private OutputStream out;
+    private final int width;
+    private final int height;
+    private int quality;
+
+    private final int[] luminanceTable = new int[64];
+    private final int[] chrominanceTable = new int[64];
+    private final float[] luminanceDivisors = new float[64];
+    private final float[] chrominanceDivisors = new float[64];
+    private final HuffmanTable dcLuminance = new HuffmanTable(DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+    private final HuffmanTable acLuminance = new HuffmanTable(AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+    private final HuffmanTable dcChrominance = new HuffmanTable(DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+    private final HuffmanTable acChrominance = new HuffmanTable(AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+    private static volatile int defaultCoding = CODING_STANDARD;
+
+    private final int[] rowBuffer;
+    private int restartRows;
+    private int coding = CODING_STANDARD;
+    private JpegCoefficientWriter coefficients;
+    // Kept across restart, it is the largest buffer of optimized and progressive coding
+    private JpegCoefficientWriter coefficientBuffer;
+    private int bufferedRows;
+    private int writtenRows;
+    private final McuCoder coder;
+    private final BitWriter writer;
+    private boolean started;
+
+    /**
+     * @param out     stream the JPEG is written to; it is not closed
+     * @param width   width of the image
+     * @param height  height of the image
+     * @param quality 0-100, as for Bitmap.compress
+     */
+    public JpegStreamEncoder(OutputStream out, int width, int height, int quality) {
+        if (width <= 0 || height <= 0 || width > 65535 || height > 65535) {
+            throw new IllegalArgumentException("Unsupported JPEG size " + width + "x" + height);
+        }
+        this.out = out;
+        this.width = width;
+        this.height = height;
+        this.quality = Math.max(1, Math.min(100, quality));
+        scaleTable(LUMINANCE_QUANTIZATION, this.quality, luminanceTable, luminanceDivisors);
+        scaleTable(CHROMINANCE_QUANTIZATION, this.quality, chrominanceTable, chrominanceDivisors);
+        this.rowBuffer = new int[width * MCU_SIZE];
+        this.coder = new McuCoder();
+        this.writer = new BitWriter(out);
+    }
+
+    /**
+     * Prepares the encoder to write the same image again, at another quality and into another
+     * stream. The row buffer, the coder and the coefficient buffer are kept, so a quality
+     * search encodes every candidate without allocating them again. The coding and restart
+     * interval stay as they were set.
+     *
+     * @param out     stream the next JPEG is written to
+     * @param quality 0-100, as for Bitmap.compress
+     */
+    void restart(OutputStream out, int quality) {
+        this.out = out;
+        this.quality = Math.max(1, Math.min(100, quality));
+        // The coders read the divisors, updating them in place keeps the coders valid
+        scaleTable(LUMINANCE_QUANTIZATION, this.quality, luminanceTable, luminanceDivisors);
+        scaleTable(CHROMINANCE_QUANTIZATION, this.quality, chrominanceTable, chrominanceDivisors);
+        writer.setOutput(out);
+        coder.resetPredictions();
+        coefficients = null;
+        bufferedRows = 0;
+        writtenRows = 0;
+        started = false;
+    }
+
+    /**
+     * Sets the coding the plugin uses for JPEG outputs.
+     *
+     * @param name one of standard, optimized or progressive
+     */
+    public static void setDefaultCoding(String name) {
+        defaultCoding = parseCoding(name);
+    }
+
+    public static int getDefaultCoding() {
+        return defaultCoding;
+    }
+
+    /**
+     * @param coding the coding a request asked for, or -1 for the CameraJpegCoding preference
+     * @return the coding to use
+     */
+    public static int resolveCoding(int coding) {
+        return coding >= CODING_STANDARD && coding <= CODING_PROGRESSIVE ? coding : defaultCoding;
+    }
+
+    static int parseCoding(String name) {
+        if (name != null) {
+            String lower = name.toLowerCase(Locale.US);
+            for (int i = 0; i < CODING_NAMES.length; i++) {
+                if (CODING_NAMES[i].equals(lower)) {
+                    return i;
+                }
+            }
+        }
+        return CODING_STANDARD;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Number of MCU columns, the MCUs coded per row of 16 pixel lines.
+     */
+    int getMcusPerRow() {
+        return (width + MCU_SIZE - 1) / MCU_SIZE;
+    }
+
+    int getMcuRows() {
+        return (height + MCU_SIZE - 1) / MCU_SIZE;
+    }
+
+    /**
+     * Inserts a restart marker after every given number of MCU rows, so a decoder can resync
+     * after a corrupted interval. Must be called before the first row is written.
+     *
+     * @param mcuRows rows of MCUs per restart interval, 0 for none
+     */
+    public void setRestartInterval(int mcuRows) {
+        if (started) {
+            throw new IllegalStateException("Restart interval set after the headers were written");
+        }
+        if (mcuRows < 0 || (long) mcuRows * getMcusPerRow() > 0xFFFF) {
+            throw new IllegalArgumentException("Unsupported restart interval of " + mcuRows + " MCU rows");
+        }
+        if (mcuRows > 0 && coding != CODING_STANDARD) {
+            throw new IllegalStateException("Restart intervals need standard coding");
+        }
+        restartRows = mcuRows;
+    }
+
+    /**
+     * Selects how the coefficients are entropy coded. Anything but standard coding holds the
+     * coefficients of the whole image, JpegCoefficientWriter.getBufferBytes, until finish.
+     * Must be called before the first row is written.
+     *
+     * @param coding CODING_STANDARD, CODING_OPTIMIZED or CODING_PROGRESSIVE
+     */
+    public void setCoding(int coding) {
+        if (started) {
+            throw new IllegalStateException("Coding set after the headers were written");
+        }
+        if (coding < CODING_STANDARD || coding > CODING_PROGRESSIVE) {
+            throw new IllegalArgumentException("Unsupported JPEG coding " + coding);
+        }
+        if (coding != CODING_STANDARD && restartRows > 0) {
+            throw new IllegalStateException("Restart intervals need standard coding");
+        }
+        this.coding = coding;
+    }
+
+    /**
+     * Appends rows to the image.
+     *
+     * @param pixels ARGB pixels
+     * @param offset index of the first pixel of the first row
+     * @param stride distance between the starts of two rows
+     * @param rows   number of rows to append
+     */
+    public void writeRows(int[] pixels, int offset, int stride, int rows) throws IOException {
+        if (writtenRows + bufferedRows + rows > height) {
+            throw new IllegalStateException("More rows than the image height");
+        }
+        if (!started) {
+            start();
+        }
+        for (int row = 0; row < rows; row++) {
+            System.arraycopy(pixels, offset + row * stride, rowBuffer, bufferedRows * width, width);
+            bufferedRows++;
+            if (bufferedRows == MCU_SIZE) {
+                flushMcuRow();
+            }
+        }
+    }
+
+    /**
+     * Encodes the last partial MCU row and writes the end of image marker.
+     *
+     * @throws IllegalStateException if fewer rows than the image height were written
+     */
+    public void finish() throws IOException {
+        if (writtenRows + bufferedRows != height) {
+            throw new IllegalStateException("Only " + (writtenRows + bufferedRows) + " of " + height + " rows written");
+        }
+        if (!started) {
+            start();
+        }
+        if (bufferedRows > 0) {
+            flushMcuRow();
+        }
+        if (coefficients != null) {
+            coefficients.write(this, coding == CODING_PROGRESSIVE);
+            coefficients = null;
+        } else {
+            writer.flush();
+        }
+        writeEndOfImage();
+    }
+
+    private void start() throws IOException {
+        if (coding == CODING_STANDARD) {
+            writeHeaders();
+        } else {
+            started = true;
+            if (coefficientBuffer == null) {
+                coefficientBuffer = new JpegCoefficientWriter(out, width, height);
+            } else {
+                coefficientBuffer.setOutput(out);
+            }
+            coefficients = coefficientBuffer;
+        }
+    }
+
+    private void flushMcuRow() throws IOException {
+        int mcuRow = writtenRows / MCU_SIZE;
+        if (coefficients != null) {
+            coder.quantizeRow(rowBuffer, width, bufferedRows, coefficients, mcuRow);
+            writtenRows += bufferedRows;
+            bufferedRows = 0;
+            return;
+        }
+        if (restartRows > 0 && mcuRow > 0 && mcuRow % restartRows == 0) {
+            writer.writeRestart(mcuRow / restartRows - 1);
+            coder.resetPredictions();
+        }
+        int rows = bufferedRows;
+        coder.encodeRow(rowBuffer, width, rows, writer);
+        writtenRows += rows;
+        bufferedRows = 0;
+    }
+
+    /**
+     * Returns a coder for a range of MCU rows written by another thread.
+     */
+    McuCoder newCoder() {
+        return new McuCoder();
+    }
+
+    void writeEndOfImage() throws IOException {
+        writeMarker(out, 0xD9);
+        out.flush();
+    }
+
+    /**
+     * Writes everything up to the start of the entropy coded data.
+     */
+    void writeHeaders() throws IOException {
+        writeFrameHeaders(0xC0);
+
+        writeMarker(out, 0xC4);
+        writeShort(out, 2 + dcLuminance.length() + acLuminance.length() + dcChrominance.length() + acChrominance.length());
+        dcLuminance.write(out, 0x00);
+        acLuminance.write(out, 0x10);
+        dcChrominance.write(out, 0x01);
+        acChrominance.write(out, 0x11);
+
+        if (restartRows > 0) {
+            writeMarker(out, 0xDD);
+            writeShort(out, 4);
+            writeShort(out, restartRows * getMcusPerRow());
+        }
+
+        writeMarker(out, 0xDA);
+        writeShort(out, 6 + 2 * 3);
+        out.write(3);
+        out.write(new byte[]{1, 0x00, 2, 0x11, 3, 0x11});
+        out.write(0);
+        out.write(63);
+        out.write(0);
+    }
+
+    /**
+     * Writes the start of image, the JFIF segment, the quantization tables and the frame
+     * header, everything that does not depend on the Huffman tables.
+     *
+     * @param frameMarker SOF0 for baseline, SOF2 for progressive
+     */
+    void writeFrameHeaders(int frameMarker) throws IOException {
+        started = true;
+        writeMarker(out, 0xD8);
+
+        // JFIF APP0, 1:1 pixel aspect ratio, no thumbnail
+        writeMarker(out, 0xE0);
+        writeShort(out, 16);
+        out.write(new byte[]{'J', 'F', 'I', 'F', 0, 1, 1, 0});
+        writeShort(out, 1);
+        writeShort(out, 1);
+        out.write(0);
+        out.write(0);
+
+        writeMarker(out, 0xDB);
+        writeShort(out, 2 + 2 * 65);
+        out.write(0);
+        for (int i = 0; i < 64; i++) {
+            out.write(luminanceTable[ZIGZAG[i]]);
+        }
+        out.write(1);
+        for (int i = 0; i < 64; i++) {
+            out.write(chrominanceTable[ZIGZAG[i]]);
+        }
+
+        writeMarker(out, frameMarker);
+        writeShort(out, 8 + 3 * 3);
+        out.write(8);
+        writeShort(out, height);
+        writeShort(out, width);
+        out.write(3);
+        out.write(new byte[]{1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1});
+    }
+
+    static void writeMarker(OutputStream out, int marker) throws IOException {
+        out.write(0xFF);
+        out.write(marker);
+    }
+
+    static void writeShort(OutputStream out, int value) throws IOException {
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    /**
+     * Scales a base table the way libjpeg's jpeg_set_quality does and derives the divisors of
+     * the AAN DCT, which leaves every coefficient multiplied by its scale factors.
+     */
+    private static void scaleTable(int[] base, int quality, int[] table, float[] divisors) {
+        int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+        for (int i = 0; i < 64; i++) {
+            int value = (base[i] * scale + 50) / 100;
+            table[i] = Math.max(1, Math.min(255, value));
+        }
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                int i = row * 8 + col;
+                divisors[i] = (float) (1.0 / (table[i] * AAN_SCALE[row] * AAN_SCALE[col] * 8.0));
+            }
+        }
+    }
+
+    /**
+     * Encodes rows of MCUs. Holds the DC predictions and the scratch blocks, so one coder is
+     * used by one thread at a time.
+     */
+    class McuCoder {
+        private final float[] block = new float[64];
+        private final short[] coefficients = new short[64];
+        private final float[] cbPlane = new float[64];
+        private final float[] crPlane = new float[64];
+        private int yPrediction;
+        private int cbPrediction;
+        private int crPrediction;
+
+        void resetPredictions() {
+            yPrediction = 0;
+            cbPrediction = 0;
+            crPrediction = 0;
+        }
+
+        /**
+         * Encodes one row of MCUs.
+         *
+         * @param pixels ARGB pixels of the row, width pixels per line
+         * @param rows   lines present, at most 16; missing lines repeat the last one
+         */
+        void encodeRow(int[] pixels, int width, int rows, BitWriter writer) throws IOException {
+            for (int x = 0; x < width; x += MCU_SIZE) {
+                for (int blockY = 0; blockY < MCU_SIZE; blockY += 8) {
+                    for (int blockX = 0; blockX < MCU_SIZE; blockX += 8) {
+                        loadLuminance(pixels, width, rows, x + blockX, blockY);
+                        quantizeBlock(luminanceDivisors, coefficients, 0);
+                        yPrediction = encodeBlock(coefficients, 0, yPrediction, dcLuminance, acLuminance, writer);
+                    }
+                }
+                loadChrominance(pixels, width, rows, x);
+                System.arraycopy(cbPlane, 0, block, 0, 64);
+                quantizeBlock(chrominanceDivisors, coefficients, 0);
+                cbPrediction = encodeBlock(coefficients, 0, cbPrediction, dcChrominance, acChrominance, writer);
+                System.arraycopy(crPlane, 0, block, 0, 64);
+                quantizeBlock(chrominanceDivisors, coefficients, 0);
+                crPrediction = encodeBlock(coefficients, 0, crPrediction, dcChrominance, acChrominance, writer);
+            }
+        }
+
+        /**
+         * Transforms and quantizes one row of MCUs into the coefficient buffer, for coding once
+         * the whole image is in.
+         *
+         * @param mcuRow index of the row of MCUs
+         */
+        void quantizeRow(int[] pixels, int width, int rows, JpegCoefficientWriter buffer, int mcuRow) {
+            short[] luminance = buffer.getBlocks(0);
+            short[] cb = buffer.getBlocks(1);
+            short[] cr = buffer.getBlocks(2);
+            for (int x = 0, mcu = 0; x < width; x += MCU_SIZE, mcu++) {
+                for (int blockY = 0; blockY < MCU_SIZE; blockY += 8) {
+                    for (int blockX = 0; blockX < MCU_SIZE; blockX += 8) {
+                        loadLuminance(pixels, width, rows, x + blockX, blockY);
+                        quantizeBlock(luminanceDivisors, luminance, buffer.getOffset(0, 2 * mcu + blockX / 8, 2 * mcuRow + blockY / 8));
+                    }
+                }
+                loadChrominance(pixels, width, rows, x);
+                System.arraycopy(cbPlane, 0, block, 0, 64);
+                quantizeBlock(chrominanceDivisors, cb, buffer.getOffset(1, mcu, mcuRow));
+                System.arraycopy(crPlane, 0, block, 0, 64);
+                quantizeBlock(chrominanceDivisors, cr, buffer.getOffset(2, mcu, mcuRow));
+            }
+        }
+
+        private void loadLuminance(int[] pixels, int width, int rows, int left, int top) {
+            for (int y = 0; y < 8; y++) {
+                int line = Math.min(top + y, rows - 1) * width;
+                for (int x = 0; x < 8; x++) {
+                    int pixel = pixels[line + Math.min(left + x, width - 1)];
+                    int r = (pixel >> 16) & 0xFF;
+                    int g = (pixel >> 8) & 0xFF;
+                    int b = pixel & 0xFF;
+                    block[y * 8 + x] = 0.299f * r + 0.587f * g + 0.114f * b - 128f;
+                }
+            }
+        }
+
+        /**
+         * Averages each 2x2 group of pixels into one chroma sample.
+         */
+        private void loadChrominance(int[] pixels, int width, int rows, int left) {
+            for (int y = 0; y < 8; y++) {
+                int line0 = Math.min(2 * y, rows - 1) * width;
+                int line1 = Math.min(2 * y + 1, rows - 1) * width;
+                for (int x = 0; x < 8; x++) {
+                    int x0 = Math.min(left + 2 * x, width - 1);
+                    int x1 = Math.min(left + 2 * x + 1, width - 1);
+                    int p0 = pixels[line0 + x0];
+                    int p1 = pixels[line0 + x1];
+                    int p2 = pixels[line1 + x0];
+                    int p3 = pixels[line1 + x1];
+                    float r = (((p0 >> 16) & 0xFF) + ((p1 >> 16) & 0xFF) + ((p2 >> 16) & 0xFF) + ((p3 >> 16) & 0xFF)) * 0.25f;
+                    float g = (((p0 >> 8) & 0xFF) + ((p1 >> 8) & 0xFF) + ((p2 >> 8) & 0xFF) + ((p3 >> 8) & 0xFF)) * 0.25f;
+                    float b = ((p0 & 0xFF) + (p1 & 0xFF) + (p2 & 0xFF) + (p3 & 0xFF)) * 0.25f;
+                    cbPlane[y * 8 + x] = -0.168736f * r - 0.331264f * g + 0.5f * b;
+                    crPlane[y * 8 + x] = 0.5f * r - 0.418688f * g - 0.081312f * b;
+                }
+            }
+        }
+
+        /**
+         * Transforms and quantizes the block into 64 coefficients in zigzag order.
+         */
+        private void quantizeBlock(float[] divisors, short[] coefficients, int offset) {
+            forwardDct(block);
+            for (int k = 0; k < 64; k++) {
+                int index = ZIGZAG[k];
+                coefficients[offset + k] = (short) Math.round(block[index] * divisors[index]);
+            }
+        }
+    }
+
+    /**
+     * Entropy codes a quantized block for a sequential scan.
+     *
+     * @param coefficients holds the 64 coefficients of the block in zigzag order
+     * @return the quantized DC value, the prediction for the next block
+     */
+    static int encodeBlock(short[] coefficients, int offset, int prediction, HuffmanTable dcTable, HuffmanTable acTable,
+                           BitWriter writer) throws IOException {
+        int dc = coefficients[offset];
+        int diff = dc - prediction;
+        int size = bitLength(diff);
+        dcTable.encode(writer, size);
+        if (size > 0) {
+            writer.writeBits(diff < 0 ? diff - 1 : diff, size);
+        }
+
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int value = coefficients[offset + k];
+            if (value == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                acTable.encode(writer, 0xF0);
+                run -= 16;
+            }
+            size = bitLength(value);
+            acTable.encode(writer, (run << 4) | size);
+            writer.writeBits(value < 0 ? value - 1 : value, size);
+            run = 0;
+        }
+        if (run > 0) {
+            acTable.encode(writer, 0x00);
+        }
+        return dc;
+    }
+
+    static int bitLength(int value) {
+        value = value < 0 ? -value : value;
+        return 32 - Integer.numberOfLeadingZeros(value);
+    }
+
+    /**
+     * Arai, Agui and Nakajima forward DCT on an 8x8 block, in place. The outputs are scaled by
+     * the AAN factors, which the quantization divisors undo.
+     */
+    static void forwardDct(float[] data) {
+        for (int pass = 0; pass < 2; pass++) {
+            int step = pass == 0 ? 1 : 8;
+            int next = pass == 0 ? 8 : 1;
+            for (int i = 0; i < 8; i++) {
+                int p = i * next;
+                float d0 = data[p];
+                float d1 = data[p + step];
+                float d2 = data[p + 2 * step];
+                float d3 = data[p + 3 * step];
+                float d4 = data[p + 4 * step];
+                float d5 = data[p + 5 * step];
+                float d6 = data[p + 6 * step];
+                float d7 = data[p + 7 * step];
+
+                float tmp0 = d0 + d7;
+                float tmp7 = d0 - d7;
+                float tmp1 = d1 + d6;
+                float tmp6 = d1 - d6;
+                float tmp2 = d2 + d5;
+                float tmp5 = d2 - d5;
+                float tmp3 = d3 + d4;
+                float tmp4 = d3 - d4;
+
+                float tmp10 = tmp0 + tmp3;
+                float tmp13 = tmp0 - tmp3;
+                float tmp11 = tmp1 + tmp2;
+                float tmp12 = tmp1 - tmp2;
+
+                data[p] = tmp10 + tmp11;
+                data[p + 4 * step] = tmp10 - tmp11;
+
+                float z1 = (tmp12 + tmp13) * 0.707106781f;
+                data[p + 2 * step] = tmp13 + z1;
+                data[p + 6 * step] = tmp13 - z1;
+
+                tmp10 = tmp4 + tmp5;
+                tmp11 = tmp5 + tmp6;
+                tmp12 = tmp6 + tmp7;
+
+                float z5 = (tmp10 - tmp12) * 0.382683433f;
+                float z2 = 0.541196100f * tmp10 + z5;
+                float z4 = 1.306562965f * tmp12 + z5;
+                float z3 = tmp11 * 0.707106781f;
+
+                float z11 = tmp7 + z3;
+                float z13 = tmp7 - z3;
+
+                data[p + 5 * step] = z13 + z2;
+                data[p + 3 * step] = z13 - z2;
+                data[p + step] = z11 + z4;
+                data[p + 7 * step] = z11 - z4;
+            }
+        }
+    }
+
+    /**
+     * Canonical Huffman table built from the code length counts of a DHT segment.
+     */
+    static class HuffmanTable {
+        private final int[] bits;
+        private final int[] values;
+        private final int[] codes = new int[256];
+        private final int[] sizes = new int[256];
+
+        HuffmanTable(int[] bits, int[] values) {
+            this.bits = bits;
+            this.values = values;
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                for (int i = 0; i < bits[length - 1]; i++) {
+                    codes[values[k]] = code;
+                    sizes[values[k]] = length;
+                    code++;
+                    k++;
+                }
+                code <<= 1;
+            }
+        }
+
+        int length() {
+            return 1 + 16 + values.length;
+        }
+
+        void write(OutputStream out, int tableClassAndId) throws IOException {
+            out.write(tableClassAndId);
+            for (int count : bits) {
+                out.write(count);
+            }
+            for (int value : values) {
+                out.write(value);
+            }
+        }
+
+        void encode(BitWriter writer, int symbol) throws IOException {
+            writer.writeBits(codes[symbol], sizes[symbol]);
+        }
+
+        /**
+         * Builds the table with the shortest codes for the given symbol counts, limited to
+         * 16 bits, following Annex K.2 the way libjpeg's jpeg_gen_optimal_table does.
+         *
+         * @param counts occurrences of each of the 256 symbols
+         */
+        static HuffmanTable optimal(long[] counts) {
+            // Symbol 256 reserves one code point so no code is all one bits
+            long[] frequencies = new long[257];
+            System.arraycopy(counts, 0, frequencies, 0, 256);
+            frequencies[256] = 1;
+            int[] codeSize = new int[257];
+            int[] others = new int[257];
+            Arrays.fill(others, -1);
+
+            while (true) {
+                // The two least frequent trees, the larger symbol first on ties
+                int c1 = -1;
+                long v = Long.MAX_VALUE;
+                for (int i = 0; i <= 256; i++) {
+                    if (frequencies[i] != 0 && frequencies[i] <= v) {
+                        v = frequencies[i];
+                        c1 = i;
+                    }
+                }
+                int c2 = -1;
+                v = Long.MAX_VALUE;
+                for (int i = 0; i <= 256; i++) {
+                    if (frequencies[i] != 0 && frequencies[i] <= v && i != c1) {
+                        v = frequencies[i];
+                        c2 = i;
+                    }
+                }
+                if (c2 < 0) {
+                    break;
+                }
+                frequencies[c1] += frequencies[c2];
+                frequencies[c2] = 0;
+                codeSize[c1]++;
+                while (others[c1] >= 0) {
+                    c1 = others[c1];
+                    codeSize[c1]++;
+                }
+                others[c1] = c2;
+                codeSize[c2]++;
+                while (others[c2] >= 0) {
+                    c2 = others[c2];
+                    codeSize[c2]++;
+                }
+            }
+
+            int[] lengthCounts = new int[33];
+            for (int i = 0; i <= 256; i++) {
+                if (codeSize[i] > 0) {
+                    lengthCounts[codeSize[i]]++;
+                }
+            }
+            // Codes longer than 16 bits borrow a prefix from a shorter code, Figure K.3
+            for (int i = 32; i > 16; i--) {
+                while (lengthCounts[i] > 0) {
+                    int j = i - 2;
+                    while (lengthCounts[j] == 0) {
+                        j--;
+                    }
+                    lengthCounts[i] -= 2;
+                    lengthCounts[i - 1]++;
+                    lengthCounts[j + 1] += 2;
+                    lengthCounts[j]--;
+                }
+            }
+            // Drop the reserved code point, which has the longest code
+            int longest = 16;
+            while (lengthCounts[longest] == 0) {
+                longest--;
+            }
+            lengthCounts[longest]--;
+
+            int[] bits = new int[16];
+            System.arraycopy(lengthCounts, 1, bits, 0, 16);
+            int symbols = 0;
+            for (int count : bits) {
+                symbols += count;
+            }
+            int[] values = new int[symbols];
+            int k = 0;
+            for (int length = 1; length <= 32; length++) {
+                for (int i = 0; i < 256; i++) {
+                    if (codeSize[i] == length) {
+                        values[k++] = i;
+                    }
+                }
+            }
+            return new HuffmanTable(bits, values);
+        }
+    }
+
+    /**
+     * Stands in for a Huffman table during a first pass over the coefficients and counts the
+     * symbols instead of coding them.
+     */
+    static class SymbolCounter extends HuffmanTable {
+        private final long[] counts = new long[256];
+
+        SymbolCounter() {
+            super(new int[16], new int[0]);
+        }
+
+        @Override
+        void encode(BitWriter writer, int symbol) {
+            counts[symbol]++;
+        }
+
+        HuffmanTable toTable() {
+            return optimal(counts);
+        }
+    }
+
+    /**
+     * Packs entropy coded bits into bytes, stuffing a zero byte after every 0xFF.
+     */
+    static class BitWriter {
+        private OutputStream out;
+        private final byte[] buffer = new byte[8192];
+        private int position;
+        private int bitBuffer;
+        private int bitCount;
+
+        BitWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        /**
+         * Drops anything not flushed and writes to another stream from now on.
+         */
+        void setOutput(OutputStream out) {
+            this.out = out;
+            position = 0;
+            bitBuffer = 0;
+            bitCount = 0;
+        }
+
+        void writeBits(int value, int count) throws IOException {
+            value &= (1 << count) - 1;
+            bitBuffer = (bitBuffer << count) | value;
+            bitCount += count;
+            while (bitCount >= 8) {
+                int b = (bitBuffer >> (bitCount - 8)) & 0xFF;
+                putByte(b);
+                if (b == 0xFF) {
+                    putByte(0);
+                }
+                bitCount -= 8;
+            }
+        }
+
+        /**
+         * Pads the last byte with one bits, as the specification requires before a marker.
+         */
+        void alignToByte() throws IOException {
+            if (bitCount > 0) {
+                writeBits(0x7F, 8 - bitCount);
+            }
+            bitBuffer = 0;
+        }
+
+        /**
+         * Ends the current interval with the restart marker RSTn, n being the interval index
+         * modulo 8.
+         */
+        void writeRestart(int interval) throws IOException {
+            alignToByte();
+            putByte(0xFF);
+            putByte(0xD0 + (interval & 7));
+        }
+
+        void flush() throws IOException {
+            alignToByte();
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+
+        private void putByte(int b) throws IOException {
+            if (position == buffer.length) {
+                out.write(buffer, 0, position);
+                position = 0;
+            }
+            buffer[position++] = (byte) b;
+        }
+    }
+}
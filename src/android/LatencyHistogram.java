@@ -0,0 +1,111 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-bucket latency histogram that can be recorded into from any thread without locks or
+ * allocation. Values are kept in microseconds in log-linear buckets: every power of two is
+ * split into four sub-buckets, so a percentile is accurate to within 25%.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // 2^36 microseconds is about 19 hours, anything longer lands in the last bucket
+    private static final int MAX_EXPONENT = 36;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - 1) * SUB_BUCKETS + SUB_BUCKETS;
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos duration in nanoseconds
+     */
+    public void record(long nanos) {
+        counts.incrementAndGet(bucketIndex(nanos / 1000L));
+    }
+
+    static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return micros < 0 ? 0 : (int) micros;
+        }
+        long value = Math.min(micros, MAX_VALUE);
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the largest value, in microseconds, that falls into the bucket.
+     */
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + 1;
+        long subBucket = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Copies the bucket counts into the given array, optionally clearing them. Each bucket is
+     * swapped atomically, so a value recorded concurrently is counted by exactly one snapshot.
+     *
+     * @param out   array of at least getBucketCount() elements
+     * @param reset whether to clear the buckets
+     * @return the number of values in the snapshot
+     */
+    public long snapshot(long[] out, boolean reset) {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            out[i] = reset ? counts.getAndSet(i, 0) : counts.get(i);
+            total += out[i];
+        }
+        return total;
+    }
+
+    /**
+     * Returns the value at the given percentile of a snapshot, in milliseconds.
+     *
+     * @param snapshot bucket counts from snapshot()
+     * @param total    the number of values in the snapshot
+     * @param quantile between 0 and 1
+     */
+    public static double percentile(long[] snapshot, long total, double quantile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return bucketUpperBound(i) / 1000d;
+            }
+        }
+        return bucketUpperBound(BUCKET_COUNT - 1) / 1000d;
+    }
+
+    public static int getBucketCount() {
+        return BUCKET_COUNT;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Baseline JPEG encoder that splits the image into strips of MCU rows separated by restart
+ * markers. The DC predictions start over after every marker, so the strips are entropy coded
+ * independently on a fork-join pool and concatenated in order into a single valid JPEG.
+ * <p>
+ * Bitmap.compress runs on one core; with the CameraParallelJpeg preference set, BitmapEncoder
+ * hands large JPEG outputs to this class instead. Plain Java only, so it runs on any JVM.
+ */
+public class ParallelJpegEncoder {
+    public static final String PARALLEL_PREFERENCE = "CameraParallelJpeg";
+
+    // Smaller images encode faster than the strips can be scheduled
+    static final int MIN_PIXELS = 1024 * 1024;
+
+    // More strips than threads keeps the cores busy when some strips code faster than others
+    private static final int STRIPS_PER_THREAD = 4;
+
+    private static volatile boolean enabled;
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        ParallelJpegEncoder.enabled = enabled;
+    }
+
+    /**
+     * Whether an image of this size is worth splitting on this device.
+     */
+    public static boolean shouldEncode(int width, int height) {
+        return enabled && (long) width * height >= MIN_PIXELS && Runtime.getRuntime().availableProcessors() > 1;
+    }
+
+    /**
+     * Encodes the image on the shared pool.
+     *
+     * @param quality 0-100, as for Bitmap.compress
+     * @param out     stream the JPEG is written to; it is not closed
+     */
+    public static void encode(PixelStrips.Source source, int width, int height, int quality, OutputStream out) throws IOException {
+        encode(source, width, height, quality, out, PixelStrips.getPool());
+    }
+
+    static void encode(PixelStrips.Source source, int width, int height, int quality, OutputStream out, ForkJoinPool pool) throws IOException {
+        new Session(source, width, height, pool).encode(quality, out);
+    }
+
+    /**
+     * Picks the MCU rows per strip: enough strips to spread over the threads, within the
+     * 16 bit restart interval the DRI segment can express.
+     */
+    static int getStripRows(int mcuRows, int mcusPerRow, int threads) {
+        int strips = Math.max(1, threads * STRIPS_PER_THREAD);
+        int stripRows = Math.max(1, (mcuRows + strips - 1) / strips);
+        return Math.min(stripRows, Math.max(1, 0xFFFF / mcusPerRow));
+    }
+
+    /**
+     * Encodes one image as often as needed, at different qualities, as a quality search does.
+     * The header encoder, the strip tasks with their output buffers, and the pixel buffers and
+     * coders of the running strips are allocated by the first encode and reused by the later
+     * ones. Not thread safe, one encode at a time.
+     */
+    static class Session {
+        private final PixelStrips.Source source;
+        private final int width;
+        private final int height;
+        private final ForkJoinPool pool;
+        private final JpegStreamEncoder encoder;
+        private final int stripRows;
+        private final StripTask[] strips;
+        // One set per strip running at the same time, so at most one per thread
+        private final ConcurrentLinkedQueue<StripScratch> scratch = new ConcurrentLinkedQueue<StripScratch>();
+
+        Session(PixelStrips.Source source, int width, int height) {
+            this(source, width, height, PixelStrips.getPool());
+        }
+
+        Session(PixelStrips.Source source, int width, int height, ForkJoinPool pool) {
+            this.source = source;
+            this.width = width;
+            this.height = height;
+            this.pool = pool;
+            encoder = new JpegStreamEncoder(null, width, height, 100);
+            int mcuRows = encoder.getMcuRows();
+            stripRows = getStripRows(mcuRows, encoder.getMcusPerRow(), pool.getParallelism());
+            encoder.setRestartInterval(stripRows);
+            strips = new StripTask[(mcuRows + stripRows - 1) / stripRows];
+            createStrips();
+        }
+
+        private void createStrips() {
+            for (int i = 0; i < strips.length; i++) {
+                int firstRow = i * stripRows * JpegStreamEncoder.MCU_SIZE;
+                int rows = Math.min(stripRows * JpegStreamEncoder.MCU_SIZE, height - firstRow);
+                strips[i] = new StripTask(encoder, source, width, firstRow, rows, scratch);
+            }
+        }
+
+        /**
+         * @param quality 0-100, as for Bitmap.compress
+         * @param out     stream the JPEG is written to; it is not closed
+         */
+        void encode(int quality, OutputStream out) throws IOException {
+            encoder.restart(out, quality);
+            encoder.writeHeaders();
+            for (StripTask strip : strips) {
+                strip.reinitialize();
+                pool.execute(strip);
+            }
+
+            try {
+                for (int i = 0; i < strips.length; i++) {
+                    if (i > 0) {
+                        out.write(0xFF);
+                        out.write(0xD0 + ((i - 1) & 7));
+                    }
+                    strips[i].join().writeTo(out);
+                }
+            } catch (RuntimeException e) {
+                for (StripTask strip : strips) {
+                    strip.cancel(false);
+                }
+                // Cancelled strips may still be running, the next encode gets strips of its own
+                createStrips();
+                if (e instanceof CancellationException) {
+                    throw e;
+                }
+                throw new IOException("Unable to encode strip", e);
+            }
+            encoder.writeEndOfImage();
+        }
+    }
+
+    /**
+     * The pixel buffer, holding a single MCU row, and the coder a strip needs while it runs.
+     */
+    private static class StripScratch {
+        final int[] pixels;
+        final JpegStreamEncoder.McuCoder coder;
+        final JpegStreamEncoder.BitWriter writer = new JpegStreamEncoder.BitWriter(null);
+
+        StripScratch(JpegStreamEncoder encoder, int width) {
+            pixels = new int[width * JpegStreamEncoder.MCU_SIZE];
+            coder = encoder.newCoder();
+        }
+    }
+
+    /**
+     * Codes one restart interval into memory. The scratch is only taken once the task runs and
+     * handed back when it is done, so only the running strips hold pixels.
+     */
+    private static class StripTask extends RecursiveTask<ByteArrayOutputStream> {
+        private final JpegStreamEncoder encoder;
+        private final PixelStrips.Source source;
+        private final int width;
+        private final int firstRow;
+        private final int rows;
+        private final ConcurrentLinkedQueue<StripScratch> scratch;
+        private final ByteArrayOutputStream data;
+
+        StripTask(JpegStreamEncoder encoder, PixelStrips.Source source, int width, int firstRow, int rows,
+                  ConcurrentLinkedQueue<StripScratch> scratch) {
+            this.encoder = encoder;
+            this.source = source;
+            this.width = width;
+            this.firstRow = firstRow;
+            this.rows = rows;
+            this.scratch = scratch;
+            // Roughly what a strip compresses to at the default quality
+            this.data = new ByteArrayOutputStream(width * rows / 4 + 64);
+        }
+
+        @Override
+        protected ByteArrayOutputStream compute() {
+            StripScratch buffers = scratch.poll();
+            if (buffers == null) {
+                buffers = new StripScratch(encoder, width);
+            }
+            data.reset();
+            buffers.writer.setOutput(data);
+            // Every strip starts a restart interval
+            buffers.coder.resetPredictions();
+            try {
+                for (int y = 0; y < rows; y += JpegStreamEncoder.MCU_SIZE) {
+                    int count = Math.min(JpegStreamEncoder.MCU_SIZE, rows - y);
+                    source.getRows(buffers.pixels, firstRow + y, count);
+                    buffers.coder.encodeRow(buffers.pixels, width, count, buffers.writer);
+                }
+                buffers.writer.flush();
+            } catch (IOException e) {
+                // ByteArrayOutputStream does not throw
+                throw new IllegalStateException(e);
+            } finally {
+                scratch.offer(buffers);
+            }
+            return data;
+        }
+    }
+}
@@ -0,0 +1,416 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * PNG encoder that deflates strips of rows in parallel, the way pigz does: every strip is
+ * compressed on its own with the last 32 KB of the strip above as preset dictionary and ends
+ * on a byte boundary with a sync flush, so the strips concatenate into one zlib stream that
+ * compresses nearly as well as a sequential one. The Adler-32 checksums of the strips are
+ * combined afterwards.
+ * <p>
+ * Bitmap.compress deflates PNG on one thread at a fixed level and ignores the quality. Requests
+ * that set pngCompressionLevel are written with this class at that level and their pngFilter;
+ * all other PNG outputs stay with Bitmap.compress. Plain Java only, so it runs on any JVM.
+ */
+public class ParallelPngEncoder {
+    // Row filters of the PNG specification, plus the per row choice libpng makes by default.
+    // The values are those of Camera.PngFilter
+    public static final int FILTER_NONE = 0;
+    public static final int FILTER_SUB = 1;
+    public static final int FILTER_UP = 2;
+    public static final int FILTER_AVERAGE = 3;
+    public static final int FILTER_PAETH = 4;
+    public static final int FILTER_ADAPTIVE = 5;
+
+    // Level of requests that leave PNG to Bitmap.compress
+    public static final int LEVEL_PLATFORM = -1;
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    // Deflate window, the most of the previous strip a dictionary can use
+    private static final int WINDOW_SIZE = 32 * 1024;
+
+    // Filtered bytes per strip, large enough that the dictionary makes up for the split
+    private static final int STRIP_BYTES = 256 * 1024;
+
+    private static final int ADLER_BASE = 65521;
+
+    /**
+     * Compression level and row filter of one request.
+     */
+    public static class Options {
+        public final int level;
+        public final int filter;
+
+        /**
+         * @param level  deflate level from 0 (store) to 9 (smallest)
+         * @param filter one of the FILTER constants; anything else selects FILTER_ADAPTIVE
+         */
+        public Options(int level, int filter) {
+            this.level = Math.max(0, Math.min(9, level));
+            this.filter = filter >= FILTER_NONE && filter <= FILTER_ADAPTIVE ? filter : FILTER_ADAPTIVE;
+        }
+
+        /**
+         * @param level the pngCompressionLevel of the request, LEVEL_PLATFORM when it was not set
+         * @return the options, or null if the request leaves PNG to Bitmap.compress
+         */
+        public static Options fromRequest(int level, int filter) {
+            return level < 0 ? null : new Options(level, filter);
+        }
+
+        @Override
+        public String toString() {
+            return level + "," + filter;
+        }
+    }
+
+    /**
+     * Encodes the image with the level and filter of the request on the shared pool.
+     *
+     * @param alpha whether to keep the alpha channel; without it the PNG is stored as RGB
+     * @param out   stream the PNG is written to; it is not closed
+     */
+    public static void encode(PixelStrips.Source source, int width, int height, boolean alpha, Options options,
+                              OutputStream out) throws IOException {
+        encode(source, width, height, alpha, options.level, options.filter, out, PixelStrips.getPool());
+    }
+
+    static void encode(PixelStrips.Source source, int width, int height, boolean alpha, int level, int filter,
+                       OutputStream out, ForkJoinPool pool) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Unsupported PNG size " + width + "x" + height);
+        }
+        int channels = alpha ? 4 : 3;
+        int lineBytes = width * channels + 1;
+        int stripRows = Math.max(1, STRIP_BYTES / lineBytes);
+        int stripCount = (height + stripRows - 1) / stripRows;
+
+        StripTask[] strips = new StripTask[stripCount];
+        for (int i = 0; i < stripCount; i++) {
+            int firstRow = i * stripRows;
+            int rows = Math.min(stripRows, height - firstRow);
+            strips[i] = new StripTask(source, width, channels, level, filter, firstRow, rows, i == stripCount - 1);
+            pool.execute(strips[i]);
+        }
+
+        out.write(SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8;
+        header[9] = (byte) (alpha ? 6 : 2);
+        writeChunk(out, "IHDR", header, 0, header.length);
+
+        try {
+            int adler = 1;
+            for (int i = 0; i < stripCount; i++) {
+                StripTask strip = strips[i];
+                strip.join();
+                strips[i] = null;
+                adler = combineAdler32(adler, strip.adler, strip.inputLength);
+                byte[] data = strip.data;
+                if (i == 0) {
+                    data = prepend(zlibHeader(level), data);
+                }
+                if (i == stripCount - 1) {
+                    byte[] trailer = new byte[4];
+                    putInt(trailer, 0, adler);
+                    data = append(data, trailer);
+                }
+                writeChunk(out, "IDAT", data, 0, data.length);
+            }
+        } catch (RuntimeException e) {
+            for (StripTask strip : strips) {
+                if (strip != null) {
+                    strip.cancel(false);
+                }
+            }
+            if (e instanceof CancellationException) {
+                throw e;
+            }
+            throw new IOException("Unable to encode strip", e);
+        }
+        writeChunk(out, "IEND", new byte[0], 0, 0);
+        out.flush();
+    }
+
+    /**
+     * CMF and FLG bytes of the zlib stream, with the level hint zlib itself would write.
+     */
+    private static byte[] zlibHeader(int level) {
+        int levelHint = level < 2 ? 0 : (level < 6 ? 1 : (level == 6 ? 2 : 3));
+        int cmf = 0x78;
+        int flg = levelHint << 6;
+        flg += 31 - ((cmf << 8) + flg) % 31;
+        return new byte[]{(byte) cmf, (byte) flg};
+    }
+
+    /**
+     * Checksum of two concatenated blocks from the checksums of each, as zlib's
+     * adler32_combine computes it.
+     */
+    static int combineAdler32(int adler1, int adler2, long length2) {
+        long remainder = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (remainder * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + ADLER_BASE - remainder;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= (long) ADLER_BASE << 1) {
+            sum2 -= (long) ADLER_BASE << 1;
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return (int) (sum1 | (sum2 << 16));
+    }
+
+    private static void writeChunk(OutputStream out, String type, byte[] data, int offset, int length) throws IOException {
+        byte[] prefix = new byte[8];
+        putInt(prefix, 0, length);
+        for (int i = 0; i < 4; i++) {
+            prefix[4 + i] = (byte) type.charAt(i);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(prefix, 4, 4);
+        crc.update(data, offset, length);
+        byte[] suffix = new byte[4];
+        putInt(suffix, 0, (int) crc.getValue());
+        out.write(prefix);
+        out.write(data, offset, length);
+        out.write(suffix);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static byte[] prepend(byte[] prefix, byte[] data) {
+        byte[] result = new byte[prefix.length + data.length];
+        System.arraycopy(prefix, 0, result, 0, prefix.length);
+        System.arraycopy(data, 0, result, prefix.length, data.length);
+        return result;
+    }
+
+    private static byte[] append(byte[] data, byte[] suffix) {
+        byte[] result = new byte[data.length + suffix.length];
+        System.arraycopy(data, 0, result, 0, data.length);
+        System.arraycopy(suffix, 0, result, data.length, suffix.length);
+        return result;
+    }
+
+    /**
+     * Filters and deflates one strip. The rows filling the dictionary window are filtered
+     * again here rather than taken from the strip above, so strips never wait for each other.
+     */
+    private static class StripTask extends RecursiveTask<Void> {
+        private final PixelStrips.Source source;
+        private final int width;
+        private final int channels;
+        private final int level;
+        private final int filter;
+        private final int firstRow;
+        private final int rows;
+        private final boolean last;
+
+        byte[] data;
+        int adler;
+        long inputLength;
+
+        StripTask(PixelStrips.Source source, int width, int channels, int level, int filter,
+                  int firstRow, int rows, boolean last) {
+            this.source = source;
+            this.width = width;
+            this.channels = channels;
+            this.level = level;
+            this.filter = filter;
+            this.firstRow = firstRow;
+            this.rows = rows;
+            this.last = last;
+        }
+
+        @Override
+        protected Void compute() {
+            int lineBytes = width * channels + 1;
+            int dictionaryRows = Math.min(firstRow, (WINDOW_SIZE + lineBytes - 1) / lineBytes);
+            int filterStart = firstRow - dictionaryRows;
+            // The row above the first filtered one, which the up, average and paeth filters read
+            int readStart = Math.max(0, filterStart - 1);
+            int readRows = firstRow + rows - readStart;
+
+            int[] pixels = new int[width * readRows];
+            source.getRows(pixels, readStart, readRows);
+
+            byte[] filtered = new byte[(dictionaryRows + rows) * lineBytes];
+            byte[] previous = new byte[width * channels];
+            byte[] current = new byte[width * channels];
+            byte[][] candidates = filter == FILTER_ADAPTIVE ? new byte[5][width * channels] : null;
+            if (filterStart > 0) {
+                toBytes(pixels, 0, previous);
+            }
+            for (int row = filterStart; row < firstRow + rows; row++) {
+                toBytes(pixels, (row - readStart) * width, current);
+                filterRow(current, previous, filtered, (row - filterStart) * lineBytes, candidates);
+                byte[] swap = previous;
+                previous = current;
+                current = swap;
+            }
+
+            int inputOffset = dictionaryRows * lineBytes;
+            inputLength = (long) rows * lineBytes;
+            Adler32 checksum = new Adler32();
+            checksum.update(filtered, inputOffset, rows * lineBytes);
+            adler = (int) checksum.getValue();
+
+            Deflater deflater = new Deflater(level, true);
+            try {
+                if (dictionaryRows > 0) {
+                    int dictionaryLength = Math.min(WINDOW_SIZE, inputOffset);
+                    deflater.setDictionary(filtered, inputOffset - dictionaryLength, dictionaryLength);
+                }
+                deflater.setInput(filtered, inputOffset, rows * lineBytes);
+                ByteArrayOutputStream output = new ByteArrayOutputStream(rows * lineBytes / 2 + 64);
+                byte[] buffer = new byte[64 * 1024];
+                if (last) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        output.write(buffer, 0, deflater.deflate(buffer));
+                    }
+                } else {
+                    // A sync flush ends the strip on a byte boundary without ending the stream
+                    int count;
+                    do {
+                        count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                        output.write(buffer, 0, count);
+                    } while (count == buffer.length);
+                }
+                data = output.toByteArray();
+            } finally {
+                deflater.end();
+            }
+            return null;
+        }
+
+        private void toBytes(int[] pixels, int offset, byte[] line) {
+            int index = 0;
+            for (int x = 0; x < width; x++) {
+                int pixel = pixels[offset + x];
+                line[index++] = (byte) (pixel >> 16);
+                line[index++] = (byte) (pixel >> 8);
+                line[index++] = (byte) pixel;
+                if (channels == 4) {
+                    line[index++] = (byte) (pixel >>> 24);
+                }
+            }
+        }
+
+        /**
+         * Writes the filter type byte and the filtered row. The adaptive choice is the filter
+         * with the smallest sum of absolute signed differences, the heuristic libpng uses.
+         */
+        private void filterRow(byte[] current, byte[] previous, byte[] out, int offset, byte[][] candidates) {
+            if (candidates == null) {
+                out[offset] = (byte) filter;
+                applyFilter(filter, current, previous, out, offset + 1);
+                return;
+            }
+            int best = 0;
+            long bestSum = Long.MAX_VALUE;
+            for (int type = FILTER_NONE; type <= FILTER_PAETH; type++) {
+                applyFilter(type, current, previous, candidates[type], 0);
+                long sum = 0;
+                for (byte value : candidates[type]) {
+                    sum += Math.abs(value);
+                }
+                if (sum < bestSum) {
+                    bestSum = sum;
+                    best = type;
+                }
+            }
+            out[offset] = (byte) best;
+            System.arraycopy(candidates[best], 0, out, offset + 1, current.length);
+        }
+
+        private void applyFilter(int type, byte[] current, byte[] previous, byte[] out, int offset) {
+            int length = current.length;
+            int bpp = channels;
+            switch (type) {
+                case FILTER_SUB:
+                    for (int i = 0; i < length; i++) {
+                        int left = i >= bpp ? current[i - bpp] & 0xFF : 0;
+                        out[offset + i] = (byte) ((current[i] & 0xFF) - left);
+                    }
+                    break;
+                case FILTER_UP:
+                    for (int i = 0; i < length; i++) {
+                        out[offset + i] = (byte) ((current[i] & 0xFF) - (previous[i] & 0xFF));
+                    }
+                    break;
+                case FILTER_AVERAGE:
+                    for (int i = 0; i < length; i++) {
+                        int left = i >= bpp ? current[i - bpp] & 0xFF : 0;
+                        out[offset + i] = (byte) ((current[i] & 0xFF) - ((left + (previous[i] & 0xFF)) >> 1));
+                    }
+                    break;
+                case FILTER_PAETH:
+                    for (int i = 0; i < length; i++) {
+                        int left = i >= bpp ? current[i - bpp] & 0xFF : 0;
+                        int up = previous[i] & 0xFF;
+                        int upLeft = i >= bpp ? previous[i - bpp] & 0xFF : 0;
+                        out[offset + i] = (byte) ((current[i] & 0xFF) - paeth(left, up, upLeft));
+                    }
+                    break;
+                default:
+                    System.arraycopy(current, 0, out, offset, length);
+                    break;
+            }
+        }
+
+        private static int paeth(int left, int up, int upLeft) {
+            int estimate = left + up - upLeft;
+            int distanceLeft = Math.abs(estimate - left);
+            int distanceUp = Math.abs(estimate - up);
+            int distanceUpLeft = Math.abs(estimate - upLeft);
+            if (distanceLeft <= distanceUp && distanceLeft <= distanceUpLeft) {
+                return left;
+            }
+            return distanceUp <= distanceUpLeft ? up : upLeft;
+        }
+    }
+}
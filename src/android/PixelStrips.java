@@ -0,0 +1,66 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Shared parts of the stages that split an image into strips of rows and process the strips
+ * on a fork-join pool. Plain Java only, so those stages also run on any JVM.
+ */
+public class PixelStrips {
+    private static ForkJoinPool pool;
+
+    /**
+     * Supplies the pixels of a strip. Called from several pool threads at once.
+     */
+    public interface Source {
+        /**
+         * Copies rows of ARGB pixels into the array, width pixels per row.
+         *
+         * @param y    first row
+         * @param rows number of rows
+         */
+        void getRows(int[] pixels, int y, int rows);
+    }
+
+    /**
+     * Receives the pixels of a strip. Called from several pool threads at once, never twice
+     * for the same row.
+     */
+    public interface Sink {
+        /**
+         * Stores rows of ARGB pixels taken from the array, width pixels per row.
+         *
+         * @param y    first row
+         * @param rows number of rows
+         */
+        void setRows(int[] pixels, int y, int rows);
+    }
+
+    /**
+     * Returns the pool shared by all strip stages, one thread per core.
+     */
+    public static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return pool;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Base64;
+
+import androidx.exifinterface.media.ExifInterface;
+
+import org.apache.cordova.LOG;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Builds the small preview that is sent to JavaScript before the full result when the
+ * progressive delivery mode is enabled. The embedded EXIF thumbnail is used when the source
+ * has one, otherwise the source is decoded with a large sample size.
+ */
+public class PreviewHelper {
+    private static final String LOG_TAG = "PreviewHelper";
+
+    // Longest edge of the preview; EXIF thumbnails smaller than MIN_THUMBNAIL_SIZE are ignored
+    public static final int PREVIEW_SIZE = 320;
+    private static final int MIN_THUMBNAIL_SIZE = 160;
+    private static final int PREVIEW_QUALITY = 70;
+
+    /**
+     * Returns a Base64 encoded JPEG preview of the image, rotated to its display orientation.
+     *
+     * @param context   the current application context
+     * @param sourceUri the URI of the full image
+     * @return the encoded preview or null if no preview could be created
+     */
+    public static String createPreview(Context context, Uri sourceUri) {
+        Bitmap preview = null;
+        try {
+            int rotate = 0;
+            ExifInterface exif = readExif(context, sourceUri);
+            if (exif != null) {
+                rotate = exifToDegrees(exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL));
+                preview = decodeThumbnail(exif);
+            }
+            if (preview == null) {
+                preview = decodePreview(context, sourceUri);
+            }
+            if (preview == null) {
+                return null;
+            }
+            if (rotate != 0) {
+                Matrix matrix = new Matrix();
+                matrix.setRotate(rotate);
+                Bitmap rotated = Bitmap.createBitmap(preview, 0, 0, preview.getWidth(), preview.getHeight(), matrix, true);
+                if (rotated != preview) {
+                    preview.recycle();
+                    preview = rotated;
+                }
+            }
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            if (!preview.compress(Bitmap.CompressFormat.JPEG, PREVIEW_QUALITY, data)) {
+                return null;
+            }
+            return Base64.encodeToString(data.toByteArray(), Base64.NO_WRAP);
+        } catch (Exception e) {
+            LOG.w(LOG_TAG, "Unable to create preview: " + e.toString());
+            return null;
+        } finally {
+            if (preview != null) {
+                preview.recycle();
+            }
+        }
+    }
+
+    /**
+     * The preview is only rotated and compressed, which Android 9 and later can do straight
+     * from a HARDWARE bitmap whose pixels stay out of the Java heap. Earlier versions, and
+     * devices that fail to allocate one, decode into RGB_565 instead.
+     */
+    private static Bitmap decodePreview(Context context, Uri sourceUri) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            Bitmap preview = decodeSubsampled(context, sourceUri, PREVIEW_SIZE, Bitmap.Config.HARDWARE);
+            if (preview != null) {
+                return preview;
+            }
+        }
+        return decodeSubsampled(context, sourceUri, PREVIEW_SIZE);
+    }
+
+    private static ExifInterface readExif(Context context, Uri sourceUri) {
+        InputStream fileStream = null;
+        try {
+            fileStream = context.getContentResolver().openInputStream(sourceUri);
+            return fileStream != null ? new ExifInterface(fileStream) : null;
+        } catch (Exception e) {
+            LOG.d(LOG_TAG, "Unable to read Exif data: " + e.toString());
+            return null;
+        } finally {
+            closeQuietly(fileStream);
+        }
+    }
+
+    private static Bitmap decodeThumbnail(ExifInterface exif) {
+        if (!exif.hasThumbnail()) {
+            return null;
+        }
+        byte[] thumbnail = exif.getThumbnail();
+        if (thumbnail == null) {
+            return null;
+        }
+        Bitmap bitmap = BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length);
+        if (bitmap != null && Math.max(bitmap.getWidth(), bitmap.getHeight()) < MIN_THUMBNAIL_SIZE) {
+            bitmap.recycle();
+            return null;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Decodes the image with the largest power of two sample size that keeps its longest edge
+     * at or above the given size. The EXIF orientation is not applied.
+     *
+     * @param context   the current application context
+     * @param sourceUri the URI of the image
+     * @param size      minimum length of the longest edge of the decoded bitmap
+     * @return the decoded bitmap or null if the image could not be decoded
+     */
+    public static Bitmap decodeSubsampled(Context context, Uri sourceUri, int size) throws IOException {
+        return decodeSubsampled(context, sourceUri, size, Bitmap.Config.RGB_565);
+    }
+
+    /**
+     * Same as decodeSubsampled(Context, Uri, int) with the given pixel format. HARDWARE
+     * bitmaps can only be drawn, they are meant for images that are only displayed.
+     */
+    public static Bitmap decodeSubsampled(Context context, Uri sourceUri, int size, Bitmap.Config config) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        InputStream fileStream = context.getContentResolver().openInputStream(sourceUri);
+        try {
+            BitmapFactory.decodeStream(fileStream, null, options);
+        } finally {
+            closeQuietly(fileStream);
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        // Power of two sample sizes let the JPEG decoder skip most of the IDCT work
+        int sampleSize = 1;
+        int longestEdge = Math.max(options.outWidth, options.outHeight);
+        while (longestEdge / (sampleSize * 2) >= size) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = config;
+        fileStream = context.getContentResolver().openInputStream(sourceUri);
+        try {
+            return BitmapFactory.decodeStream(fileStream, null, options);
+        } finally {
+            closeQuietly(fileStream);
+        }
+    }
+
+    private static int exifToDegrees(int exifOrientation) {
+        if (exifOrientation == ExifInterface.ORIENTATION_ROTATE_90) {
+            return 90;
+        } else if (exifOrientation == ExifInterface.ORIENTATION_ROTATE_180) {
+            return 180;
+        } else if (exifOrientation == ExifInterface.ORIENTATION_ROTATE_270) {
+            return 270;
+        } else {
+            return 0;
+        }
+    }
+
+    private static void closeQuietly(InputStream fileStream) {
+        if (fileStream != null) {
+            try {
+                fileStream.close();
+            } catch (IOException e) {
+                LOG.d(LOG_TAG, "Exception while closing file input stream.");
+            }
+        }
+    }
+}
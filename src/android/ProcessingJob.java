@@ -0,0 +1,142 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import android.net.Uri;
+
+import org.apache.cordova.LOG;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Handle for the processing of a single getPicture request. JavaScript can cancel it by id;
+ * the processing code polls checkpoint() between stages and gives up with a
+ * CancellationException, after which the outputs registered so far are deleted.
+ */
+public class ProcessingJob {
+    private static final String LOG_TAG = "ProcessingJob";
+
+    /**
+     * Stages of the processing pipeline, in the order they run.
+     */
+    public enum Stage {
+        INGEST,     // reading the source and its metadata
+        DECODE,     // decoding the source into a bitmap
+        TRANSFORM,  // scaling, rotating and cropping
+        ENCODE,     // compressing into the output format
+        WRITE       // storing the result and handing it to JavaScript
+    }
+
+    private static final Map<String, ProcessingJob> ACTIVE_JOBS = new ConcurrentHashMap<String, ProcessingJob>();
+
+    private final String id;
+    private final List<Uri> outputs = new CopyOnWriteArrayList<Uri>();
+    private volatile boolean cancelled;
+    private volatile Stage stage = Stage.INGEST;
+
+    private ProcessingJob(String id) {
+        this.id = id;
+    }
+
+    /**
+     * Registers a new job.
+     *
+     * @param id the id chosen by JavaScript, or null to generate one
+     * @return the registered job
+     */
+    public static ProcessingJob start(String id) {
+        ProcessingJob job = new ProcessingJob(id != null ? id : UUID.randomUUID().toString());
+        ACTIVE_JOBS.put(job.id, job);
+        return job;
+    }
+
+    /**
+     * Requests cancellation of the job with the given id.
+     *
+     * @return true if a running job was found
+     */
+    public static boolean cancel(String id) {
+        ProcessingJob job = id != null ? ACTIVE_JOBS.get(id) : null;
+        if (job == null) {
+            return false;
+        }
+        job.cancel();
+        return true;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void cancel() {
+        LOG.d(LOG_TAG, "Cancelling job " + id);
+        cancelled = true;
+        ACTIVE_JOBS.remove(id, this);
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Called before each stage starts.
+     *
+     * @throws CancellationException if the job has been cancelled
+     */
+    public void checkpoint(Stage stage) {
+        if (cancelled) {
+            throw new CancellationException("Job " + id + " cancelled before " + stage);
+        }
+        if (stage.compareTo(this.stage) > 0) {
+            this.stage = stage;
+        }
+    }
+
+    /**
+     * The last stage the job started.
+     */
+    public Stage getStage() {
+        return stage;
+    }
+
+    /**
+     * Remembers a file or MediaStore row written by the job so it can be removed on cancel.
+     */
+    public void addOutput(Uri uri) {
+        if (uri != null) {
+            outputs.add(uri);
+        }
+    }
+
+    public List<Uri> getOutputs() {
+        return outputs;
+    }
+
+    /**
+     * Unregisters the job once its result or error has been delivered.
+     */
+    public void finish() {
+        ACTIVE_JOBS.remove(id, this);
+    }
+}
@@ -0,0 +1,189 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Finds the highest encoder quality whose output fits into a byte budget. Candidates are
+ * encoded into two scratch buffers that are capped at the budget and swapped between attempts,
+ * so the search does not allocate per candidate and never holds more than twice the budget.
+ */
+public class QualitySearch {
+    public static final int MIN_QUALITY = 10;
+
+    // Stop the binary search once the quality window is this narrow and probe it linearly
+    private static final int QUALITY_TOLERANCE = 2;
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    /**
+     * Encodes the image at the given quality into the stream.
+     */
+    public interface Encoder {
+        boolean encode(int quality, OutputStream outputStream) throws IOException;
+    }
+
+    private final int maxBytes;
+    private BoundedBuffer candidate;
+    private BoundedBuffer best;
+    private int bestQuality = -1;
+
+    public QualitySearch(int maxBytes) {
+        this.maxBytes = maxBytes;
+        this.candidate = new BoundedBuffer(maxBytes);
+        this.best = new BoundedBuffer(maxBytes);
+    }
+
+    /**
+     * Searches for the highest quality between MIN_QUALITY and maxQuality whose output fits.
+     *
+     * @param encoder    encodes the already decoded image
+     * @param maxQuality the requested quality, tried first
+     * @return the chosen quality or -1 if even MIN_QUALITY does not fit the budget
+     */
+    public int search(Encoder encoder, int maxQuality) throws IOException {
+        bestQuality = -1;
+        int low = Math.min(MIN_QUALITY, maxQuality);
+        int high = maxQuality;
+
+        // Most images fit at the requested quality, which costs a single encode
+        if (tryQuality(encoder, high)) {
+            return bestQuality;
+        }
+        high--;
+        if (!tryQuality(encoder, low)) {
+            return -1;
+        }
+        low++;
+
+        while (high - low >= QUALITY_TOLERANCE) {
+            int mid = (low + high) >>> 1;
+            if (tryQuality(encoder, mid)) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        // Probing the last few qualities from the top finds the highest one that fits exactly
+        for (int probe = high; probe >= low; probe--) {
+            if (tryQuality(encoder, probe)) {
+                break;
+            }
+        }
+        return bestQuality;
+    }
+
+    private boolean tryQuality(Encoder encoder, int quality) throws IOException {
+        candidate.reset();
+        if (!encoder.encode(quality, candidate) || candidate.isOverflowed()) {
+            return false;
+        }
+        BoundedBuffer swap = best;
+        best = candidate;
+        candidate = swap;
+        bestQuality = quality;
+        return true;
+    }
+
+    public int getBestQuality() {
+        return bestQuality;
+    }
+
+    public int getBestSize() {
+        return bestQuality < 0 ? 0 : best.size();
+    }
+
+    /**
+     * Writes the output of the best candidate without copying it.
+     */
+    public void writeBest(OutputStream outputStream) throws IOException {
+        outputStream.write(best.buffer, 0, best.size());
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(best.buffer, best.size());
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Output stream backed by a reusable array that stops storing bytes once the budget is
+     * exceeded. The encoder keeps writing but only the overflow flag changes.
+     */
+    static class BoundedBuffer extends OutputStream {
+        private final int limit;
+        private byte[] buffer;
+        private int count;
+        private boolean overflowed;
+
+        BoundedBuffer(int limit) {
+            this.limit = limit;
+            this.buffer = new byte[Math.min(limit, INITIAL_CAPACITY)];
+        }
+
+        void reset() {
+            count = 0;
+            overflowed = false;
+        }
+
+        int size() {
+            return count;
+        }
+
+        boolean isOverflowed() {
+            return overflowed;
+        }
+
+        @Override
+        public void write(int b) {
+            if (!reserve(1)) {
+                return;
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (!reserve(len)) {
+                return;
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+
+        private boolean reserve(int len) {
+            if (overflowed) {
+                return false;
+            }
+            if (len > limit - count) {
+                overflowed = true;
+                return false;
+            }
+            if (count + len > buffer.length) {
+                // Grows at most a handful of times per search; the array is kept for later candidates
+                buffer = Arrays.copyOf(buffer, (int) Math.min((long) limit, Math.max(buffer.length * 2L, count + len)));
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.net.Uri;
+
+import androidx.exifinterface.media.ExifInterface;
+
+import org.apache.cordova.LOG;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Crops an image by decoding only the selected region with BitmapRegionDecoder, at the largest
+ * sample size that still covers the requested output size. The cost of a crop therefore depends
+ * on the size of the output rather than the size of the source image.
+ */
+public class RegionCropper {
+    private static final String LOG_TAG = "RegionCropper";
+
+    /**
+     * Decodes the crop rectangle of the image, scaled to fit the target size and rotated upright.
+     *
+     * @param context      the current application context
+     * @param sourceUri    the image to crop
+     * @param cropRect     crop rectangle in the displayed (EXIF rotated) image, in fractions of its size
+     * @param targetWidth  desired width of the output or a value less than 1 to keep the crop width
+     * @param targetHeight desired height of the output or a value less than 1 to keep the crop height
+     * @return the cropped bitmap or null if the region could not be decoded
+     */
+    public static Bitmap decodeRegion(Context context, Uri sourceUri, RectF cropRect, int targetWidth, int targetHeight) throws IOException {
+        int rotate = readRotation(context, sourceUri);
+
+        BitmapRegionDecoder decoder;
+        InputStream fileStream = context.getContentResolver().openInputStream(sourceUri);
+        if (fileStream == null) {
+            return null;
+        }
+        try {
+            decoder = BitmapRegionDecoder.newInstance(fileStream, false);
+        } finally {
+            closeQuietly(fileStream);
+        }
+
+        try {
+            Rect region = mapToSource(cropRect, rotate, decoder.getWidth(), decoder.getHeight());
+            if (region.isEmpty()) {
+                LOG.d(LOG_TAG, "Crop rectangle is empty");
+                return null;
+            }
+
+            boolean rotated = rotate == 90 || rotate == 270;
+            int cropWidth = rotated ? region.height() : region.width();
+            int cropHeight = rotated ? region.width() : region.height();
+            int[] widthHeight = BaseCameraManager.calculateAspectRatio(cropWidth, cropHeight, targetWidth, targetHeight);
+
+            // The planner works in the stored orientation of the region
+            DecodePlanner.Plan plan = DecodePlanner.plan(region.width(), region.height(),
+                    rotated ? widthHeight[1] : widthHeight[0], rotated ? widthHeight[0] : widthHeight[1],
+                    new Bitmap.Config[]{Bitmap.Config.ARGB_8888}, rotate != 0, false);
+            Bitmap bitmap = decoder.decodeRegion(region, plan.toOptions());
+            if (bitmap == null) {
+                return null;
+            }
+            return scaleAndRotate(bitmap, rotate, rotated ? plan.outHeight : plan.outWidth, rotated ? plan.outWidth : plan.outHeight);
+        } finally {
+            decoder.recycle();
+        }
+    }
+
+    /**
+     * Maps a crop rectangle given in fractions of the displayed image onto pixel coordinates
+     * of the stored (unrotated) image.
+     *
+     * @param cropRect crop rectangle in fractions of the displayed image
+     * @param rotate   clockwise rotation that turns the stored image into the displayed one
+     * @param width    width of the stored image
+     * @param height   height of the stored image
+     */
+    public static Rect mapToSource(RectF cropRect, int rotate, int width, int height) {
+        boolean rotated = rotate == 90 || rotate == 270;
+        int displayWidth = rotated ? height : width;
+        int displayHeight = rotated ? width : height;
+
+        int left = clamp(Math.round(cropRect.left * displayWidth), displayWidth);
+        int top = clamp(Math.round(cropRect.top * displayHeight), displayHeight);
+        int right = clamp(Math.round(cropRect.right * displayWidth), displayWidth);
+        int bottom = clamp(Math.round(cropRect.bottom * displayHeight), displayHeight);
+
+        switch (rotate) {
+            case 90:
+                return new Rect(top, height - right, bottom, height - left);
+            case 180:
+                return new Rect(width - right, height - bottom, width - left, height - top);
+            case 270:
+                return new Rect(width - bottom, left, width - top, right);
+            default:
+                return new Rect(left, top, right, bottom);
+        }
+    }
+
+    private static Bitmap scaleAndRotate(Bitmap bitmap, int rotate, int outWidth, int outHeight) {
+        boolean rotated = rotate == 90 || rotate == 270;
+        float scaleX = (float) (rotated ? outHeight : outWidth) / bitmap.getWidth();
+        float scaleY = (float) (rotated ? outWidth : outHeight) / bitmap.getHeight();
+        if (rotate == 0 && scaleX == 1f && scaleY == 1f) {
+            return bitmap;
+        }
+        Matrix matrix = new Matrix();
+        matrix.setScale(scaleX, scaleY);
+        matrix.postRotate(rotate);
+        Bitmap result = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        if (result != bitmap) {
+            bitmap.recycle();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the clockwise rotation stored in the EXIF orientation tag of the image.
+     */
+    public static int readRotation(Context context, Uri sourceUri) {
+        InputStream fileStream = null;
+        try {
+            fileStream = context.getContentResolver().openInputStream(sourceUri);
+            if (fileStream == null) {
+                return 0;
+            }
+            return new ExifInterface(fileStream).getRotationDegrees();
+        } catch (Exception e) {
+            LOG.w(LOG_TAG, "Unable to read Exif data: " + e.toString());
+            return 0;
+        } finally {
+            closeQuietly(fileStream);
+        }
+    }
+
+    private static int clamp(int value, int max) {
+        return Math.max(0, Math.min(value, max));
+    }
+
+    private static void closeQuietly(InputStream fileStream) {
+        if (fileStream != null) {
+            try {
+                fileStream.close();
+            } catch (IOException e) {
+                LOG.d(LOG_TAG, "Exception while closing file input stream.");
+            }
+        }
+    }
+}
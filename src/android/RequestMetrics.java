@@ -0,0 +1,207 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import android.graphics.Bitmap;
+import android.os.Debug;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Locale;
+
+/**
+ * Timing and size figures of a single request, returned to JavaScript when the debugMetrics
+ * option is set and added to StatsRegistry when the request finishes. A disabled instance is
+ * shared by all requests and ignores every call, so the instrumentation only costs a field
+ * read and a branch when both are off.
+ * <p>
+ * A request is processed by one thread at a time and the hand-off between the UI thread and
+ * the thread pool already orders the writes, so no locking is done here.
+ */
+public class RequestMetrics {
+    /**
+     * Instrumented steps. A step that runs more than once per request accumulates its time.
+     */
+    public enum Stage {
+        DECODE,
+        SCALE,
+        ROTATE,
+        ENCODE,
+        COPY,
+        EXIF,
+        MEDIASTORE
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+    private static final RequestMetrics DISABLED = new RequestMetrics(false);
+    private static final double NANOS_PER_MILLI = 1000000d;
+
+    private final boolean enabled;
+    private final long startNanos;
+    private volatile long processingStartNanos;
+    private volatile long launchNanos;
+    private final long[] stageNanos;
+    private long bytesRead;
+    private long bytesWritten;
+    private int bitmapWidth;
+    private int bitmapHeight;
+    private long bitmapBytes;
+
+    private RequestMetrics(boolean enabled) {
+        this.enabled = enabled;
+        this.startNanos = enabled ? System.nanoTime() : 0L;
+        this.processingStartNanos = this.startNanos;
+        this.stageNanos = enabled ? new long[STAGES.length] : null;
+    }
+
+    /**
+     * @param enabled whether the metrics are returned to JavaScript or aggregated
+     * @return a new recorder, or the shared no-op instance
+     */
+    public static RequestMetrics create(boolean enabled) {
+        return enabled ? new RequestMetrics(true) : DISABLED;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts timing a stage and opens its trace section.
+     *
+     * @return the start time to pass to stop()
+     */
+    public long start(Stage stage) {
+        CameraTrace.beginSection(stage);
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * Adds the time since start to the stage and closes its trace section.
+     */
+    public void stop(Stage stage, long start) {
+        CameraTrace.endSection();
+        if (!enabled) {
+            return;
+        }
+        stageNanos[stage.ordinal()] += System.nanoTime() - start;
+    }
+
+    /**
+     * Marks the point where the picture came back from the camera, gallery or crop activity.
+     * Time spent in those activities is not part of the processing time.
+     */
+    public void markProcessingStart() {
+        if (enabled) {
+            processingStartNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Marks the point where the camera or gallery activity was started. Only the first launch
+     * of the request counts, later ones are the crop screens.
+     */
+    public void markLaunched() {
+        if (enabled && launchNanos == 0) {
+            launchNanos = System.nanoTime() - startNanos;
+        }
+    }
+
+    public void addBytesRead(long bytes) {
+        if (enabled && bytes > 0) {
+            bytesRead += bytes;
+        }
+    }
+
+    public void addBytesWritten(long bytes) {
+        if (enabled && bytes > 0) {
+            bytesWritten += bytes;
+        }
+    }
+
+    /**
+     * Records the size of a decoded bitmap. The largest bitmap of the request is kept.
+     */
+    public void recordBitmap(Bitmap bitmap) {
+        if (!enabled || bitmap == null) {
+            return;
+        }
+        long bytes = bitmap.getAllocationByteCount();
+        if (bytes > bitmapBytes) {
+            bitmapWidth = bitmap.getWidth();
+            bitmapHeight = bitmap.getHeight();
+            bitmapBytes = bytes;
+        }
+    }
+
+    public long getStageNanos(Stage stage) {
+        return enabled ? stageNanos[stage.ordinal()] : 0L;
+    }
+
+    public long getTotalNanos() {
+        return enabled ? System.nanoTime() - startNanos : 0L;
+    }
+
+    /**
+     * @return the time from the request to the launch of the camera or gallery, 0 if none was launched
+     */
+    public long getLaunchNanos() {
+        return enabled ? launchNanos : 0L;
+    }
+
+    public long getProcessingNanos() {
+        return enabled ? System.nanoTime() - processingStartNanos : 0L;
+    }
+
+    /**
+     * Returns the metrics in the form sent to JavaScript. Times are in milliseconds.
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONObject stages = new JSONObject();
+        for (Stage stage : STAGES) {
+            long nanos = stageNanos[stage.ordinal()];
+            if (nanos > 0) {
+                stages.put(stage.name().toLowerCase(Locale.US), nanos / NANOS_PER_MILLI);
+            }
+        }
+
+        JSONObject bitmap = new JSONObject();
+        bitmap.put("width", bitmapWidth);
+        bitmap.put("height", bitmapHeight);
+        bitmap.put("bytes", bitmapBytes);
+
+        Runtime runtime = Runtime.getRuntime();
+        JSONObject memory = new JSONObject();
+        memory.put("javaHeapUsed", runtime.totalMemory() - runtime.freeMemory());
+        memory.put("javaHeapMax", runtime.maxMemory());
+        memory.put("nativeHeapUsed", Debug.getNativeHeapAllocatedSize());
+
+        JSONObject metrics = new JSONObject();
+        metrics.put("totalMs", getTotalNanos() / NANOS_PER_MILLI);
+        metrics.put("processingMs", getProcessingNanos() / NANOS_PER_MILLI);
+        metrics.put("launchMs", launchNanos / NANOS_PER_MILLI);
+        metrics.put("stagesMs", stages);
+        metrics.put("bytesRead", bytesRead);
+        metrics.put("bytesWritten", bytesWritten);
+        metrics.put("bitmap", bitmap);
+        metrics.put("memory", memory);
+        return metrics;
+    }
+}
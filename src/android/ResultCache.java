@@ -0,0 +1,421 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.MediaStore;
+import android.provider.OpenableColumns;
+
+import org.apache.cordova.LOG;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Disk cache of processed results, so picking the same image with the same options again
+ * returns the earlier result without decoding. A result is stored under a hash of the source
+ * identity and of every option that changes the output: the Uri, size and modification date
+ * of the source where its provider reports them, otherwise a hash of its content.
+ * <p>
+ * Each result is a set of files named key.index in a directory of the cache dir, one per
+ * output. Entries are evicted least recently used first once the files take more than the
+ * CameraResultCacheSize preference; the modification time of the files keeps the order across
+ * restarts.
+ */
+public class ResultCache {
+    private static final String LOG_TAG = "ResultCache";
+
+    public static final String SIZE_PREFERENCE = "CameraResultCacheSize";
+    public static final int DEFAULT_SIZE_MB = 32;
+
+    private static final String DIRECTORY = "camera-results";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static volatile long maxBytes = DEFAULT_SIZE_MB * 1024L * 1024L;
+    private static ResultCache instance;
+
+    private final File directory;
+    // Access ordered, so the first entry is the least recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long size;
+
+    private static class Entry {
+        final int count;
+        final long bytes;
+
+        Entry(int count, long bytes) {
+            this.count = count;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Sets the byte budget of the cache, 0 to disable it.
+     */
+    public static void setMaxBytes(long maxBytes) {
+        ResultCache.maxBytes = Math.max(0, maxBytes);
+    }
+
+    /**
+     * Returns the cache, reading its index from disk on first use, or null when it is disabled.
+     */
+    public static synchronized ResultCache getInstance(Context context) {
+        if (maxBytes == 0) {
+            return null;
+        }
+        if (instance == null) {
+            instance = new ResultCache(new File(context.getCacheDir(), DIRECTORY));
+        }
+        instance.trim();
+        return instance;
+    }
+
+    private ResultCache(File directory) {
+        this.directory = directory;
+        directory.mkdirs();
+        load();
+    }
+
+    /**
+     * Rebuilds the index from the files of earlier runs, oldest first. Leftovers of
+     * interrupted writes and incomplete entries are deleted.
+     */
+    private void load() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        Map<String, List<File>> groups = new LinkedHashMap<String, List<File>>();
+        for (File file : files) {
+            String name = file.getName();
+            int dot = name.indexOf('.');
+            if (name.endsWith(TEMP_SUFFIX) || dot < 0) {
+                file.delete();
+                continue;
+            }
+            String key = name.substring(0, dot);
+            List<File> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<File>();
+                groups.put(key, group);
+            }
+            group.add(file);
+        }
+        for (Map.Entry<String, List<File>> group : groups.entrySet()) {
+            List<File> parts = group.getValue();
+            long bytes = 0;
+            boolean complete = true;
+            for (int i = 0; i < parts.size(); i++) {
+                File part = getFile(group.getKey(), i);
+                complete &= part.exists();
+                bytes += part.length();
+            }
+            if (!complete) {
+                for (File part : parts) {
+                    part.delete();
+                }
+                continue;
+            }
+            entries.put(group.getKey(), new Entry(parts.size(), bytes));
+            size += bytes;
+        }
+    }
+
+    private File getFile(String key, int index) {
+        return new File(directory, key + "." + index);
+    }
+
+    /**
+     * Returns the files of a cached result in output order, or null on a miss. The files may
+     * be evicted at any time, so reading them can still fail.
+     */
+    public synchronized List<File> get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        List<File> files = new ArrayList<File>(entry.count);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < entry.count; i++) {
+            File file = getFile(key, i);
+            if (!file.exists()) {
+                remove(key);
+                return null;
+            }
+            file.setLastModified(now);
+            files.add(file);
+        }
+        return files;
+    }
+
+    /**
+     * Stores encoded images as the result for the key.
+     */
+    public void put(String key, List<byte[]> images) {
+        List<File> temps = new ArrayList<File>(images.size());
+        try {
+            for (byte[] image : images) {
+                File temp = createTempFile(key);
+                temps.add(temp);
+                OutputStream out = new FileOutputStream(temp);
+                try {
+                    out.write(image);
+                } finally {
+                    out.close();
+                }
+            }
+            commit(key, temps);
+        } catch (IOException e) {
+            LOG.w(LOG_TAG, "Unable to cache result: " + e.toString());
+            deleteAll(temps);
+        }
+    }
+
+    /**
+     * Stores copies of result files as the result for the key.
+     */
+    public void putFiles(String key, List<File> files) {
+        List<File> temps = new ArrayList<File>(files.size());
+        try {
+            for (File file : files) {
+                File temp = createTempFile(key);
+                temps.add(temp);
+                copy(file, temp);
+            }
+            commit(key, temps);
+        } catch (IOException e) {
+            LOG.w(LOG_TAG, "Unable to cache result: " + e.toString());
+            deleteAll(temps);
+        }
+    }
+
+    private File createTempFile(String key) throws IOException {
+        return File.createTempFile(key + ".", TEMP_SUFFIX, directory);
+    }
+
+    /**
+     * Moves the written files into place and evicts older entries to make room. Files are
+     * written before taking the lock, so lookups never wait on disk writes.
+     */
+    private synchronized void commit(String key, List<File> temps) throws IOException {
+        long bytes = 0;
+        for (File temp : temps) {
+            bytes += temp.length();
+        }
+        if (bytes > maxBytes) {
+            deleteAll(temps);
+            return;
+        }
+        remove(key);
+        for (int i = 0; i < temps.size(); i++) {
+            if (!temps.get(i).renameTo(getFile(key, i))) {
+                for (int j = 0; j < i; j++) {
+                    getFile(key, j).delete();
+                }
+                throw new IOException("Unable to move " + temps.get(i));
+            }
+        }
+        entries.put(key, new Entry(temps.size(), bytes));
+        size += bytes;
+        trim();
+    }
+
+    private synchronized void trim() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (size > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            iterator.remove();
+            deleteFiles(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            deleteFiles(key, entry);
+        }
+    }
+
+    private void deleteFiles(String key, Entry entry) {
+        for (int i = 0; i < entry.count; i++) {
+            getFile(key, i).delete();
+        }
+        size -= entry.bytes;
+    }
+
+    private static void deleteAll(List<File> files) {
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Builds the key of a result: a hash of the source identity and the description of the
+     * options that produced it.
+     *
+     * @param options every option that changes the result, in a stable order
+     * @return the key, or null if the source cannot be read
+     */
+    public static String createKey(ContentResolver resolver, Uri source, String options) {
+        try {
+            String identity = describeSource(resolver, source);
+            if (identity == null) {
+                identity = "sha256:" + hashContent(resolver, source);
+            }
+            return toHex(newDigest().digest((identity + "\n" + options).getBytes("UTF-8")));
+        } catch (IOException e) {
+            LOG.w(LOG_TAG, "Unable to identify " + source + ": " + e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the Uri together with the size and modification date of the source, or null
+     * when the provider does not report both.
+     */
+    private static String describeSource(ContentResolver resolver, Uri source) {
+        if (ContentResolver.SCHEME_FILE.equalsIgnoreCase(source.getScheme())) {
+            File file = new File(source.getPath());
+            return file.exists() ? source + "|" + file.length() + "|" + file.lastModified() : null;
+        }
+        Cursor cursor = null;
+        try {
+            // Providers differ in their columns, so ask for all of them
+            cursor = resolver.query(source, null, null, null, null);
+            if (cursor == null || !cursor.moveToFirst()) {
+                return null;
+            }
+            long size = getLong(cursor, OpenableColumns.SIZE);
+            long modified = getLong(cursor, MediaStore.MediaColumns.DATE_MODIFIED);
+            if (modified <= 0) {
+                modified = getLong(cursor, DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+            }
+            return size > 0 && modified > 0 ? source + "|" + size + "|" + modified : null;
+        } catch (RuntimeException e) {
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private static long getLong(Cursor cursor, String column) {
+        int index = cursor.getColumnIndex(column);
+        return index < 0 || cursor.isNull(index) ? -1 : cursor.getLong(index);
+    }
+
+    private static String hashContent(ContentResolver resolver, Uri source) throws IOException {
+        InputStream in = resolver.openInputStream(source);
+        if (in == null) {
+            throw new IOException("Unable to open " + source);
+        }
+        try {
+            MessageDigest digest = newDigest();
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+            return toHex(digest.digest());
+        } finally {
+            in.close();
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android version has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Reads a cached file into memory.
+     */
+    public static byte[] read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int read = in.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                offset += read;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    public static void copy(File source, File dest) throws IOException {
+        InputStream in = new FileInputStream(source);
+        try {
+            OutputStream out = new FileOutputStream(dest);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs a piece of work at most once at a time per key. The first caller for a key runs the
+ * work on its own thread; callers arriving with the same key while it runs wait for it and
+ * all receive its result, or its exception. Once the work is done the key is free again, so
+ * results are never kept; the ResultCache is for that. A waiting caller can be given a Waiter,
+ * so it still notices its own cancellation and can do its own part of the work meanwhile.
+ * <p>
+ * The flights live in a ConcurrentHashMap, so callers with different keys never wait on each
+ * other. Plain Java only, so it runs on any JVM.
+ */
+public class SingleFlight<K, V> {
+    // How often a waiting caller checks whether it should stop waiting
+    private static final long POLL_MILLIS = 50;
+
+    /**
+     * The work shared by the callers of one key.
+     */
+    public interface Work<V> {
+        V run() throws IOException;
+    }
+
+    /**
+     * Lets a caller that waits for another caller's work do its own part meanwhile.
+     */
+    public interface Waiter {
+        /**
+         * Called once when the caller starts waiting for another caller's work.
+         */
+        void onWait();
+
+        /**
+         * Called every few milliseconds while the caller waits. An exception it throws, such
+         * as the CancellationException of a cancelled job, stops the wait and is passed on.
+         */
+        void poll();
+    }
+
+    private final ConcurrentHashMap<K, FutureTask<V>> flights = new ConcurrentHashMap<K, FutureTask<V>>();
+
+    /**
+     * Runs the work, or waits for the work of another caller with an equal key.
+     * <p>
+     * A CancellationException is only passed on to the caller whose work threw it: when the
+     * job that ran the shared work is cancelled, a waiting caller runs the work itself.
+     *
+     * @return the result of whichever caller ran the work
+     */
+    public V execute(K key, Work<V> work) throws IOException {
+        return execute(key, work, null);
+    }
+
+    /**
+     * Runs the work, or waits for the work of another caller with an equal key while the
+     * waiter is polled.
+     *
+     * @param waiter told when the caller waits and polled while it does, or null
+     * @return the result of whichever caller ran the work
+     */
+    public V execute(K key, final Work<V> work, Waiter waiter) throws IOException {
+        boolean waited = false;
+        while (true) {
+            FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+                @Override
+                public V call() throws IOException {
+                    return work.run();
+                }
+            });
+            FutureTask<V> flight = flights.putIfAbsent(key, task);
+            if (flight == null) {
+                try {
+                    task.run();
+                } finally {
+                    flights.remove(key, task);
+                }
+                return getResult(task);
+            }
+            if (waiter != null && !waited) {
+                waited = true;
+                waiter.onWait();
+            }
+            try {
+                return waitForResult(flight, waiter);
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof CancellationException)) {
+                    throw unwrap(e);
+                }
+                // The other caller's job was cancelled, not this one
+            }
+        }
+    }
+
+    /**
+     * Number of keys whose work is running.
+     */
+    public int size() {
+        return flights.size();
+    }
+
+    private static <V> V getResult(FutureTask<V> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a shared result");
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * Waits for another caller's work, polling the waiter in between. Exceptions of the waiter
+     * are thrown as they are, those of the work stay wrapped so the caller can tell them apart.
+     */
+    private static <V> V waitForResult(FutureTask<V> task, Waiter waiter) throws IOException, ExecutionException {
+        try {
+            if (waiter == null) {
+                return task.get();
+            }
+            while (true) {
+                waiter.poll();
+                try {
+                    return task.get(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    // Still running
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a shared result");
+        }
+    }
+
+    private static IOException unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new IOException(cause);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import android.os.Build;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Locale;
+
+/**
+ * Process-wide latency histograms of finished requests, read by the getStats action. There
+ * is one histogram per RequestMetrics stage, one per source type, destination type and
+ * encoding combination, and one per source type for the time until the camera or gallery
+ * was launched. All histograms are allocated up front and indexed directly, so
+ * recording a request neither locks nor allocates.
+ */
+public class StatsRegistry {
+    public static final String STATS_PREFERENCE = "CameraCollectStats";
+
+    private static final int SOURCE_TYPES = 3;        // PHOTOLIBRARY, CAMERA, SAVEDPHOTOALBUM
+    private static final int DESTINATION_TYPES = 2;   // DATA_URL, FILE_URI
+    private static final int ENCODING_TYPES = BaseCameraManager.HEIF + 1;
+    private static final String[] SOURCE_NAMES = {"photolibrary", "camera", "savedphotoalbum"};
+    private static final String[] DESTINATION_NAMES = {"data_url", "file_uri"};
+    private static final String[] ENCODING_NAMES = {"jpeg", "png", "webp", "webp_lossless", "heif"};
+
+    private static final RequestMetrics.Stage[] STAGES = RequestMetrics.Stage.values();
+    private static final LatencyHistogram[] STAGE_HISTOGRAMS = createHistograms(STAGES.length);
+    private static final LatencyHistogram[] REQUEST_HISTOGRAMS = createHistograms(SOURCE_TYPES * DESTINATION_TYPES * ENCODING_TYPES);
+    private static final LatencyHistogram[] LAUNCH_HISTOGRAMS = createHistograms(SOURCE_TYPES);
+
+    // Off unless the app opts in, so requests do not pay for the stage timings by default
+    private static volatile boolean enabled = false;
+
+    private static LatencyHistogram[] createHistograms(int count) {
+        LatencyHistogram[] histograms = new LatencyHistogram[count];
+        for (int i = 0; i < count; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        return histograms;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        StatsRegistry.enabled = enabled;
+    }
+
+    /**
+     * Adds a finished request. Stages that did not run are skipped.
+     */
+    public static void record(RequestMetrics metrics, int srcType, int destType, int encodingType) {
+        if (!enabled || !metrics.isEnabled()) {
+            return;
+        }
+        for (int i = 0; i < STAGES.length; i++) {
+            long nanos = metrics.getStageNanos(STAGES[i]);
+            if (nanos > 0) {
+                STAGE_HISTOGRAMS[i].record(nanos);
+            }
+        }
+        if (srcType >= 0 && srcType < SOURCE_TYPES && metrics.getLaunchNanos() > 0) {
+            LAUNCH_HISTOGRAMS[srcType].record(metrics.getLaunchNanos());
+        }
+        if (srcType >= 0 && srcType < SOURCE_TYPES && destType >= 0 && destType < DESTINATION_TYPES &&
+                encodingType >= 0 && encodingType < ENCODING_TYPES) {
+            REQUEST_HISTOGRAMS[(srcType * DESTINATION_TYPES + destType) * ENCODING_TYPES + encodingType]
+                    .record(metrics.getProcessingNanos());
+        }
+    }
+
+    /**
+     * Returns count, p50, p95 and p99 in milliseconds for every histogram that has values,
+     * together with the device model so reports can be grouped per device, and whether
+     * requests are being recorded at all.
+     *
+     * @param reset whether to clear the histograms after reading them
+     */
+    public static JSONObject getStats(boolean reset) throws JSONException {
+        long[] snapshot = new long[LatencyHistogram.getBucketCount()];
+
+        JSONObject stages = new JSONObject();
+        for (int i = 0; i < STAGES.length; i++) {
+            putHistogram(stages, STAGES[i].name().toLowerCase(Locale.US), STAGE_HISTOGRAMS[i], snapshot, reset);
+        }
+
+        JSONObject requests = new JSONObject();
+        for (int src = 0; src < SOURCE_TYPES; src++) {
+            for (int dest = 0; dest < DESTINATION_TYPES; dest++) {
+                for (int enc = 0; enc < ENCODING_TYPES; enc++) {
+                    String key = SOURCE_NAMES[src] + "/" + DESTINATION_NAMES[dest] + "/" + ENCODING_NAMES[enc];
+                    putHistogram(requests, key, REQUEST_HISTOGRAMS[(src * DESTINATION_TYPES + dest) * ENCODING_TYPES + enc], snapshot, reset);
+                }
+            }
+        }
+
+        JSONObject launch = new JSONObject();
+        for (int src = 0; src < SOURCE_TYPES; src++) {
+            putHistogram(launch, SOURCE_NAMES[src], LAUNCH_HISTOGRAMS[src], snapshot, reset);
+        }
+
+        JSONObject device = new JSONObject();
+        device.put("manufacturer", Build.MANUFACTURER);
+        device.put("model", Build.MODEL);
+        device.put("sdk", Build.VERSION.SDK_INT);
+
+        JSONObject stats = new JSONObject();
+        stats.put("enabled", enabled);
+        stats.put("device", device);
+        stats.put("stages", stages);
+        stats.put("requests", requests);
+        stats.put("launch", launch);
+        return stats;
+    }
+
+    private static void putHistogram(JSONObject out, String key, LatencyHistogram histogram, long[] snapshot, boolean reset) throws JSONException {
+        long count = histogram.snapshot(snapshot, reset);
+        if (count == 0) {
+            return;
+        }
+        JSONObject summary = new JSONObject();
+        summary.put("count", count);
+        summary.put("p50", LatencyHistogram.percentile(snapshot, count, 0.50));
+        summary.put("p95", LatencyHistogram.percentile(snapshot, count, 0.95));
+        summary.put("p99", LatencyHistogram.percentile(snapshot, count, 0.99));
+        out.put(key, summary);
+    }
+}
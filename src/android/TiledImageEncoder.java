@@ -0,0 +1,330 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import org.apache.cordova.LOG;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Writes a scaled and rotated JPEG of an image that is too large to hold in memory. The
+ * output is produced in bands of rows: for each band the matching source region is decoded
+ * with BitmapRegionDecoder, drawn scaled and rotated into the band, and handed to
+ * JpegStreamEncoder. Peak memory depends on the band size, not on the image size.
+ * <p>
+ * Bands are decoded on several threads when the memory budget allows more than one band in
+ * flight. Each thread uses its own decoder; decoders opened from a file descriptor map the
+ * file rather than copying it. The encoder consumes the bands in order on the calling thread.
+ */
+public class TiledImageEncoder {
+    private static final String LOG_TAG = "TiledImageEncoder";
+
+    // Output rows per band are a multiple of the JPEG MCU height and at most this many bytes
+    private static final long MAX_BAND_BYTES = 4L * 1024 * 1024;
+    private static final int MAX_BAND_ROWS = 512;
+    // Extra sampled source pixels around each region so bilinear filtering has neighbours
+    private static final int FILTER_MARGIN = 2;
+
+    private static ExecutorService executor;
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                private int count;
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "CameraTile-" + (++count));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Encodes the image as JPEG.
+     *
+     * @param info      size of the stored source image
+     * @param outWidth  width of the output, after rotation
+     * @param outHeight height of the output, after rotation
+     * @param rotate    clockwise rotation applied to the source, a multiple of 90
+     * @param config    pixel format the source regions are decoded into
+     * @param coding    one of the JpegStreamEncoder codings
+     * @param job       the job of the request, checked between bands, or null
+     */
+    public static void encode(Context context, Uri source, ImagePipeline.ImageInfo info, int outWidth, int outHeight,
+                              int rotate, Bitmap.Config config, int quality, int coding, OutputStream out,
+                              ProcessingJob job) throws IOException {
+        boolean rotated = rotate == 90 || rotate == 270;
+        int storedWidth = rotated ? outHeight : outWidth;
+        int storedHeight = rotated ? outWidth : outHeight;
+
+        // source pixels -> output pixels
+        final Matrix transform = new Matrix();
+        transform.setScale((float) storedWidth / info.width, (float) storedHeight / info.height);
+        if (rotate != 0) {
+            transform.postRotate(rotate);
+            if (rotate == 90) {
+                transform.postTranslate(outWidth, 0);
+            } else if (rotate == 180) {
+                transform.postTranslate(outWidth, outHeight);
+            } else if (rotate == 270) {
+                transform.postTranslate(0, outHeight);
+            }
+        }
+        final Matrix inverse = new Matrix();
+        transform.invert(inverse);
+
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = Integer.highestOneBit(BaseCameraManager.calculateSampleSize(info.width, info.height, storedWidth, storedHeight));
+        options.inPreferredConfig = config;
+        int bytesPerPixel = config == Bitmap.Config.RGB_565 ? 2 : 4;
+
+        // A band holds its ARGB bitmap, the pixels handed to the encoder and the decoded region
+        double sourcePixelsPerOutputPixel = (double) info.width * info.height / ((double) outWidth * outHeight)
+                / ((double) options.inSampleSize * options.inSampleSize);
+        long bytesPerRow = (long) Math.ceil(outWidth * (8 + bytesPerPixel * Math.max(1d, sourcePixelsPerOutputPixel)));
+        int bandRows = (int) Math.min(MAX_BAND_ROWS, MAX_BAND_BYTES / bytesPerRow);
+        bandRows = Math.max(JpegStreamEncoder.MCU_SIZE, bandRows / JpegStreamEncoder.MCU_SIZE * JpegStreamEncoder.MCU_SIZE);
+        long bandBytes = bytesPerRow * bandRows;
+        long encoderBytes = (long) outWidth * JpegStreamEncoder.MCU_SIZE * 4;
+        int bands = (outHeight + bandRows - 1) / bandRows;
+
+        // Optimized and progressive coding hold the coefficients of the whole image
+        if (coding != JpegStreamEncoder.CODING_STANDARD) {
+            long coefficientBytes = JpegCoefficientWriter.getBufferBytes(outWidth, outHeight);
+            if (encoderBytes + coefficientBytes + bandBytes > DecodePlanner.getBudget()) {
+                LOG.d(LOG_TAG, "Not enough memory for the coefficients of " + outWidth + "x" + outHeight + ", using standard coding");
+                coding = JpegStreamEncoder.CODING_STANDARD;
+            } else {
+                encoderBytes += coefficientBytes;
+            }
+        }
+
+        List<ParcelFileDescriptor> descriptors = new ArrayList<ParcelFileDescriptor>();
+        List<BitmapRegionDecoder> decoders = new ArrayList<BitmapRegionDecoder>();
+        try {
+            int workers = (int) Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+                    (DecodePlanner.getBudget() - encoderBytes) / bandBytes));
+            workers = Math.min(workers, bands);
+            openDecoders(context, source, workers, descriptors, decoders);
+            LOG.d(LOG_TAG, "Encoding " + outWidth + "x" + outHeight + " in " + bands + " bands of " + bandRows +
+                    " rows on " + decoders.size() + " threads");
+
+            final BlockingQueue<BitmapRegionDecoder> idle = new ArrayBlockingQueue<BitmapRegionDecoder>(decoders.size(), false, decoders);
+            JpegStreamEncoder encoder = new JpegStreamEncoder(out, outWidth, outHeight, quality);
+            encoder.setCoding(coding);
+            ArrayDeque<Future<int[]>> pending = new ArrayDeque<Future<int[]>>();
+            ExecutorService pool = getExecutor();
+            int next = 0;
+            try {
+                for (int band = 0; band < bands; band++) {
+                    while (next < bands && pending.size() < decoders.size()) {
+                        int top = next * bandRows;
+                        pending.add(pool.submit(new BandTask(idle, inverse, transform, options, info,
+                                outWidth, top, Math.min(bandRows, outHeight - top))));
+                        next++;
+                    }
+                    int[] pixels = await(pending.poll());
+                    if (job != null) {
+                        job.checkpoint(ProcessingJob.Stage.ENCODE);
+                    }
+                    int rows = Math.min(bandRows, outHeight - band * bandRows);
+                    encoder.writeRows(pixels, 0, outWidth, rows);
+                }
+                encoder.finish();
+            } finally {
+                for (Future<int[]> future : pending) {
+                    future.cancel(false);
+                }
+                // Wait for running bands to hand their decoder back before recycling it
+                for (int i = 0; i < decoders.size(); i++) {
+                    try {
+                        idle.take();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        } finally {
+            for (BitmapRegionDecoder decoder : decoders) {
+                decoder.recycle();
+            }
+            for (ParcelFileDescriptor descriptor : descriptors) {
+                try {
+                    descriptor.close();
+                } catch (IOException e) {
+                    LOG.d(LOG_TAG, "Exception while closing file descriptor.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens one decoder per worker from a file descriptor. Sources without one are decoded
+     * from a stream, which keeps a copy of the file per decoder, so only one is opened.
+     */
+    private static void openDecoders(Context context, Uri source, int count, List<ParcelFileDescriptor> descriptors,
+                                     List<BitmapRegionDecoder> decoders) throws IOException {
+        for (int i = 0; i < count; i++) {
+            ParcelFileDescriptor descriptor;
+            try {
+                descriptor = context.getContentResolver().openFileDescriptor(source, "r");
+            } catch (Exception e) {
+                descriptor = null;
+            }
+            if (descriptor == null) {
+                break;
+            }
+            descriptors.add(descriptor);
+            decoders.add(BitmapRegionDecoder.newInstance(descriptor.getFileDescriptor(), false));
+        }
+        if (decoders.isEmpty()) {
+            InputStream fileStream = context.getContentResolver().openInputStream(source);
+            if (fileStream == null) {
+                throw new IOException("Unable to open " + source);
+            }
+            try {
+                decoders.add(BitmapRegionDecoder.newInstance(fileStream, false));
+            } finally {
+                try {
+                    fileStream.close();
+                } catch (IOException e) {
+                    LOG.d(LOG_TAG, "Exception while closing file input stream.");
+                }
+            }
+        }
+    }
+
+    private static int[] await(Future<int[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while encoding");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Decodes the source region behind one band of output rows and returns its ARGB pixels.
+     */
+    private static class BandTask implements Callable<int[]> {
+        private final BlockingQueue<BitmapRegionDecoder> idle;
+        private final Matrix inverse;
+        private final Matrix transform;
+        private final BitmapFactory.Options options;
+        private final ImagePipeline.ImageInfo info;
+        private final int width;
+        private final int top;
+        private final int rows;
+
+        BandTask(BlockingQueue<BitmapRegionDecoder> idle, Matrix inverse, Matrix transform, BitmapFactory.Options options,
+                 ImagePipeline.ImageInfo info, int width, int top, int rows) {
+            this.idle = idle;
+            // Matrices and options are written to by the framework, every band gets its own
+            this.inverse = new Matrix(inverse);
+            this.transform = new Matrix(transform);
+            this.options = new BitmapFactory.Options();
+            this.options.inSampleSize = options.inSampleSize;
+            this.options.inPreferredConfig = options.inPreferredConfig;
+            this.info = info;
+            this.width = width;
+            this.top = top;
+            this.rows = rows;
+        }
+
+        @Override
+        public int[] call() throws Exception {
+            RectF bounds = new RectF(0, top, width, top + rows);
+            inverse.mapRect(bounds);
+            int margin = FILTER_MARGIN * options.inSampleSize;
+            Rect region = new Rect(
+                    Math.max(0, (int) Math.floor(bounds.left) - margin),
+                    Math.max(0, (int) Math.floor(bounds.top) - margin),
+                    Math.min(info.width, (int) Math.ceil(bounds.right) + margin),
+                    Math.min(info.height, (int) Math.ceil(bounds.bottom) + margin));
+
+            Bitmap strip;
+            BitmapRegionDecoder decoder = idle.take();
+            try {
+                strip = decoder.decodeRegion(region, options);
+            } finally {
+                idle.add(decoder);
+            }
+            if (strip == null) {
+                throw new IOException("Unable to decode region " + region);
+            }
+
+            Bitmap band = Bitmap.createBitmap(width, rows, Bitmap.Config.ARGB_8888);
+            try {
+                // strip pixels -> source pixels -> output pixels -> band pixels
+                Matrix matrix = new Matrix();
+                matrix.setScale((float) region.width() / strip.getWidth(), (float) region.height() / strip.getHeight());
+                matrix.postTranslate(region.left, region.top);
+                matrix.postConcat(transform);
+                matrix.postTranslate(0, -top);
+                new Canvas(band).drawBitmap(strip, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+                strip.recycle();
+
+                int[] pixels = new int[width * rows];
+                band.getPixels(pixels, 0, width, 0, 0, width, rows);
+                return pixels;
+            } finally {
+                band.recycle();
+            }
+        }
+    }
+}
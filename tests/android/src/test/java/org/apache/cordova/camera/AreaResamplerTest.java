@@ -0,0 +1,173 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the fixed point strips against area averages computed the slow way, for whole and
+ * fractional reduction ratios.
+ */
+public class AreaResamplerTest {
+    private static ForkJoinPool pool;
+
+    @BeforeClass
+    public static void createPool() {
+        pool = new ForkJoinPool(3);
+    }
+
+    @AfterClass
+    public static void shutdownPool() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void wholeFactorMatchesTheFixtureReference() {
+        BufferedImage source = FixtureGenerator.createSource();
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int[] pixels = source.getRGB(0, 0, width, height, null, 0, width);
+        BufferedImage reference = FixtureGenerator.areaAverage(source, width / 4, height / 4);
+
+        int[] scaled = resample(pixels, width, height, width / 4, height / 4);
+
+        // The reference truncates the mean where the resampler rounds it
+        int[] expected = reference.getRGB(0, 0, width / 4, height / 4, null, 0, width / 4);
+        for (int i = 0; i < expected.length; i++) {
+            for (int shift = 0; shift < 24; shift += 8) {
+                int difference = ((scaled[i] >> shift) & 0xFF) - ((expected[i] >> shift) & 0xFF);
+                assertTrue("pixel " + i + " differs by " + difference, difference == 0 || difference == 1);
+            }
+        }
+    }
+
+    @Test
+    public void fractionalRatioMatchesTheExactAreaAverage() {
+        int width = 517;
+        int height = 389;
+        int[] pixels = JpegStreamEncoderTest.createPixels(width, height);
+        int dstWidth = 160;
+        int dstHeight = 121;
+
+        int[] scaled = resample(pixels, width, height, dstWidth, dstHeight);
+        int[] expected = areaAverage(pixels, width, height, dstWidth, dstHeight);
+
+        for (int i = 0; i < expected.length; i++) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                int difference = Math.abs(((scaled[i] >>> shift) & 0xFF) - ((expected[i] >>> shift) & 0xFF));
+                assertTrue("pixel " + i + " differs by " + difference, difference <= 1);
+            }
+        }
+    }
+
+    @Test
+    public void constantImageStaysConstant() {
+        int width = 301;
+        int height = 203;
+        int[] pixels = new int[width * height];
+        Arrays.fill(pixels, 0xFF7F3A91);
+
+        int[] scaled = resample(pixels, width, height, 97, 64);
+
+        int[] expected = new int[97 * 64];
+        Arrays.fill(expected, 0xFF7F3A91);
+        assertArrayEquals(expected, scaled);
+    }
+
+    @Test
+    public void stripsDoNotDependOnThePool() {
+        int width = 517;
+        int height = 389;
+        int[] pixels = JpegStreamEncoderTest.createPixels(width, height);
+        ForkJoinPool single = new ForkJoinPool(1);
+        try {
+            int[] sequential = new int[123 * 77];
+            AreaResampler.resample(JpegStreamEncoderTest.createSource(pixels, width), width, height,
+                    createSink(sequential, 123), 123, 77, single);
+            assertArrayEquals(sequential, resample(pixels, width, height, 123, 77));
+        } finally {
+            single.shutdown();
+        }
+    }
+
+    @Test
+    public void onlyReduces() {
+        assertTrue(AreaResampler.canResample(640, 480, 320, 480));
+        assertFalse(AreaResampler.canResample(640, 480, 640, 480));
+        assertFalse(AreaResampler.canResample(640, 480, 1280, 240));
+        assertFalse(AreaResampler.canResample(640, 480, 0, 240));
+    }
+
+    private static int[] resample(int[] pixels, int width, int height, int dstWidth, int dstHeight) {
+        int[] scaled = new int[dstWidth * dstHeight];
+        AreaResampler.resample(JpegStreamEncoderTest.createSource(pixels, width), width, height,
+                createSink(scaled, dstWidth), dstWidth, dstHeight, pool);
+        return scaled;
+    }
+
+    private static PixelStrips.Sink createSink(final int[] pixels, final int width) {
+        return new PixelStrips.Sink() {
+            @Override
+            public void setRows(int[] rows, int y, int count) {
+                System.arraycopy(rows, 0, pixels, y * width, count * width);
+            }
+        };
+    }
+
+    /**
+     * Mean of the source pixels each output pixel covers, weighted by the covered area, in
+     * doubles and without any strips.
+     */
+    static int[] areaAverage(int[] pixels, int width, int height, int dstWidth, int dstHeight) {
+        double scaleX = width / (double) dstWidth;
+        double scaleY = height / (double) dstHeight;
+        int[] scaled = new int[dstWidth * dstHeight];
+        for (int y = 0; y < dstHeight; y++) {
+            for (int x = 0; x < dstWidth; x++) {
+                double[] sums = new double[4];
+                for (int sy = (int) (y * scaleY); sy < Math.min(height, Math.ceil((y + 1) * scaleY)); sy++) {
+                    double coverageY = Math.min((y + 1) * scaleY, sy + 1) - Math.max(y * scaleY, sy);
+                    for (int sx = (int) (x * scaleX); sx < Math.min(width, Math.ceil((x + 1) * scaleX)); sx++) {
+                        double coverage = coverageY * (Math.min((x + 1) * scaleX, sx + 1) - Math.max(x * scaleX, sx));
+                        int pixel = pixels[sy * width + sx];
+                        for (int channel = 0; channel < 4; channel++) {
+                            sums[channel] += coverage * ((pixel >>> (channel * 8)) & 0xFF);
+                        }
+                    }
+                }
+                int pixel = 0;
+                for (int channel = 0; channel < 4; channel++) {
+                    pixel |= (int) Math.round(sums[channel] / (scaleX * scaleY)) << (channel * 8);
+                }
+                scaled[y * dstWidth + x] = pixel;
+            }
+        }
+        return scaled;
+    }
+}
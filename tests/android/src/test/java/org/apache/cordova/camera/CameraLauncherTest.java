@@ -0,0 +1,725 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import android.Manifest;
+import android.app.Activity;
+import android.app.Application;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ResolveInfo;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Environment;
+import android.os.Looper;
+import android.provider.MediaStore;
+import android.util.Base64;
+
+import androidx.exifinterface.media.ExifInterface;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaInterfaceImpl;
+import org.apache.cordova.CordovaPreferences;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.GraphicsMode;
+import org.robolectric.shadows.ShadowActivity;
+import org.robolectric.shadows.ShadowEnvironment;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Drives CameraLauncher the way Cordova does: execute() starts the camera or the gallery, the
+ * test plays the other app and hands the picture back through onActivityResult(). The
+ * MediaStore and the gallery are stand-in content providers, the pictures are real JPEGs
+ * decoded and encoded by Robolectric's native graphics.
+ * <p>
+ * Each scenario is described by a golden file under src/test/resources/goldens: the request
+ * arguments, the expected size, orientation and EXIF tags of the result, a reference image
+ * the pixels are compared with, and the latency and allocation budgets of the request. The
+ * budgets are checked on a second run, so class loading is not counted. They are first
+ * estimates that have not been calibrated against a CI run yet.
+ * <p>
+ * Runs with API 28, where the plugin uses CameraManagerAndroidLollipop. The gallery scenarios
+ * also run with API 29, where CameraManagerAndroidQ picks through the same pipeline.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+public class CameraLauncherTest {
+    private static final String TAKE_PICTURE = "takePicture";
+
+    private Application application;
+    private HostActivity activity;
+    private FakeMediaProvider media;
+    private CordovaPreferences preferences;
+    private CameraLauncher plugin;
+
+    @Before
+    public void setUp() {
+        application = RuntimeEnvironment.getApplication();
+        ShadowEnvironment.setExternalStorageState(Environment.MEDIA_MOUNTED);
+        shadowOf(application).grantPermissions(Manifest.permission.CAMERA,
+                Manifest.permission.READ_EXTERNAL_STORAGE, Manifest.permission.WRITE_EXTERNAL_STORAGE);
+        media = Robolectric.setupContentProvider(FakeMediaProvider.class, FakeMediaProvider.AUTHORITY);
+        Robolectric.setupContentProvider(FixtureProvider.class, FixtureProvider.AUTHORITY);
+
+        ResolveInfo camera = new ResolveInfo();
+        camera.activityInfo = new ActivityInfo();
+        camera.activityInfo.applicationInfo = new ApplicationInfo();
+        camera.activityInfo.applicationInfo.packageName = "org.example.camera";
+        camera.activityInfo.packageName = "org.example.camera";
+        camera.activityInfo.name = "org.example.camera.CaptureActivity";
+        shadowOf(application.getPackageManager()).addResolveInfoForIntent(new Intent(MediaStore.ACTION_IMAGE_CAPTURE), camera);
+
+        activity = Robolectric.buildActivity(HostActivity.class).setup().get();
+        preferences = new CordovaPreferences();
+        // Every run has to decode, a cached result would skip the stages under test
+        preferences.set(ResultCache.SIZE_PREFERENCE, 0);
+        plugin = createPlugin(new DirectExecutor());
+    }
+
+    private CameraLauncher createPlugin(ExecutorService threadPool) {
+        CameraLauncher plugin = new CameraLauncher();
+        plugin.privateInitialize("Camera", new CordovaInterfaceImpl(activity, threadPool), null, preferences);
+        return plugin;
+    }
+
+    @Test
+    public void galleryFileUriMatchesGolden() throws Exception {
+        verifyScenario("gallery_file_uri");
+    }
+
+    @Test
+    public void galleryDataUrlMatchesGolden() throws Exception {
+        verifyScenario("gallery_data_url");
+    }
+
+    @Test
+    public void cameraFileUriMatchesGolden() throws Exception {
+        verifyScenario("camera_file_uri");
+    }
+
+    @Test
+    @Config(sdk = 29)
+    public void galleryFileUriMatchesGoldenOnAndroidQ() throws Exception {
+        verifyScenario("gallery_file_uri");
+    }
+
+    @Test
+    @Config(sdk = 29)
+    public void galleryDataUrlMatchesGoldenOnAndroidQ() throws Exception {
+        verifyScenario("gallery_data_url");
+    }
+
+    /**
+     * A single camera output asked for as a data URL comes back as Base64 data, not a file.
+     */
+    @Test
+    @Config(sdk = 29)
+    public void cameraDataUrlReturnsDataOnAndroidQ() throws Exception {
+        JSONObject golden = readGolden("camera_file_uri");
+        golden.getJSONArray("args").put(1, BaseCameraManager.DATA_URL);
+        // The decoded picture is encoded again, without the EXIF data of the capture
+        golden.remove("exif");
+        Run run = run(golden);
+
+        assertEquals(run.result.getStrMessage(), PluginResult.Status.OK.ordinal(), run.result.getStatus());
+        String result = new JSONObject(run.result.getMessage()).getString(BaseCameraManager.RESULT_KEY);
+        assertFalse(result, result.startsWith("file:"));
+        verifyImage("camera_data_url", golden, readResult(golden, result));
+    }
+
+    @Test
+    @Config(sdk = 29)
+    public void cancelledGalleryReportsNoImageOnAndroidQ() throws Exception {
+        cancelledGalleryReportsNoImage();
+    }
+
+    @Test
+    public void cancelledGalleryReportsNoImage() throws Exception {
+        JSONObject golden = readGolden("gallery_file_uri");
+        CapturingCallback callback = new CapturingCallback();
+        plugin.execute(TAKE_PICTURE, golden.getJSONArray("args"), callback);
+        ShadowActivity.IntentForResult started = shadowOf(activity).getNextStartedActivityForResult();
+        plugin.onActivityResult(started.requestCode, Activity.RESULT_CANCELED, null);
+
+        PluginResult result = callback.getResult();
+        assertEquals(PluginResult.Status.ERROR.ordinal(), result.getStatus());
+        assertEquals("No Image Selected", result.getStrMessage());
+    }
+
+    /**
+     * The crop screen is started with the code of the request, so its result reaches that
+     * request even after another one was started.
+     */
+    @Test
+    @Config(sdk = 29)
+    public void cancelledCropReachesItsRequestOnAndroidQ() throws Exception {
+        JSONObject golden = readGolden("camera_file_uri");
+        JSONArray args = new JSONArray(golden.getJSONArray("args").toString());
+        args.put(7, true);
+        CapturingCallback callback = new CapturingCallback();
+        plugin.execute(TAKE_PICTURE, args, callback);
+        shadowOf(Looper.getMainLooper()).idle();
+        ShadowActivity.IntentForResult capture = shadowOf(activity).getNextStartedActivityForResult();
+        Uri output = capture.intent.getParcelableExtra(MediaStore.EXTRA_OUTPUT);
+        OutputStream out = application.getContentResolver().openOutputStream(output);
+        try {
+            out.write(FixtureProvider.readResource(golden.getString("source")));
+        } finally {
+            out.close();
+        }
+        plugin.onActivityResult(capture.requestCode, Activity.RESULT_OK, null);
+        shadowOf(Looper.getMainLooper()).idle();
+
+        ShadowActivity.IntentForResult crop = shadowOf(activity).getNextStartedActivityForResult();
+        assertNotNull("No crop screen was started", crop);
+        assertEquals(BaseCameraManager.CROP_CAMERA, CameraRequest.getKind(crop.requestCode));
+        assertEquals(CameraRequest.getRequestId(capture.requestCode), CameraRequest.getRequestId(crop.requestCode));
+
+        // A later request becomes the one that codes without an id would reach
+        plugin.execute(TAKE_PICTURE, readGolden("gallery_file_uri").getJSONArray("args"), new CapturingCallback());
+        shadowOf(Looper.getMainLooper()).idle();
+        plugin.onActivityResult(crop.requestCode, Activity.RESULT_CANCELED, null);
+
+        PluginResult result = callback.getResult();
+        assertEquals(PluginResult.Status.ERROR.ordinal(), result.getStatus());
+        assertEquals("No Image Selected", result.getStrMessage());
+    }
+
+    /**
+     * Two identical FILE_URI requests share one computation. The follower copies the file the
+     * leader produced, and each request gets a file of its own even within the same second.
+     */
+    @Test
+    public void coalescedFileUriRequestsGetTheirOwnFiles() throws Exception {
+        JSONArray args = readGolden("gallery_file_uri").getJSONArray("args");
+        final String source = "quadrants_640x480_exif6.jpg";
+        final Uri sourceUri = FixtureProvider.getUri(activity, source);
+        final BaseCameraManager leader = new CameraManagerAndroidLollipop(plugin, preferences);
+        final BaseCameraManager follower = new CameraManagerAndroidLollipop(plugin, preferences);
+        leader.execute(TAKE_PICTURE, args, new CapturingCallback());
+        follower.execute(TAKE_PICTURE, args, new CapturingCallback());
+        shadowOf(Looper.getMainLooper()).idle();
+
+        final CountDownLatch leading = new CountDownLatch(1);
+        final AtomicReference<Thread> following = new AtomicReference<Thread>();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<JSONArray> first = executor.submit(new Callable<JSONArray>() {
+                public JSONArray call() throws IOException {
+                    return leader.produceResults(sourceUri, new SingleFlight.Work<JSONArray>() {
+                        public JSONArray run() throws IOException {
+                            leading.countDown();
+                            awaitWaiting(following);
+                            // Named the way a result without changes is
+                            Uri uri = leader.copyResultToInternalStorage(sourceUri, BaseCameraManager.JPEG);
+                            return new JSONArray().put(uri.toString());
+                        }
+                    });
+                }
+            });
+            assertTrue("The leader did not start", leading.await(10, TimeUnit.SECONDS));
+            Future<JSONArray> second = executor.submit(new Callable<JSONArray>() {
+                public JSONArray call() throws IOException {
+                    following.set(Thread.currentThread());
+                    return follower.produceResults(sourceUri, new SingleFlight.Work<JSONArray>() {
+                        public JSONArray run() {
+                            throw new AssertionError("The follower ran the work instead of sharing it");
+                        }
+                    });
+                }
+            });
+
+            File leaderFile = new File(Uri.parse(first.get(10, TimeUnit.SECONDS).getString(0)).getPath());
+            File followerFile = new File(Uri.parse(second.get(10, TimeUnit.SECONDS).getString(0)).getPath());
+            assertNotEquals(leaderFile, followerFile);
+            int length = FixtureProvider.readResource(source).length;
+            assertEquals(length, leaderFile.length());
+            assertEquals(length, followerFile.length());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Waits until the thread is set and parked, which it only is on the leader's flight.
+     */
+    private static void awaitWaiting(AtomicReference<Thread> thread) {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            Thread waiting = thread.get();
+            if (waiting != null && waiting.getState() == Thread.State.WAITING) {
+                return;
+            }
+            Thread.yield();
+        }
+        throw new AssertionError("The follower did not reach the flight");
+    }
+
+    /**
+     * A launch that has nothing to start fails the request instead of leaving it waiting, and
+     * deletes the MediaStore row it inserted for the camera.
+     */
+    @Test
+    @Config(sdk = 29)
+    public void launchWithoutIntentDeletesTheCaptureRow() throws Exception {
+        final CameraManagerAndroidQ manager = new CameraManagerAndroidQ(plugin, preferences);
+        CapturingCallback callback = new CapturingCallback();
+        manager.execute(TAKE_PICTURE, readGolden("camera_file_uri").getJSONArray("args"), callback);
+        shadowOf(Looper.getMainLooper()).idle();
+        shadowOf(activity).getNextStartedActivityForResult();
+        int rows = media.getRowCount();
+
+        manager.launchInBackground(new Callable<Intent>() {
+            public Intent call() {
+                manager.imageUri = FileHelper.createCaptureFile(application.getContentResolver(), BaseCameraManager.JPEG, "");
+                return null;
+            }
+        }, BaseCameraManager.CAPTURE);
+        shadowOf(Looper.getMainLooper()).idle();
+
+        assertEquals(rows, media.getRowCount());
+        assertNull(manager.imageUri);
+        assertNull(shadowOf(activity).getNextStartedActivityForResult());
+        PluginResult result = callback.getResult();
+        assertEquals(PluginResult.Status.ERROR.ordinal(), result.getStatus());
+        assertEquals("Error capturing image.", result.getStrMessage());
+    }
+
+    /**
+     * The process dies while a picked image is being processed, long after its activity result
+     * was delivered. The next start of the app processes it again from the JobJournal and sends
+     * the result through the resume event.
+     */
+    @Test
+    public void jobKilledWhileProcessingIsResumedOnRestart() throws Exception {
+        JSONObject golden = readGolden("gallery_file_uri");
+        File journal = new File(application.getFilesDir(), "camera-jobs");
+        JobJournal.reset();
+        final QueueExecutor threadPool = new QueueExecutor();
+        CameraLauncher killed = createPlugin(threadPool);
+        killed.execute(TAKE_PICTURE, golden.getJSONArray("args"), new CapturingCallback());
+        shadowOf(Looper.getMainLooper()).idle();
+        ShadowActivity.IntentForResult started = shadowOf(activity).getNextStartedActivityForResult();
+        killed.onActivityResult(started.requestCode, Activity.RESULT_OK,
+                new Intent().setData(FixtureProvider.getUri(activity, golden.getString("source"))));
+
+        // The processing thread stops for good once the job is journaled, as if the process died
+        FixtureProvider.holdAccess();
+        Thread processing = new Thread(new Runnable() {
+            public void run() {
+                threadPool.runAll();
+            }
+        });
+        processing.start();
+        try {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (FixtureProvider.getWaitingAccesses() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals("The job did not start processing", 1, FixtureProvider.getWaitingAccesses());
+            assertEquals(1, journal.list().length);
+            FixtureProvider.releaseAccess();
+
+            JobJournal.reset();
+            RestartedLauncher restarted = new RestartedLauncher();
+            restarted.privateInitialize("Camera", new CordovaInterfaceImpl(activity, new DirectExecutor()), null, preferences);
+            restarted.onMessage("onPageFinished", null);
+            shadowOf(Looper.getMainLooper()).idle();
+
+            PluginResult result = restarted.resumeCallback.getResult();
+            assertEquals(result.getStrMessage(), PluginResult.Status.OK.ordinal(), result.getStatus());
+            JSONObject message = new JSONObject(result.getMessage());
+            verifyImage("resumed", golden, readResult(golden, message.getString(BaseCameraManager.RESULT_KEY)));
+            assertEquals(0, journal.list().length);
+        } finally {
+            FixtureProvider.releaseAccess();
+            processing.interrupt();
+            processing.join();
+            JobJournal.reset();
+        }
+    }
+
+    /**
+     * Hands the results of resumed jobs to the test instead of the resume event.
+     */
+    static class RestartedLauncher extends CameraLauncher {
+        final CapturingCallback resumeCallback = new CapturingCallback();
+
+        @Override
+        protected CallbackContext createResumeCallback() {
+            return resumeCallback;
+        }
+    }
+
+    /**
+     * Measures how long execute() blocks its thread and how long it takes until the camera is
+     * started, with the launch prepared on the calling thread as before and on the thread pool
+     * as now. The times depend on the machine and are only printed. What is asserted is that
+     * execute() returns before the MediaStore work, which then starts the camera.
+     */
+    @Test
+    @Config(sdk = 29)
+    public void cameraLaunchIsPreparedOffTheCallingThread() throws Exception {
+        JSONArray args = readGolden("camera_file_uri").getJSONArray("args");
+        // The first launches load the classes
+        measureLaunch(new DirectExecutor(), args);
+        measureLaunch(new QueueExecutor(), args);
+
+        long[] before = new long[LAUNCH_RUNS * 2];
+        long[] after = new long[LAUNCH_RUNS * 2];
+        for (int i = 0; i < LAUNCH_RUNS; i++) {
+            System.arraycopy(measureLaunch(new DirectExecutor(), args), 0, before, i * 2, 2);
+            System.arraycopy(measureLaunch(new QueueExecutor(), args), 0, after, i * 2, 2);
+        }
+        System.out.println("Camera launch, calling thread blocked / until started, median of " + LAUNCH_RUNS + " runs: "
+                + "on the calling thread " + medianMs(before, 0) + " / " + medianMs(before, 1) + " ms, "
+                + "on the thread pool " + medianMs(after, 0) + " / " + medianMs(after, 1) + " ms");
+    }
+
+    private static final int LAUNCH_RUNS = 20;
+
+    /**
+     * @return the nanoseconds execute() blocked its thread and the nanoseconds until the
+     * camera was started
+     */
+    private long[] measureLaunch(ExecutorService threadPool, JSONArray args) throws Exception {
+        CameraLauncher plugin = createPlugin(threadPool);
+        int rows = media.getRowCount();
+        long start = System.nanoTime();
+        plugin.execute(TAKE_PICTURE, args, new CapturingCallback());
+        long blocked = System.nanoTime() - start;
+        if (threadPool instanceof QueueExecutor) {
+            assertEquals("The capture row was inserted on the calling thread", rows, media.getRowCount());
+            assertNull(shadowOf(activity).getNextStartedActivityForResult());
+            ((QueueExecutor) threadPool).runAll();
+        }
+        shadowOf(Looper.getMainLooper()).idle();
+        long launched = System.nanoTime() - start;
+
+        assertEquals(rows + 1, media.getRowCount());
+        assertNotNull("No camera was started", shadowOf(activity).getNextStartedActivityForResult());
+        return new long[]{blocked, launched};
+    }
+
+    private static double medianMs(long[] samples, int offset) {
+        long[] values = new long[samples.length / 2];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = samples[i * 2 + offset];
+        }
+        Arrays.sort(values);
+        return values[values.length / 2] / 1e6;
+    }
+
+    private void verifyScenario(String name) throws Exception {
+        JSONObject golden = readGolden(name);
+        // The first run loads the classes and native code, the second one is measured
+        run(golden);
+        Run run = run(golden);
+
+        assertEquals(name + ": " + run.result.getStrMessage(), PluginResult.Status.OK.ordinal(), run.result.getStatus());
+        JSONObject message = new JSONObject(run.result.getMessage());
+        byte[] image = readResult(golden, message.getString(BaseCameraManager.RESULT_KEY));
+        verifyImage(name, golden, image);
+        verifyBudgets(name, golden, message.getJSONObject(BaseCameraManager.METRICS_KEY), run.allocatedBytes);
+    }
+
+    /**
+     * Takes or picks the source of the scenario and waits for the result of the request.
+     */
+    private Run run(JSONObject golden) throws Exception {
+        String source = golden.getString("source");
+        Uri sourceUri = FixtureProvider.getUri(activity, source);
+        CapturingCallback callback = new CapturingCallback();
+        AllocationMeter meter = new AllocationMeter();
+
+        plugin.execute(TAKE_PICTURE, golden.getJSONArray("args"), callback);
+        shadowOf(Looper.getMainLooper()).idle();
+        ShadowActivity.IntentForResult started = shadowOf(activity).getNextStartedActivityForResult();
+        assertNotNull("No activity was started", started);
+
+        Intent resultIntent = null;
+        if (golden.getInt("sourceType") == BaseCameraManager.CAMERA) {
+            // The camera app writes the picture to the Uri it was given
+            Uri output = started.intent.getParcelableExtra(MediaStore.EXTRA_OUTPUT);
+            assertNotNull("No output Uri for the camera", output);
+            OutputStream out = application.getContentResolver().openOutputStream(output);
+            try {
+                out.write(FixtureProvider.readResource(source));
+            } finally {
+                out.close();
+            }
+        } else {
+            resultIntent = new Intent().setData(sourceUri);
+        }
+        plugin.onActivityResult(started.requestCode, Activity.RESULT_OK, resultIntent);
+        shadowOf(Looper.getMainLooper()).idle();
+
+        return new Run(callback.getResult(), meter.stop());
+    }
+
+    private byte[] readResult(JSONObject golden, String result) throws IOException, JSONException {
+        if (golden.getJSONArray("args").getInt(1) == BaseCameraManager.DATA_URL) {
+            return Base64.decode(result, Base64.DEFAULT);
+        }
+        Uri uri = Uri.parse(result);
+        assertEquals("file", uri.getScheme());
+        return ResultCache.read(new File(uri.getPath()));
+    }
+
+    private void verifyImage(String name, JSONObject golden, byte[] image) throws Exception {
+        Bitmap bitmap = BitmapFactory.decodeByteArray(image, 0, image.length);
+        assertNotNull(name + ": the result is not an image", bitmap);
+        assertEquals(name + ": width", golden.getInt("width"), bitmap.getWidth());
+        assertEquals(name + ": height", golden.getInt("height"), bitmap.getHeight());
+
+        ExifInterface exif = new ExifInterface(new ByteArrayInputStream(image));
+        assertEquals(name + ": orientation", golden.getInt("orientation"),
+                exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL));
+        JSONObject tags = golden.optJSONObject("exif");
+        if (tags != null) {
+            Iterator<String> keys = tags.keys();
+            while (keys.hasNext()) {
+                String tag = keys.next();
+                assertEquals(name + ": EXIF " + tag, tags.getString(tag), exif.getAttribute(tag));
+            }
+        }
+
+        byte[] referenceData = FixtureProvider.readResource(golden.getString("reference"));
+        Bitmap reference = BitmapFactory.decodeByteArray(referenceData, 0, referenceData.length);
+        double error = meanError(bitmap, reference);
+        assertTrue(name + ": mean error " + error + " against " + golden.getString("reference"),
+                error <= golden.getDouble("maxMeanError"));
+    }
+
+    private static void verifyBudgets(String name, JSONObject golden, JSONObject metrics, long allocatedBytes) throws JSONException {
+        JSONObject budgets = golden.getJSONObject("stageBudgetsMs");
+        JSONObject stages = metrics.getJSONObject("stagesMs");
+        Iterator<String> keys = stages.keys();
+        while (keys.hasNext()) {
+            String stage = keys.next();
+            assertTrue(name + ": no budget for stage " + stage, budgets.has(stage));
+            double ms = stages.getDouble(stage);
+            assertTrue(name + ": " + stage + " took " + ms + " ms", ms <= budgets.getDouble(stage));
+        }
+        double processingMs = metrics.getDouble("processingMs");
+        assertTrue(name + ": processing took " + processingMs + " ms", processingMs <= golden.getDouble("processingBudgetMs"));
+        long allocationBudget = golden.getLong("allocationBudgetBytes");
+        assertTrue(name + ": allocated " + allocatedBytes + " bytes", allocatedBytes <= allocationBudget);
+    }
+
+    /**
+     * Average difference per channel, 0 to 255.
+     */
+    static double meanError(Bitmap bitmap, Bitmap reference) {
+        int width = reference.getWidth();
+        int height = reference.getHeight();
+        int[] actual = new int[width * height];
+        int[] expected = new int[width * height];
+        bitmap.getPixels(actual, 0, width, 0, 0, width, height);
+        reference.getPixels(expected, 0, width, 0, 0, width, height);
+        long sum = 0;
+        for (int i = 0; i < actual.length; i++) {
+            for (int shift = 0; shift <= 16; shift += 8) {
+                sum += Math.abs(((actual[i] >> shift) & 0xFF) - ((expected[i] >> shift) & 0xFF));
+            }
+        }
+        return sum / (3.0 * actual.length);
+    }
+
+    private static JSONObject readGolden(String name) throws IOException, JSONException {
+        return new JSONObject(new String(FixtureProvider.readTestResource("/goldens/" + name + ".json"), "UTF-8"));
+    }
+
+    private static class Run {
+        final PluginResult result;
+        final long allocatedBytes;
+
+        Run(PluginResult result, long allocatedBytes) {
+            this.result = result;
+            this.allocatedBytes = allocatedBytes;
+        }
+    }
+
+    /**
+     * Keeps what the plugin sends instead of passing it to a WebView.
+     */
+    static class CapturingCallback extends CallbackContext {
+        private final List<PluginResult> results = Collections.synchronizedList(new ArrayList<PluginResult>());
+
+        CapturingCallback() {
+            super("Camera" + System.nanoTime(), null);
+        }
+
+        @Override
+        public void sendPluginResult(PluginResult pluginResult) {
+            results.add(pluginResult);
+        }
+
+        /**
+         * @return the result that ended the request
+         */
+        PluginResult getResult() {
+            synchronized (results) {
+                for (PluginResult result : results) {
+                    if (result.getStatus() != PluginResult.Status.NO_RESULT.ordinal() && !result.getKeepCallback()) {
+                        return result;
+                    }
+                }
+            }
+            throw new AssertionError("No result was sent, only " + results.size() + " messages");
+        }
+    }
+
+    /**
+     * Runs the thread pool work of the plugin on the calling thread, which makes every request
+     * complete within execute() and onActivityResult().
+     */
+    static class DirectExecutor extends AbstractExecutorService {
+        private volatile boolean shutdown;
+
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown = true;
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return true;
+        }
+    }
+
+    /**
+     * Keeps the thread pool work of the plugin until the test runs it, like a pool whose
+     * threads are busy.
+     */
+    static class QueueExecutor extends DirectExecutor {
+        private final List<Runnable> queue = new ArrayList<Runnable>();
+
+        @Override
+        public synchronized void execute(Runnable command) {
+            queue.add(command);
+        }
+
+        void runAll() {
+            while (true) {
+                Runnable next;
+                synchronized (this) {
+                    if (queue.isEmpty()) {
+                        return;
+                    }
+                    next = queue.remove(0);
+                }
+                next.run();
+            }
+        }
+    }
+
+    /**
+     * Sums the bytes allocated by every thread, including the encode pool of ImagePipeline.
+     * Threads that end while the meter runs are not counted.
+     */
+    static class AllocationMeter {
+        private final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        private final Map<Long, Long> start = snapshot();
+
+        long stop() {
+            long total = 0;
+            for (Map.Entry<Long, Long> entry : snapshot().entrySet()) {
+                Long before = start.get(entry.getKey());
+                total += entry.getValue() - (before != null ? before : 0L);
+            }
+            return total;
+        }
+
+        private Map<Long, Long> snapshot() {
+            long[] ids = threads.getAllThreadIds();
+            long[] bytes = threads.getThreadAllocatedBytes(ids);
+            Map<Long, Long> allocated = new HashMap<Long, Long>();
+            for (int i = 0; i < ids.length; i++) {
+                if (bytes[i] >= 0) {
+                    allocated.put(ids[i], bytes[i]);
+                }
+            }
+            return allocated;
+        }
+    }
+}
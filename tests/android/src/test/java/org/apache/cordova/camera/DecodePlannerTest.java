@@ -0,0 +1,153 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.GraphicsMode;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks which pixel format the planner picks for a request and a budget, and what RGB_565
+ * costs in colour and saves in memory on the fixture.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+public class DecodePlannerTest {
+    private static final long MB = 1024L * 1024L;
+    // A 12 megapixel camera picture
+    private static final int WIDTH = 4000;
+    private static final int HEIGHT = 3000;
+    // A JPEG returned at full quality, which only falls back to RGB_565 under pressure
+    private static final Bitmap.Config[] JPEG_CONFIGS =
+            DecodePlanner.selectConfigs("image/jpeg", BaseCameraManager.JPEG, 100);
+
+    @Test
+    public void opaqueJpegToLossyJpegDecodesRgb565() {
+        assertArrayEquals(new Bitmap.Config[]{Bitmap.Config.RGB_565},
+                DecodePlanner.selectConfigs("image/jpeg", BaseCameraManager.JPEG, 50));
+        DecodePlanner.Plan plan = DecodePlanner.plan(WIDTH, HEIGHT, WIDTH, HEIGHT,
+                DecodePlanner.selectConfigs("image/jpeg", BaseCameraManager.JPEG, 50), false, false, 64 * MB);
+        assertEquals(Bitmap.Config.RGB_565, plan.config);
+    }
+
+    @Test
+    public void otherRequestsPreferArgb8888() {
+        assertArrayEquals(new Bitmap.Config[]{Bitmap.Config.ARGB_8888, Bitmap.Config.RGB_565}, JPEG_CONFIGS);
+        assertArrayEquals(new Bitmap.Config[]{Bitmap.Config.ARGB_8888, Bitmap.Config.RGB_565},
+                DecodePlanner.selectConfigs("image/jpeg", BaseCameraManager.PNG, 50));
+        // Sources that may have alpha
+        assertArrayEquals(new Bitmap.Config[]{Bitmap.Config.ARGB_8888},
+                DecodePlanner.selectConfigs("image/png", BaseCameraManager.JPEG, 50));
+        assertArrayEquals(new Bitmap.Config[]{Bitmap.Config.ARGB_8888},
+                DecodePlanner.selectConfigs(null, BaseCameraManager.JPEG, 50));
+    }
+
+    @Test
+    public void keepsArgb8888WhenItFits() {
+        // 48 MB of ARGB_8888 pixels
+        DecodePlanner.Plan plan = DecodePlanner.plan(WIDTH, HEIGHT, WIDTH, HEIGHT, JPEG_CONFIGS, false, false, 64 * MB);
+        assertEquals(Bitmap.Config.ARGB_8888, plan.config);
+        assertFalse(plan.isTiled());
+        assertEquals(WIDTH, plan.outWidth);
+    }
+
+    @Test
+    public void stripsOfArgb8888ComeBeforeRgb565() {
+        // Rotating needs two copies of the output, 96 MB, but the output alone fits
+        DecodePlanner.Plan plan = DecodePlanner.plan(WIDTH, HEIGHT, WIDTH, HEIGHT, JPEG_CONFIGS, true, true, 60 * MB);
+        assertEquals(Bitmap.Config.ARGB_8888, plan.config);
+        assertTrue(plan.isTiled());
+    }
+
+    @Test
+    public void fallsBackToRgb565UnderPressure() {
+        DecodePlanner.Plan whole = DecodePlanner.plan(WIDTH, HEIGHT, WIDTH, HEIGHT, JPEG_CONFIGS, false, false, 30 * MB);
+        assertEquals(Bitmap.Config.RGB_565, whole.config);
+        assertFalse(whole.isTiled());
+        assertEquals(WIDTH, whole.outWidth);
+
+        DecodePlanner.Plan tiled = DecodePlanner.plan(WIDTH, HEIGHT, WIDTH, HEIGHT, JPEG_CONFIGS, true, true, 40 * MB);
+        assertEquals(Bitmap.Config.RGB_565, tiled.config);
+        assertTrue(tiled.isTiled());
+    }
+
+    @Test
+    public void pngShrinksInsteadOfFallingBack() {
+        DecodePlanner.Plan plan = DecodePlanner.plan(WIDTH, HEIGHT, WIDTH, HEIGHT,
+                DecodePlanner.selectConfigs("image/png", BaseCameraManager.PNG, 100), false, false, 30 * MB);
+        assertEquals(Bitmap.Config.ARGB_8888, plan.config);
+        assertTrue(plan.outWidth < WIDTH);
+    }
+
+    /**
+     * Decodes the fixture in both formats and compares the pixels and the memory they take.
+     */
+    @Test
+    public void rgb565HalvesHeapWithinColourTolerance() throws IOException {
+        byte[] jpeg = FixtureProvider.readResource(FixtureGenerator.SOURCE);
+        Bitmap argb = decode(jpeg, Bitmap.Config.ARGB_8888);
+        Bitmap rgb565 = decode(jpeg, Bitmap.Config.RGB_565);
+
+        assertEquals(Bitmap.Config.RGB_565, rgb565.getConfig());
+        assertEquals(argb.getWidth(), rgb565.getWidth());
+        assertEquals(argb.getHeight(), rgb565.getHeight());
+        assertEquals(argb.getAllocationByteCount() / 2, rgb565.getAllocationByteCount());
+
+        double meanError = CameraLauncherTest.meanError(rgb565, argb);
+        int maxError = maxError(rgb565, argb);
+        // 5 and 6 bit channels round by up to 4 levels, the decoder may dither on top of that
+        assertTrue("mean error " + meanError, meanError > 0 && meanError < 4);
+        assertTrue("max error " + maxError, maxError <= 16);
+    }
+
+    private static Bitmap decode(byte[] jpeg, Bitmap.Config config) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = config;
+        return BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+    }
+
+    private static int maxError(Bitmap bitmap, Bitmap reference) {
+        int width = reference.getWidth();
+        int height = reference.getHeight();
+        int[] actual = new int[width * height];
+        int[] expected = new int[width * height];
+        bitmap.getPixels(actual, 0, width, 0, 0, width, height);
+        reference.getPixels(expected, 0, width, 0, 0, width, height);
+        int max = 0;
+        for (int i = 0; i < actual.length; i++) {
+            for (int shift = 0; shift <= 16; shift += 8) {
+                max = Math.max(max, Math.abs(((actual[i] >> shift) & 0xFF) - ((expected[i] >> shift) & 0xFF)));
+            }
+        }
+        return max;
+    }
+}
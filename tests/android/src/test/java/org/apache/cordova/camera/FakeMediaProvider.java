@@ -0,0 +1,172 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import android.content.ContentProvider;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.MediaStore;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Stands in for the MediaStore. Every inserted row is backed by a file, which the _data
+ * column points to like it does on Android 9 and older.
+ */
+public class FakeMediaProvider extends ContentProvider {
+    public static final String AUTHORITY = "media";
+
+    private static class Row {
+        final File file;
+        final String mimeType;
+        final String displayName;
+
+        Row(File file, String mimeType, String displayName) {
+            this.file = file;
+            this.mimeType = mimeType;
+            this.displayName = displayName;
+        }
+    }
+
+    private final Map<Long, Row> rows = new TreeMap<Long, Row>();
+    private long nextId = 1;
+    private File directory;
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    private synchronized File getDirectory() {
+        if (directory == null) {
+            directory = new File(getContext().getCacheDir(), "fake-media");
+            directory.mkdirs();
+        }
+        return directory;
+    }
+
+    public synchronized int getRowCount() {
+        return rows.size();
+    }
+
+    @Override
+    public synchronized Uri insert(Uri uri, ContentValues values) {
+        long id = nextId++;
+        String name = values != null ? values.getAsString(MediaStore.MediaColumns.DISPLAY_NAME) : null;
+        String mimeType = values != null ? values.getAsString(MediaStore.MediaColumns.MIME_TYPE) : null;
+        File file = new File(getDirectory(), id + "_" + (name != null ? name : "image"));
+        try {
+            file.createNewFile();
+        } catch (IOException e) {
+            return null;
+        }
+        rows.put(id, new Row(file, mimeType, name));
+        return ContentUris.withAppendedId(uri, id);
+    }
+
+    @Override
+    public synchronized Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        String[] columns = projection != null ? projection : new String[]{
+                MediaStore.MediaColumns._ID, MediaStore.MediaColumns.DATA, MediaStore.MediaColumns.MIME_TYPE,
+                MediaStore.MediaColumns.DISPLAY_NAME, MediaStore.Images.ImageColumns.ORIENTATION};
+        MatrixCursor cursor = new MatrixCursor(columns);
+        long id = parseId(uri);
+        for (Map.Entry<Long, Row> entry : rows.entrySet()) {
+            if (id == -1 || id == entry.getKey()) {
+                cursor.addRow(toValues(columns, entry.getKey(), entry.getValue()));
+            }
+        }
+        return cursor;
+    }
+
+    private static Object[] toValues(String[] columns, long id, Row row) {
+        Object[] values = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            String column = columns[i];
+            if (MediaStore.MediaColumns._ID.equals(column)) {
+                values[i] = id;
+            } else if (MediaStore.MediaColumns.DATA.equals(column)) {
+                values[i] = row.file.getAbsolutePath();
+            } else if (MediaStore.MediaColumns.MIME_TYPE.equals(column)) {
+                values[i] = row.mimeType;
+            } else if (MediaStore.MediaColumns.DISPLAY_NAME.equals(column)) {
+                values[i] = row.displayName;
+            } else if (MediaStore.MediaColumns.SIZE.equals(column)) {
+                values[i] = row.file.length();
+            } else if (MediaStore.MediaColumns.DATE_MODIFIED.equals(column)) {
+                values[i] = row.file.lastModified() / 1000;
+            } else if (MediaStore.Images.ImageColumns.ORIENTATION.equals(column)) {
+                values[i] = 0;
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public synchronized String getType(Uri uri) {
+        Row row = rows.get(parseId(uri));
+        return row != null ? row.mimeType : null;
+    }
+
+    @Override
+    public synchronized int delete(Uri uri, String selection, String[] selectionArgs) {
+        Row row = rows.remove(parseId(uri));
+        if (row == null) {
+            return 0;
+        }
+        row.file.delete();
+        return 1;
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        return 0;
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        Row row;
+        synchronized (this) {
+            row = rows.get(parseId(uri));
+        }
+        if (row == null) {
+            throw new FileNotFoundException(uri.toString());
+        }
+        return ParcelFileDescriptor.open(row.file, ParcelFileDescriptor.parseMode(mode));
+    }
+
+    /**
+     * @return the id of a row Uri or -1 for the Uri of a collection
+     */
+    private static long parseId(Uri uri) {
+        try {
+            return Long.parseLong(uri.getLastPathSegment());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
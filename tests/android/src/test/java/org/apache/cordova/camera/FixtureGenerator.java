@@ -0,0 +1,228 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Writes the source image and the reference outputs under src/test/resources/fixtures. The
+ * files are committed, run this again only when the fixtures have to change:
+ * <pre>
+ * java -cp build/intermediates/javac/debugUnitTest/classes org.apache.cordova.camera.FixtureGenerator src/test/resources/fixtures
+ * </pre>
+ * The source is stored in landscape with EXIF orientation 6, so it displays as portrait. Each
+ * quadrant has its own colour, which makes a wrong rotation fail the comparison, and the
+ * colours change smoothly within a quadrant, so the scaling filters differ only slightly.
+ */
+public class FixtureGenerator {
+    public static final String SOURCE = "quadrants_640x480_exif6.jpg";
+    public static final int SOURCE_WIDTH = 640;
+    public static final int SOURCE_HEIGHT = 480;
+    public static final String MAKE = "Apache Cordova";
+    public static final String MODEL = "Camera Fixture";
+
+    // Top left, top right, bottom left and bottom right of the stored image
+    private static final int[][] QUADRANT_COLORS = {
+            {220, 40, 40}, {40, 200, 40}, {40, 40, 220}, {230, 210, 40}
+    };
+
+    public static void main(String[] args) throws IOException {
+        File directory = new File(args.length > 0 ? args[0] : "src/test/resources/fixtures");
+        directory.mkdirs();
+
+        BufferedImage stored = createSource();
+        byte[] jpeg = encodeJpeg(stored, 0.95f);
+        write(new File(directory, SOURCE), insertExif(jpeg, 6));
+
+        // Orientation 6 displays the stored image rotated 90 degrees clockwise
+        BufferedImage upright = rotateClockwise(stored);
+        ImageIO.write(areaAverage(upright, 240, 320), "png", new File(directory, "reference_240x320.png"));
+        ImageIO.write(areaAverage(upright, 120, 160), "png", new File(directory, "reference_120x160.png"));
+    }
+
+    static BufferedImage createSource() {
+        BufferedImage image = new BufferedImage(SOURCE_WIDTH, SOURCE_HEIGHT, BufferedImage.TYPE_INT_RGB);
+        int halfWidth = SOURCE_WIDTH / 2;
+        int halfHeight = SOURCE_HEIGHT / 2;
+        for (int y = 0; y < SOURCE_HEIGHT; y++) {
+            for (int x = 0; x < SOURCE_WIDTH; x++) {
+                int[] color = QUADRANT_COLORS[(y < halfHeight ? 0 : 2) + (x < halfWidth ? 0 : 1)];
+                // Up to 30 levels of shading towards the centre of the quadrant
+                int shade = 30 * (x % halfWidth) / halfWidth - 15 + 30 * (y % halfHeight) / halfHeight - 15;
+                int r = clamp(color[0] + shade);
+                int g = clamp(color[1] + shade);
+                int b = clamp(color[2] + shade);
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+
+    static BufferedImage rotateClockwise(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        BufferedImage rotated = new BufferedImage(height, width, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                rotated.setRGB(height - 1 - y, x, image.getRGB(x, y));
+            }
+        }
+        return rotated;
+    }
+
+    /**
+     * Reduces by a whole factor, averaging every covered source pixel.
+     */
+    static BufferedImage areaAverage(BufferedImage image, int width, int height) {
+        int factorX = image.getWidth() / width;
+        int factorY = image.getHeight() / height;
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = 0;
+                int g = 0;
+                int b = 0;
+                for (int sy = 0; sy < factorY; sy++) {
+                    for (int sx = 0; sx < factorX; sx++) {
+                        int rgb = image.getRGB(x * factorX + sx, y * factorY + sy);
+                        r += (rgb >> 16) & 0xFF;
+                        g += (rgb >> 8) & 0xFF;
+                        b += rgb & 0xFF;
+                    }
+                }
+                int count = factorX * factorY;
+                scaled.setRGB(x, y, ((r / count) << 16) | ((g / count) << 8) | (b / count));
+            }
+        }
+        return scaled;
+    }
+
+    static byte[] encodeJpeg(BufferedImage image, float quality) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        ImageWriter writer = writers.next();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MemoryCacheImageOutputStream output = new MemoryCacheImageOutputStream(bytes);
+        try {
+            writer.setOutput(output);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            output.close();
+            writer.dispose();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Replaces the JFIF segment that follows the SOI marker with an EXIF segment holding the
+     * orientation, make and model.
+     */
+    static byte[] insertExif(byte[] jpeg, int orientation) {
+        int offset = 2;
+        if ((jpeg[2] & 0xFF) == 0xFF && (jpeg[3] & 0xFF) == 0xE0) {
+            offset = 4 + (((jpeg[4] & 0xFF) << 8) | (jpeg[5] & 0xFF));
+        }
+        byte[] exif = createExifSegment(orientation);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(jpeg.length + exif.length);
+        out.write(jpeg, 0, 2);
+        out.write(exif, 0, exif.length);
+        out.write(jpeg, offset, jpeg.length - offset);
+        return out.toByteArray();
+    }
+
+    private static byte[] createExifSegment(int orientation) {
+        byte[] make = (MAKE + "\0").getBytes(StandardCharsets.US_ASCII);
+        byte[] model = (MODEL + "\0").getBytes(StandardCharsets.US_ASCII);
+        int entries = 3;
+        int ifdSize = 2 + entries * 12 + 4;
+        int dataOffset = 8 + ifdSize;
+
+        ByteArrayOutputStream tiff = new ByteArrayOutputStream();
+        // Big endian header, IFD0 right behind it
+        writeBytes(tiff, 'M', 'M', 0, 42, 0, 0, 0, 8);
+        writeShort(tiff, entries);
+        // Make and Model are ASCII strings stored after the IFD, Orientation is a SHORT in place
+        writeEntry(tiff, 0x010F, 2, make.length, dataOffset);
+        writeEntry(tiff, 0x0110, 2, model.length, dataOffset + make.length);
+        writeShort(tiff, 0x0112);
+        writeShort(tiff, 3);
+        writeInt(tiff, 1);
+        writeShort(tiff, orientation);
+        writeShort(tiff, 0);
+        writeInt(tiff, 0);
+        tiff.write(make, 0, make.length);
+        tiff.write(model, 0, model.length);
+
+        byte[] body = tiff.toByteArray();
+        ByteArrayOutputStream segment = new ByteArrayOutputStream();
+        int length = 2 + 6 + body.length;
+        writeBytes(segment, 0xFF, 0xE1, length >> 8, length & 0xFF, 'E', 'x', 'i', 'f', 0, 0);
+        segment.write(body, 0, body.length);
+        return segment.toByteArray();
+    }
+
+    private static void writeEntry(ByteArrayOutputStream out, int tag, int type, int count, int offset) {
+        writeShort(out, tag);
+        writeShort(out, type);
+        writeInt(out, count);
+        writeInt(out, offset);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        writeBytes(out, value >> 8, value & 0xFF);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        writeBytes(out, value >>> 24, (value >> 16) & 0xFF, (value >> 8) & 0xFF, value & 0xFF);
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, int... values) {
+        for (int value : values) {
+            out.write(value);
+        }
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
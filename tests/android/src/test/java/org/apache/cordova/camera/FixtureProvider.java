@@ -0,0 +1,203 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.MediaStore;
+import android.provider.OpenableColumns;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves the files of src/test/resources/fixtures the way a gallery app shares a picked
+ * image: content:// Uris with a type, a size, a modification date and a _data path.
+ */
+public class FixtureProvider extends ContentProvider {
+    public static final String AUTHORITY = "org.apache.cordova.camera.fixtures";
+
+    // While set, every query and open waits for it, like a gallery app that stopped answering
+    private static volatile CountDownLatch gate;
+    private static final AtomicInteger waiting = new AtomicInteger();
+
+    /**
+     * Makes every access to the fixtures wait until releaseAccess() is called.
+     */
+    public static void holdAccess() {
+        gate = new CountDownLatch(1);
+    }
+
+    /**
+     * Lets new accesses through. Those already waiting keep waiting until their thread is
+     * interrupted, which fails them.
+     */
+    public static void releaseAccess() {
+        gate = null;
+    }
+
+    /**
+     * @return the number of accesses waiting for the gate
+     */
+    public static int getWaitingAccesses() {
+        return waiting.get();
+    }
+
+    private static void awaitGate() {
+        CountDownLatch held = gate;
+        if (held == null) {
+            return;
+        }
+        waiting.incrementAndGet();
+        try {
+            held.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the fixture");
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * Copies the fixture out of the test resources and returns the Uri it is served under.
+     */
+    public static Uri getUri(Context context, String name) throws IOException {
+        File file = getFile(context, name);
+        if (!file.exists()) {
+            file.getParentFile().mkdirs();
+            OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(readResource(name));
+            } finally {
+                out.close();
+            }
+        }
+        return new Uri.Builder().scheme("content").authority(AUTHORITY).appendPath(name).build();
+    }
+
+    public static byte[] readResource(String name) throws IOException {
+        return readTestResource("/fixtures/" + name);
+    }
+
+    /**
+     * Reads a file of src/test/resources.
+     */
+    public static byte[] readTestResource(String path) throws IOException {
+        InputStream in = FixtureProvider.class.getResourceAsStream(path);
+        if (in == null) {
+            throw new FileNotFoundException(path);
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static File getFile(Context context, String name) {
+        return new File(new File(context.getCacheDir(), "fixtures"), name);
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        awaitGate();
+        File file = getFile(getContext(), uri.getLastPathSegment());
+        String[] columns = projection != null ? projection : new String[]{
+                MediaStore.MediaColumns._ID, MediaStore.MediaColumns.DATA, OpenableColumns.DISPLAY_NAME,
+                OpenableColumns.SIZE, MediaStore.MediaColumns.DATE_MODIFIED};
+        MatrixCursor cursor = new MatrixCursor(columns);
+        if (!file.exists()) {
+            return cursor;
+        }
+        Object[] values = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            if (MediaStore.MediaColumns._ID.equals(columns[i])) {
+                values[i] = 1L;
+            } else if (MediaStore.MediaColumns.DATA.equals(columns[i])) {
+                values[i] = file.getAbsolutePath();
+            } else if (OpenableColumns.DISPLAY_NAME.equals(columns[i])) {
+                values[i] = file.getName();
+            } else if (OpenableColumns.SIZE.equals(columns[i])) {
+                values[i] = file.length();
+            } else if (MediaStore.MediaColumns.DATE_MODIFIED.equals(columns[i])) {
+                values[i] = file.lastModified() / 1000;
+            }
+        }
+        cursor.addRow(values);
+        return cursor;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        String name = uri.getLastPathSegment();
+        if (name.endsWith(".png")) {
+            return "image/png";
+        }
+        return name.endsWith(".jpg") ? "image/jpeg" : null;
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        awaitGate();
+        File file = getFile(getContext(), uri.getLastPathSegment());
+        if (!file.exists()) {
+            throw new FileNotFoundException(uri.toString());
+        }
+        return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        return null;
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        return 0;
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        return 0;
+    }
+}
@@ -0,0 +1,286 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Kills a job at every stage and resumes it with a new journal on the same directory, the way
+ * a restarted process reads the journal of the one that was killed. CameraLauncherTest resumes
+ * a killed job through the plugin.
+ */
+public class JobJournalTest {
+    private static final String JOB_ID = "job-1";
+    private static final JSONObject REQUEST = createRequest();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private File outputDirectory;
+
+    private static class Killed extends RuntimeException {
+    }
+
+    private static final JobJournal.Outputs FILES = new JobJournal.Outputs() {
+        public boolean exists(String output) {
+            return new File(URI.create(output)).exists();
+        }
+    };
+
+    private static JSONObject createRequest() {
+        try {
+            return new JSONObject("{\"requestId\":16,\"args\":[50,1,0,320,320,0,0,false,true,false],"
+                    + "\"pickedUri\":\"content://gallery/1\"}");
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Before
+    public void createDirectories() throws IOException {
+        directory = new File(folder.getRoot(), "camera-jobs");
+        outputDirectory = folder.newFolder("outputs");
+    }
+
+    /**
+     * Plays a FILE_URI request the way BaseCameraManager journals it: begin before INGEST, the
+     * outputs recorded once they are written, the entry removed once the result is sent.
+     *
+     * @param killIn the stage the process dies in, null to complete the job. A job killed in
+     *               WRITE has written its outputs but not recorded them yet.
+     * @return the outputs sent as the result
+     */
+    private List<String> runJob(JobJournal journal, ProcessingJob.Stage killIn) throws IOException {
+        journal.begin(JOB_ID, REQUEST);
+        for (ProcessingJob.Stage stage : ProcessingJob.Stage.values()) {
+            if (stage == killIn && stage != ProcessingJob.Stage.WRITE) {
+                throw new Killed();
+            }
+        }
+        List<String> outputs = writeOutputs();
+        if (killIn == ProcessingJob.Stage.WRITE) {
+            throw new Killed();
+        }
+        journal.write(JOB_ID, REQUEST, outputs);
+        journal.remove(JOB_ID);
+        return outputs;
+    }
+
+    private List<String> writeOutputs() throws IOException {
+        List<String> outputs = new ArrayList<String>();
+        for (int i = 0; i < 2; i++) {
+            File file = new File(outputDirectory, "output" + i + ".jpg");
+            OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(new byte[]{(byte) 0xff, (byte) 0xd8, (byte) i});
+            } finally {
+                out.close();
+            }
+            outputs.add(file.toURI().toString());
+        }
+        return outputs;
+    }
+
+    @Test
+    public void jobKilledInEveryStageStartsOverFromIngest() throws IOException {
+        for (ProcessingJob.Stage stage : ProcessingJob.Stage.values()) {
+            try {
+                runJob(new JobJournal(directory), stage);
+            } catch (Killed e) {
+                // The process is gone, only the files remain
+            }
+            JobJournal restarted = new JobJournal(directory);
+            JobJournal.Entry entry = find(restarted, JOB_ID);
+            assertNotNull(stage.name(), entry);
+            assertEquals(stage.name(), ProcessingJob.Stage.INGEST, entry.stage);
+            assertEquals(stage.name(), ProcessingJob.Stage.INGEST, JobJournal.getResumeStage(entry, FILES));
+
+            runJob(restarted, null);
+            assertNull(stage.name(), find(new JobJournal(directory), JOB_ID));
+        }
+    }
+
+    @Test
+    public void jobKilledAfterRecordingItsOutputsOnlySendsThem() throws IOException {
+        JobJournal journal = new JobJournal(directory);
+        journal.begin(JOB_ID, REQUEST);
+        List<String> outputs = writeOutputs();
+        journal.write(JOB_ID, REQUEST, outputs);
+        // Killed before the result was sent
+
+        JobJournal restarted = new JobJournal(directory);
+        JobJournal.Entry entry = find(restarted, JOB_ID);
+        assertEquals(ProcessingJob.Stage.WRITE, entry.stage);
+        assertEquals(outputs, entry.outputs);
+        assertEquals(ProcessingJob.Stage.WRITE, JobJournal.getResumeStage(entry, FILES));
+
+        restarted.remove(JOB_ID);
+        assertNull(find(new JobJournal(directory), JOB_ID));
+    }
+
+    @Test
+    public void sentResultLeavesNoEntry() throws IOException {
+        runJob(new JobJournal(directory), null);
+        assertNull(find(new JobJournal(directory), JOB_ID));
+        assertEquals(0, directory.list().length);
+    }
+
+    @Test
+    public void missingOutputStartsOver() throws IOException {
+        JobJournal journal = new JobJournal(directory);
+        journal.begin(JOB_ID, REQUEST);
+        List<String> outputs = writeOutputs();
+        journal.write(JOB_ID, REQUEST, outputs);
+        new File(URI.create(outputs.get(1))).delete();
+
+        JobJournal.Entry entry = find(new JobJournal(directory), JOB_ID);
+        assertEquals(ProcessingJob.Stage.WRITE, entry.stage);
+        assertEquals(ProcessingJob.Stage.INGEST, JobJournal.getResumeStage(entry, FILES));
+    }
+
+    @Test
+    public void recordHoldsOnlyTheJobIdStageOutputsAndRequest() throws Exception {
+        JobJournal journal = new JobJournal(directory);
+        journal.begin(JOB_ID, REQUEST);
+        journal.write(JOB_ID, REQUEST, writeOutputs());
+
+        File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        JSONObject record = new JSONObject(new String(Files.readAllBytes(files[0].toPath()), "UTF-8"));
+        Set<String> keys = new HashSet<String>();
+        for (Iterator<String> it = record.keys(); it.hasNext(); ) {
+            keys.add(it.next());
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("jobId", "stage", "outputs", "request")), keys);
+        assertEquals(REQUEST.toString(), find(new JobJournal(directory), JOB_ID).request.toString());
+    }
+
+    @Test
+    public void leftoversAreTheJobsOfTheKilledProcess() throws IOException {
+        new JobJournal(directory).begin(JOB_ID, REQUEST);
+        // The process is killed and started again
+        JobJournal.reset();
+        try {
+            JobJournal journal = JobJournal.getInstance(folder.getRoot());
+            journal.collectLeftovers();
+            journal.begin("job-2", REQUEST);
+            // A later plugin instance of the same process must not take job-2 for a leftover
+            journal.collectLeftovers();
+            List<JobJournal.Entry> leftovers = journal.takeLeftovers();
+            assertEquals(1, leftovers.size());
+            assertEquals(JOB_ID, leftovers.get(0).jobId);
+            assertEquals(REQUEST.toString(), leftovers.get(0).request.toString());
+            assertTrue(journal.takeLeftovers().isEmpty());
+            // Only a resumed job that completes removes its entry
+            assertNotNull(find(journal, JOB_ID));
+        } finally {
+            JobJournal.reset();
+        }
+    }
+
+    @Test
+    public void tornWriteKeepsThePreviousRecord() throws IOException {
+        JobJournal journal = new JobJournal(directory);
+        journal.begin(JOB_ID, REQUEST);
+        // Killed while writing the WRITE record, before the rename
+        File temp = new File(directory, directory.list()[0] + ".tmp");
+        writeBytes(temp, "{\"jobId\":\"job-1\",\"sta".getBytes("UTF-8"));
+
+        JobJournal restarted = new JobJournal(directory);
+        assertEquals(ProcessingJob.Stage.INGEST, find(restarted, JOB_ID).stage);
+        restarted.removeOlderThan(0);
+        assertFalse(temp.exists());
+        assertNotNull(find(restarted, JOB_ID));
+    }
+
+    @Test
+    public void unreadableRecordStartsOver() throws IOException {
+        JobJournal journal = new JobJournal(directory);
+        journal.begin(JOB_ID, REQUEST);
+        writeBytes(directory.listFiles()[0], "not json".getBytes("UTF-8"));
+
+        JobJournal.Entry entry = find(new JobJournal(directory), JOB_ID);
+        assertEquals(ProcessingJob.Stage.INGEST, entry.stage);
+        assertTrue(entry.outputs.isEmpty());
+        assertNull(entry.request);
+    }
+
+    @Test
+    public void staleEntriesAreDropped() throws IOException {
+        JobJournal journal = new JobJournal(directory);
+        journal.begin(JOB_ID, REQUEST);
+        journal.removeOlderThan(System.currentTimeMillis() + JobJournal.MAX_AGE_MS);
+        assertNull(find(journal, JOB_ID));
+    }
+
+    @Test
+    public void jobIdsStayInsideTheDirectory() throws IOException {
+        JobJournal journal = new JobJournal(directory);
+        journal.begin("../../escape", REQUEST);
+        assertEquals(1, directory.list().length);
+        assertEquals(ProcessingJob.Stage.INGEST, find(journal, "../../escape").stage);
+        assertEquals("../../escape", journal.list().get(0).jobId);
+    }
+
+    /**
+     * @return the entry of the job or null if the journal has none
+     */
+    private static JobJournal.Entry find(JobJournal journal, String jobId) {
+        for (JobJournal.Entry entry : journal.list()) {
+            if (entry.jobId.equals(jobId)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private static void writeBytes(File file, byte[] data) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Plain JVM tests of the JPEG encoders, no Android classes involved.
+ */
+public class JpegStreamEncoderTest {
+    private static final int[] CODINGS = {
+            JpegStreamEncoder.CODING_STANDARD, JpegStreamEncoder.CODING_OPTIMIZED, JpegStreamEncoder.CODING_PROGRESSIVE
+    };
+
+    /**
+     * Smooth gradients with a hard edge, odd sized so the last MCUs are partial.
+     */
+    static int[] createPixels(int width, int height) {
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = 255 * x / width;
+                int g = 255 * y / height;
+                int b = x > width / 2 ? 200 : 30;
+                pixels[y * width + x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return pixels;
+    }
+
+    static PixelStrips.Source createSource(final int[] pixels, final int width) {
+        return new PixelStrips.Source() {
+            @Override
+            public void getRows(int[] rows, int y, int count) {
+                System.arraycopy(pixels, y * width, rows, 0, count * width);
+            }
+        };
+    }
+
+    static byte[] encode(int[] pixels, int width, int height, int quality, int coding) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JpegStreamEncoder encoder = new JpegStreamEncoder(out, width, height, quality);
+        encoder.setCoding(coding);
+        writeImage(encoder, pixels, width, height);
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes the image in uneven chunks of rows, as a decoder handing out strips would.
+     */
+    private static void writeImage(JpegStreamEncoder encoder, int[] pixels, int width, int height) throws IOException {
+        for (int y = 0; y < height; y += 7) {
+            encoder.writeRows(pixels, y * width, width, Math.min(7, height - y));
+        }
+        encoder.finish();
+    }
+
+    @Test
+    public void restartWritesWhatAFreshEncoderWrites() throws IOException {
+        int width = 75;
+        int height = 53;
+        int[] pixels = createPixels(width, height);
+        for (int coding : CODINGS) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            JpegStreamEncoder encoder = new JpegStreamEncoder(out, width, height, 90);
+            encoder.setCoding(coding);
+            writeImage(encoder, pixels, width, height);
+            for (int quality : new int[]{40, 95, 10, 40}) {
+                out = new ByteArrayOutputStream();
+                encoder.restart(out, quality);
+                writeImage(encoder, pixels, width, height);
+                assertArrayEquals("coding " + coding + " quality " + quality,
+                        encode(pixels, width, height, quality, coding), out.toByteArray());
+            }
+        }
+    }
+
+    @Test
+    public void parallelSessionWritesWhatASingleEncodeWrites() throws IOException {
+        int width = 300;
+        int height = 211;
+        int[] pixels = createPixels(width, height);
+        ParallelJpegEncoder.Session session = new ParallelJpegEncoder.Session(createSource(pixels, width), width, height);
+        for (int quality : new int[]{90, 30, 90, 75}) {
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            ParallelJpegEncoder.encode(createSource(pixels, width), width, height, quality, expected);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            session.encode(quality, out);
+            assertArrayEquals("quality " + quality, expected.toByteArray(), out.toByteArray());
+        }
+    }
+
+    @Test
+    public void everyCodingDecodes() throws IOException {
+        int[][] sizes = {{1, 1}, {8, 8}, {16, 16}, {17, 9}, {75, 53}, {517, 389}};
+        for (int[] size : sizes) {
+            int[] pixels = createPixels(size[0], size[1]);
+            for (int coding : CODINGS) {
+                for (int quality : new int[]{10, 75, 100}) {
+                    String label = "coding " + coding + " quality " + quality + " " + size[0] + "x" + size[1];
+                    BufferedImage image = ImageIO.read(new ByteArrayInputStream(encode(pixels, size[0], size[1], quality, coding)));
+                    assertNotNull(label + " is not a decodable JPEG", image);
+                    assertEquals(label, size[0], image.getWidth());
+                    assertEquals(label, size[1], image.getHeight());
+                    // The smallest images are mostly edge, which no quality keeps sharp
+                    if (quality >= 75 && size[0] >= 75) {
+                        double error = ParallelJpegEncoderTest.meanError(image, pixels);
+                        assertTrue(label + " mean error " + error, error < 4);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void codingsOnlyChangeTheEntropyCoding() throws IOException {
+        int width = 517;
+        int height = 389;
+        int[] pixels = createPixels(width, height);
+        byte[] standard = encode(pixels, width, height, 85, JpegStreamEncoder.CODING_STANDARD);
+        int[] expected = decode(standard);
+        for (int coding : new int[]{JpegStreamEncoder.CODING_OPTIMIZED, JpegStreamEncoder.CODING_PROGRESSIVE}) {
+            byte[] jpeg = encode(pixels, width, height, 85, coding);
+            assertArrayEquals("coding " + coding, expected, decode(jpeg));
+            assertTrue("coding " + coding + " wrote " + jpeg.length + " bytes, standard " + standard.length,
+                    jpeg.length < standard.length);
+        }
+    }
+
+    /**
+     * Byte sizes over the fixture corpus: the test fixtures, which are smooth and shrink a lot,
+     * and a textured image whose noise stands in for the detail of a photo.
+     */
+    @Test
+    public void codingsShrinkTheFixtureCorpus() throws IOException {
+        List<BufferedImage> corpus = new ArrayList<BufferedImage>();
+        corpus.add(readFixture(FixtureGenerator.SOURCE));
+        corpus.add(readFixture("reference_240x320.png"));
+        corpus.add(readFixture("reference_120x160.png"));
+        corpus.add(FixtureGenerator.createSource());
+        corpus.add(createTexturedImage(640, 480));
+
+        for (int quality : new int[]{50, 75, 90}) {
+            long[] totals = new long[CODINGS.length];
+            for (int i = 0; i < corpus.size(); i++) {
+                BufferedImage image = corpus.get(i);
+                int width = image.getWidth();
+                int height = image.getHeight();
+                int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+                int[] sizes = new int[CODINGS.length];
+                for (int c = 0; c < CODINGS.length; c++) {
+                    sizes[c] = encode(pixels, width, height, quality, CODINGS[c]).length;
+                    totals[c] += sizes[c];
+                }
+                for (int c = 1; c < CODINGS.length; c++) {
+                    assertTrue("image " + i + " quality " + quality + " coding " + CODINGS[c] + " wrote " + sizes[c]
+                            + " bytes, standard " + sizes[0], sizes[c] < sizes[0]);
+                }
+            }
+            // The upload path asked for files at least 5% smaller
+            for (int c = 1; c < CODINGS.length; c++) {
+                assertTrue("quality " + quality + " coding " + CODINGS[c] + " wrote " + totals[c]
+                        + " bytes, standard " + totals[0], totals[c] <= totals[0] * 0.95);
+            }
+        }
+    }
+
+    private static BufferedImage readFixture(String name) throws IOException {
+        BufferedImage image = ImageIO.read(JpegStreamEncoderTest.class.getResourceAsStream("/fixtures/" + name));
+        assertNotNull(name, image);
+        return image;
+    }
+
+    /**
+     * Slow waves with seeded noise on top, which costs a JPEG about as many bytes as a photo.
+     */
+    private static BufferedImage createTexturedImage(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(1);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int value = (int) (128 + 60 * Math.sin(x / 23.0) * Math.cos(y / 17.0)) + random.nextInt(41) - 20;
+                int r = Math.max(0, Math.min(255, value));
+                int g = Math.max(0, Math.min(255, value - 30));
+                int b = 255 - r;
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+
+    @Test
+    public void progressiveCodingWritesSeveralScans() throws IOException {
+        int[] pixels = createPixels(75, 53);
+        List<Integer> standard = readMarkers(encode(pixels, 75, 53, 90, JpegStreamEncoder.CODING_STANDARD));
+        List<Integer> optimized = readMarkers(encode(pixels, 75, 53, 90, JpegStreamEncoder.CODING_OPTIMIZED));
+        List<Integer> progressive = readMarkers(encode(pixels, 75, 53, 90, JpegStreamEncoder.CODING_PROGRESSIVE));
+
+        // Baseline frame and a single scan, optimized coding only swaps the Huffman tables
+        assertTrue(standard.contains(0xC0));
+        assertEquals(1, count(standard, 0xDA));
+        assertTrue(optimized.contains(0xC0));
+        assertEquals(1, count(optimized, 0xDA));
+        // Progressive frame with spectral selection and successive approximation scans
+        assertTrue(progressive.contains(0xC2));
+        assertTrue("scans " + count(progressive, 0xDA), count(progressive, 0xDA) > 2);
+    }
+
+    private static int[] decode(byte[] jpeg) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        assertNotNull("Not a decodable JPEG", image);
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+
+    /**
+     * Markers of the segments outside the entropy coded data, in order.
+     */
+    private static List<Integer> readMarkers(byte[] jpeg) {
+        List<Integer> markers = new ArrayList<Integer>();
+        int offset = 2;
+        while (offset + 4 <= jpeg.length) {
+            int marker = jpeg[offset + 1] & 0xFF;
+            markers.add(marker);
+            if (marker == 0xD9) {
+                break;
+            }
+            offset += 2 + (((jpeg[offset + 2] & 0xFF) << 8) | (jpeg[offset + 3] & 0xFF));
+            if (marker == 0xDA) {
+                // Skip the entropy coded data up to the next marker that is not stuffing or a restart
+                while (offset + 1 < jpeg.length && !((jpeg[offset] & 0xFF) == 0xFF && jpeg[offset + 1] != 0
+                        && ((jpeg[offset + 1] & 0xFF) < 0xD0 || (jpeg[offset + 1] & 0xFF) > 0xD7))) {
+                    offset++;
+                }
+            }
+        }
+        return markers;
+    }
+
+    private static int count(List<Integer> markers, int marker) {
+        int count = 0;
+        for (int value : markers) {
+            if (value == marker) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    @Test
+    public void bucketsCoverEveryValueInOrder() {
+        int previous = 0;
+        for (long micros = 0; micros < 1 << 20; micros++) {
+            int index = LatencyHistogram.bucketIndex(micros);
+            assertTrue("index of " + micros, index == previous || index == previous + 1);
+            assertTrue(micros <= LatencyHistogram.bucketUpperBound(index));
+            if (index > 0) {
+                assertTrue(micros > LatencyHistogram.bucketUpperBound(index - 1));
+            }
+            previous = index;
+        }
+    }
+
+    @Test
+    public void upperBoundIsWithinAQuarterOfTheValue() {
+        for (int shift = 2; shift < 36; shift++) {
+            for (long micros : new long[]{1L << shift, (1L << shift) + 1, (3L << shift) / 2, (1L << (shift + 1)) - 1}) {
+                long bound = LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketIndex(micros));
+                assertTrue(micros + " in bucket up to " + bound, bound - micros <= micros / 4);
+            }
+        }
+    }
+
+    @Test
+    public void outOfRangeValuesLandInTheEdgeBuckets() {
+        int last = LatencyHistogram.getBucketCount() - 1;
+        assertEquals(0, LatencyHistogram.bucketIndex(-5));
+        assertEquals(last, LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+        assertEquals(last, LatencyHistogram.bucketIndex(LatencyHistogram.bucketUpperBound(last)));
+        assertEquals(last - 1, LatencyHistogram.bucketIndex(LatencyHistogram.bucketUpperBound(last - 1)));
+    }
+
+    @Test
+    public void percentilesOfAUniformDistribution() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int millis = 1; millis <= 1000; millis++) {
+            histogram.record(millis * NANOS_PER_MILLI);
+        }
+        long[] snapshot = new long[LatencyHistogram.getBucketCount()];
+        long total = histogram.snapshot(snapshot, false);
+        assertEquals(1000, total);
+        assertWithinBucket(500, LatencyHistogram.percentile(snapshot, total, 0.5));
+        assertWithinBucket(950, LatencyHistogram.percentile(snapshot, total, 0.95));
+        assertWithinBucket(990, LatencyHistogram.percentile(snapshot, total, 0.99));
+        assertWithinBucket(1, LatencyHistogram.percentile(snapshot, total, 0));
+        assertWithinBucket(1000, LatencyHistogram.percentile(snapshot, total, 1));
+    }
+
+    @Test
+    public void percentileOfASingleValueIsItsBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(5 * NANOS_PER_MILLI);
+        long[] snapshot = new long[LatencyHistogram.getBucketCount()];
+        long total = histogram.snapshot(snapshot, false);
+        double bound = LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketIndex(5000)) / 1000d;
+        assertEquals(bound, LatencyHistogram.percentile(snapshot, total, 0.5), 0);
+        assertEquals(bound, LatencyHistogram.percentile(snapshot, total, 0.99), 0);
+    }
+
+    @Test
+    public void emptySnapshotHasZeroPercentiles() {
+        long[] snapshot = new long[LatencyHistogram.getBucketCount()];
+        assertEquals(0, new LatencyHistogram().snapshot(snapshot, false));
+        assertEquals(0, LatencyHistogram.percentile(snapshot, 0, 0.5), 0);
+    }
+
+    @Test
+    public void resetClearsTheBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(3 * NANOS_PER_MILLI);
+        histogram.record(7 * NANOS_PER_MILLI);
+        long[] snapshot = new long[LatencyHistogram.getBucketCount()];
+        assertEquals(2, histogram.snapshot(snapshot, true));
+        assertEquals(0, histogram.snapshot(snapshot, false));
+    }
+
+    @Test
+    public void concurrentRecordsAreAllCounted() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        histogram.record(i * 1000L);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40000, histogram.snapshot(new long[LatencyHistogram.getBucketCount()], false));
+    }
+
+    /**
+     * A percentile is the upper bound of the bucket holding the value.
+     */
+    private static void assertWithinBucket(double expectedMillis, double actualMillis) {
+        assertTrue(actualMillis + " below " + expectedMillis, actualMillis >= expectedMillis);
+        assertTrue(actualMillis + " too far above " + expectedMillis, actualMillis <= expectedMillis * 1.25);
+    }
+}
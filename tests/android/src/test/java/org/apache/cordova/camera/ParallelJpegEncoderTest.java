@@ -0,0 +1,208 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the strips come out as one JPEG any decoder reads, with a restart marker at
+ * every strip boundary and nowhere else.
+ */
+public class ParallelJpegEncoderTest {
+    private static ForkJoinPool pool;
+
+    @BeforeClass
+    public static void createPool() {
+        pool = new ForkJoinPool(3);
+    }
+
+    @AfterClass
+    public static void shutdownPool() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void decodesLikeTheSource() throws IOException {
+        int width = 517;
+        int height = 389;
+        int[] pixels = JpegStreamEncoderTest.createPixels(width, height);
+        byte[] jpeg = encode(pixels, width, height, 90);
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        assertNotNull("Not a decodable JPEG", image);
+        assertEquals(width, image.getWidth());
+        assertEquals(height, image.getHeight());
+        double error = meanError(image, pixels);
+        assertTrue("mean error " + error, error < 3);
+    }
+
+    @Test
+    public void restartMarkersSeparateTheStrips() throws IOException {
+        int width = 517;
+        int height = 389;
+        byte[] jpeg = encode(JpegStreamEncoderTest.createPixels(width, height), width, height, 90);
+
+        int mcusPerRow = (width + 15) / 16;
+        int mcuRows = (height + 15) / 16;
+        int stripRows = ParallelJpegEncoder.getStripRows(mcuRows, mcusPerRow, pool.getParallelism());
+        assertEquals(stripRows * mcusPerRow, readRestartInterval(jpeg));
+
+        List<Integer> markers = readRestartMarkers(jpeg);
+        int strips = (mcuRows + stripRows - 1) / stripRows;
+        assertTrue("only " + strips + " strips", strips > 2);
+        assertEquals(strips - 1, markers.size());
+        for (int i = 0; i < markers.size(); i++) {
+            assertEquals(0xD0 + (i & 7), (int) markers.get(i));
+        }
+    }
+
+    /**
+     * A single encoder writing the same restart interval codes the same bits, so the strips
+     * must concatenate to exactly its output.
+     */
+    @Test
+    public void matchesTheSequentialEncoder() throws IOException {
+        int width = 700;
+        int height = 300;
+        int[] pixels = JpegStreamEncoderTest.createPixels(width, height);
+        int stripRows = ParallelJpegEncoder.getStripRows((height + 15) / 16, (width + 15) / 16, pool.getParallelism());
+
+        ByteArrayOutputStream sequential = new ByteArrayOutputStream();
+        JpegStreamEncoder encoder = new JpegStreamEncoder(sequential, width, height, 75);
+        encoder.setRestartInterval(stripRows);
+        encoder.writeRows(pixels, 0, width, height);
+        encoder.finish();
+
+        assertArrayEquals(sequential.toByteArray(), encode(pixels, width, height, 75));
+    }
+
+    @Test
+    public void singleStripHasNoMarkers() throws IOException {
+        int width = 40;
+        int height = 9;
+        byte[] jpeg = encode(JpegStreamEncoderTest.createPixels(width, height), width, height, 90);
+        assertEquals(0, readRestartMarkers(jpeg).size());
+        assertNotNull(ImageIO.read(new ByteArrayInputStream(jpeg)));
+    }
+
+    @Test
+    public void stripRowsFitTheRestartInterval() {
+        // Four strips per thread, rounded up
+        assertEquals(3, ParallelJpegEncoder.getStripRows(100, 10, 10));
+        assertEquals(1, ParallelJpegEncoder.getStripRows(1, 10, 8));
+        // A DRI segment holds at most 65535 MCUs
+        assertEquals(0xFFFF / 4000, ParallelJpegEncoder.getStripRows(4000, 4000, 1));
+        assertEquals(1, ParallelJpegEncoder.getStripRows(10, 0xFFFF, 1));
+    }
+
+    private static byte[] encode(int[] pixels, int width, int height, int quality) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ParallelJpegEncoder.encode(JpegStreamEncoderTest.createSource(pixels, width), width, height, quality, out, pool);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the restart interval of the DRI segment in MCUs, or 0 if there is none
+     */
+    static int readRestartInterval(byte[] jpeg) {
+        int offset = 2;
+        while (offset + 4 <= jpeg.length && (jpeg[offset] & 0xFF) == 0xFF) {
+            int marker = jpeg[offset + 1] & 0xFF;
+            int length = ((jpeg[offset + 2] & 0xFF) << 8) | (jpeg[offset + 3] & 0xFF);
+            if (marker == 0xDD) {
+                return ((jpeg[offset + 4] & 0xFF) << 8) | (jpeg[offset + 5] & 0xFF);
+            }
+            if (marker == 0xDA) {
+                break;
+            }
+            offset += 2 + length;
+        }
+        return 0;
+    }
+
+    /**
+     * Lists the RSTn markers of the entropy coded data, skipping stuffed 0xFF bytes.
+     */
+    static List<Integer> readRestartMarkers(byte[] jpeg) {
+        List<Integer> markers = new ArrayList<Integer>();
+        boolean inScan = false;
+        int offset = 2;
+        while (offset + 1 < jpeg.length) {
+            if (!inScan) {
+                int marker = jpeg[offset + 1] & 0xFF;
+                if (marker == 0xD9) {
+                    break;
+                }
+                int length = ((jpeg[offset + 2] & 0xFF) << 8) | (jpeg[offset + 3] & 0xFF);
+                offset += 2 + length;
+                inScan = marker == 0xDA;
+                continue;
+            }
+            if ((jpeg[offset] & 0xFF) != 0xFF) {
+                offset++;
+                continue;
+            }
+            int next = jpeg[offset + 1] & 0xFF;
+            if (next >= 0xD0 && next <= 0xD7) {
+                markers.add(next);
+            } else if (next != 0) {
+                // Another segment, or the end of the image
+                inScan = false;
+                continue;
+            }
+            offset += 2;
+        }
+        return markers;
+    }
+
+    /**
+     * Average difference per channel, 0 to 255.
+     */
+    static double meanError(BufferedImage image, int[] pixels) {
+        int width = image.getWidth();
+        long sum = 0;
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < width; x++) {
+                int actual = image.getRGB(x, y);
+                int expected = pixels[y * width + x];
+                for (int shift = 0; shift <= 16; shift += 8) {
+                    sum += Math.abs(((actual >> shift) & 0xFF) - ((expected >> shift) & 0xFF));
+                }
+            }
+        }
+        return sum / (3.0 * pixels.length);
+    }
+}
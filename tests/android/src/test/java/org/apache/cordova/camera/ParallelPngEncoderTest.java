@@ -0,0 +1,259 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Inflates the concatenated strips as one zlib stream, which only works if every strip's
+ * dictionary matches the data before it and the combined Adler-32 is right, and compares the
+ * unfiltered rows with the source pixels.
+ */
+public class ParallelPngEncoderTest {
+    // Large enough for several strips at 4 bytes per pixel
+    private static final int WIDTH = 613;
+    private static final int HEIGHT = 457;
+
+    private static ForkJoinPool pool;
+
+    @BeforeClass
+    public static void createPool() {
+        pool = new ForkJoinPool(3);
+    }
+
+    @AfterClass
+    public static void shutdownPool() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void everyFilterRoundTrips() throws IOException, DataFormatException {
+        int[] pixels = createPixels(WIDTH, HEIGHT, true);
+        for (int filter = ParallelPngEncoder.FILTER_NONE; filter <= ParallelPngEncoder.FILTER_ADAPTIVE; filter++) {
+            byte[] png = encode(pixels, WIDTH, HEIGHT, true, 6, filter);
+            assertArrayEquals("filter " + filter, pixels, decode(png, WIDTH, HEIGHT, true));
+        }
+    }
+
+    @Test
+    public void everyLevelRoundTrips() throws IOException, DataFormatException {
+        int[] pixels = createPixels(WIDTH, HEIGHT, false);
+        for (int level = 0; level <= 9; level++) {
+            byte[] png = encode(pixels, WIDTH, HEIGHT, false, level, ParallelPngEncoder.FILTER_ADAPTIVE);
+            assertArrayEquals("level " + level, opaque(pixels), decode(png, WIDTH, HEIGHT, false));
+        }
+    }
+
+    @Test
+    public void stripsReferenceTheDataBeforeThem() throws IOException, DataFormatException {
+        // Rows repeat every 8 rows, so most matches reach back into the strip above
+        int[] pixels = new int[WIDTH * HEIGHT];
+        int[] band = createPixels(WIDTH, 8, true);
+        for (int y = 0; y < HEIGHT; y++) {
+            System.arraycopy(band, (y % 8) * WIDTH, pixels, y * WIDTH, WIDTH);
+        }
+        byte[] png = encode(pixels, WIDTH, HEIGHT, true, 6, ParallelPngEncoder.FILTER_NONE);
+
+        int strips = countChunks(png, "IDAT");
+        assertTrue("expected several strips", strips > 2);
+        assertArrayEquals(pixels, decode(png, WIDTH, HEIGHT, true));
+        // Without the dictionary every strip would have to spell out the band again
+        int bandSize = encode(band, WIDTH, 8, true, 6, ParallelPngEncoder.FILTER_NONE).length;
+        assertTrue("compressed to " + png.length + " in " + strips + " strips, one band takes " + bandSize,
+                png.length < 2 * bandSize);
+    }
+
+    @Test
+    public void decodesWithImageIO() throws IOException {
+        int[] pixels = createPixels(WIDTH, HEIGHT, false);
+        byte[] png = encode(pixels, WIDTH, HEIGHT, false, 6, ParallelPngEncoder.FILTER_ADAPTIVE);
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        assertNotNull("Not a decodable PNG", image);
+        assertArrayEquals(opaque(pixels), image.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH));
+    }
+
+    @Test
+    public void combinedAdler32MatchesTheWholeChecksum() {
+        Random random = new Random(7);
+        byte[] data = new byte[200000];
+        random.nextBytes(data);
+        for (int split : new int[]{0, 1, 65520, 65521, 65522, 100000, data.length}) {
+            Adler32 first = new Adler32();
+            first.update(data, 0, split);
+            Adler32 second = new Adler32();
+            second.update(data, split, data.length - split);
+            Adler32 whole = new Adler32();
+            whole.update(data);
+            assertEquals("split at " + split, (int) whole.getValue(),
+                    ParallelPngEncoder.combineAdler32((int) first.getValue(), (int) second.getValue(), data.length - split));
+        }
+    }
+
+    @Test
+    public void onlyRequestsWithALevelUseTheEncoder() {
+        assertEquals(null, ParallelPngEncoder.Options.fromRequest(ParallelPngEncoder.LEVEL_PLATFORM, ParallelPngEncoder.FILTER_UP));
+        ParallelPngEncoder.Options options = ParallelPngEncoder.Options.fromRequest(12, 9);
+        assertEquals(9, options.level);
+        assertEquals(ParallelPngEncoder.FILTER_ADAPTIVE, options.filter);
+    }
+
+    static int[] createPixels(int width, int height, boolean alpha) {
+        int[] pixels = JpegStreamEncoderTest.createPixels(width, height);
+        Random random = new Random(42);
+        for (int i = 0; i < pixels.length; i++) {
+            // Some noise so that the filters make different choices
+            int noise = random.nextInt(8);
+            int a = alpha ? 128 + (i % 128) : 0xFF;
+            pixels[i] = (a << 24) | ((pixels[i] + noise * 0x010101) & 0xFFFFFF);
+        }
+        return pixels;
+    }
+
+    private static int[] opaque(int[] pixels) {
+        int[] opaque = new int[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            opaque[i] = pixels[i] | 0xFF000000;
+        }
+        return opaque;
+    }
+
+    private static byte[] encode(int[] pixels, int width, int height, boolean alpha, int level, int filter) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ParallelPngEncoder.encode(JpegStreamEncoderTest.createSource(pixels, width), width, height, alpha,
+                level, filter, out, pool);
+        return out.toByteArray();
+    }
+
+    private static int countChunks(byte[] png, String type) {
+        int count = 0;
+        for (int offset = 8; offset < png.length; offset += 12 + readInt(png, offset)) {
+            if (type.equals(new String(png, offset + 4, 4))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Joins the IDAT chunks, inflates them with a single Inflater, which checks the Adler-32
+     * trailer, and reverses the row filters.
+     */
+    private static int[] decode(byte[] png, int width, int height, boolean alpha) throws DataFormatException {
+        assertEquals(width, readInt(png, 16));
+        assertEquals(height, readInt(png, 20));
+        assertEquals(alpha ? 6 : 2, png[25]);
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int offset = 8; offset < png.length; offset += 12 + readInt(png, offset)) {
+            if ("IDAT".equals(new String(png, offset + 4, 4))) {
+                stream.write(png, offset + 8, readInt(png, offset));
+            }
+        }
+
+        int channels = alpha ? 4 : 3;
+        int lineBytes = width * channels + 1;
+        byte[] filtered = new byte[lineBytes * height];
+        Inflater inflater = new Inflater();
+        inflater.setInput(stream.toByteArray());
+        int length = 0;
+        while (!inflater.finished()) {
+            int count = inflater.inflate(filtered, length, filtered.length - length);
+            assertTrue("truncated stream", count > 0 || inflater.finished());
+            length += count;
+        }
+        assertEquals(filtered.length, length);
+        assertEquals(0, inflater.getRemaining());
+        inflater.end();
+
+        int[] pixels = new int[width * height];
+        byte[] previous = new byte[width * channels];
+        byte[] current = new byte[width * channels];
+        for (int y = 0; y < height; y++) {
+            unfilter(filtered[y * lineBytes], filtered, y * lineBytes + 1, previous, current, channels);
+            for (int x = 0; x < width; x++) {
+                int i = x * channels;
+                int a = alpha ? current[i + 3] & 0xFF : 0xFF;
+                pixels[y * width + x] = (a << 24) | ((current[i] & 0xFF) << 16) | ((current[i + 1] & 0xFF) << 8)
+                        | (current[i + 2] & 0xFF);
+            }
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return pixels;
+    }
+
+    private static void unfilter(int type, byte[] in, int offset, byte[] previous, byte[] current, int bpp) {
+        for (int i = 0; i < current.length; i++) {
+            int left = i >= bpp ? current[i - bpp] & 0xFF : 0;
+            int up = previous[i] & 0xFF;
+            int upLeft = i >= bpp ? previous[i - bpp] & 0xFF : 0;
+            int predictor;
+            switch (type) {
+                case ParallelPngEncoder.FILTER_SUB:
+                    predictor = left;
+                    break;
+                case ParallelPngEncoder.FILTER_UP:
+                    predictor = up;
+                    break;
+                case ParallelPngEncoder.FILTER_AVERAGE:
+                    predictor = (left + up) >> 1;
+                    break;
+                case ParallelPngEncoder.FILTER_PAETH:
+                    int estimate = left + up - upLeft;
+                    int distanceLeft = Math.abs(estimate - left);
+                    int distanceUp = Math.abs(estimate - up);
+                    int distanceUpLeft = Math.abs(estimate - upLeft);
+                    predictor = distanceLeft <= distanceUp && distanceLeft <= distanceUpLeft ? left
+                            : (distanceUp <= distanceUpLeft ? up : upLeft);
+                    break;
+                default:
+                    assertEquals(ParallelPngEncoder.FILTER_NONE, type);
+                    predictor = 0;
+                    break;
+            }
+            current[i] = (byte) (in[offset + i] + predictor);
+        }
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8)
+                | (data[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the search against encoders whose output size is known for every quality, so the
+ * chosen quality can be checked against the exact answer.
+ */
+public class QualitySearchTest {
+    /**
+     * Writes a fixed number of bytes per quality and records the qualities it was asked for.
+     */
+    private static class SizedEncoder implements QualitySearch.Encoder {
+        private final int bytesPerQuality;
+        private final int baseBytes;
+        final List<Integer> qualities = new ArrayList<Integer>();
+
+        SizedEncoder(int baseBytes, int bytesPerQuality) {
+            this.baseBytes = baseBytes;
+            this.bytesPerQuality = bytesPerQuality;
+        }
+
+        int getSize(int quality) {
+            return baseBytes + quality * bytesPerQuality;
+        }
+
+        @Override
+        public boolean encode(int quality, OutputStream outputStream) throws IOException {
+            qualities.add(quality);
+            int size = getSize(quality);
+            for (int i = 0; i < size; i++) {
+                // The last byte tells the qualities apart
+                outputStream.write(i == size - 1 ? quality : 0);
+            }
+            return true;
+        }
+    }
+
+    @Test
+    public void requestedQualityThatFitsCostsOneEncode() throws IOException {
+        SizedEncoder encoder = new SizedEncoder(100, 10);
+        QualitySearch search = new QualitySearch(encoder.getSize(80));
+        assertEquals(80, search.search(encoder, 80));
+        assertEquals(1, encoder.qualities.size());
+        assertEquals(encoder.getSize(80), search.getBestSize());
+    }
+
+    @Test
+    public void findsTheHighestFittingQualityForEveryBudget() throws IOException {
+        for (int maxQuality : new int[]{10, 11, 12, 13, 50, 85, 100}) {
+            for (int expected = QualitySearch.MIN_QUALITY; expected < maxQuality; expected++) {
+                SizedEncoder encoder = new SizedEncoder(100, 10);
+                // Anything between the sizes of expected and expected + 1 only fits expected
+                int budget = encoder.getSize(expected) + 5;
+                QualitySearch search = new QualitySearch(budget);
+                assertEquals("max " + maxQuality + " budget " + budget, expected, search.search(encoder, maxQuality));
+                assertEquals(expected, search.getBestQuality());
+                assertEquals(encoder.getSize(expected), search.getBestSize());
+                byte[] best = search.toByteArray();
+                assertEquals(expected, best[best.length - 1]);
+                // Two bounds, a binary search of the window and a probe of at most QUALITY_TOLERANCE
+                assertTrue("" + encoder.qualities.size(), encoder.qualities.size() <= 2 + 7 + 2);
+            }
+        }
+    }
+
+    @Test
+    public void neverTriesAQualityTwice() throws IOException {
+        for (int expected = QualitySearch.MIN_QUALITY; expected < 100; expected++) {
+            SizedEncoder encoder = new SizedEncoder(0, 3);
+            new QualitySearch(encoder.getSize(expected)).search(encoder, 100);
+            assertEquals(encoder.qualities.toString(), encoder.qualities.size(),
+                    new HashSet<Integer>(encoder.qualities).size());
+        }
+    }
+
+    @Test
+    public void returnsMinusOneWhenNothingFits() throws IOException {
+        SizedEncoder encoder = new SizedEncoder(100, 10);
+        QualitySearch search = new QualitySearch(encoder.getSize(QualitySearch.MIN_QUALITY) - 1);
+        assertEquals(-1, search.search(encoder, 90));
+        assertEquals(-1, search.getBestQuality());
+        assertEquals(0, search.getBestSize());
+        assertEquals(2, encoder.qualities.size());
+    }
+
+    @Test
+    public void failedEncodesDoNotCount() throws IOException {
+        final SizedEncoder sized = new SizedEncoder(0, 10);
+        QualitySearch.Encoder encoder = new QualitySearch.Encoder() {
+            @Override
+            public boolean encode(int quality, OutputStream outputStream) throws IOException {
+                sized.encode(quality, outputStream);
+                // Odd qualities fail after writing, as a broken encoder would
+                return quality % 2 == 0;
+            }
+        };
+        QualitySearch search = new QualitySearch(sized.getSize(60));
+        int chosen = search.search(encoder, 90);
+        assertTrue(chosen % 2 == 0);
+        assertTrue(chosen <= 60);
+        byte[] best = search.toByteArray();
+        assertEquals(chosen, best[best.length - 1]);
+    }
+
+    @Test
+    public void overflowStopsStoringAtTheLimit() {
+        QualitySearch.BoundedBuffer buffer = new QualitySearch.BoundedBuffer(4);
+        buffer.write(new byte[]{1, 2, 3}, 0, 3);
+        assertFalse(buffer.isOverflowed());
+        buffer.write(new byte[]{4, 5}, 0, 2);
+        assertTrue(buffer.isOverflowed());
+        assertEquals(3, buffer.size());
+        buffer.reset();
+        assertFalse(buffer.isOverflowed());
+        assertEquals(0, buffer.size());
+    }
+}
@@ -0,0 +1,432 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.camera;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Hammers one SingleFlight from many threads. Followers are only released once they are
+ * parked on the leader's flight, so the tests do not depend on timing.
+ */
+public class SingleFlightTest {
+    private static final int THREADS = 16;
+
+    private ExecutorService executor;
+
+    @Before
+    public void createExecutor() {
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void followersShareTheLeadersResult() throws Exception {
+        final SingleFlight<String, Object> flight = new SingleFlight<String, Object>();
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<Thread>();
+        List<Future<Object>> results = new ArrayList<Future<Object>>();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    synchronized (threads) {
+                        threads.add(Thread.currentThread());
+                    }
+                    return flight.execute("key", new SingleFlight.Work<Object>() {
+                        @Override
+                        public Object run() {
+                            runs.incrementAndGet();
+                            await(release);
+                            return new Object();
+                        }
+                    });
+                }
+            }));
+        }
+        awaitParked(threads, THREADS);
+        release.countDown();
+
+        Object result = results.get(0).get(10, TimeUnit.SECONDS);
+        for (Future<Object> future : results) {
+            assertSame(result, future.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, runs.get());
+        assertEquals(0, flight.size());
+    }
+
+    @Test
+    public void followersReceiveTheLeadersException() throws Exception {
+        final SingleFlight<String, Object> flight = new SingleFlight<String, Object>();
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<Thread>();
+        List<Future<Object>> results = new ArrayList<Future<Object>>();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    synchronized (threads) {
+                        threads.add(Thread.currentThread());
+                    }
+                    return flight.execute("key", new SingleFlight.Work<Object>() {
+                        @Override
+                        public Object run() throws IOException {
+                            await(release);
+                            throw new IOException("Unable to decode");
+                        }
+                    });
+                }
+            }));
+        }
+        awaitParked(threads, THREADS);
+        release.countDown();
+
+        for (Future<Object> future : results) {
+            try {
+                future.get(10, TimeUnit.SECONDS);
+                fail("Expected the exception of the leader");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+                assertEquals("Unable to decode", e.getCause().getMessage());
+            }
+        }
+        assertEquals(0, flight.size());
+    }
+
+    @Test
+    public void cancelledLeaderHandsTheWorkToAFollower() throws Exception {
+        final SingleFlight<String, Object> flight = new SingleFlight<String, Object>();
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<Thread>();
+        List<Future<Object>> results = new ArrayList<Future<Object>>();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    synchronized (threads) {
+                        threads.add(Thread.currentThread());
+                    }
+                    return flight.execute("key", new SingleFlight.Work<Object>() {
+                        @Override
+                        public Object run() {
+                            await(release);
+                            if (runs.incrementAndGet() == 1) {
+                                throw new CancellationException("Cancelled");
+                            }
+                            return "result";
+                        }
+                    });
+                }
+            }));
+        }
+        awaitParked(threads, THREADS);
+        release.countDown();
+
+        int cancelled = 0;
+        for (Future<Object> future : results) {
+            try {
+                assertEquals("result", future.get(10, TimeUnit.SECONDS));
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof CancellationException);
+                cancelled++;
+            }
+        }
+        // Only the cancelled caller fails. A follower runs the work again, and followers that
+        // come back after it finished run it once more, as the key is free again
+        assertEquals(1, cancelled);
+        assertTrue("runs " + runs.get(), runs.get() >= 2 && runs.get() <= THREADS);
+        assertEquals(0, flight.size());
+    }
+
+    @Test
+    public void cancelledFollowerStopsWaiting() throws Exception {
+        final SingleFlight<String, String> flight = new SingleFlight<String, String>();
+        final CountDownLatch release = new CountDownLatch(1);
+        Future<String> leader = executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return flight.execute("key", new SingleFlight.Work<String>() {
+                    @Override
+                    public String run() {
+                        await(release);
+                        return "result";
+                    }
+                });
+            }
+        });
+        while (flight.size() == 0) {
+            Thread.sleep(1);
+        }
+
+        final AtomicInteger waits = new AtomicInteger();
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        Future<String> follower = executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return flight.execute("key", new SingleFlight.Work<String>() {
+                    @Override
+                    public String run() {
+                        return "ran";
+                    }
+                }, new SingleFlight.Waiter() {
+                    @Override
+                    public void onWait() {
+                        waits.incrementAndGet();
+                    }
+
+                    @Override
+                    public void poll() {
+                        if (cancelled.get()) {
+                            throw new CancellationException("Cancelled");
+                        }
+                    }
+                });
+            }
+        });
+        while (waits.get() == 0) {
+            Thread.sleep(1);
+        }
+        cancelled.set(true);
+
+        // The follower gives up while the leader is still running
+        try {
+            follower.get(10, TimeUnit.SECONDS);
+            fail("Expected the follower to be cancelled");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof CancellationException);
+        }
+        assertEquals(1, waits.get());
+        assertFalse(leader.isDone());
+        release.countDown();
+        assertEquals("result", leader.get(10, TimeUnit.SECONDS));
+        assertEquals(0, flight.size());
+    }
+
+    @Test
+    public void everyFollowerIsToldItWaits() throws Exception {
+        final SingleFlight<String, Object> flight = new SingleFlight<String, Object>();
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger runs = new AtomicInteger();
+        final AtomicInteger waits = new AtomicInteger();
+        final List<Thread> threads = new ArrayList<Thread>();
+        List<Future<Object>> results = new ArrayList<Future<Object>>();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    synchronized (threads) {
+                        threads.add(Thread.currentThread());
+                    }
+                    return flight.execute("key", new SingleFlight.Work<Object>() {
+                        @Override
+                        public Object run() {
+                            runs.incrementAndGet();
+                            await(release);
+                            return "result";
+                        }
+                    }, new SingleFlight.Waiter() {
+                        @Override
+                        public void onWait() {
+                            waits.incrementAndGet();
+                        }
+
+                        @Override
+                        public void poll() {
+                        }
+                    });
+                }
+            }));
+        }
+        awaitParked(threads, THREADS);
+        release.countDown();
+
+        for (Future<Object> future : results) {
+            assertEquals("result", future.get(10, TimeUnit.SECONDS));
+        }
+        // Like the previewFirst preview: the caller running the work sends its own
+        assertEquals(1, runs.get());
+        assertEquals(THREADS - 1, waits.get());
+        assertEquals(0, flight.size());
+    }
+
+    @Test
+    public void otherKeysDoNotWait() throws Exception {
+        final SingleFlight<String, String> flight = new SingleFlight<String, String>();
+        final CountDownLatch release = new CountDownLatch(1);
+        Future<String> blocked = executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return flight.execute("blocked", new SingleFlight.Work<String>() {
+                    @Override
+                    public String run() {
+                        await(release);
+                        return "blocked";
+                    }
+                });
+            }
+        });
+        while (flight.size() == 0) {
+            Thread.sleep(1);
+        }
+
+        assertEquals("free", flight.execute("free", new SingleFlight.Work<String>() {
+            @Override
+            public String run() {
+                return "free";
+            }
+        }));
+        release.countDown();
+        assertEquals("blocked", blocked.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void keysAreFreeOnceTheWorkIsDone() throws IOException {
+        SingleFlight<String, Integer> flight = new SingleFlight<String, Integer>();
+        final AtomicInteger runs = new AtomicInteger();
+        SingleFlight.Work<Integer> work = new SingleFlight.Work<Integer>() {
+            @Override
+            public Integer run() {
+                return runs.incrementAndGet();
+            }
+        };
+        assertEquals(1, (int) flight.execute("key", work));
+        assertEquals(2, (int) flight.execute("key", work));
+        assertEquals(0, flight.size());
+    }
+
+    /**
+     * Random keys from a small set, so flights constantly start, gain followers and end. The
+     * work of a key must never run twice at the same time.
+     */
+    @Test
+    public void hammer() throws Exception {
+        final SingleFlight<Integer, Integer> flight = new SingleFlight<Integer, Integer>();
+        final int keys = 4;
+        final AtomicIntegerArray running = new AtomicIntegerArray(keys);
+        final AtomicInteger overlaps = new AtomicInteger();
+        final AtomicInteger runs = new AtomicInteger();
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int t = 0; t < THREADS; t++) {
+            final long seed = t;
+            results.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    Random random = new Random(seed);
+                    int calls = 0;
+                    for (int i = 0; i < 2000; i++) {
+                        final int key = random.nextInt(keys);
+                        final boolean fails = random.nextInt(10) == 0;
+                        try {
+                            int result = flight.execute(key, new SingleFlight.Work<Integer>() {
+                                @Override
+                                public Integer run() throws IOException {
+                                    runs.incrementAndGet();
+                                    if (running.incrementAndGet(key) > 1) {
+                                        overlaps.incrementAndGet();
+                                    }
+                                    Thread.yield();
+                                    running.decrementAndGet(key);
+                                    if (fails) {
+                                        throw new IOException("failed");
+                                    }
+                                    return key * 10;
+                                }
+                            });
+                            assertEquals(key * 10, result);
+                        } catch (IOException e) {
+                            assertEquals("failed", e.getMessage());
+                        }
+                        calls++;
+                    }
+                    return calls;
+                }
+            }));
+        }
+        int calls = 0;
+        for (Future<Integer> future : results) {
+            calls += future.get(60, TimeUnit.SECONDS);
+        }
+        assertEquals(THREADS * 2000, calls);
+        assertEquals(0, overlaps.get());
+        assertTrue("runs " + runs.get(), runs.get() <= calls);
+        assertEquals(0, flight.size());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            if (!latch.await(10, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Never released");
+            }
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Waits until every caller is parked, the leader on the latch and the others on its flight.
+     */
+    private static void awaitParked(List<Thread> threads, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            int parked = 0;
+            synchronized (threads) {
+                for (Thread thread : threads) {
+                    Thread.State state = thread.getState();
+                    if (state == Thread.State.WAITING || state == Thread.State.TIMED_WAITING) {
+                        parked++;
+                    }
+                }
+            }
+            if (parked == count) {
+                return;
+            }
+            Thread.sleep(1);
+        }
+        fail("Callers did not reach the flight");
+    }
+}
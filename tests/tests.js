@@ -19,7 +19,7 @@
  *
 */
 
-/* globals Camera, resolveLocalFileSystemURL, FileEntry, CameraPopoverOptions, LocalFileSystem, MSApp */
+/* globals cordova, Camera, resolveLocalFileSystemURL, FileEntry, CameraPopoverOptions, LocalFileSystem, MSApp */
 /* eslint-env jasmine */
 
 exports.defineAutoTests = function () {
@@ -71,6 +71,87 @@ exports.defineAutoTests = function () {
             expect(navigator.camera.PictureSourceType.SAVEDPHOTOALBUM).toBe(2);
         });
     });
+
+    describe('Camera statistics (navigator.camera.getStats)', function () {
+        var isAndroid = cordova.platformId === 'android';
+
+        it('camera.spec.6 should contain a getStats function', function () {
+            expect(navigator.camera.getStats).toBeDefined();
+            expect(typeof navigator.camera.getStats === 'function').toBe(true);
+        });
+
+        it('camera.spec.7 should report the device and the latency groups', function (done) {
+            if (!isAndroid) {
+                pending('getStats is only implemented on Android');
+            }
+            navigator.camera.getStats(function (stats) {
+                expect(typeof stats.enabled).toBe('boolean');
+                expect(stats.device).toBeDefined();
+                expect(typeof stats.device.sdk).toBe('number');
+                expect(typeof stats.stages).toBe('object');
+                expect(typeof stats.requests).toBe('object');
+                done();
+            }, function (err) {
+                fail(err);
+                done();
+            }, false);
+        });
+
+        it('camera.spec.8 should report ordered percentiles for every group', function (done) {
+            if (!isAndroid) {
+                pending('getStats is only implemented on Android');
+            }
+            navigator.camera.getStats(function (stats) {
+                [stats.stages, stats.requests].forEach(function (groups) {
+                    Object.keys(groups).forEach(function (key) {
+                        var summary = groups[key];
+                        expect(summary.count).toBeGreaterThan(0);
+                        expect(summary.p50).toBeLessThanOrEqual(summary.p95);
+                        expect(summary.p95).toBeLessThanOrEqual(summary.p99);
+                    });
+                });
+                done();
+            }, function (err) {
+                fail(err);
+                done();
+            }, false);
+        });
+    });
+
+    describe('Batch transform (navigator.camera.transformImages)', function () {
+        var isAndroid = cordova.platformId === 'android';
+
+        it('camera.spec.9 should contain a transformImages function', function () {
+            expect(navigator.camera.transformImages).toBeDefined();
+            expect(typeof navigator.camera.transformImages === 'function').toBe(true);
+        });
+
+        it('camera.spec.10 should report an error for every image that cannot be read', function (done) {
+            if (!isAndroid) {
+                pending('transformImages is only implemented on Android');
+            }
+            var items = [];
+            navigator.camera.transformImages(function (item) {
+                items.push(item);
+            }, function (err) {
+                fail(err);
+                done();
+            }, ['file:///nonexistent/a.jpg', 'file:///nonexistent/b.jpg'], {
+                targetWidth: 100,
+                targetHeight: 100,
+                onComplete: function (summary) {
+                    expect(summary.succeeded).toBe(0);
+                    expect(summary.failed).toBe(2);
+                    expect(items.length).toBe(2);
+                    items.forEach(function (item) {
+                        expect(item.error).toBeDefined();
+                        expect(item.result).toBeUndefined();
+                    });
+                    done();
+                }
+            });
+        });
+    });
 };
 
 /******************************************************************************/
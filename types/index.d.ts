@@ -25,6 +25,19 @@ interface Camera {
     cleanup(
         onSuccess: () => void,
         onError: (message: string) => void): void;
+    /**
+     * Takes a photo using the camera, or retrieves a photo from the device's image gallery, and
+     * produces several images from a single decode of it. Android only. Declared before the
+     * single image signature, which these options would match as well.
+     * @param cameraSuccess Success callback, that get one base64-encoded String or image URI
+     * per entry of cameraOptions.outputs, in the same order.
+     * @param cameraError Error callback, that get an error message.
+     * @param cameraOptions Parameters to customize the camera settings, with the outputs to produce.
+     */
+    getPicture(
+        cameraSuccess: (data: string[], metrics?: CameraMetrics) => void,
+        cameraError: (message: string) => void,
+        cameraOptions: CameraOptions & { outputs: CameraOutputOptions[] }): CameraJobHandle;
     /**
      * Takes a photo using the camera, or retrieves a photo from the device's image gallery.
      * @param cameraSuccess Success callback, that get the image
@@ -33,14 +46,36 @@ interface Camera {
      * @param cameraOptions Optional parameters to customize the camera settings.
      */
     getPicture(
-        cameraSuccess: (data: string) => void,
+        cameraSuccess: (data: string, metrics?: CameraMetrics) => void,
         cameraError: (message: string) => void,
-        cameraOptions?: CameraOptions): void;
+        cameraOptions?: CameraOptions): CameraJobHandle;
     // Next will work only on iOS
     //getPicture(
     //    cameraSuccess: (data: string) => void,
     //    cameraError: (message: string) => void,
     //    cameraOptions?: CameraOptions): CameraPopoverHandle;
+    /**
+     * Scales, rotates and re-encodes images already on the device, without any UI. Android only.
+     * @param onResult Called for each image as soon as it is done, in the order they finish.
+     * @param onError Error callback, that get an error message if the whole request fails or is cancelled.
+     * @param uris file:// or content:// URIs of the images.
+     * @param options The processing options of getPicture that apply to existing images.
+     */
+    transformImages(
+        onResult: (item: CameraTransformResult) => void,
+        onError: (message: string) => void,
+        uris: string[],
+        options?: CameraTransformOptions): CameraJobHandle;
+    /**
+     * Returns aggregate processing latencies since the app started or the last reset. Android only.
+     * @param onSuccess Success callback, that get the stats.
+     * @param onError Error callback, that get an error message.
+     * @param reset Clear the histograms after reading them.
+     */
+    getStats(
+        onSuccess: (stats: CameraStats) => void,
+        onError?: (message: string) => void,
+        reset?: boolean): void;
 }
 
 interface CameraOptions {
@@ -68,6 +103,9 @@ interface CameraOptions {
      * Defined in navigator.camera.EncodingType. Default is JPEG
      *      JPEG : 0    Return JPEG encoded image
      *      PNG : 1     Return PNG encoded image
+     *      WEBP : 2    Return lossy WebP encoded image (Android only)
+     *      WEBP_LOSSLESS : 3   Return lossless WebP encoded image (Android only)
+     *      HEIF : 4    Return HEIF encoded image (Android only, falls back to JPEG)
      */
     encodingType?: number;
     /**
@@ -102,6 +140,143 @@ interface CameraOptions {
     cameraDirection?: number;
     /** iOS-only options that specify popover location in iPad. Defined in CameraPopoverOptions. */
     popoverOptions?: CameraPopoverOptions;
+    /**
+     * Android-only. Upper bound for the size of the encoded JPEG or lossy WebP image in bytes.
+     * The highest quality up to `quality` that fits is used.
+     */
+    maxBytes?: number;
+    /**
+     * Android-only. Region to crop in fractions (0-1) of the displayed image.
+     * Only this region is decoded from the source.
+     */
+    cropRect?: { x: number; y: number; width: number; height: number };
+    /**
+     * Android-only. Pass per-stage timings, byte counts and bitmap sizes of the request
+     * as a second argument to the success callback.
+     */
+    debugMetrics?: boolean;
+    /**
+     * Android-only. Called with a base64-encoded low resolution JPEG preview
+     * before the full result is delivered to the success callback.
+     */
+    onPreview?: (previewData: string) => void;
+    /**
+     * Android-only. Several results produced from a single decode of the picture.
+     * The success callback receives an array of results in the same order.
+     */
+    outputs?: CameraOutputOptions[];
+    /**
+     * Android-only. How the image is scaled to the target size.
+     * Defined in Camera.ScaleFilter. Default is BILINEAR.
+     */
+    scaleFilter?: number;
+    /**
+     * Android-only. Deflate level of PNG outputs, from 0 (stored, fastest) to 9 (smallest).
+     * When set, PNG is compressed in strips on all cores; otherwise the platform encoder writes it.
+     */
+    pngCompressionLevel?: number;
+    /**
+     * Android-only. Row filter of PNG outputs when pngCompressionLevel is set.
+     * Defined in Camera.PngFilter. Default is ADAPTIVE.
+     */
+    pngFilter?: number;
+    /**
+     * Android-only. How JPEG outputs are entropy coded.
+     * Defined in Camera.JpegCoding. Default is the CameraJpegCoding preference.
+     */
+    jpegCoding?: number;
+}
+
+/**
+ * One result of the outputs option. Unset fields default to the options of the request.
+ */
+interface CameraOutputOptions {
+    targetWidth?: number;
+    targetHeight?: number;
+    /** Defined in navigator.camera.EncodingType. */
+    encodingType?: number;
+    /** Quality in range 0-100. */
+    quality?: number;
+}
+
+/**
+ * Options of navigator.camera.transformImages. Source, UI and capture options are ignored.
+ */
+interface CameraTransformOptions extends CameraOptions {
+    /** Called once every image has been reported. */
+    onComplete?: (summary: { succeeded: number; failed: number }) => void;
+}
+
+/**
+ * Result of one image processed by navigator.camera.transformImages.
+ */
+interface CameraTransformResult {
+    /** Position of the image in the list that was passed. */
+    index: number;
+    /** The URI that was passed for the image. */
+    uri: string;
+    /** Base64-encoded data or file URI, depending on destinationType. */
+    result?: string;
+    /** Why the image could not be processed, set instead of result. */
+    error?: string;
+}
+
+/**
+ * Metrics of a single getPicture request, passed to the success callback when debugMetrics is set. Android only.
+ */
+interface CameraMetrics {
+    /** Time since getPicture was called, in milliseconds. */
+    totalMs: number;
+    /** Time since the picture came back from the camera, gallery or crop screen, in milliseconds. */
+    processingMs: number;
+    /** Time from getPicture to the launch of the camera or gallery, in milliseconds. 0 if none was launched. */
+    launchMs: number;
+    /** Time spent per stage (decode, scale, rotate, encode, copy, exif, mediastore), in milliseconds. */
+    stagesMs: { [stage: string]: number };
+    bytesRead: number;
+    bytesWritten: number;
+    /** The largest bitmap decoded for the request. */
+    bitmap: { width: number; height: number; bytes: number };
+    memory: { javaHeapUsed: number; javaHeapMax: number; nativeHeapUsed: number };
+}
+
+/**
+ * Latency percentiles of one histogram, in milliseconds.
+ */
+interface CameraLatencySummary {
+    count: number;
+    p50: number;
+    p95: number;
+    p99: number;
+}
+
+/**
+ * Aggregate latencies returned by navigator.camera.getStats. Android only.
+ */
+interface CameraStats {
+    /** Whether requests are recorded, set by the CameraCollectStats preference. */
+    enabled: boolean;
+    device: { manufacturer: string; model: string; sdk: number };
+    /** Per pipeline stage (decode, scale, rotate, encode, copy, exif, mediastore). */
+    stages: { [stage: string]: CameraLatencySummary };
+    /** Processing time per "source/destination/encoding" combination, e.g. "camera/file_uri/jpeg". */
+    requests: { [combination: string]: CameraLatencySummary };
+    /** Time from getPicture to the launch of the camera or gallery, per source type, e.g. "camera". */
+    launch: { [sourceType: string]: CameraLatencySummary };
+}
+
+/**
+ * A handle to the processing of a picture requested by navigator.camera.getPicture. Used on Android only.
+ */
+interface CameraJobHandle {
+    /**
+     * Stops processing the picture. The getPicture error callback receives "Cancelled".
+     * @param onSuccess Called with 1 if a running job was cancelled, 0 if it had already finished.
+     * @param onError Error callback, that get an error message.
+     */
+    cancel(
+        onSuccess?: (cancelled: number) => void,
+        onError?: (message: string) => void): void;
 }
 
 /**
@@ -155,6 +330,9 @@ declare var Camera: {
     EncodingType: {
         JPEG: number;
         PNG: number;
+        WEBP: number;
+        WEBP_LOSSLESS: number;
+        HEIF: number;
     }
     MediaType: {
         PICTURE: number;
@@ -166,6 +344,24 @@ declare var Camera: {
         CAMERA: number;
         SAVEDPHOTOALBUM: number;
     }
+    // Used only on Android
+    ScaleFilter: {
+        BILINEAR: number;
+        AREA_AVERAGE: number;
+    }
+    PngFilter: {
+        NONE: number;
+        SUB: number;
+        UP: number;
+        AVERAGE: number;
+        PAETH: number;
+        ADAPTIVE: number;
+    }
+    JpegCoding: {
+        STANDARD: number;
+        OPTIMIZED: number;
+        PROGRESSIVE: number;
+    }
     // Used only on iOS
     PopoverArrowDirection: {
         ARROW_UP: number;
@@ -34,6 +34,9 @@ var Camera = require('./Camera');
  */
 var cameraExport = {};
 
+// Ids of getPicture requests, used to cancel their processing on Android
+var nextJobId = 0;
+
 // Tack on the Camera Constants to the base camera plugin.
 for (var key in Camera) {
     cameraExport[key] = Camera[key];
@@ -48,7 +51,8 @@ for (var key in Camera) {
 /**
  * Callback function that provides the image data.
  * @callback module:camera.onSuccess
- * @param {string} imageData - Base64 encoding of the image data, _or_ the image file URI, depending on [`cameraOptions`]{@link module:camera.CameraOptions} in effect.
+ * @param {string|string[]} imageData - Base64 encoding of the image data, _or_ the image file URI, depending on [`cameraOptions`]{@link module:camera.CameraOptions} in effect. An array with one entry per output when `outputs` is set.
+ * @param {Object} [metrics] - Android-only. Timings and sizes of the request, passed when `debugMetrics` is set.
  * @example
  * // Show image
  * //
@@ -75,6 +79,21 @@ for (var key in Camera) {
  * @property {Boolean} [saveToPhotoAlbum] - Save the image to the photo album on the device after capture.
  * @property {module:CameraPopoverOptions} [popoverOptions] - iOS-only options that specify popover location in iPad.
  * @property {module:Camera.Direction} [cameraDirection=BACK] - Choose the camera to use (front- or back-facing).
+ * @property {number} [maxBytes] - Android-only. Upper bound for the size of the encoded JPEG or lossy WebP image in bytes. The highest `quality` up to the requested one that fits is used.
+ * @property {Boolean} [debugMetrics] - Android-only. Pass per-stage timings, byte counts and bitmap sizes of the request as a second argument to the success callback.
+ * @property {Object} [cropRect] - Android-only. Region to crop as `{x, y, width, height}` in fractions (0-1) of the displayed image. Only this region is decoded from the source.
+ * @property {module:camera.onPreview} [onPreview] - Android-only. When set, a small preview of the picture is delivered to this callback before the full result is processed.
+ * @property {module:Camera.ScaleFilter} [scaleFilter=BILINEAR] - Android-only. How the image is scaled to the target size.
+ * @property {number} [pngCompressionLevel] - Android-only. Deflate level of PNG outputs, from 0 (stored, fastest) to 9 (smallest). When set, PNG is compressed in strips on all cores; otherwise it is written by the platform encoder.
+ * @property {module:Camera.PngFilter} [pngFilter=ADAPTIVE] - Android-only. Row filter of PNG outputs when `pngCompressionLevel` is set.
+ * @property {module:Camera.JpegCoding} [jpegCoding] - Android-only. How JPEG outputs are entropy coded. Defaults to the `CameraJpegCoding` preference.
+ * @property {Object[]} [outputs] - Android-only. Several results produced from a single decode of the picture, each an object with optional `targetWidth`, `targetHeight`, `encodingType` and `quality` that default to the options above. The success callback receives an array of results in the same order.
+ */
+
+/**
+ * Callback function that provides a low resolution preview of the picture.
+ * @callback module:camera.onPreview
+ * @param {string} previewData - Base64 encoding of a small JPEG preview of the picture.
  */
 
 /**
@@ -130,6 +149,8 @@ for (var key in Camera) {
  * @param {module:camera.onSuccess} successCallback
  * @param {module:camera.onError} errorCallback
  * @param {module:camera.CameraOptions} options CameraOptions
+ * @returns {Object} Handle whose `cancel()` stops the processing of the picture on Android.
+ *     The error callback then receives `"Cancelled"` and partial output files are removed.
  */
 cameraExport.getPicture = function (successCallback, errorCallback, options) {
     argscheck.checkArgs('fFO', 'Camera.getPicture', arguments);
@@ -148,13 +169,44 @@ cameraExport.getPicture = function (successCallback, errorCallback, options) {
     var saveToPhotoAlbum = !!options.saveToPhotoAlbum;
     var popoverOptions = getValue(options.popoverOptions, null);
     var cameraDirection = getValue(options.cameraDirection, Camera.Direction.BACK);
+    var previewFirst = typeof options.onPreview === 'function';
+    var maxBytes = getValue(options.maxBytes, 0);
+    var cropRect = getValue(options.cropRect, null);
+    var jobId = 'camera' + Date.now() + '_' + (nextJobId++);
+    var debugMetrics = !!options.debugMetrics;
+    var outputs = getValue(options.outputs, null);
+    var scaleFilter = getValue(options.scaleFilter, Camera.ScaleFilter.BILINEAR);
+    var pngCompressionLevel = getValue(options.pngCompressionLevel, -1);
+    var pngFilter = getValue(options.pngFilter, Camera.PngFilter.ADAPTIVE);
+    var jpegCoding = getValue(options.jpegCoding, -1);
 
     var args = [quality, destinationType, sourceType, targetWidth, targetHeight, encodingType,
-        mediaType, allowEdit, correctOrientation, saveToPhotoAlbum, popoverOptions, cameraDirection];
+        mediaType, allowEdit, correctOrientation, saveToPhotoAlbum, popoverOptions, cameraDirection,
+        previewFirst, maxBytes, cropRect, jobId, debugMetrics, outputs, scaleFilter,
+        pngCompressionLevel, pngFilter, jpegCoding];
+
+    var onSuccess = function (result) {
+        // The preview arrives as a separate message ahead of the full result
+        if (previewFirst && result && typeof result === 'object' && result.preview !== undefined) {
+            options.onPreview(result.preview);
+            return;
+        }
+        // With debugMetrics the result comes wrapped together with its metrics
+        if (debugMetrics && result && typeof result === 'object' && result.metrics !== undefined) {
+            successCallback(result.result, result.metrics);
+            return;
+        }
+        successCallback(result);
+    };
 
-    exec(successCallback, errorCallback, 'Camera', 'takePicture', args);
+    exec(onSuccess, errorCallback, 'Camera', 'takePicture', args);
     // XXX: commented out
     // return new CameraPopoverHandle();
+    return {
+        cancel: function (successCallback, errorCallback) {
+            exec(successCallback, errorCallback, 'Camera', 'cancel', [jobId]);
+        }
+    };
 };
 
 /**
@@ -182,4 +234,108 @@ cameraExport.cleanup = function (successCallback, errorCallback) {
     exec(successCallback, errorCallback, 'Camera', 'cleanup', []);
 };
 
+/**
+ * Returns aggregate processing latencies of all pictures taken since the app started or the
+ * last reset: count, p50, p95 and p99 in milliseconds per pipeline stage and per source type,
+ * destination type and encoding combination, together with the device model. The time from the
+ * call to the launch of the camera or gallery is reported per source type. Requests are only
+ * recorded when the `CameraCollectStats` preference is set to true; `enabled` tells whether it is.
+ *
+ * __Supported Platforms__
+ *
+ * - Android
+ *
+ * @example
+ * navigator.camera.getStats(function (stats) {
+ *     console.log(stats.device.model, JSON.stringify(stats.requests));
+ * }, onFail, true);
+ *
+ * @param {Function} successCallback - called with the stats object
+ * @param {Function} errorCallback
+ * @param {Boolean} [reset] - clear the histograms after reading them
+ */
+cameraExport.getStats = function (successCallback, errorCallback, reset) {
+    exec(successCallback, errorCallback, 'Camera', 'getStats', [!!reset]);
+};
+
+/**
+ * Result of one image processed by [`camera.transformImages`]{@link module:camera.transformImages}.
+ * @typedef module:camera.TransformResult
+ * @type {Object}
+ * @property {number} index - Position of the image in the list that was passed.
+ * @property {string} uri - The URI that was passed for the image.
+ * @property {string} [result] - Base64 encoding of the image data, _or_ the image file URI, depending on `destinationType`.
+ * @property {string} [error] - Why the image could not be processed, set instead of `result`.
+ */
+
+/**
+ * Scales, rotates and re-encodes images that are already on the device, without showing
+ * any UI. Each image goes through the same processing as a picture returned by
+ * [`camera.getPicture`]{@link module:camera.getPicture}, with the EXIF data of the source
+ * kept in `FILE_URI` results. A few images are processed in parallel, and the success
+ * callback is called for each one as soon as it is done, in the order they finish.
+ *
+ * Supported options are `quality`, `destinationType`, `targetWidth`, `targetHeight`,
+ * `encodingType`, `correctOrientation`, `maxBytes`, `cropRect`, `scaleFilter`,
+ * `pngCompressionLevel`, `pngFilter` and `jpegCoding`, with the same defaults as for `getPicture`. `options.onComplete` is called with
+ * `{succeeded, failed}` once every image has been reported. The app needs read access to
+ * the images, no permission is requested.
+ *
+ * __Supported Platforms__
+ *
+ * - Android
+ *
+ * @example
+ * navigator.camera.transformImages(function (item) {
+ *     console.log(item.index, item.result || item.error);
+ * }, onFail, [uri1, uri2], { targetWidth: 1024, targetHeight: 1024, correctOrientation: true });
+ *
+ * @param {Function} successCallback - called with a [`TransformResult`]{@link module:camera.TransformResult} per image
+ * @param {module:camera.onError} errorCallback - called when the whole request fails or is cancelled
+ * @param {string[]} uris - `file://` or `content://` URIs of the images
+ * @param {module:camera.CameraOptions} [options]
+ * @returns {Object} Handle whose `cancel()` stops processing the remaining images. The error
+ *     callback then receives `"Cancelled"` and partial output files are removed.
+ */
+cameraExport.transformImages = function (successCallback, errorCallback, uris, options) {
+    argscheck.checkArgs('fFaO', 'Camera.transformImages', arguments);
+    options = options || {};
+    var getValue = argscheck.getValue;
+
+    var quality = getValue(options.quality, 50);
+    var destinationType = getValue(options.destinationType, Camera.DestinationType.FILE_URI);
+    var targetWidth = getValue(options.targetWidth, -1);
+    var targetHeight = getValue(options.targetHeight, -1);
+    var encodingType = getValue(options.encodingType, Camera.EncodingType.JPEG);
+    var correctOrientation = !!options.correctOrientation;
+    var maxBytes = getValue(options.maxBytes, 0);
+    var cropRect = getValue(options.cropRect, null);
+    var jobId = 'camera' + Date.now() + '_' + (nextJobId++);
+    var scaleFilter = getValue(options.scaleFilter, Camera.ScaleFilter.BILINEAR);
+    var pngCompressionLevel = getValue(options.pngCompressionLevel, -1);
+    var pngFilter = getValue(options.pngFilter, Camera.PngFilter.ADAPTIVE);
+    var jpegCoding = getValue(options.jpegCoding, -1);
+
+    var args = [uris, quality, destinationType, targetWidth, targetHeight, encodingType,
+        correctOrientation, maxBytes, cropRect, jobId, scaleFilter, pngCompressionLevel, pngFilter, jpegCoding];
+
+    var onSuccess = function (message) {
+        // The summary arrives as the last message, after every image
+        if (message && message.done) {
+            if (typeof options.onComplete === 'function') {
+                options.onComplete({ succeeded: message.succeeded, failed: message.failed });
+            }
+            return;
+        }
+        successCallback(message);
+    };
+
+    exec(onSuccess, errorCallback, 'Camera', 'transformImages', args);
+    return {
+        cancel: function (successCallback, errorCallback) {
+            exec(successCallback, errorCallback, 'Camera', 'cancel', [jobId]);
+        }
+    };
+};
+
 module.exports = cameraExport;
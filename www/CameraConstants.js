@@ -42,7 +42,13 @@ module.exports = {
         /** Return JPEG encoded image */
         JPEG: 0,
         /** Return PNG encoded image */
-        PNG: 1
+        PNG: 1,
+        /** Return lossy WebP encoded image (Android only) */
+        WEBP: 2,
+        /** Return lossless WebP encoded image (Android only) */
+        WEBP_LOSSLESS: 3,
+        /** Return HEIF encoded image (Android 9+ with an HEVC encoder only, JPEG is returned otherwise) */
+        HEIF: 4
     },
     /**
      * @enum {number}
@@ -88,5 +94,51 @@ module.exports = {
         BACK: 0,
         /** Use the front-facing camera */
         FRONT: 1
+    },
+    /**
+     * @description
+     * Defines how the image is scaled to the target size (Android only).
+     *
+     * @enum {number}
+     */
+    ScaleFilter: {
+        /** Bilinear filtering. DEFAULT */
+        BILINEAR: 0,
+        /** Average the source pixels each output pixel covers, on all cores. Avoids aliasing at large reduction ratios; enlarging stays bilinear */
+        AREA_AVERAGE: 1
+    },
+    /**
+     * @description
+     * Defines the row filter of PNG outputs written with `pngCompressionLevel` (Android only).
+     *
+     * @enum {number}
+     */
+    PngFilter: {
+        /** No filter, the fastest */
+        NONE: 0,
+        /** Difference to the pixel on the left */
+        SUB: 1,
+        /** Difference to the pixel above */
+        UP: 2,
+        /** Difference to the mean of the pixels on the left and above */
+        AVERAGE: 3,
+        /** Difference to the Paeth predictor of the pixels on the left, above and above left */
+        PAETH: 4,
+        /** Pick the best filter for every row. Usually gives the smallest files. DEFAULT */
+        ADAPTIVE: 5
+    },
+    /**
+     * @description
+     * Defines how JPEG outputs are entropy coded (Android only).
+     *
+     * @enum {number}
+     */
+    JpegCoding: {
+        /** Baseline JPEG with the standard Huffman tables, as the platform encoder writes */
+        STANDARD: 0,
+        /** Baseline JPEG with Huffman tables built for the image, smaller at the same quality */
+        OPTIMIZED: 1,
+        /** Progressive JPEG with optimized tables, which a WebView renders coarse to fine while it loads */
+        PROGRESSIVE: 2
     }
 };